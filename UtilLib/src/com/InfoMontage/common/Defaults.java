@@ -78,4 +78,70 @@ public class Defaults {
 
     public final static int DEFAULT_TASK_QUEUE_MAXIMUM_CAPACITY = 40;
 
+    /**
+     * Number of Conduit event-loop threads; zero means one per available
+     * processor.
+     */
+    public final static int DEFAULT_CONDUIT_REACTOR_THREADS = 0;
+
+    /**
+     * Maximum number of unacknowledged bundles a Conduit may have in flight.
+     */
+    public final static int DEFAULT_CONDUIT_SEND_WINDOW_BUNDLES = 64;
+
+    /**
+     * Maximum number of unacknowledged bundle bytes a Conduit may have in
+     * flight.
+     */
+    public final static int DEFAULT_CONDUIT_SEND_WINDOW_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Number of bytes queued for a Conduit's channel above which writers are
+     * held back until the queue drains.
+     */
+    public final static int DEFAULT_CONDUIT_WRITE_HIGH_WATERMARK = 1024 * 1024;
+
+    /**
+     * Number of bytes queued for a Conduit's channel to which the queue must
+     * drain before held back writers may continue.
+     */
+    public final static int DEFAULT_CONDUIT_WRITE_LOW_WATERMARK = 256 * 1024;
+
+    /**
+     * Whether a Conduit offers to deflate the bundles it sends.
+     */
+    public final static boolean DEFAULT_CONDUIT_COMPRESSION = false;
+
+    /**
+     * Length of the shortest bundle a Conduit tries to deflate.
+     */
+    public final static int DEFAULT_CONDUIT_COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * Deflater level a Conduit compresses bundles with.
+     */
+    public final static int DEFAULT_CONDUIT_COMPRESSION_LEVEL = java.util.zip.Deflater.BEST_SPEED;
+
+    /**
+     * Whether a Conduit offers to exchange Packets with compact headers.
+     */
+    public final static boolean DEFAULT_CONDUIT_COMPACT_HEADERS = false;
+
+    /**
+     * Largest datagram, including IP and UDP headers, a Conduit sends over a
+     * DatagramChannel: an Ethernet frame's payload.
+     */
+    public final static int DEFAULT_CONDUIT_DATAGRAM_MTU = 1500;
+
+    /**
+     * Size, in bytes, of each of the two rings of a SharedMemoryChannel.
+     */
+    public final static int DEFAULT_SHARED_MEMORY_RING_BYTES = 1024 * 1024;
+
+    /**
+     * Longest time, in milliseconds, a connection's Thread waits for a
+     * message before checking whether it has been asked to stop.
+     */
+    public final static long DEFAULT_CONNECTION_IDLE_WAIT_MS = 1000;
+
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+/*
+ * StripedCounter.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.math;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * A counter for statistics bumped from many {@link Thread}s, which unlike
+ * {@link BigCounter} takes no lock to count. The count is held in
+ * <CODE>long</CODE> cells updated by compare-and-set: a single cell until
+ * two {@link Thread}s collide on it, and from then on one cell per
+ * {@link Thread} (by hash), each on its own cache line. A cell which would
+ * leave the range of &plusmn;2<SUP>62</SUP> is emptied into a 128 bit
+ * carry under the counter's lock, so the count stays exact to
+ * &plusmn;2<SUP>127</SUP>.
+ * <P>
+ * Reading sums the cells and the carry. A read made while a cell is being
+ * carried waits for the carry to finish, so it never sees a value moved
+ * twice or not at all; but like any read of a counter being updated, it
+ * reflects only some of the updates made during it. {@link #longValue()}
+ * and {@link #snapshot(long[])} read without allocating.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public final class StripedCounter {
+
+    /**
+	 * Code version for the StripedCounter class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * Spacing of the cells, in <CODE>long</CODE>s, so that no two share a
+	 * cache line.
+	 */
+    private static final int PAD = 8;
+
+    /**
+	 * Number of cells once the counter is contended: the number of
+	 * available processors rounded up to a power of two, but at most 64.
+	 */
+    private static final int NUM_CELLS;
+    static {
+	int n = 1;
+	int p = Runtime.getRuntime().availableProcessors();
+	while (n < p && n < 64) {
+	    n <<= 1;
+	}
+	NUM_CELLS = n;
+    }
+
+    /**
+	 * Magnitude a cell is kept within; a cell's sum with any addend which
+	 * is also within it cannot overflow.
+	 */
+    private static final long CELL_LIMIT = 1L << 62;
+
+    /**
+	 * The cell counted into until the counter is contended.
+	 */
+    private final AtomicLong base = new AtomicLong();
+
+    /**
+	 * The per-{@link Thread} cells, at every {@link #PAD}th element;
+	 * <CODE>null</CODE> until the counter is contended.
+	 */
+    private volatile AtomicLongArray cells = null;
+
+    /**
+	 * The high and low words of the count carried out of the cells.
+	 * Guarded by the counter's lock.
+	 */
+    private long carryHi = 0;
+
+    private long carryLo = 0;
+
+    /**
+	 * Bumped before and after each change to the carry, so that it is odd
+	 * while one is under way.
+	 */
+    private volatile int version = 0;
+
+    /** Creates a new instance of StripedCounter */
+    public StripedCounter() {
+    }
+
+    /** Creates a new instance of StripedCounter with a starting value */
+    public StripedCounter(long val) {
+	set(val);
+    }
+
+    public void add(long val) {
+	AtomicLongArray c = this.cells;
+	if (null == c) {
+	    long v = this.base.get();
+	    if (!inRange(v, val)) {
+		carry(null, 0, val);
+		return;
+	    }
+	    if (this.base.compareAndSet(v, v + val)) {
+		return;
+	    }
+	    // another Thread got there first - spread out from now on
+	    c = inflate();
+	}
+	int i = cellIndex(c);
+	while (true) {
+	    long v = c.get(i);
+	    if (!inRange(v, val)) {
+		carry(c, i, val);
+		return;
+	    }
+	    if (c.compareAndSet(i, v, v + val)) {
+		return;
+	    }
+	}
+    }
+
+    public void subtract(long val) {
+	if (Long.MIN_VALUE == val) {
+	    add(Long.MAX_VALUE);
+	    add(1);
+	} else {
+	    add(-val);
+	}
+    }
+
+    public void increment() {
+	add(1);
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if a cell holding <CODE>v</CODE> may have
+	 *         <CODE>val</CODE> added to it without carrying.
+	 */
+    private static boolean inRange(long v, long val) {
+	if (val <= -CELL_LIMIT || val >= CELL_LIMIT) {
+	    return false;
+	}
+	long n = v + val;
+	return (n > -CELL_LIMIT && n < CELL_LIMIT);
+    }
+
+    /**
+	 * @return The index in <CODE>c</CODE> of the calling {@link Thread}'s
+	 *         cell.
+	 */
+    private static int cellIndex(AtomicLongArray c) {
+	int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+	h ^= h >>> 16;
+	return (h & ((c.length() / PAD) - 1)) * PAD;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+	if (null == this.cells) {
+	    this.cells = new AtomicLongArray(NUM_CELLS * PAD);
+	}
+	return this.cells;
+    }
+
+    /**
+	 * Empties a cell into the carry, along with a value to be added.
+	 *
+	 * @param c
+	 *                The cells, or <CODE>null</CODE> for the base cell.
+	 * @param i
+	 *                The index of the cell in <CODE>c</CODE>.
+	 * @param val
+	 *                The value to be added.
+	 */
+    private synchronized void carry(AtomicLongArray c, int i, long val) {
+	this.version++;
+	addToCarry((null == c) ? this.base.getAndSet(0) : c.getAndSet(i, 0));
+	addToCarry(val);
+	this.version++;
+    }
+
+    private void addToCarry(long val) {
+	long lo = this.carryLo + val;
+	this.carryHi += (val >> 63)
+		+ (((lo ^ Long.MIN_VALUE) < (this.carryLo ^ Long.MIN_VALUE)) ? 1
+			: 0);
+	this.carryLo = lo;
+    }
+
+    /**
+	 * Sums the cells and the carry.
+	 *
+	 * @param hiLo
+	 *                If not <CODE>null</CODE>, receives the high word of the
+	 *                sum at index 0 and the low word at index 1.
+	 * @return The low word of the sum.
+	 */
+    private long sum(long[] hiLo) {
+	while (true) {
+	    int v = this.version;
+	    if (0 != (v & 1)) {
+		// a carry is under way
+		Thread.yield();
+		continue;
+	    }
+	    long hi = this.carryHi;
+	    long lo = this.carryLo;
+	    AtomicLongArray c = this.cells;
+	    int n = (null == c) ? 0 : c.length();
+	    for (int i = -PAD; i < n; i += PAD) {
+		long x = (i < 0) ? this.base.get() : c.get(i);
+		long s = lo + x;
+		hi += (x >> 63)
+			+ (((s ^ Long.MIN_VALUE) < (lo ^ Long.MIN_VALUE)) ? 1 : 0);
+		lo = s;
+	    }
+	    if (this.version == v) {
+		if (null != hiLo) {
+		    hiLo[0] = hi;
+		    hiLo[1] = lo;
+		}
+		return lo;
+	    }
+	}
+    }
+
+    /**
+	 * @return The low 64 bits of the count, which is the count itself
+	 *         while it fits in a <CODE>long</CODE>.
+	 */
+    public long longValue() {
+	return sum(null);
+    }
+
+    /**
+	 * Reads the count as a 128 bit two's complement value.
+	 *
+	 * @param hiLo
+	 *                An array of at least two elements, which receives the
+	 *                high word of the count at index 0 and the low word at
+	 *                index 1.
+	 * @return <CODE>hiLo</CODE>.
+	 */
+    public long[] snapshot(long[] hiLo) {
+	sum(hiLo);
+	return hiLo;
+    }
+
+    public BigInteger get() {
+	long[] hiLo = snapshot(new long[2]);
+	BigInteger lo = BigInteger.valueOf(hiLo[1] & Long.MAX_VALUE);
+	if (hiLo[1] < 0) {
+	    lo = lo.setBit(63);
+	}
+	return (0 == hiLo[0]) ? lo : BigInteger.valueOf(hiLo[0]).shiftLeft(64)
+		.add(lo);
+    }
+
+    /**
+	 * Resets the count to zero. Updates made during the reset may or may
+	 * not survive it.
+	 */
+    public void clear() {
+	set(0);
+    }
+
+    /** Set this StripedCounter to a value */
+    public synchronized void set(long val) {
+	this.version++;
+	this.base.set(0);
+	AtomicLongArray c = this.cells;
+	if (null != c) {
+	    for (int i = 0; i < c.length(); i += PAD) {
+		c.set(i, 0);
+	    }
+	}
+	this.carryHi = val >> 63;
+	this.carryLo = val;
+	this.version++;
+    }
+
+    public String toString() {
+	return get().toString();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * StripedCounter_JUnitTest.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.math;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public class StripedCounter_JUnitTest extends TestCase {
+
+    static final long CELL_LIMIT = 1L << 62;
+
+    static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(StripedCounter_JUnitTest.class);
+    }
+
+    /**
+         * Constructor for StripedCounter_JUnitTest.
+         *
+         * @param arg0
+         */
+    public StripedCounter_JUnitTest(String arg0) {
+	super(arg0);
+    }
+
+    public void testSmallCounts() {
+	StripedCounter c = new StripedCounter();
+	assertEquals(0, c.longValue());
+	c.increment();
+	c.add(41);
+	c.subtract(2);
+	assertEquals(40, c.longValue());
+	assertEquals(BigInteger.valueOf(40), c.get());
+	assertEquals("40", c.toString());
+	c.clear();
+	assertEquals(BigInteger.ZERO, c.get());
+	assertEquals(BigInteger.valueOf(-7), new StripedCounter(-7).get());
+    }
+
+    public void testCarryPastCellLimit() {
+	StripedCounter c = new StripedCounter();
+	c.add(CELL_LIMIT - 1);
+	c.add(5);
+	assertEquals(CELL_LIMIT + 4, c.longValue());
+	c.add(CELL_LIMIT);
+	assertEquals(BigInteger.valueOf(CELL_LIMIT).shiftLeft(1).add(
+		BigInteger.valueOf(4)), c.get());
+	StripedCounter d = new StripedCounter();
+	d.add(-CELL_LIMIT + 1);
+	d.add(-5);
+	assertEquals(-CELL_LIMIT - 4, d.longValue());
+	assertEquals(BigInteger.valueOf(-CELL_LIMIT - 4), d.get());
+    }
+
+    public void testExactBeyondLong() {
+	StripedCounter c = new StripedCounter();
+	BigInteger ref = BigInteger.ZERO;
+	for (int i = 0; i < 4; i++) {
+	    c.add(Long.MAX_VALUE);
+	    ref = ref.add(BigInteger.valueOf(Long.MAX_VALUE));
+	}
+	assertEquals(ref, c.get());
+	// the low word wraps, as a long would
+	assertEquals(ref.longValue(), c.longValue());
+	long[] hiLo = c.snapshot(new long[2]);
+	assertEquals(ref.shiftRight(64).longValue(), hiLo[0]);
+	assertEquals(ref.longValue(), hiLo[1]);
+	for (int i = 0; i < 8; i++) {
+	    c.subtract(Long.MAX_VALUE);
+	    ref = ref.subtract(BigInteger.valueOf(Long.MAX_VALUE));
+	}
+	assertEquals(ref, c.get());
+	assertTrue(c.get().signum() < 0);
+	c.subtract(Long.MIN_VALUE);
+	c.add(Long.MIN_VALUE);
+	c.add(Long.MIN_VALUE);
+	ref = ref.add(BigInteger.valueOf(Long.MIN_VALUE));
+	assertEquals(ref, c.get());
+    }
+
+    public void testRandomAgainstBigInteger() {
+	Random rnd = new Random(20261018L);
+	StripedCounter c = new StripedCounter();
+	BigInteger ref = BigInteger.ZERO;
+	for (int i = 0; i < 20000; i++) {
+	    long v;
+	    switch (rnd.nextInt(4)) {
+	    case 0:
+		v = rnd.nextLong();
+		break;
+	    case 1:
+		v = (rnd.nextBoolean() ? 1 : -1)
+			* (CELL_LIMIT - rnd.nextInt(10));
+		break;
+	    default:
+		v = rnd.nextInt();
+	    }
+	    c.add(v);
+	    ref = ref.add(BigInteger.valueOf(v));
+	    if (0 == (i & 255)) {
+		assertEquals(ref, c.get());
+		assertEquals(ref.longValue(), c.longValue());
+	    }
+	}
+	assertEquals(ref, c.get());
+    }
+
+    public void testConcurrentAdds() throws InterruptedException {
+	final StripedCounter c = new StripedCounter();
+	final int threads = 8;
+	final int adds = 200000;
+	Thread[] ts = new Thread[threads];
+	for (int t = 0; t < threads; t++) {
+	    final long step = (0 == (t & 1)) ? 3 : (Long.MAX_VALUE / adds) * 7;
+	    ts[t] = new Thread() {
+		public void run() {
+		    for (int i = 0; i < adds; i++) {
+			c.add(step);
+		    }
+		}
+	    };
+	}
+	for (int t = 0; t < threads; t++) {
+	    ts[t].start();
+	}
+	// reads made while the count is being carried must stay consistent
+	BigInteger last = BigInteger.ZERO;
+	while (ts[threads - 1].isAlive()) {
+	    BigInteger now = c.get();
+	    assertTrue("count went backwards", now.compareTo(last) >= 0);
+	    last = now;
+	}
+	for (int t = 0; t < threads; t++) {
+	    ts[t].join();
+	}
+	BigInteger ref = BigInteger.ZERO;
+	for (int t = 0; t < threads; t++) {
+	    long step = (0 == (t & 1)) ? 3 : (Long.MAX_VALUE / adds) * 7;
+	    ref = ref.add(BigInteger.valueOf(step).multiply(
+		    BigInteger.valueOf(adds)));
+	}
+	assertEquals(ref, c.get());
+	assertTrue(ref.compareTo(TWO_64) > 0);
+    }
+
+    public void testSet() {
+	StripedCounter c = new StripedCounter();
+	c.add(Long.MAX_VALUE);
+	c.add(Long.MAX_VALUE);
+	c.set(-3);
+	assertEquals(BigInteger.valueOf(-3), c.get());
+	c.set(Long.MIN_VALUE);
+	assertEquals(BigInteger.valueOf(Long.MIN_VALUE), c.get());
+    }
+}
@@ -50,6 +50,7 @@ import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Map;
 
+import com.InfoMontage.common.Defaults;
 import com.InfoMontage.failure.Failure;
 import com.InfoMontage.math.BigCounter;
 import com.InfoMontage.stream.ConnectionProtocolMessageProcessor;
@@ -138,7 +139,10 @@ public abstract class AbstractConnection implements Connection, Runnable {
 
     private transient Failure setMsgProcFailReason = null;
 
-    private transient Map msgQueues = new Hashtable(7, 0.86f);
+    /**
+	 * Messages in progress, keyed by generation and message ID.
+	 */
+    private transient BundleTable msgQueues = new BundleTable(7);
 
     private transient byte[] recvBuf = null; // TBD: host recvBuf in Thread
 
@@ -150,31 +154,6 @@ public abstract class AbstractConnection implements Connection, Runnable {
 
     private transient BooleanState iShouldStop = null;
 
-    private static class MsgQKey {
-
-	private transient final long GENERATION_ID;
-
-	private transient final long MSG_ID;
-
-	private transient final int HASH_CODE;
-
-	private MsgQKey(long g, long m) {
-	    GENERATION_ID = g;
-	    MSG_ID = m;
-	    HASH_CODE = new Long(GENERATION_ID ^ MSG_ID).intValue();
-	}
-
-	public boolean equals(Object o) {
-	    return ((o instanceof MsgQKey)
-		    && (((MsgQKey) o).HASH_CODE == this.HASH_CODE)
-		    && (((MsgQKey) o).GENERATION_ID == this.GENERATION_ID) && (((MsgQKey) o).MSG_ID == this.MSG_ID));
-	}
-
-	public int hashCode() {
-	    return HASH_CODE;
-	}
-    }
-
     public AbstractConnection() throws IOException {
 	THIS_CONNECTION_HOST_ADDR = new InetSocketAddress(InetAddress
 		.getLocalHost(), 0);
@@ -526,27 +505,34 @@ public abstract class AbstractConnection implements Connection, Runnable {
 	}
 	if (!isConnected()) {
 	    sendFailReason = ConnectionSendFailure.SEND_FAIL_REASON_NOT_CONNECTED;
+	} else if (!this.conduit.isWritable()) {
+	    // hand the back-pressure to the caller rather than block it
+	    sendFailReason = ConnectionSendFailure.SEND_FAIL_REASON_WOULD_BLOCK;
 	} else {
-	    // sendFailReason = Failure.FAILURE_REASON_STUB_CODE;
 	    try {
 		this.conduit.write(bbuf);
 		if (immediate) {
 		    this.conduit.flush();
 		}
 		sent = true;
+		sendFailReason = null;
 	    } catch (IOException e) {
 		e.printStackTrace();
 		sendFailReason = ConnectionSendFailure.SEND_FAIL_REASON_CANNOT_WRITE;
 	    }
 	}
-	if (sent) {
-	    sendFailReason = null;
-	} else {
-	    sendFailReason = ConnectionSendFailure.SEND_FAIL_REASON_UNKNOWN;
-	}
 	return sent;
     }
 
+    /**
+	 * @return <CODE>true</CODE> if connected and a {@link #send} would not
+	 *         be refused with
+	 *         {@link ConnectionSendFailure#SEND_FAIL_REASON_WOULD_BLOCK}.
+	 */
+    synchronized public boolean isWritable() {
+	return isConnected() && this.conduit.isWritable();
+    }
+
     synchronized public Failure getSendFailureReason() {
 	return sendFailReason;
     }
@@ -613,17 +599,18 @@ public abstract class AbstractConnection implements Connection, Runnable {
 				    + "negotiating protocol version!");
 		}
 		do {
-		    Thread.sleep(20);
-		    // } while (sis.available() == 0); // We should timeout
-		    // at
-		} while (!this.conduit.hasInput()); // We should timeout at
-		// some point
+		    bytesRecvdBuf = this.conduit
+			    .take(Defaults.DEFAULT_CONNECTION_IDLE_WAIT_MS);
+		} while (null == bytesRecvdBuf && this.conduit.isOpen()); // We
+		// should timeout at some point
+		if (null == bytesRecvdBuf) {
+		    throw new ClosedChannelException();
+		}
 		/*
                  * if (null == recvBuf || recvBuf.length < sis.available()) {
                  * recvBuf = new byte[sis.available()]; } bytesRecvdBuf =
                  * ByteBuffer.wrap(recvBuf, 0, sis .read(recvBuf));
                  */
-		bytesRecvdBuf = this.conduit.read();
 		elemRecvd = MessageElement.nextElement(bytesRecvdBuf);
 		if (null == elemRecvd) {
 		    // TBD: Handle unrecognized element in initial
@@ -667,7 +654,8 @@ public abstract class AbstractConnection implements Connection, Runnable {
          */
     public void run() {
 	boolean running = true;
-	ByteBuffer m = ByteBuffer.allocate(defaultInputBufferSize);
+	ByteBuffer m = com.InfoMontage.util.Buffer
+		.acquire(defaultInputBufferSize);
 	iShouldStop = new BooleanState();
 	while (running) {
 	    if (conduit != null) {
@@ -691,11 +679,17 @@ public abstract class AbstractConnection implements Connection, Runnable {
 		    needConnProtoVers = false;
 		}
 		int ba = 0;
-		// try {
-		ba = conduit.read(m);
-		// } catch (IOException e) {
-		// TBD: handle IOException
-		// }
+		try {
+		    // parks until a message arrives, so an idle connection
+		    // costs nothing
+		    ba = conduit.take(m, Defaults.DEFAULT_CONNECTION_IDLE_WAIT_MS);
+		} catch (InterruptedException e) {
+		    iShouldStop.setState(true);
+		}
+		if (0 == ba && !conduit.isOpen()) {
+		    // nothing more will arrive
+		    iShouldStop.setState(true);
+		}
 		if (ba > 0) {
 
 		    // TBD: process msg
@@ -753,6 +747,7 @@ public abstract class AbstractConnection implements Connection, Runnable {
 	    }
 	}
 	iShouldStop = null;
+	com.InfoMontage.util.Buffer.release(m);
 	// TBD: add cleanup code
     }
 
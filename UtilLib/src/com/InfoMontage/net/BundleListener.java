@@ -0,0 +1,81 @@
+/*
+ * BundleListener.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import java.nio.ByteBuffer;
+
+import com.InfoMontage.version.CodeVersion;
+import com.InfoMontage.version.GenericCodeVersion;
+
+/**
+ * Is handed each bundle as soon as it has arrived whole over a
+ * {@link Conduit}, instead of the bundle being queued for
+ * {@link Conduit#read()} or {@link Conduit#take(long)}. So a consumer
+ * need neither poll the {@link Conduit} nor keep a {@link Thread} waiting
+ * on it.
+ * <P>
+ * The method is called on the {@link Conduit}'s reactor {@link Thread},
+ * which serves other {@link Conduit}s too, so must not block; a consumer
+ * with slow work to do should hand the bundle on. An exception thrown by
+ * it closes the {@link Conduit}.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ * @see Conduit#setBundleListener(BundleListener)
+ * @see BundleSegmentListener
+ */
+public interface BundleListener {
+
+    /**
+	 * Interface file version. By convention, for use with
+	 * {@link com.InfoMontage.version.CodeVersion} methods, interface
+	 * versions are kept in a static field named
+	 * <code>INTERFACE_CODE_VERSION</code>.
+	 */
+    static final CodeVersion INTERFACE_CODE_VERSION = GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * A bundle has arrived.
+	 *
+	 * @param c
+	 *                The {@link Conduit}the bundle arrived over.
+	 * @param channel
+	 *                The bundle's logical channel.
+	 * @param bundle
+	 *                The bundle's content, from its position to its limit.
+	 *                The buffer comes from the
+	 *                {@link com.InfoMontage.util.BufferPool}and is the
+	 *                listener's to keep; it may hand it back with
+	 *                {@link com.InfoMontage.util.BufferPool#release(ByteBuffer)}
+	 *                once done with it.
+	 */
+    void bundleReceived(Conduit c, int channel, ByteBuffer bundle);
+}
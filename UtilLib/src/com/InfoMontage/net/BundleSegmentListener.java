@@ -0,0 +1,110 @@
+/*
+ * BundleSegmentListener.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import java.nio.ByteBuffer;
+
+import com.InfoMontage.version.CodeVersion;
+import com.InfoMontage.version.GenericCodeVersion;
+
+/**
+ * Receives the bundles arriving over a {@link Conduit} a piece at a time,
+ * instead of having them assembled whole for {@link Conduit#read()}. Each
+ * bundle is announced by {@link #bundleBegun(Conduit, int, long)}, its
+ * content follows in order as a series of
+ * {@link #segmentReceived(Conduit, int, long, ByteBuffer)} calls, each made
+ * as soon as the {@link Packet}s before it have arrived, and
+ * {@link #bundleEnded(Conduit, int, long)} follows the last. So a large
+ * bundle can be processed as it arrives, and only {@link Packet}s which
+ * arrive ahead of a missing one are held.
+ * <P>
+ * A bundle is identified by its logical channel and its bundle ID, which
+ * is unique within the channel. The bundles of different channels, and
+ * (after a loss) of the same channel, may be delivered interleaved.
+ * <P>
+ * The methods are called on the {@link Conduit}'s reactor {@link Thread},
+ * which serves other {@link Conduit}s too, so must not block. An exception
+ * thrown by one closes the {@link Conduit}.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ * @see Conduit#setSegmentListener(BundleSegmentListener)
+ */
+public interface BundleSegmentListener {
+
+    /**
+	 * Interface file version. By convention, for use with
+	 * {@link com.InfoMontage.version.CodeVersion} methods, interface
+	 * versions are kept in a static field named
+	 * <code>INTERFACE_CODE_VERSION</code>.
+	 */
+    static final CodeVersion INTERFACE_CODE_VERSION = GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * A bundle's first segment is about to be delivered.
+	 *
+	 * @param c
+	 *                The {@link Conduit}the bundle arrived over.
+	 * @param channel
+	 *                The bundle's logical channel.
+	 * @param bndlID
+	 *                The bundle's ID.
+	 */
+    void bundleBegun(Conduit c, int channel, long bndlID);
+
+    /**
+	 * The next piece of a bundle's content has arrived.
+	 *
+	 * @param c
+	 *                The {@link Conduit}the bundle arrived over.
+	 * @param channel
+	 *                The bundle's logical channel.
+	 * @param bndlID
+	 *                The bundle's ID.
+	 * @param segment
+	 *                A read-only buffer holding the piece, which is only
+	 *                valid until this method returns.
+	 */
+    void segmentReceived(Conduit c, int channel, long bndlID,
+	    ByteBuffer segment);
+
+    /**
+	 * A bundle's last segment has been delivered.
+	 *
+	 * @param c
+	 *                The {@link Conduit}the bundle arrived over.
+	 * @param channel
+	 *                The bundle's logical channel.
+	 * @param bndlID
+	 *                The bundle's ID.
+	 */
+    void bundleEnded(Conduit c, int channel, long bndlID);
+}
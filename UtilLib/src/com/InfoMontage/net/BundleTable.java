@@ -0,0 +1,263 @@
+/*
+ * BundleTable.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * A table of values keyed by a pair of <CODE>long</CODE>s: a generation ID
+ * and a bundle (or message) ID within it. Keys are held as primitives in an
+ * open-addressing table with linear probing, so looking up, inserting and
+ * removing entries allocates nothing (other than when the table grows).
+ * Removal shifts the rest of a probe sequence back rather than leaving
+ * deleted markers, so the table never needs cleaning.
+ * <P>
+ * Entries are visited with a cursor over the table's slots:
+ *
+ * <PRE>
+ * for (int i = t.first(); i &gt;= 0; i = t.next(i)) {
+ *     if (done(t.valueAt(i))) {
+ *         t.removeAt(i);
+ *         i--; // re-examine the slot, which may now hold another entry
+ *     }
+ * }
+ * </PRE>
+ *
+ * Removing entries during such a scan may cause an entry to be visited
+ * twice, but never causes one to be missed.
+ * <P>
+ * A BundleTable is not synchronized; its owner must guard it.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+final class BundleTable {
+
+    /**
+	 * Code version for the BundleTable class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    private long[] gens;
+
+    private long[] ids;
+
+    /**
+	 * The values; a <CODE>null</CODE> marks an empty slot.
+	 */
+    private Object[] vals;
+
+    private int mask;
+
+    private int size = 0;
+
+    /**
+	 * Creates an empty table.
+	 *
+	 * @param expected
+	 *                The number of entries expected, which the table can
+	 *                hold without growing.
+	 */
+    BundleTable(int expected) {
+	int cap = 8;
+	while (cap < (expected << 1)) {
+	    cap <<= 1;
+	}
+	allocate(cap);
+    }
+
+    private void allocate(int cap) {
+	this.gens = new long[cap];
+	this.ids = new long[cap];
+	this.vals = new Object[cap];
+	this.mask = cap - 1;
+    }
+
+    private int slot(long g, long b) {
+	long h = (b * 0x9E3779B97F4A7C15L) ^ (g * 0xC2B2AE3D27D4EB4FL);
+	return (int) (h ^ (h >>> 32)) & this.mask;
+    }
+
+    /**
+	 * @return The slot holding the given key, or the empty slot where it
+	 *         would go.
+	 */
+    private int find(long g, long b) {
+	int i = slot(g, b);
+	while (null != this.vals[i]
+		&& (this.ids[i] != b || this.gens[i] != g)) {
+	    i = (i + 1) & this.mask;
+	}
+	return i;
+    }
+
+    int size() {
+	return this.size;
+    }
+
+    boolean isEmpty() {
+	return (0 == this.size);
+    }
+
+    Object get(long g, long b) {
+	return this.vals[find(g, b)];
+    }
+
+    boolean containsKey(long g, long b) {
+	return (null != this.vals[find(g, b)]);
+    }
+
+    /**
+	 * Associates a value with a key.
+	 *
+	 * @return The value previously associated with the key, or
+	 *         <CODE>null</CODE>.
+	 * @throws NullPointerException
+	 *                 if <CODE>v</CODE> is <CODE>null</CODE>.
+	 */
+    Object put(long g, long b, Object v) throws NullPointerException {
+	if (null == v) {
+	    throw new NullPointerException(
+		    "Attempt to put a null value in a BundleTable!");
+	}
+	int i = find(g, b);
+	Object retVal = this.vals[i];
+	if (null == retVal) {
+	    if (((this.size + 1) << 1) > this.vals.length) {
+		grow();
+		i = find(g, b);
+	    }
+	    this.gens[i] = g;
+	    this.ids[i] = b;
+	    this.size++;
+	}
+	this.vals[i] = v;
+	return retVal;
+    }
+
+    /**
+	 * Removes a key and its value.
+	 *
+	 * @return The value which was associated with the key, or
+	 *         <CODE>null</CODE>.
+	 */
+    Object remove(long g, long b) {
+	int i = find(g, b);
+	Object retVal = this.vals[i];
+	if (null != retVal) {
+	    removeAt(i);
+	}
+	return retVal;
+    }
+
+    void clear() {
+	java.util.Arrays.fill(this.vals, null);
+	this.size = 0;
+    }
+
+    /**
+	 * @return The first occupied slot, or -1 if the table is empty.
+	 */
+    int first() {
+	return next(-1);
+    }
+
+    /**
+	 * @return The first occupied slot after slot <CODE>i</CODE>, or -1 if
+	 *         there is none.
+	 */
+    int next(int i) {
+	for (i++; i < this.vals.length; i++) {
+	    if (null != this.vals[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    long genAt(int i) {
+	return this.gens[i];
+    }
+
+    long idAt(int i) {
+	return this.ids[i];
+    }
+
+    Object valueAt(int i) {
+	return this.vals[i];
+    }
+
+    /**
+	 * Removes the entry in an occupied slot, moving later entries of its
+	 * probe sequence back to close the gap.
+	 *
+	 * @param i
+	 *                The slot.
+	 */
+    void removeAt(int i) {
+	this.vals[i] = null;
+	this.size--;
+	int j = i;
+	while (true) {
+	    j = (j + 1) & this.mask;
+	    if (null == this.vals[j]) {
+		return;
+	    }
+	    int k = slot(this.gens[j], this.ids[j]);
+	    // move the entry at j back to i unless its home slot lies
+	    // cyclically in (i, j]
+	    if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j))) {
+		continue;
+	    }
+	    this.gens[i] = this.gens[j];
+	    this.ids[i] = this.ids[j];
+	    this.vals[i] = this.vals[j];
+	    this.vals[j] = null;
+	    i = j;
+	}
+    }
+
+    private void grow() {
+	long[] og = this.gens;
+	long[] ob = this.ids;
+	Object[] ov = this.vals;
+	allocate(ov.length << 1);
+	for (int i = 0; i < ov.length; i++) {
+	    if (null != ov[i]) {
+		int j = find(og[i], ob[i]);
+		this.gens[j] = og[i];
+		this.ids[j] = ob[i];
+		this.vals[j] = ov[i];
+	    }
+	}
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * BundleTable_JUnitTest.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public class BundleTable_JUnitTest extends TestCase {
+
+    Random rnd;
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(BundleTable_JUnitTest.class);
+    }
+
+    /**
+         * Constructor for BundleTable_JUnitTest.
+         *
+         * @param arg0
+         */
+    public BundleTable_JUnitTest(String arg0) {
+	super(arg0);
+    }
+
+    protected void setUp() throws Exception {
+	super.setUp();
+	this.rnd = new Random(20261018L);
+    }
+
+    protected void tearDown() throws Exception {
+	this.rnd = null;
+	super.tearDown();
+    }
+
+    public void testPutGetRemove() {
+	BundleTable t = new BundleTable(4);
+	assertTrue(t.isEmpty());
+	assertNull(t.put(1, 2, "a"));
+	assertEquals("a", t.put(1, 2, "b"));
+	assertNull(t.put(2, 1, "c"));
+	assertEquals(2, t.size());
+	assertEquals("b", t.get(1, 2));
+	assertEquals("c", t.get(2, 1));
+	assertNull(t.get(1, 1));
+	assertTrue(t.containsKey(2, 1));
+	assertEquals("b", t.remove(1, 2));
+	assertNull(t.remove(1, 2));
+	assertFalse(t.containsKey(1, 2));
+	assertEquals(1, t.size());
+	t.clear();
+	assertTrue(t.isEmpty());
+	assertEquals(-1, t.first());
+	try {
+	    t.put(1, 1, null);
+	    fail("null value was put");
+	} catch (NullPointerException e) {
+	    // expected
+	}
+    }
+
+    public void testGrow() {
+	BundleTable t = new BundleTable(1);
+	for (int i = 0; i < 5000; i++) {
+	    t.put(i >>> 4, i, Integer.valueOf(i));
+	}
+	assertEquals(5000, t.size());
+	for (int i = 0; i < 5000; i++) {
+	    assertEquals(Integer.valueOf(i), t.get(i >>> 4, i));
+	}
+	int n = 0;
+	for (int i = t.first(); i >= 0; i = t.next(i)) {
+	    assertEquals(t.valueAt(i), Integer.valueOf((int) t.idAt(i)));
+	    assertEquals(t.idAt(i) >>> 4, t.genAt(i));
+	    n++;
+	}
+	assertEquals(5000, n);
+    }
+
+    /**
+         * Churns small, crowded tables, whose probe sequences often wrap
+         * around the end, against a {@link HashMap}, so that removal's
+         * backward shift is checked for every arrangement it meets.
+         */
+    public void testRemoveShiftsBack() {
+	for (int round = 0; round < 200; round++) {
+	    BundleTable t = new BundleTable(8);
+	    Map ref = new HashMap();
+	    for (int op = 0; op < 2000; op++) {
+		long g = this.rnd.nextInt(4);
+		long b = this.rnd.nextInt(24);
+		String k = g + "/" + b;
+		if (this.rnd.nextBoolean()) {
+		    assertEquals(ref.put(k, k), t.put(g, b, k));
+		} else {
+		    assertEquals(ref.remove(k), t.remove(g, b));
+		}
+		assertEquals(ref.size(), t.size());
+	    }
+	    assertMatches(ref, t);
+	}
+    }
+
+    /**
+         * Removes entries during a cursor scan: every entry present when the
+         * scan starts must be visited at least once.
+         */
+    public void testCursorNeverMisses() {
+	for (int round = 0; round < 500; round++) {
+	    BundleTable t = new BundleTable(8);
+	    Map ref = new HashMap();
+	    int n = 1 + this.rnd.nextInt(40);
+	    for (int j = 0; j < n; j++) {
+		long g = this.rnd.nextInt(3);
+		long b = this.rnd.nextInt(64);
+		String k = g + "/" + b;
+		t.put(g, b, k);
+		ref.put(k, k);
+	    }
+	    int present = t.size();
+	    Map visits = new HashMap();
+	    for (int i = t.first(); i >= 0; i = t.next(i)) {
+		Object v = t.valueAt(i);
+		Integer c = (Integer) visits.get(v);
+		visits.put(v, Integer.valueOf((null == c) ? 1 : c.intValue() + 1));
+		if (this.rnd.nextInt(3) != 0) {
+		    t.removeAt(i);
+		    ref.remove(v);
+		    // re-examine the slot, which may now hold another entry
+		    i--;
+		}
+	    }
+	    assertEquals("entries missed in round " + round, present, visits
+		    .size());
+	    Iterator it = visits.values().iterator();
+	    while (it.hasNext()) {
+		assertTrue(((Integer) it.next()).intValue() <= 2);
+	    }
+	    assertMatches(ref, t);
+	}
+    }
+
+    private static void assertMatches(Map ref, BundleTable t) {
+	assertEquals(ref.size(), t.size());
+	int n = 0;
+	for (int i = t.first(); i >= 0; i = t.next(i)) {
+	    String k = t.genAt(i) + "/" + t.idAt(i);
+	    assertEquals(k, t.valueAt(i));
+	    assertEquals(k, ref.get(k));
+	    assertEquals(k, t.get(t.genAt(i), t.idAt(i)));
+	    n++;
+	}
+	assertEquals(ref.size(), n);
+	Iterator it = ref.keySet().iterator();
+	while (it.hasNext()) {
+	    String k = (String) it.next();
+	    int s = k.indexOf('/');
+	    assertEquals(k, t.get(Long.parseLong(k.substring(0, s)), Long
+		    .parseLong(k.substring(s + 1))));
+	}
+    }
+}
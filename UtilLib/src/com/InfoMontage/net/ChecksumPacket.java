@@ -64,6 +64,16 @@ class ChecksumPacket extends Packet {
 	chksum=getChkSum();
     }
 
+    /** Creates a new instance of Packet whose payload is shared with, not
+     * copied from, the provided buffer.<P>
+     *  The provided data will be validated.
+     */
+    ChecksumPacket(long gid, long mid, int pid, ByteBuffer p)
+    throws IllegalArgumentException {
+	super(gid,mid,pid,p);
+	chksum=getChkSum();
+    }
+
     public String toString() {
 	StringBuffer s=new StringBuffer("cksum=").append(chksum);
 	return super.toString(s);
@@ -87,12 +97,13 @@ class ChecksumPacket extends Packet {
 
     long getChkSum() {
 	long cs=0;
-	if (payload!=null && payload.length>0) {
-	    cs=(long)payload[1];
-	    if (payload.length>1) {
+	ByteBuffer pv=payloadView();
+	if (pv!=null && pv.limit()>0) {
+	    cs=(long)pv.get(0);
+	    if (pv.limit()>1) {
 		BigCounter ls=new BigCounter(cs);
-		for (int i=payload.length; i>1; i--)
-		    ls.add((long)payload[i]);
+		for (int i=pv.limit()-1; i>0; i--)
+		    ls.add((long)pv.get(i));
 		cs=chkSumMod(ls);
 	    }
 	}
@@ -107,6 +118,10 @@ class ChecksumPacket extends Packet {
 	return new ChecksumPacket(gid,mid,pid,l,p);
     }
 
+    static Packet newPacket(long gid, long mid, int pid, ByteBuffer p) {
+	return new ChecksumPacket(gid,mid,pid,p);
+    }
+
     static ByteBuffer recombine(ChecksumPacket[] pkts)
     throws IllegalArgumentException, NullPointerException {
 	com.InfoMontage.math.BigCounter cs=new com.InfoMontage.math.BigCounter();
@@ -54,31 +54,40 @@ class ChecksumPacketFactory extends PacketFactory {
      */
     private ChecksumPacketFactory() {}
 
-    static short getDefaultPayloadSize() {
+    short getDefaultPayloadSize() {
 	return ChecksumPacket.DEFAULT_PACKET_PAYLOAD_LENGTH;
     }
 
-    static Packet getHeartbeatPacket() {
+    Packet getHeartbeatPacket() {
 	return ChecksumPacket.getHeartbeatPacket();
     }
 
-    static Packet[] decompose(ByteBuffer ibb,short psz,long gen, long msg)
+    Packet[] decompose(ByteBuffer ibb,short psz,long gen, long msg)
     throws IllegalArgumentException {
-	return ChecksumPacket.decompose(ibb, psz, gen, msg);
+	return decompose(ibb, psz, gen, msg, false);
     }
 
-    static Packet newPacket(long gid, long mid, int pid, short l, byte[] p) {
+    Packet[] decompose(ByteBuffer ibb,short psz,long gen, long msg,
+	boolean slice) throws IllegalArgumentException {
+	return Packet.decompose(this, ibb, psz, gen, msg, slice);
+    }
+
+    Packet newPacket(long gid, long mid, int pid, short l, byte[] p) {
 	return ChecksumPacket.newPacket(gid,mid,pid,l,p);
     }
 
-    static ByteBuffer recombine(Packet[] pkts)
+    Packet newPacket(long gid, long mid, int pid, ByteBuffer p) {
+	return ChecksumPacket.newPacket(gid,mid,pid,p);
+    }
+
+    ByteBuffer recombine(Packet[] pkts)
     throws IllegalArgumentException, NullPointerException {
 	return ChecksumPacket.recombine(pkts);
     }
 
-    static Packet valueOf(ByteBuffer buf)
+    Packet valueOf(ByteBuffer buf)
     throws IllegalArgumentException, BufferUnderflowException {
-	return ChecksumPacket.valueOf(buf);
+	return Packet.valueOf(this, buf);
     }
 
 }
@@ -0,0 +1,275 @@
+/*
+ * CompactPacket.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package com.InfoMontage.net;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import com.InfoMontage.common.Defaults;
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * A {@link Packet} whose header takes as few bytes as its values allow.
+ * Where a {@link Packet}'s header is always 26 bytes, a CompactPacket's is a
+ * single type byte followed by its <CODE>genID</CODE>,
+ * <CODE>bndlID</CODE>, <CODE>pktID</CODE> and <CODE>len</CODE> as
+ * variable length integers, seven bits to a byte, least significant first,
+ * the top bit of each byte but the last being set. The
+ * <CODE>genID</CODE> is rotated left by a byte first, so that the logical
+ * channel in its top byte costs nothing on the default channel, and the
+ * <CODE>pktID</CODE> is zig-zag encoded, so that the small negative IDs of
+ * control {@link Packet}s take a byte. A typical Ack's header is then five
+ * bytes, and a data {@link Packet}'s seven or so.
+ * <P>
+ * The type byte's top three bits are <CODE>101</CODE>, which no
+ * {@link Packet}'s magic number starts with, so the two kinds of header
+ * can be told apart as they are read. Each header stands alone, so a lost
+ * or reordered datagram does not affect the others.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ * @see CompactPacketFactory
+ */
+class CompactPacket extends Packet {
+
+    /**
+	 * Code version for the CompactPacket class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * The type byte every compact header starts with.
+	 */
+    static final byte COMPACT_MAGIC_ID = (byte) 0xA0;
+
+    /**
+	 * The bits of the first byte of a header which tell a compact header
+	 * from a {@link Packet}'s. The rest of the type byte is reserved, and
+	 * must be zero.
+	 */
+    static final byte COMPACT_MAGIC_MASK = (byte) 0xE0;
+
+    /**
+	 * The longest a compact header can be: the type byte, ten bytes each
+	 * for the <CODE>genID</CODE> and <CODE>bndlID</CODE>, five for the
+	 * <CODE>pktID</CODE> and three for the <CODE>len</CODE>.
+	 */
+    static final int MAX_HEADER_LENGTH = 1 + 10 + 10 + 5 + 3;
+
+    static final Packet HEARTBEAT_PACKET = new CompactPacket(0, 0, 0,
+	(short) 0, null);
+
+    static Packet getHeartbeatPacket() {
+	return HEARTBEAT_PACKET;
+    }
+
+    /**
+     * Creates a new instance of CompactPacket with values for all fields
+     * provided as parameters.
+     * <P>
+     * The provided data will be validated.
+     */
+    CompactPacket(long gid, long mid, int pid, short l, byte[] p)
+	throws IllegalArgumentException
+    {
+	super(gid, mid, pid, l, p);
+    }
+
+    /**
+     * Creates a new instance of CompactPacket whose payload is shared with,
+     * not copied from, the provided buffer.
+     * <P>
+     * The provided data will be validated.
+     */
+    CompactPacket(long gid, long mid, int pid, ByteBuffer p)
+	throws IllegalArgumentException
+    {
+	super(gid, mid, pid, p);
+    }
+
+    static Packet newPacket(long gid, long mid, int pid, short l, byte[] p)
+    {
+	Packet npkt = new CompactPacket(gid, mid, pid, l, p);
+	assert (Defaults.dbg().finest("Created Packet: " + npkt));
+	return npkt;
+    }
+
+    static Packet newPacket(long gid, long mid, int pid, ByteBuffer p) {
+	Packet npkt = new CompactPacket(gid, mid, pid, p);
+	assert (Defaults.dbg().finest("Created Packet: " + npkt));
+	return npkt;
+    }
+
+    public String toString() {
+	return super.toString(new StringBuffer("compact"));
+    }
+
+    /**
+     * The header replaces, rather than adds to, a {@link Packet}'s, so this
+     * does not call <CODE>super.metaDataLength()</CODE>.
+     * 
+     * @return The length of this Packet's metadata.
+     */
+    protected int metaDataLength() {
+	return 1 + varLongLength(Long.rotateLeft(genID, 8))
+	    + varLongLength(bndlID) + varLongLength(zigZag(pktID))
+	    + varLongLength(len & 0xFFFF);
+    }
+
+    /**
+     * Appends this {@link Packet}'s compact header, in place of a
+     * {@link Packet}'s, so this does not call
+     * <CODE>super.appendPacketHeader(bb)</CODE>.
+     * 
+     * @param bb The ByteBuffer to append this {@link Packet}'s metadata to.
+     * @throws NullPointerException if t <CODE>bb</CODE> is null.
+     * @throws BufferOverflowException if the ByteBuffer does not have enough
+     *             room left to append the metadata.
+     */
+    protected void appendPacketHeader(final ByteBuffer bb)
+	throws NullPointerException, BufferOverflowException
+    {
+	bb.put(COMPACT_MAGIC_ID);
+	putVarLong(bb, Long.rotateLeft(genID, 8));
+	putVarLong(bb, bndlID);
+	putVarLong(bb, zigZag(pktID));
+	putVarLong(bb, len & 0xFFFF);
+    }
+
+    /**
+     * Reads a {@link Packet} from the start of a buffer, whether its header
+     * is compact or not.
+     * 
+     * @param buf The buffer, which is advanced past the {@link Packet} if
+     *            one is read.
+     * @return The {@link Packet}, or <CODE>null</CODE> if the buffer does
+     *         not yet hold all of it.
+     * @throws IllegalArgumentException if the compact header is malformed,
+     *             or describes an invalid {@link Packet}.
+     */
+    static Packet valueOf(ByteBuffer buf)
+	throws IllegalArgumentException, BufferUnderflowException
+    {
+	if (buf == null || !buf.hasRemaining())
+	    return null;
+	byte t = buf.get(buf.position());
+	if ( (t & COMPACT_MAGIC_MASK) != COMPACT_MAGIC_ID)
+	    return Packet.valueOf(buf);
+	if (t != COMPACT_MAGIC_ID)
+	    throw new IllegalArgumentException(
+		"Compact packet header with unknown flags "
+		    + Integer.toHexString(t & 0xFF) + "!");
+	Packet rp = null;
+	ByteBuffer bb = buf.asReadOnlyBuffer();
+	try {
+	    bb.get();
+	    long g = Long.rotateRight(getVarLong(bb), 8);
+	    long m = getVarLong(bb);
+	    long z = getVarLong(bb);
+	    long lv = getVarLong(bb);
+	    int p = unZigZag((int) z);
+	    // only a header packet, which has no payload, may set the sign
+	    // bit of its length (to mark its bundle deflated)
+	    if ( (z >>> 32) != 0 || (lv >>> 16) != 0
+		|| (p != 0 && lv > Short.MAX_VALUE))
+		throw new IllegalArgumentException(
+		    "Compact packet header with out of range fields!");
+	    short l = (short) lv;
+	    byte[] b = ( (l < 1) || (p == 0)) ? null : new byte[l];
+	    rp = newPacket(g, m, p, l, b);
+	    if (b != null)
+		bb.get(b);
+	    assert (Defaults.dbg().finest("Got buffer valueOf " + rp));
+	} catch (BufferUnderflowException e) {
+	    rp = null;
+	}
+	if (rp != null)
+	    buf.position(bb.position());
+	return rp;
+    }
+
+    /**
+     * @return The number of bytes {@link #putVarLong(ByteBuffer, long)}
+     *         takes to encode <CODE>v</CODE>.
+     */
+    static int varLongLength(long v) {
+	return ( (63 - Long.numberOfLeadingZeros(v | 1)) / 7) + 1;
+    }
+
+    /**
+     * Appends a <CODE>long</CODE>, taken as unsigned, as a variable length
+     * integer of one to ten bytes.
+     */
+    static void putVarLong(ByteBuffer bb, long v)
+	throws BufferOverflowException
+    {
+	while ( (v & ~0x7FL) != 0) {
+	    bb.put((byte) ( (v & 0x7F) | 0x80));
+	    v >>>= 7;
+	}
+	bb.put((byte) v);
+    }
+
+    /**
+     * Reads a variable length integer written by
+     * {@link #putVarLong(ByteBuffer, long)}.
+     * 
+     * @throws IllegalArgumentException if the integer is longer than ten
+     *             bytes.
+     */
+    static long getVarLong(ByteBuffer bb)
+	throws BufferUnderflowException, IllegalArgumentException
+    {
+	long v = 0;
+	for (int shift = 0; shift < 64; shift += 7) {
+	    byte b = bb.get();
+	    v |= (long) (b & 0x7F) << shift;
+	    if (b >= 0)
+		return v;
+	}
+	throw new IllegalArgumentException(
+	    "Compact packet header with an overlong field!");
+    }
+
+    /**
+     * @return <CODE>i</CODE> zig-zag encoded, so that integers of small
+     *         magnitude have small encodings whatever their sign.
+     */
+    static long zigZag(int i) {
+	return ( (i << 1) ^ (i >> 31)) & 0xFFFFFFFFL;
+    }
+
+    static int unZigZag(int z) {
+	return (z >>> 1) ^ -(z & 1);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * CompactPacketFactory.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package com.InfoMontage.net;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * Makes {@link CompactPacket}s, and reads {@link Packet}s with either
+ * compact or full headers. A {@link Conduit} given this factory makes
+ * {@link Packet}s with full headers until the other end says it reads
+ * compact ones.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ * @see Conduit#setCompactHeaders(boolean)
+ */
+class CompactPacketFactory extends PacketFactory {
+
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /** The singleton instance of this class.
+     */
+    static private final CompactPacketFactory singleton=new CompactPacketFactory();
+
+    static PacketFactory getInstance() { return singleton; }
+
+    /** PacketFactories are singletons.
+     */
+    private CompactPacketFactory() {}
+
+    Packet getHeartbeatPacket() {
+	return CompactPacket.getHeartbeatPacket();
+    }
+
+    Packet newPacket(long gid, long mid, int pid, short l, byte[] p) {
+	return CompactPacket.newPacket(gid,mid,pid,l,p);
+    }
+
+    Packet newPacket(long gid, long mid, int pid, ByteBuffer p) {
+	return CompactPacket.newPacket(gid,mid,pid,p);
+    }
+
+    Packet valueOf(ByteBuffer buf)
+    throws IllegalArgumentException, BufferUnderflowException {
+	return CompactPacket.valueOf(buf);
+    }
+
+    int maxMetaDataLength() {
+	int fl=fullHeaderFactory().maxMetaDataLength();
+	return (CompactPacket.MAX_HEADER_LENGTH > fl)
+	    ? CompactPacket.MAX_HEADER_LENGTH : fl;
+    }
+
+    boolean readsCompactHeaders() {
+	return true;
+    }
+
+    PacketFactory fullHeaderFactory() {
+	return PacketFactory.getInstance();
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * CompactPacket_JUnitTest.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public class CompactPacket_JUnitTest extends TestCase {
+
+    static final long[] LONGS = { 0, 1, 0x7F, 0x80, 0x3FFF, 0x4000,
+	    0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE, Long.MIN_VALUE, -1,
+	    0x0123456789ABCDEFL };
+
+    static final int[] INTS = { 0, 1, -1, 63, -64, 64, -65,
+	    Integer.MAX_VALUE, Integer.MIN_VALUE, -5, 12345 };
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(CompactPacket_JUnitTest.class);
+    }
+
+    /**
+         * Constructor for CompactPacket_JUnitTest.
+         *
+         * @param arg0
+         */
+    public CompactPacket_JUnitTest(String arg0) {
+	super(arg0);
+    }
+
+    public void testVarLongRoundTrip() {
+	ByteBuffer bb = ByteBuffer.allocate(10);
+	for (int i = 0; i < LONGS.length; i++) {
+	    bb.clear();
+	    CompactPacket.putVarLong(bb, LONGS[i]);
+	    assertEquals("encoded length of " + LONGS[i], CompactPacket
+		    .varLongLength(LONGS[i]), bb.position());
+	    bb.flip();
+	    assertEquals(LONGS[i], CompactPacket.getVarLong(bb));
+	    assertFalse(bb.hasRemaining());
+	}
+	assertEquals(1, CompactPacket.varLongLength(0x7F));
+	assertEquals(2, CompactPacket.varLongLength(0x80));
+	assertEquals(10, CompactPacket.varLongLength(-1));
+    }
+
+    public void testVarLongOverlong() {
+	ByteBuffer bb = ByteBuffer.allocate(11);
+	for (int i = 0; i < 11; i++) {
+	    bb.put((byte) 0x80);
+	}
+	bb.flip();
+	try {
+	    CompactPacket.getVarLong(bb);
+	    fail("Eleven byte varint was read");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    public void testZigZagRoundTrip() {
+	for (int i = 0; i < INTS.length; i++) {
+	    long z = CompactPacket.zigZag(INTS[i]);
+	    assertEquals("zigZag(" + INTS[i] + ") is unsigned 32 bits", 0,
+		    z >>> 32);
+	    assertEquals(INTS[i], CompactPacket.unZigZag((int) z));
+	}
+	// small magnitudes of either sign stay small
+	assertEquals(0, CompactPacket.zigZag(0));
+	assertEquals(1, CompactPacket.zigZag(-1));
+	assertEquals(2, CompactPacket.zigZag(1));
+	assertEquals(127, CompactPacket.zigZag(-64));
+    }
+
+    public void testGenIdRotation() {
+	// the channel in the top byte of a genID costs nothing on channel 0
+	Packet p = CompactPacket.newPacket(0x00000000000000FFL, 1, 1,
+		(short) 1, new byte[] { 42 });
+	Packet q = CompactPacket.newPacket(0xFF00000000000000L, 1, 1,
+		(short) 1, new byte[] { 42 });
+	assertTrue(p.metaDataLength() > q.metaDataLength());
+	for (int i = 0; i < LONGS.length; i++) {
+	    Packet r = roundTrip(CompactPacket.newPacket(LONGS[i], 7, -2,
+		    (short) 0, null));
+	    assertEquals(LONGS[i], r.genID);
+	}
+    }
+
+    public void testPacketRoundTrip() {
+	byte[] pl = new byte[300];
+	for (int i = 0; i < pl.length; i++) {
+	    pl[i] = (byte) i;
+	}
+	for (int i = 0; i < LONGS.length; i++) {
+	    for (int j = 0; j < INTS.length; j++) {
+		Packet p = CompactPacket.newPacket(LONGS[i], LONGS[LONGS.length
+			- 1 - i], INTS[j], (short) pl.length, (INTS[j] == 0)
+			? null : pl);
+		Packet r = roundTrip(p);
+		assertEquals(p.genID, r.genID);
+		assertEquals(p.bndlID, r.bndlID);
+		assertEquals(p.pktID, r.pktID);
+		assertEquals(p.len, r.len);
+		assertTrue(p.equals(r));
+	    }
+	}
+    }
+
+    public void testDeflatedHeaderRoundTrip() {
+	Packet h = CompactPacket.newPacket(3, 4, 0, (short) 5, null);
+	h.markDeflated();
+	Packet r = roundTrip(h);
+	assertTrue(r.isDeflated());
+	assertEquals(5, r.bundlePacketCount());
+    }
+
+    public void testFullHeaderIsRead() {
+	Packet p = Packet.newPacket(9, 8, 1, (short) 2, new byte[] { 1, 2 });
+	Packet r = roundTrip(p);
+	assertFalse(r instanceof CompactPacket);
+	assertTrue(p.equals(r));
+    }
+
+    public void testPartialPacketIsNotRead() {
+	ByteBuffer bb = ByteBuffer.allocate(64);
+	CompactPacket.newPacket(1, 2, 3, (short) 4, new byte[] { 1, 2, 3, 4 })
+		.appendToByteBuffer(bb);
+	bb.flip();
+	bb.limit(bb.limit() - 1);
+	assertNull(CompactPacket.valueOf(bb));
+	assertEquals(0, bb.position());
+    }
+
+    public void testOversizedLengthRejected() {
+	// a data packet's length of 32768 to 65535 would be a negative short
+	ByteBuffer bb = ByteBuffer.allocate(64);
+	bb.put(CompactPacket.COMPACT_MAGIC_ID);
+	CompactPacket.putVarLong(bb, 0);
+	CompactPacket.putVarLong(bb, 1);
+	CompactPacket.putVarLong(bb, CompactPacket.zigZag(1));
+	CompactPacket.putVarLong(bb, 40000);
+	bb.flip();
+	try {
+	    CompactPacket.valueOf(bb);
+	    fail("Data packet with a length over Short.MAX_VALUE was read");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    public void testUnknownFlagsRejected() {
+	ByteBuffer bb = ByteBuffer.allocate(64);
+	bb.put((byte) (CompactPacket.COMPACT_MAGIC_ID | 0x10));
+	CompactPacket.putVarLong(bb, 0);
+	CompactPacket.putVarLong(bb, 0);
+	CompactPacket.putVarLong(bb, 0);
+	CompactPacket.putVarLong(bb, 0);
+	bb.flip();
+	try {
+	    CompactPacket.valueOf(bb);
+	    fail("Compact header with unknown flags was read");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    private static Packet roundTrip(Packet p) {
+	int l = p.metaDataLength() + (p.hasPayload() ? p.len : 0);
+	ByteBuffer bb = ByteBuffer.allocate(l + 64);
+	p.appendToByteBuffer(bb);
+	assertEquals(l, bb.position());
+	bb.flip();
+	Packet r = CompactPacket.valueOf(bb);
+	assertNotNull(r);
+	assertFalse(bb.hasRemaining());
+	return r;
+    }
+}
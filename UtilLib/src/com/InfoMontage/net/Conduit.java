@@ -30,38 +30,49 @@
 package com.InfoMontage.net;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.net.DatagramSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
 import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.net.ssl.SSLSocket;
 
 import com.InfoMontage.common.Defaults;
-import com.InfoMontage.math.BigCounter;
-import com.InfoMontage.task.Task;
-import com.InfoMontage.task.TaskExecutor;
-import com.InfoMontage.task.TaskExecutorPool;
+import com.InfoMontage.math.StripedCounter;
+import com.InfoMontage.task.TimerWheel;
 import com.InfoMontage.util.AssertableLogger;
-import com.InfoMontage.util.BooleanState;
+import com.InfoMontage.util.BufferPool;
+import com.InfoMontage.util.SpscQueue;
 import com.InfoMontage.version.CodeVersion;
 
 /**
@@ -72,6 +83,59 @@ import com.InfoMontage.version.CodeVersion;
  * I/O statistics, etc. Will work with {@link Socket}s, {@link SSLSocket}s,{@link DatagramSocket}s,
  * and any other class that implements both the {@link SelectableChannel}and
  * the {@link ByteChannel} interfaces.
+ * <P>
+ * The send and receive sides of a Conduit have separate locks, so that a
+ * large bundle being sent does not hold up receiving, and Acks keep flowing
+ * while the sender waits for the send window. Neither side ever waits for
+ * the other: Acks, NAKs and options received are handed to the send side,
+ * and Acks and NAKs to be sent are handed to it by the receive side,
+ * through lock-free queues which whichever {@link Thread}next holds the
+ * send lock drains.
+ * <P>
+ * Writing never blocks on the channel. What the kernel will not take at once
+ * is queued, and the Conduit's reactor writes it out as the channel becomes
+ * writable. Once more than the high watermark of output is queued the
+ * Conduit stops being {@link #isWritable() writable}, and
+ * {@link #write(ByteBuffer)}waits (and {@link #tryWrite(ByteBuffer)}
+ * declines) until the queue has drained to the low watermark, unless the
+ * bundle's logical channel has nothing else waiting to be sent.
+ * <P>
+ * If both ends {@link #setCompression(boolean) enable compression}, bundles
+ * long enough to be worth it are deflated before being broken into
+ * {@link Packet}s, and inflated again once reassembled. A bundle which does
+ * not deflate well is sent as it is; each bundle's header {@link Packet}
+ * says which it is.
+ * <P>
+ * Over a connected {@link DatagramChannel} each {@link Packet} travels in a
+ * datagram of its own, and the Conduit's own Acks, NAKs and retransmissions
+ * provide the reliability and ordering, without one lost datagram holding
+ * up the bundles behind it. Payloads are kept small enough for a whole
+ * datagram to fit the {@link #setPathMtu(int) path MTU}, so that none is
+ * fragmented. (Only a bundle of more than {@link Short#MAX_VALUE} such
+ * payloads has to use larger ones.)
+ * <P>
+ * A Conduit carries up to {@link #MAX_CHANNELS} logical channels, each
+ * with its own sequence of bundles, so that small messages need not wait
+ * behind a large transfer. Bundles {@link #write(int, ByteBuffer) written}
+ * to a channel wait in that channel's queue, and their {@link Packet}s are
+ * handed to the underlying channel only as fast as it takes them: channels
+ * of higher {@link #setChannelPriority(int, int, int) priority} first, and
+ * channels of equal priority in turn, in proportion to their weights. The
+ * receiving end reassembles and queues each channel's bundles separately,
+ * to be {@link #read(int) read} from that channel. Channel
+ * {@link #DEFAULT_CHANNEL} is the one used by {@link #write(ByteBuffer)}.
+ * <P>
+ * Rather than reading whole bundles, a receiver can
+ * {@link #setSegmentListener(BundleSegmentListener) listen} for their
+ * content, which is then handed over in order as it arrives instead of
+ * being assembled. A large bundle can so be processed from its first
+ * {@link Packet} on, without ever being held whole.
+ * <P>
+ * Files are {@link #sendFile(int, FileChannel, long, long) sent} straight
+ * from the file system cache, as a bundle whose {@link Packet} payloads
+ * are slices of the memory-mapped file, and
+ * {@link #receiveTo(int, FileChannel, long) received} straight into the
+ * destination file as they arrive.
  * 
  * @author Richard A. Mead <BR>
  *         Information Montage
@@ -92,282 +156,104 @@ public final class Conduit extends AbstractSelectableChannel {
 	    .codeVersionFromCVSRevisionString("$Revision$");
 
     /**
-	 * Collection of all instantiated Conduits.
+	 * Sets the number of {@link ConduitReactor}event-loop {@link Thread}s
+	 * which Conduits are sharded across. Only effective if called before
+	 * the first Conduit is created; afterwards the number of event loops is
+	 * fixed.
+	 *
+	 * @param n
+	 *                The number of event loops, or zero for one per
+	 *                available processor.
+	 * @return <CODE>true</CODE> if the setting took effect.
 	 */
-    protected static List conduits = new Vector();
+    public static boolean setEventLoopThreads(int n) {
+	return ConduitReactor.setReactorCount(n);
+    }
 
     /**
-	 * An internal object used for synchronization of access to the
-	 * collection of instantiated Conduits and it's index variable.
+	 * The {@link ConduitReactor}this Conduit is pinned to. All receive
+	 * processing for this Conduit happens on that reactor's {@link Thread}.
 	 */
-    protected static final Object lockForNextConduitToCheck = new Object();
+    private volatile transient ConduitReactor reactor = null;
 
     /**
-	 * An index into the collection of instantiated Conduits.
+	 * Guards the send side of this Conduit: the generation and bundle
+	 * counters, the output bundle queue and send window, {@link Packet}size
+	 * adaptation, options, Acks of Acks, and writing to the channel.
 	 */
-    protected static int nextConduitToCheck = 0;
-
-    protected volatile BooleanState beingProcessed = new BooleanState(false);
+    private transient final ReentrantLock sendLock = new ReentrantLock();
 
     /**
-	 * Maximum number of {@link Thread}s allocated for receiving data from
-	 * all Sockets.
+	 * Signalled when Acks free room in the send window.
 	 */
-    private static final int MAX_RECEIVER_TASK_THREADS = 4;
+    private transient final Condition sendWindowOpened = this.sendLock
+	    .newCondition();
 
     /**
-	 * Array of {@link Task}s used by the receiver threads.
+	 * Signalled when the outbound queue drains to its low watermark.
 	 */
-    protected static final ReceiverTask RECEIVE_TASKS[] = new ReceiverTask[MAX_RECEIVER_TASK_THREADS];
+    private transient final Condition outboundDrained = this.sendLock
+	    .newCondition();
 
     /**
-	 * The pool of {@link TaskExecutor}s used to process ReceiverTasks.
+	 * Guards the receive side of this Conduit: reading from the channel,
+	 * the raw input buffers, the input bundle queue and the
+	 * {@link AckState}s. Never held while waiting for {@link #sendLock}.
 	 */
-    protected static final TaskExecutorPool RECEIVER_TASK_FACTORY = TaskExecutorPool
-	    .getPool("ConduitReceivers", 1, MAX_RECEIVER_TASK_THREADS, false);
+    private transient final ReentrantLock recvLock = new ReentrantLock();
 
     /**
-	 * Master {@link Thread}monitoring all instantiated Conduits for
-	 * available data.
-	 *
-	 * @author Richard A. Mead <BR>
-	 *         Information Montage
-	 */
-    private static class ConduitMonitorThread extends Thread {
-
-	/**
-	 * {@link Logger}for this class.
-	 */
-	private static final AssertableLogger log = new AssertableLogger(
-		ConduitMonitorThread.class.getName());
-
-	/**
-	 * The constructor names the thread.
-	 */
-	private ConduitMonitorThread() {
-	    super("Conduit monitor");
-	}
-
-	/**
-	 * Monitoring code lives here.
-	 *
-	 * @see java.lang.Thread#run()
+	 * Signalled when a {@link Thread}waiting in
+	 * {@link #receiveTo(int, FileChannel, long)} has more of its bundle
+	 * to write, or the bundle is complete.
 	 */
-	public void run() {
-	    int i;
-	    assert (log.info("Conduit monitoring thread starting."));
-	    while (true) {
-		assert (log.gettingLock(Conduit.conduits));
-		synchronized (Conduit.conduits) {
-		    assert (log.gotLock(Conduit.conduits));
-		    if (!Conduit.conduits.isEmpty()) {
-			assert (log
-				.info("Conduit monitor thread beginning task check."));
-			for (i = 0; i < Conduit.MAX_RECEIVER_TASK_THREADS; i++) {
-			    if (null != Conduit.RECEIVE_TASKS[i]) {
-				if (!Conduit.RECEIVE_TASKS[i].isProcessing()) {
-				    break;
-				}
-			    } else {
-				Conduit.RECEIVE_TASKS[i] = new ReceiverTask();
-				break;
-			    }
-			}
-			if (i < Conduit.MAX_RECEIVER_TASK_THREADS) {
-			    Conduit ctc;
-			    assert (log
-				    .finer("Conduit monitor thread has an available task to use. (#"
-					    + i + ")"));
-			    assert (log
-				    .gettingLock(Conduit.lockForNextConduitToCheck));
-			    synchronized (Conduit.lockForNextConduitToCheck) {
-				assert (log
-					.gotLock(Conduit.lockForNextConduitToCheck));
-				assert (log
-					.finer("Conduit monitor checking conduit #"
-						+ Conduit.nextConduitToCheck
-						+ 1 + "."));
-				ctc = (Conduit) Conduit.conduits
-					.get(Conduit.nextConduitToCheck);
-				Conduit.nextConduitToCheck++;
-				if (Conduit.nextConduitToCheck >= Conduit.conduits
-					.size()) {
-				    Conduit.nextConduitToCheck = 0;
-				}
-			    }
-			    assert (log
-				    .releasedLock(Conduit.lockForNextConduitToCheck));
-			    // No need for sync locks here since this is the
-			    // only thread that can initiate processing of a
-			    // Conduit.
-			    if (!ctc.beingProcessed.getState()) {
-				ctc.beingProcessed.setState(true);
-				try {
-				    Conduit.RECEIVER_TASK_FACTORY.doTask(
-					    Conduit.RECEIVE_TASKS[i],
-					    new Object[] { ctc }, false);
-				} catch (InterruptedException e) {
-				    // TODO Close the conduit??
-				}
-			    }
-			}
-		    }
-		}
-		assert (log.releasedLock(Conduit.conduits));
-		boolean shouldSleep = false;
-		assert (log.gettingLock(Conduit.lockForNextConduitToCheck));
-		synchronized (Conduit.lockForNextConduitToCheck) {
-		    assert (log.gotLock(Conduit.lockForNextConduitToCheck));
-		    shouldSleep = (Conduit.nextConduitToCheck == 0);
-		}
-		assert (log.releasedLock(Conduit.lockForNextConduitToCheck));
-		if (shouldSleep) {
-		    try {
-			assert (log.finest("Conduit monitor thread sleeping."));
-			Thread.sleep(100);
-		    } catch (InterruptedException e) {
-			// TODO Handle interruptions of the monitor
-			// thread.
-			assert (log.throwing(e));
-		    }
-		    assert (log.finest("Conduit monitor thread woke up."));
-		}
-	    }
-	}
-    }
+    private transient final Condition fileReceived = this.recvLock
+	    .newCondition();
 
     /**
-	 * The instantiation of the master monitor {@link Thread}.
+	 * The files bundles are being received into, indexed by logical
+	 * channel. Guarded by {@link #recvLock}.
 	 */
-    private static final ConduitMonitorThread cmt = new ConduitMonitorThread();
-    static {
-	cmt.start();
-    }
+    private transient FileSink[] fileSinks = new FileSink[MAX_CHANNELS];
 
     /**
-	 * The {@link Task}used to receive data.
-	 *
-	 * @author Richard A. Mead <BR>
-	 *         Information Montage
-	 */
-    public static class ReceiverTask implements Task {
-
-	/**
-	 * {@link Logger}for this class.
-	 */
-	private static final AssertableLogger log = new AssertableLogger(
-		ReceiverTask.class.getName());
-
-	private Object[] params;
-
-	/**
-	 * Parameter validation routine for ReceiverTasks.
-	 *
-	 * @see com.InfoMontage.task.ExecutableTask#validateParameters(java.lang.Object[])
+	 * Guards waiting for bundles to be received, in {@link #take(long)} and
+	 * its kin. Never held while taking {@link #recvLock}.
 	 */
-	public Exception validateParameters(Object[] pa) {
-	    Exception retVal = null;
-	    Conduit c = null;
-	    try {
-		c = (Conduit) pa[0];
-	    } catch (ClassCastException e) {
-		retVal = (IllegalArgumentException) new IllegalArgumentException(
-			"Attempt" + " to set ReceiverTask parameter to a "
-				+ pa[0].getClass() + " instead of a Conduit!")
-			.initCause(e);
-	    } catch (NullPointerException e) {
-		retVal = (NullPointerException) new NullPointerException(
-			"Attempt to set ReceiverTask parameter to null instead of"
-				+ " a Conduit!").initCause(e);
-	    }
-	    if (null == c) {
-		retVal = new NullPointerException(
-			"Attempt to set ReceiverTask parameter to null instead of"
-				+ " a Conduit!");
-	    }
-	    return retVal;
-	}
-
-	/**
-	 * The actual work of receiving data is done here.
-	 *
-	 * @see com.InfoMontage.task.ExecutableTask#doTask()
-	 */
-	public void doTask() {
-	    Iterator i;
-	    Conduit c;
-	    assert (log.finer("Beginning receive task."));
-	    assert (log.gettingLock(this.params[0]));
-	    synchronized (this.params[0]) {
-		assert (log.gotLock(this.params[0]));
-		assert (log.finest("Attempting receive."));
-		c = (Conduit) (this.params[0]);
-		try {
-		    c.receive();
-		} catch (IOException e) {
-		    // Lost contact?
-		    if (!c.isOpen()) {
-			// TBD: Possibly attempt to re-establish?
-			removeConduit(c);
-		    } else {
-			// Still open!
-			assert (log.throwing(e));
-			throw (IllegalStateException) new IllegalStateException()
-				.initCause(e);
-		    }
-		}
-	    }
-	    assert (log.releasedLock(this.params[0]));
-	    c.beingProcessed.setState(false);
-	    assert (log.info("Receive task completed."));
-	}
+    private transient final ReentrantLock takeLock = new ReentrantLock();
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see com.InfoMontage.task.Task#clearTaskParameters()
+    /**
+	 * Signalled when bundles have been queued for reading while a
+	 * {@link Thread}waits for one, or the Conduit closes.
 	 */
-	public void clearParameters() throws IllegalStateException {
-	    this.params = null;
-	}
+    private transient final Condition bundleArrived = this.takeLock
+	    .newCondition();
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see com.InfoMontage.task.Task#isProcessing()
+    /**
+	 * The number of {@link Thread}s waiting for a bundle. Changed only
+	 * with {@link #takeLock}held, and read by the receive side to see
+	 * whether any need waking.
 	 */
-	public boolean isProcessing() {
-	    return (this.params == null) ? false
-		    : ((Conduit) (this.params[0])).beingProcessed.getState();
-	}
+    private volatile transient int takers = 0;
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see com.InfoMontage.task.Task#percentComplete()
+    /**
+	 * The longest any bundle can be: the most a header {@link Packet}'s
+	 * count of data {@link Packet}s and their payload lengths can describe.
+	 * A deflated bundle which claims to be longer is refused.
 	 */
-	public float percentComplete() {
-	    return (this.isProcessing()) ? 0 : 1;
-	}
+    final static int MAX_INFLATED_LENGTH = Short.MAX_VALUE * Short.MAX_VALUE;
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see com.InfoMontage.task.Task#setTaskParameters(java.lang.Object[])
+    /**
+	 * Work handed to the send side: Acks, NAKs and options received, and
+	 * sent bundles whose deadlines have passed.
 	 */
-	public void setParameters(Object[] pa) throws IllegalArgumentException {
-	    this.params = pa;
-	}
+    private transient final ConcurrentLinkedQueue sendInbox = new ConcurrentLinkedQueue();
 
-	/*
-	 * (non-Javadoc)
-	 *
-	 * @see com.InfoMontage.task.Task#getResults()
+    /**
+	 * Control {@link Packet}s made by the receive side, waiting to be sent
+	 * by the send side.
 	 */
-	public Object[] getResults() throws IllegalStateException {
-	    return null;
-	}
-    }
+    private transient final ConcurrentLinkedQueue ctlOutbox = new ConcurrentLinkedQueue();
 
     /**
 	 * The size of the buffer used for getting raw data from a
@@ -399,940 +285,4346 @@ public final class Conduit extends AbstractSelectableChannel {
     }
 
     /**
-	 * The current size of a {@link Packet}'s payload.
+	 * The current size of a {@link Packet}'s payload, adapted to the
+	 * traffic by {@link #adaptPacketSize(int)}.
 	 */
-    private volatile transient Short currPacketSize = new Short((short) 0);
+    private volatile transient short currPacketSize = 0;
 
     /**
-	 * A holding place for the {@link SelectableChannel}interface into this
-	 * Conduit's {@link Socket}.
+	 * The largest {@link Packet}payload this Conduit will send or accept.
 	 */
-    private volatile transient SelectableChannel channel = null;
+    private volatile transient short maxPacketSize = 0;
 
     /**
-	 * A holding place for the {@link ByteChannel}interface into this
-	 * Conduit's {@link Socket}.
+	 * The largest {@link Packet}payload the other end will accept, as it
+	 * has advertised. Until it does, the default payload size is assumed.
 	 */
-    private volatile transient ByteChannel byteChannel = null;
+    private volatile transient int peerMaxPacketSize = Packet.DEFAULT_PACKET_PAYLOAD_LENGTH;
 
     /**
-	 * The {@link Charset}being used with this Conduit.
+	 * The largest datagram, in bytes including the IP and UDP headers, this
+	 * Conduit sends over a {@link DatagramChannel}.
 	 */
-    private volatile transient Charset charSet = null;
+    private volatile transient int pathMtu = Defaults.DEFAULT_CONDUIT_DATAGRAM_MTU;
 
     /**
-	 * The current {@link PacketFactory}for this conduit.
+	 * Bytes of IP and UDP header in a datagram, allowing for IPv6.
 	 */
-    private volatile transient PacketFactory packetFactory = null;
+    private final static int DATAGRAM_HEADER_LENGTH = 48;
 
-    private volatile transient ByteBuffer recvBuf = null;
+    /**
+	 * The longest datagram a channel can deliver.
+	 */
+    private final static int MAX_DATAGRAM_LENGTH = 65535;
 
-    private volatile transient ByteBuffer sendBuf = null;
+    /**
+	 * The most datagrams read from a {@link DatagramChannel} in one go.
+	 */
+    private final static int DATAGRAM_READ_BATCH = 64;
 
-    private volatile transient ByteBuffer recvReadBuf = null;
+    /**
+	 * The payload size ceiling imposed by recent retransmissions, halved
+	 * whenever too many {@link Packet}s need resending and raised again
+	 * while none do.
+	 */
+    private transient int lossPacketSizeCeiling = Short.MAX_VALUE;
 
-    private volatile transient Vector readBufs = null;
+    /**
+	 * Moving average of the length of the bundles written, or -1 before
+	 * the first.
+	 */
+    private transient int avgBndlLen = -1;
 
-    private volatile transient byte[] bytesRecvd = null;
+    /**
+	 * Bundles written, {@link Packet}s sent and {@link Packet}s resent
+	 * since the payload size ceiling was last reviewed.
+	 */
+    private transient int adaptBndls = 0;
+
+    private transient int adaptPktsSent = 0;
+
+    private transient int adaptPktsResent = 0;
 
     /**
-	 * A queue of bundles awaiting completion or acknowledgement. As bundle
-	 * {@link Packet}s are received, they are accumulated in an array which
-	 * is stored in this queue. Once all of a particular bundle's
-	 * {@link Packet}s have been received, the bundle is acknowledged. Once
-	 * the acknowledgement has been received by the sender, the bundle
-	 * becomes available for processing and is no longer available for a
-	 * resend request.
+	 * The smallest payload size {@link #adaptPacketSize(int)}will choose.
 	 */
-    private volatile transient Map inBndlQueues = new Hashtable(7, 0.86f);
+    private final static int MIN_PACKET_SIZE = 256;
 
     /**
-	 * A queue of bundles awaiting acknowledgement. When a bundle is sent,
-	 * it is stored in this queue until an acknowledgement of receipt is
-	 * sent back. Once the acknowledgement has been received, the bundle is
-	 * removed from this queue. If there is a timeout, or if the receiver
-	 * requests it, the bundle can be resent.
+	 * Number of bundles written between reviews of the payload size
+	 * ceiling.
 	 */
-    private volatile transient Map outBndlQueues = new Hashtable(7, 0.86f);
+    private final static int ADAPT_INTERVAL_BUNDLES = 32;
 
     /**
-	 * Number of bytes sent over this Conduit.
+	 * Option advertising the largest {@link Packet}payload the sender will
+	 * accept.
+	 *
+	 * @see Packet#OPTION_PACKET_ID
 	 */
-    private volatile transient BigCounter numBytesSent = new BigCounter();
+    final static byte OPT_MAX_PAYLOAD = 1;
 
     /**
-	 * Number of bytes received over this Conduit.
+	 * Option saying whether the sender wants bundles deflated; they are
+	 * only deflated if both ends do. Either end inflates deflated bundles
+	 * regardless. A deflated bundle starts with its inflated length, as
+	 * four bytes, so that the receiver need not trust the deflated data to
+	 * end.
+	 *
+	 * @see Packet#HEADER_DEFLATED
 	 */
-    private volatile transient BigCounter numBytesRcvd = new BigCounter();
+    final static byte OPT_COMPRESSION = 2;
 
     /**
-	 * Number of {@link Packet}s sent over this Conduit.
+	 * Whether this end wants bundles deflated, and whether the other end
+	 * does.
 	 */
-    private volatile transient BigCounter numPktsSent = new BigCounter();
+    private volatile transient boolean compression = Defaults.DEFAULT_CONDUIT_COMPRESSION;
+
+    private transient boolean peerCompression = false;
 
     /**
-	 * Number of {@link Packet}s received over this Conduit.
+	 * Option saying whether the sender reads {@link CompactPacket}headers;
+	 * each end only sends them once the other has said it does.
+	 *
+	 * @see CompactPacketFactory
 	 */
-    private volatile transient BigCounter numPktsRcvd = new BigCounter();
+    final static byte OPT_COMPACT_HEADERS = 3;
 
     /**
-	 * Number of bundles of {@link Packet}s sent over this Conduit.
+	 * Whether the other end has said it reads {@link CompactPacket}
+	 * headers.
 	 */
-    private volatile transient BigCounter numBundlesSent = new BigCounter();
+    private volatile transient boolean peerCompactHeaders = false;
 
     /**
-	 * Number of bundles of {@link Packet}s received over this Conduit.
+	 * Option saying whether the sender checks CRCs; each end only sends
+	 * {@link Crc32cPacket}s once the other has said it does. The ends must
+	 * agree, so an end hearing that the other does not closes the
+	 * Conduit.
+	 *
+	 * @see #setCrcChecking(boolean)
+	 */
+    final static byte OPT_CRC = 4;
+
+    /**
+	 * Whether the other end has said it checks CRCs.
+	 */
+    private volatile transient boolean peerCrc = false;
+
+    /**
+	 * Option advertising the sender's send window in bundles, which the
+	 * receiver takes as how far past its cumulative Ack a bundle ID may be.
+	 *
+	 * @see #setSendWindow(int, int)
 	 */
-    private volatile transient BigCounter numBundlesRcvd = new BigCounter();
+    final static byte OPT_SEND_WINDOW = 5;
 
-    private final static long DEFAULT_EXPECTED_PACKET_LAG_MS = 500;
+    /**
+	 * The other end's send window in bundles, limited to
+	 * {@link #MAX_SEND_WINDOW_BUNDLES}; bundles further than this past a
+	 * generation's cumulative Ack are dropped unread.
+	 */
+    private volatile transient int peerSendWindowBundles = Defaults.DEFAULT_CONDUIT_SEND_WINDOW_BUNDLES;
 
-    volatile transient long expectedPacketLagMs = DEFAULT_EXPECTED_PACKET_LAG_MS;
+    /**
+	 * The other end's generation number, from its options; bundles of
+	 * other generations are dropped, so that at most
+	 * {@link #MAX_CHANNELS}generations are tracked.
+	 */
+    private volatile transient long peerGen = 1;
 
-    private final static int NUM_PACKET_RECV_TIMES = 5; // Must
+    /**
+	 * The failure which closed this Conduit, if it closed itself.
+	 */
+    private volatile transient Exception closeCause = null;
 
-    // be
-    // >1
-    private volatile transient long[] lastPacketRecvTimes;
+    /**
+	 * Length of the shortest bundle worth deflating.
+	 */
+    private volatile transient int compressionThreshold = Defaults.DEFAULT_CONDUIT_COMPRESSION_THRESHOLD;
 
-    private volatile transient long recvTimesSum = 0;
+    /**
+	 * Receives the content of bundles as it arrives, if not
+	 * <CODE>null</CODE>, instead of their being queued for reading whole.
+	 */
+    private volatile transient BundleSegmentListener segmentListener = null;
 
-    private volatile transient long recvTimeDivisor = 0;
+    /**
+	 * Is handed each bundle once it arrives whole, if not
+	 * <CODE>null</CODE>, instead of its being queued for reading.
+	 */
+    private volatile transient BundleListener bundleListener = null;
 
-    volatile transient long expectedPacketLagMsDelta = 0;
+    /**
+	 * Reusable {@link Deflater}and buffers for the send side, created on
+	 * first use and guarded by {@link #sendLock}.
+	 */
+    private transient Deflater deflater = null;
 
-    private final static int LAG_TIMEOUT_MULTIPLE = 3;
+    private transient byte[] deflateIn = null;
 
-    private final static int MAX_TIMEOUTS_TIL_EXCEPTION = 5;
+    private transient byte[] deflateOut = null;
 
-    private final static int MIN_LAG_BEFORE_EXCEPTION = 30 * 1000;
+    /**
+	 * Reusable {@link Inflater}for the receive side, created on first use
+	 * and guarded by {@link #recvLock}.
+	 */
+    private transient Inflater inflater = null;
 
-    private volatile transient int numTimeouts = 0;
+    private transient byte[] inflateIn = null;
 
     /**
-	 * Current generation number for this Conduit's {@link Packet}s.
+	 * Whether this Conduit's options should be sent to the other end at
+	 * the next opportunity, and whether they have been.
 	 */
-    private volatile transient Long currGen = new Long(1);
+    private transient boolean optionsPending = true;
+
+    private transient boolean optionsSent = false;
 
     /**
-	 * Current bundle number for this Conduit's {@link Packet}s.
+	 * A holding place for the {@link SelectableChannel}interface into this
+	 * Conduit's {@link Socket}.
 	 */
-    private volatile transient Long currBndl = new Long(1);
+    private volatile transient SelectableChannel channel = null;
 
     /**
-	 * An immutable key used to reference bundles of {@link Packet}s in a
-	 * bundle ({@link Packet}bundle) queue.
-	 *
-	 * @author Richard A. Mead <BR>
-	 *         Information Montage
+	 * A holding place for the {@link ByteChannel}interface into this
+	 * Conduit's {@link Socket}.
 	 */
-    private static class BndlQKey {
+    private volatile transient ByteChannel byteChannel = null;
 
-	/**
-	 * {@link Logger}for this class
+    /**
+	 * The {@link Charset}being used with this Conduit.
 	 */
-	private static final AssertableLogger log = new AssertableLogger(
-		BndlQKey.class.getName());
+    private volatile transient Charset charSet = null;
 
-	/**
-	 * The generation number of the {@link Packet}s.
+    /**
+	 * The current {@link PacketFactory}for this conduit.
 	 */
-	transient final long GENERATION_ID;
+    private volatile transient PacketFactory packetFactory = null;
 
-	/**
-	 * The bundle number of the {@link Packet}s.
+    /**
+	 * Whether {@link #write(ByteBuffer)}decomposes bundles into
+	 * {@link Packet}s whose payloads are slices of the caller's buffer
+	 * rather than copies of it.
 	 */
-	transient final long BNDL_ID;
+    private volatile transient boolean zeroCopyWrites = false;
 
-	/**
-	 * The cached hashcode value for this key.
+    /**
+	 * Maximum number of sent bundles which may be awaiting acknowledgement.
 	 */
-	private transient final int HASH_CODE;
+    private volatile transient int sendWindowBundles = Defaults.DEFAULT_CONDUIT_SEND_WINDOW_BUNDLES;
 
-	private BndlQKey(long g, long b) {
-	    this.GENERATION_ID = g;
-	    this.BNDL_ID = b;
-	    this.HASH_CODE = new Long(this.GENERATION_ID ^ this.BNDL_ID)
-		    .intValue();
-	    assert (Defaults.dbg().finest("Created a " + this));
-	}
+    /**
+	 * Maximum number of bytes of sent bundles which may be awaiting
+	 * acknowledgement.
+	 */
+    private volatile transient int sendWindowBytes = Defaults.DEFAULT_CONDUIT_SEND_WINDOW_BYTES;
 
-	public boolean equals(Object o) {
-	    boolean retVal = ((o instanceof Conduit.BndlQKey)
-		    && (((Conduit.BndlQKey) o).HASH_CODE == this.HASH_CODE)
-		    && (((Conduit.BndlQKey) o).GENERATION_ID == this.GENERATION_ID) && (((Conduit.BndlQKey) o).BNDL_ID == this.BNDL_ID));
-	    assert (Defaults.dbg().finest("Compared equality of " + this
-		    + " and " + o + ": " + (retVal ? "" : "not ") + "equal"));
-	    return retVal;
-	}
+    /**
+	 * Number of bytes of sent bundles awaiting acknowledgement.
+	 */
+    private transient int unackedBytes = 0;
 
-	public int hashCode() {
-	    return this.HASH_CODE;
-	}
+    private volatile transient ByteBuffer recvBuf = null;
 
-	public String toString() {
-	    StringBuffer retVal = new StringBuffer("BndlQKey[gen=").append(
-		    this.GENERATION_ID).append(",bndl=").append(this.BNDL_ID)
-		    .append(",hash=").append(this.HASH_CODE).append("]");
-	    return retVal.toString();
-	}
-    }
+    private volatile transient ByteBuffer sendBuf = null;
 
     /**
-	 * The value class corresponding to the BndlQKey class for bundle
-	 * queues. The value is an array of {@link Packet}s, as well as some
-	 * bundle state information.
-	 *
-	 * @author Richard A. Mead <BR>
-	 *         Information Montage
+	 * Reusable buffer the headers of outbound {@link Packet}s are encoded
+	 * into; each header is sent from a view of this buffer.
 	 */
-    private static class BndlQValue {
+    private transient ByteBuffer sendHdrBuf = null;
 
-	/**
-	 * {@link Logger}for this class
+    /**
+	 * Reusable views of {@link #sendHdrBuf}, one per {@link Packet}header.
 	 */
-	private static final AssertableLogger log = new AssertableLogger(
-		BndlQValue.class.getName());
+    private transient ByteBuffer[] sendHdrViews = new ByteBuffer[0];
 
-	/**
-	 * The array of {@link Packet}s containing the bundle.
+    /**
+	 * Reusable scatter array of header and payload buffers handed to a
+	 * gathering write. Entry <CODE>2i</CODE> is the header of the
+	 * <CODE>i</CODE>th {@link Packet}and entry <CODE>2i+1</CODE> is its
+	 * payload (empty for a header-only {@link Packet}).
 	 */
-	transient ArrayList packets;
+    private transient ByteBuffer[] sendVec = new ByteBuffer[0];
 
-	/**
-	 * The number of {@link Packet}s in the bundle that have not yet been
-	 * received.
+    /**
+	 * Empty buffer standing in for the payload of a header-only
+	 * {@link Packet}in {@link #sendVec}.
 	 */
-	transient long packetsLeftToRecv = 0;
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
 
-	transient long expectedCompletion;
+    /**
+	 * Single entry array used to send one control {@link Packet}.
+	 */
+    private transient final Packet[] ctlPkts = new Packet[1];
 
-	transient boolean recvComplete = false;
+    /**
+	 * Output the channel has not yet taken, oldest first, in entries
+	 * <CODE>outQHead</CODE> up to <CODE>outQTail</CODE>. On a datagram
+	 * channel each entry is a whole datagram.
+	 */
+    private transient ByteBuffer[] outQ = new ByteBuffer[16];
 
-	transient boolean ackSent = false;
+    /**
+	 * Whether each entry of {@link #outQ}was acquired from the
+	 * {@link BufferPool}, to be released once written.
+	 */
+    private transient boolean[] outQPooled = new boolean[16];
 
-	BndlQValue(ArrayList p) {
-	    this.packets = p;
-	    setExpectedCompletion();
-	}
+    private transient int outQHead = 0;
 
-	final void setExpectedCompletion() {
-	    setExpectedCompletion(DEFAULT_EXPECTED_PACKET_LAG_MS,
-		    this.packetsLeftToRecv);
-	}
+    private transient int outQTail = 0;
 
-	final void setExpectedCompletion(long expectedPacketDelayMs) {
-	    setExpectedCompletion(expectedPacketDelayMs, this.packetsLeftToRecv);
-	}
+    /**
+	 * Number of bytes in {@link #outQ}.
+	 */
+    private volatile transient int queuedBytes = 0;
 
-	final void setExpectedCompletion(long expectedPacketDelayMs, long packetsLeft) {
-	    this.expectedCompletion = System.currentTimeMillis()
-		    + (expectedPacketDelayMs * ((packetsLeft > 0) ? packetsLeft
-			    : 5));
-	}
-    }
+    private volatile transient int writeHighWatermark = Defaults.DEFAULT_CONDUIT_WRITE_HIGH_WATERMARK;
 
-    public Conduit(SelectableChannel c) throws NullPointerException,
-	    IOException, IllegalStateException, IllegalArgumentException {
-	super(c.provider());
-	this.initConduit(c, Defaults.DEFAULT_CHARSET, null);
-    }
+    private volatile transient int writeLowWatermark = Defaults.DEFAULT_CONDUIT_WRITE_LOW_WATERMARK;
 
-    public Conduit(SelectableChannel c, PacketFactory pf)
-	    throws NullPointerException, IOException, IllegalStateException,
-	    IllegalArgumentException {
-	super(c.provider());
-	this.initConduit(c, Defaults.DEFAULT_CHARSET, pf);
-    }
+    /**
+	 * Number of bytes of bundle payload written to logical channels but
+	 * not yet handed to the channel.
+	 */
+    private volatile transient int unsentBytes = 0;
 
-    public Conduit(SelectableChannel c, Charset cs)
-	    throws NullPointerException, IOException,
-	    UnsupportedCharsetException, IllegalStateException,
-	    IllegalArgumentException {
-	super(c.provider());
-	this.initConduit(c, cs, null);
-    }
+    /**
+	 * Set when {@link #queuedBytes}and {@link #unsentBytes}together rise
+	 * above the high watermark, and cleared when they fall back to the low
+	 * watermark.
+	 */
+    private volatile transient boolean writeBlocked = false;
 
-    public Conduit(SelectableChannel c, Charset cs, PacketFactory pf)
-	    throws NullPointerException, IOException,
-	    UnsupportedCharsetException, IllegalStateException,
-	    IllegalArgumentException {
-	super(c.provider());
-	this.initConduit(c, cs, pf);
-    }
+    private volatile transient ByteBuffer recvReadBuf = null;
 
-    private void initConduit(SelectableChannel c, Charset cs, PacketFactory pf)
-	    throws NullPointerException, UnsupportedCharsetException,
-	    IllegalStateException, IllegalArgumentException, IOException {
-	if (c == null) {
-	    throw new NullPointerException("Attempt to create a Conduit using"
-		    + " a null SelectableChannel!");
-	}
-	if (!c.isOpen()) {
-	    throw new IllegalStateException("Attempt to create a Conduit using"
-		    + " an unopened SelectableChannel!");
-	}
-	if (!(c instanceof ByteChannel)) {
+    /**
+	 * The bundles received and waiting to be read, one {@link SpscQueue}per
+	 * logical channel up to the highest one received on. Each is offered
+	 * to only by the receive side, with {@link #recvLock}held, and polled
+	 * only while synchronized on it.
+	 */
+    private volatile transient SpscQueue[] readBufs = null;
+
+    private volatile transient byte[] bytesRecvd = null;
+
+    /**
+	 * A queue of bundles awaiting completion. As bundle {@link Packet}s are
+	 * received, they are placed in the bundle's {@link InBndlQValue}. Once
+	 * all of a particular bundle's {@link Packet}s have been received, the
+	 * bundle becomes available for processing, is removed from this queue,
+	 * and is recorded as complete in its generation's {@link AckState}
+	 * until that is acknowledged.
+	 */
+    private volatile transient BundleTable inBndlQueues = new BundleTable(
+	    Defaults.DEFAULT_CONDUIT_SEND_WINDOW_BUNDLES);
+
+    /**
+	 * A queue of bundles awaiting acknowledgement. When a bundle is sent,
+	 * it is stored in this queue until a cumulative Ack covering it is
+	 * received, at which point it is removed from this queue. If there is a timeout, or if the receiver
+	 * requests it, the bundle can be resent. With zero-copy writes enabled
+	 * the queued {@link Packet}s share the memory of the buffer passed to
+	 * {@link #write(ByteBuffer)}.
+	 */
+    private volatile transient BundleTable outBndlQueues = new BundleTable(
+	    Defaults.DEFAULT_CONDUIT_SEND_WINDOW_BUNDLES);
+
+    /**
+	 * The {@link AckState}of each generation of bundles being received,
+	 * keyed by generation ID (with a bundle ID of zero). Guarded by
+	 * {@link #recvLock}.
+	 */
+    private volatile transient BundleTable rcvAckStates = new BundleTable(3);
+
+    /**
+	 * The latest Ack received for each generation of bundles sent, keyed by
+	 * generation ID (with a bundle ID of zero), which is to be acknowledged
+	 * at the next opportunity. Guarded by {@link #sendLock}.
+	 */
+    private volatile transient BundleTable pendingAckOfAcks = new BundleTable(
+	    3);
+
+    /**
+	 * Reusable list of control {@link Packet}s gathered for sending.
+	 */
+    private transient List ctlPktList = new ArrayList(4);
+
+    /**
+	 * Number of bytes sent over this Conduit.
+	 */
+    private volatile transient StripedCounter numBytesSent = new StripedCounter();
+
+    /**
+	 * Number of bytes received over this Conduit.
+	 */
+    private volatile transient StripedCounter numBytesRcvd = new StripedCounter();
+
+    /**
+	 * Number of {@link Packet}s sent over this Conduit.
+	 */
+    private volatile transient StripedCounter numPktsSent = new StripedCounter();
+
+    /**
+	 * Number of {@link Packet}s received over this Conduit.
+	 */
+    private volatile transient StripedCounter numPktsRcvd = new StripedCounter();
+
+    /**
+	 * Number of bundles of {@link Packet}s sent over this Conduit.
+	 */
+    private volatile transient StripedCounter numBundlesSent = new StripedCounter();
+
+    /**
+	 * Number of bundles of {@link Packet}s received over this Conduit.
+	 */
+    private volatile transient StripedCounter numBundlesRcvd = new StripedCounter();
+
+    /**
+	 * Number of duplicate {@link Packet}s received over this Conduit.
+	 */
+    private volatile transient StripedCounter numDupPktsRcvd = new StripedCounter();
+
+    /**
+	 * Number of {@link Packet}s received over this Conduit which failed
+	 * their integrity check, and were dropped.
+	 */
+    private volatile transient StripedCounter numCorruptPktsRcvd = new StripedCounter();
+
+    /**
+	 * Estimates the round trip time to the other end, from which every
+	 * deadline is derived. Sampled from each bundle sent to the Ack which
+	 * frees it, and from each Ack sent to its Ack of Ack.
+	 */
+    private transient RttEstimator rtt = new RttEstimator();
+
+    /**
+	 * Number of consecutive deadlines a bundle may miss, each prompting a
+	 * NAK or a probe, before the Conduit gives up on its peer.
+	 */
+    private final static int MAX_TIMEOUTS_TIL_EXCEPTION = 5;
+
+    /**
+	 * Number of {@link Packet}s resent over this Conduit at the request of
+	 * the other end.
+	 */
+    private volatile transient StripedCounter numPktsResent = new StripedCounter();
+
+    /**
+	 * Number of bundles deflated before being sent, and the number of
+	 * bytes deflating them saved.
+	 */
+    private volatile transient StripedCounter numBundlesDeflated = new StripedCounter();
+
+    private volatile transient StripedCounter numBytesSavedByDeflate = new StripedCounter();
+
+    /**
+	 * Current generation number for this Conduit's {@link Packet}s.
+	 */
+    private transient long currGen = 1;
+
+    /**
+	 * The number of logical channels a Conduit carries.
+	 */
+    public final static int MAX_CHANNELS = 256;
+
+    /**
+	 * The logical channel {@link #write(ByteBuffer)}writes to.
+	 */
+    public final static int DEFAULT_CHANNEL = 0;
+
+    /**
+	 * Position of a bundle's logical channel in its generation ID. Giving
+	 * each channel a generation of its own gives it its own sequence of
+	 * bundle IDs, and its own cumulative Acks.
+	 */
+    private final static int CHANNEL_SHIFT = 56;
+
+    /**
+	 * The largest send window, in bundles, which may be set, and which is
+	 * believed of the other end.
+	 */
+    public final static int MAX_SEND_WINDOW_BUNDLES = 64 * 1024;
+
+    /**
+	 * Bytes of payload each unit of a logical channel's weight lets it send
+	 * in its turn.
+	 */
+    private final static int CHANNEL_QUANTUM = 16 * 1024;
+
+    /**
+	 * The send side of each logical channel written to, indexed by
+	 * channel.
+	 */
+    private transient SendChannel[] sendChannels = new SendChannel[MAX_CHANNELS];
+
+    /**
+	 * The logical channels with bundles waiting to be sent, in descending
+	 * order of priority; channels of equal priority are in the order in
+	 * which they next take a turn.
+	 */
+    private transient List activeChannels = new ArrayList();
+
+    /**
+	 * Reusable array of the {@link Packet}s handed to the channel in a
+	 * logical channel's turn, and the bundles the turn finished sending.
+	 */
+    private transient Packet[] turnPkts = new Packet[16];
+
+    private transient List turnBndls = new ArrayList();
+
+    /**
+	 * The value class for bundle
+	 * queues. The value is an array of {@link Packet}s, as well as some
+	 * bundle state information.
+	 *
+	 * @author Richard A. Mead <BR>
+	 *         Information Montage
+	 */
+    private static class BndlQValue extends TimerWheel.Timer {
+
+	/**
+	 * {@link Logger}for this class
+	 */
+	private static final AssertableLogger log = new AssertableLogger(
+		BndlQValue.class.getName());
+
+	/**
+	 * The array of {@link Packet}s containing the bundle.
+	 */
+	transient ArrayList packets;
+
+	/**
+	 * The Conduit the bundle belongs to, told when the bundle's deadline
+	 * passes.
+	 */
+	final transient Conduit conduit;
+
+	final transient long genID;
+
+	final transient long bndlID;
+
+	/**
+	 * The number of {@link Packet}s in the bundle that have not yet been
+	 * received.
+	 */
+	transient long packetsLeftToRecv = 0;
+
+	transient long expectedCompletion;
+
+	/**
+	 * When a sent bundle was sent, by {@link System#nanoTime()}.
+	 */
+	transient long sentNanos = 0;
+
+	/**
+	 * Whether any of a sent bundle's {@link Packet}s has been resent, so
+	 * that its Ack cannot be used as a round trip time sample.
+	 */
+	transient boolean resent = false;
+
+	/**
+	 * The length of a sent bundle, counted against the send window until
+	 * the bundle is acknowledged.
+	 */
+	transient int bndlLen = 0;
+
+	/**
+	 * The index of the next of a sent bundle's {@link Packet}s to be
+	 * handed to the channel.
+	 */
+	transient int nextPkt = 0;
+
+	/**
+	 * The number of times the bundle's deadline has passed without any
+	 * progress being made.
+	 */
+	transient int retries = 0;
+
+	BndlQValue(Conduit c, long g, long b, ArrayList p) {
+	    this.conduit = c;
+	    this.genID = g;
+	    this.bndlID = b;
+	    this.packets = p;
+	}
+
+	BndlQValue(Conduit c, long g, long b, ArrayList p, int len) {
+	    this(c, g, b, p);
+	    this.bndlLen = len;
+	}
+
+	protected void expire() {
+	    this.conduit.timedOut(this);
+	}
+
+	final void setDeadline(long timeoutMs) {
+	    this.expectedCompletion = System.currentTimeMillis() + timeoutMs;
+	}
+    }
+
+    /**
+	 * The value class for bundles being received. Rather than collecting
+	 * the bundle's {@link Packet}s and recombining them once all have
+	 * arrived, each payload is copied straight into a destination buffer at
+	 * the payload's offset within the bundle as it arrives. A bitmap of
+	 * received {@link Packet}IDs and a count of outstanding {@link Packet}s
+	 * detect duplicates and completion in constant time.
+	 * <P>
+	 * A bundle's payload size is not carried in its header {@link Packet},
+	 * so it is learned from the first full-sized (non-final) {@link Packet}.
+	 * The few {@link Packet}s that may arrive before the destination buffer
+	 * can be sized are held until it can.
+	 *
+	 * @author Richard A. Mead <BR>
+	 *         Information Montage
+	 */
+    private static final class InBndlQValue extends BndlQValue {
+
+	/**
+	 * Bitmap of the {@link Packet}IDs received so far; bit <CODE>i</CODE>
+	 * is set once {@link Packet}<CODE>i</CODE> (the header being
+	 * {@link Packet}0) has been received.
+	 */
+	transient long[] rcvd = new long[1];
+
+	/**
+	 * Whether the header {@link Packet}has been received.
+	 */
+	transient boolean headerRcvd = false;
+
+	/**
+	 * The number of payload {@link Packet}s in the bundle, from the header
+	 * {@link Packet}.
+	 */
+	transient int numPkts = 0;
+
+	/**
+	 * The number of payload {@link Packet}s received so far.
+	 */
+	transient int numPktsRcvd = 0;
+
+	/**
+	 * Whether the header {@link Packet}says the bundle was deflated.
+	 */
+	transient boolean deflated = false;
+
+	/**
+	 * The payload size of every {@link Packet}but the last, or zero if
+	 * not yet known.
+	 */
+	transient int payloadSize = 0;
+
+	/**
+	 * The buffer the bundle is assembled in, drawn from the
+	 * {@link BufferPool}, or <CODE>null</CODE> until its size is known.
+	 */
+	transient ByteBuffer bundleBuf = null;
+
+	/**
+	 * The most the bundle can hold, which may be less than the capacity of
+	 * {@link #bundleBuf}.
+	 */
+	transient int bundleCap = 0;
+
+	/**
+	 * The length of the bundle assembled so far, being the furthest extent
+	 * of any payload placed in {@link #bundleBuf}.
+	 */
+	transient int bundleLen = 0;
+
+	/**
+	 * {@link Packet}s received before {@link #bundleBuf}could be sized,
+	 * or, while streaming, before the header {@link Packet}.
+	 */
+	transient List pending = null;
+
+	/**
+	 * The listener the bundle's content is delivered to, if any, fixed
+	 * when the bundle is first seen.
+	 */
+	final transient BundleSegmentListener listener;
+
+	/**
+	 * Whether the bundle's payloads are delivered to {@link #listener}as
+	 * they arrive, rather than assembled. A deflated bundle must be
+	 * assembled to be inflated, so is delivered whole.
+	 */
+	transient boolean streaming;
+
+	/**
+	 * Whether {@link #listener}has been told the bundle has begun.
+	 */
+	transient boolean begun = false;
+
+	/**
+	 * The ID of the next {@link Packet}whose payload is to be delivered,
+	 * while streaming.
+	 */
+	transient int nextSegment = 1;
+
+	/**
+	 * {@link Packet}s received ahead of {@link #nextSegment}, by
+	 * {@link Packet}ID, while streaming.
+	 */
+	transient Map ahead = null;
+
+	/**
+	 * The file the bundle is being received into, if any, in which case
+	 * it is streamed there rather than to {@link #listener}.
+	 */
+	transient FileSink sink = null;
+
+	/**
+	 * The bundle's header {@link Packet}, once received.
+	 */
+	transient Packet header = null;
+
+	/**
+	 * The checksum of the content delivered so far while streaming, if
+	 * the header {@link Packet}carries one to check it against.
+	 */
+	transient Checksum bundleSum = null;
+
+	InBndlQValue(Conduit c, long g, long b, BundleSegmentListener l) {
+	    super(c, g, b, null);
+	    this.listener = l;
+	    this.streaming = (null != l);
+	}
+
+	/**
+	 * Records receipt of a {@link Packet}ID.
+	 *
+	 * @param pid
+	 *                The {@link Packet}ID received.
+	 * @return <CODE>false</CODE> if the {@link Packet}ID had already been
+	 *         received.
+	 */
+	boolean markReceived(int pid) {
+	    int w = pid >>> 6;
+	    if (w >= this.rcvd.length) {
+		long[] nr = new long[w + 1];
+		System.arraycopy(this.rcvd, 0, nr, 0, this.rcvd.length);
+		this.rcvd = nr;
+	    }
+	    long b = 1L << (pid & 63);
+	    boolean retVal = (0 == (this.rcvd[w] & b));
+	    this.rcvd[w] |= b;
+	    return retVal;
+	}
+
+	/**
+	 * Forgets receipt of a {@link Packet}ID, so that a resent copy of a
+	 * rejected {@link Packet}will be accepted.
+	 *
+	 * @param pid
+	 *                The {@link Packet}ID to forget.
+	 */
+	void unmarkReceived(int pid) {
+	    this.rcvd[pid >>> 6] &= ~(1L << (pid & 63));
+	}
+
+	/**
+	 * Lists the {@link Packet}IDs of the bundle which have not been
+	 * received. Until the header {@link Packet}is received the extent of
+	 * the bundle is unknown, so only gaps before the highest
+	 * {@link Packet}ID received can be listed.
+	 *
+	 * @param ids
+	 *                The array to place the missing {@link Packet}IDs in.
+	 * @return The number of missing {@link Packet}IDs placed in
+	 *         <CODE>ids</CODE>, at most its length.
+	 */
+	int missing(int[] ids) {
+	    int n = 0;
+	    int end = this.numPkts;
+	    if (!this.headerRcvd) {
+		ids[n++] = 0;
+		for (int w = this.rcvd.length - 1; w >= 0; w--) {
+		    if (0 != this.rcvd[w]) {
+			end = (w << 6) + 63
+				- Long.numberOfLeadingZeros(this.rcvd[w]);
+			break;
+		    }
+		}
+	    }
+	    for (int i = 1; i <= end && n < ids.length; i++) {
+		int w = i >>> 6;
+		if (w >= this.rcvd.length
+			|| 0 == (this.rcvd[w] & (1L << (i & 63)))) {
+		    ids[n++] = i;
+		}
+	    }
+	    return n;
+	}
+
+	/**
+	 * Places a newly received {@link Packet}into the bundle.
+	 *
+	 * @param p
+	 *                The {@link Packet}, which must not already have been
+	 *                received.
+	 * @return <CODE>true</CODE> if the bundle is now complete.
+	 * @throws IllegalArgumentException
+	 *                 if the {@link Packet}is inconsistent with the rest of
+	 *                 the bundle.
+	 */
+	boolean place(Packet p) throws IllegalArgumentException {
+	    if (0 == p.pktID) {
+		this.numPkts = p.bundlePacketCount();
+		this.deflated = p.isDeflated();
+		this.headerRcvd = true;
+		this.header = p;
+		if (this.deflated) {
+		    this.streaming = false;
+		}
+		if (this.streaming) {
+		    this.bundleSum = p.newBundleChecksum();
+		    streamPending();
+		} else {
+		    if (0 == this.numPkts) {
+			this.bundleBuf = BufferPool.acquire(0);
+		    }
+		    placePending();
+		}
+	    } else {
+		if (this.headerRcvd && p.pktID > this.numPkts) {
+		    throw new IllegalArgumentException("Packet ID " + p.pktID
+			    + " is beyond the end of a bundle of "
+			    + this.numPkts + " packets!");
+		}
+		if (this.streaming) {
+		    if (this.headerRcvd) {
+			stream(p);
+		    } else {
+			// it may yet turn out to be deflated
+			if (null == this.pending) {
+			    this.pending = new ArrayList(4);
+			}
+			this.pending.add(p);
+		    }
+		} else if (null == this.bundleBuf) {
+		    if (null == this.pending) {
+			this.pending = new ArrayList(4);
+		    }
+		    this.pending.add(p);
+		    placePending();
+		} else {
+		    put(p);
+		}
+		this.numPktsRcvd++;
+	    }
+	    this.packetsLeftToRecv = this.headerRcvd ? (this.numPkts - this.numPktsRcvd)
+		    : 1;
+	    return (this.headerRcvd && (0 == this.packetsLeftToRecv) && (null == this.pending));
+	}
+
+	/**
+	 * Delivers a payload {@link Packet}, and any held ones which follow
+	 * it, if it is the next to be delivered; otherwise holds it until it
+	 * is.
+	 *
+	 * @param p
+	 *                The payload {@link Packet}.
+	 */
+	private void stream(Packet p) {
+	    if (p.pktID != this.nextSegment) {
+		if (null == this.ahead) {
+		    this.ahead = new Hashtable();
+		}
+		this.ahead.put(Integer.valueOf(p.pktID), p);
+		return;
+	    }
+	    this.conduit.deliverSegment(this, p);
+	    this.nextSegment++;
+	    while (null != this.ahead && !this.ahead.isEmpty()) {
+		Packet n = (Packet) this.ahead.remove(Integer
+			.valueOf(this.nextSegment));
+		if (null == n) {
+		    break;
+		}
+		this.conduit.deliverSegment(this, n);
+		this.nextSegment++;
+	    }
+	}
+
+	/**
+	 * Streams any {@link Packet}s held in {@link #pending}, once the
+	 * header {@link Packet}has shown the bundle was not deflated.
+	 */
+	private void streamPending() {
+	    if (null == this.pending) {
+		return;
+	    }
+	    for (int i = 0; i < this.pending.size(); i++) {
+		Packet p = (Packet) this.pending.get(i);
+		if (p.pktID > this.numPkts) {
+		    // dropped, and NAKed for should it ever be needed
+		    unmarkReceived(p.pktID);
+		    this.numPktsRcvd--;
+		} else {
+		    stream(p);
+		}
+	    }
+	    this.pending = null;
+	}
+
+	/**
+	 * Sizes {@link #bundleBuf}once enough is known about the bundle, and
+	 * places any {@link Packet}s held in {@link #pending}.
+	 */
+	private void placePending() {
+	    if (null == this.pending || !this.headerRcvd) {
+		return;
+	    }
+	    if (null == this.bundleBuf) {
+		for (int i = 0; i < this.pending.size()
+			&& 0 == this.payloadSize; i++) {
+		    Packet p = (Packet) this.pending.get(i);
+		    if (p.pktID < this.numPkts || 1 == this.numPkts) {
+			this.payloadSize = p.len;
+		    }
+		}
+		if (0 == this.payloadSize) {
+		    return;
+		}
+		this.bundleCap = this.numPkts * this.payloadSize;
+		this.bundleBuf = BufferPool.acquire(this.bundleCap);
+	    }
+	    for (int i = 0; i < this.pending.size(); i++) {
+		put((Packet) this.pending.get(i));
+	    }
+	    this.pending = null;
+	}
+
+	/**
+	 * Copies a {@link Packet}'s payload to its place in {@link #bundleBuf}.
+	 *
+	 * @param p
+	 *                The payload {@link Packet}to place.
+	 * @throws IllegalArgumentException
+	 *                 if the payload does not fit the bundle.
+	 */
+	private void put(Packet p) throws IllegalArgumentException {
+	    int off = (p.pktID - 1) * this.payloadSize;
+	    if ((p.pktID < this.numPkts && p.len != this.payloadSize)
+		    || (off + p.len > this.bundleCap)) {
+		throw new IllegalArgumentException("Packet " + p.pktID
+			+ " of length " + p.len
+			+ " does not fit a bundle with a payload size of "
+			+ this.payloadSize + "!");
+	    }
+	    this.bundleBuf.limit(this.bundleCap).position(off);
+	    if (null != p.payload) {
+		this.bundleBuf.put(p.payload);
+	    } else {
+		this.bundleBuf.put(p.payloadView());
+	    }
+	    if (this.bundleBuf.position() > this.bundleLen) {
+		this.bundleLen = this.bundleBuf.position();
+	    }
+	}
+
+	/**
+	 * Hands over the completed bundle, positioned at its end as if it had
+	 * just been written, and lets go of it.
+	 *
+	 * @return The completed bundle.
+	 */
+	ByteBuffer takeBundle() {
+	    ByteBuffer retVal = this.bundleBuf;
+	    retVal.limit(this.bundleLen).position(this.bundleLen);
+	    this.bundleBuf = null;
+	    return retVal;
+	}
+    }
+
+    /**
+	 * The receiving side's record of which bundles of a generation have
+	 * been completed, from which cumulative Acks are built. Once a bundle
+	 * is complete it is forgotten by the input bundle queue, and is
+	 * recognised as complete from this record alone: every bundle up to
+	 * {@link #cumAck}, plus those flagged in {@link #sack}.
+	 *
+	 * @author Richard A. Mead <BR>
+	 *         Information Montage
+	 */
+    private static final class AckState extends TimerWheel.Timer {
+
+	/**
+	 * The Conduit the bundles were received over, told when the latest
+	 * Ack's deadline passes.
+	 */
+	final transient Conduit conduit;
+
+	final transient long genID;
+
+	/**
+	 * The highest bundle ID up to which every bundle has been completed.
+	 * Bundle IDs start at one.
+	 */
+	transient long cumAck = 0;
+
+	/**
+	 * Bitmap of completed bundles beyond {@link #cumAck}; bit
+	 * <CODE>i</CODE> stands for bundle <CODE>cumAck + 1 + i</CODE>.
+	 */
+	transient long[] sack = new long[1];
+
+	/**
+	 * Whether an Ack should be sent at the next opportunity.
+	 */
+	transient boolean ackPending = false;
+
+	/**
+	 * Whether the other end has acknowledged our latest Ack.
+	 */
+	transient boolean confirmed = true;
+
+	/**
+	 * Number of times the latest Ack has been sent without being
+	 * acknowledged.
+	 */
+	transient int retries = 0;
+
+	/**
+	 * When the latest Ack should be sent again if it has not been
+	 * acknowledged.
+	 */
+	transient long deadline = 0;
+
+	/**
+	 * When the latest Ack was sent, by {@link System#nanoTime()}.
+	 */
+	transient long sentNanos = 0;
+
+	AckState(Conduit c, long g) {
+	    this.conduit = c;
+	    this.genID = g;
+	}
+
+	protected void expire() {
+	    this.conduit.timedOut(this);
+	}
+
+	boolean isComplete(long b) {
+	    if (b <= this.cumAck) {
+		return true;
+	    }
+	    long d = b - this.cumAck - 1;
+	    return (d < (this.sack.length << 6))
+		    && (0 != (this.sack[(int) (d >>> 6)] & (1L << (d & 63))));
+	}
+
+	/**
+	 * Records the completion of a bundle, advancing {@link #cumAck}past
+	 * any run of completed bundles which follows it. Bundles are only
+	 * accepted within the other end's send window, so {@link #sack}never
+	 * grows past {@link Conduit#MAX_SEND_WINDOW_BUNDLES}bits.
+	 *
+	 * @param b
+	 *                The ID of the completed bundle.
+	 */
+	void complete(long b) {
+	    long d = b - this.cumAck - 1;
+	    if (d < 0 || d >= MAX_SEND_WINDOW_BUNDLES) {
+		return;
+	    }
+	    int w = (int) (d >>> 6);
+	    if (w >= this.sack.length) {
+		long[] ns = new long[w + 1];
+		System.arraycopy(this.sack, 0, ns, 0, this.sack.length);
+		this.sack = ns;
+	    }
+	    this.sack[w] |= 1L << (d & 63);
+	    int shift;
+	    while (0 != (shift = Long.numberOfTrailingZeros(~this.sack[0]))) {
+		shiftRight(shift);
+		this.cumAck += shift;
+	    }
+	}
+
+	private void shiftRight(int n) {
+	    int last = this.sack.length - 1;
+	    if (64 == n) {
+		System.arraycopy(this.sack, 1, this.sack, 0, last);
+		this.sack[last] = 0;
+	    } else {
+		for (int i = 0; i < last; i++) {
+		    this.sack[i] = (this.sack[i] >>> n)
+			    | (this.sack[i + 1] << (64 - n));
+		}
+		this.sack[last] >>>= n;
+	    }
+	}
+
+	/**
+	 * @param max
+	 *                The most <CODE>long</CODE>s the bitmap may occupy.
+	 * @return The number of <CODE>long</CODE>s of {@link #sack}worth
+	 *         sending, trailing zeroes omitted.
+	 */
+	int sackWords(int max) {
+	    int n = (this.sack.length < max) ? this.sack.length : max;
+	    while (n > 0 && 0 == this.sack[n - 1]) {
+		n--;
+	    }
+	    return n;
+	}
+
+	/**
+	 * Whether an echoed Ack covers everything this record says is
+	 * complete.
+	 *
+	 * @param cum
+	 *                The cumulative bundle ID echoed.
+	 * @param bits
+	 *                The bitmap echoed, or <CODE>null</CODE>.
+	 * @return <CODE>true</CODE> if the other end knows about every bundle
+	 *         completed so far.
+	 */
+	boolean coveredBy(long cum, ByteBuffer bits) {
+	    if (cum > this.cumAck) {
+		return true;
+	    }
+	    if (cum < this.cumAck) {
+		return false;
+	    }
+	    int n = sackWords(this.sack.length);
+	    for (int i = 0; i < n; i++) {
+		long e = (null != bits && bits.remaining() >= 8) ? bits
+			.getLong() : 0;
+		if (0 != (this.sack[i] & ~e)) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+
+    /**
+	 * The send side of a logical channel: how it is scheduled, the bundle
+	 * IDs it has used, and the bundles written to it which have not yet
+	 * been wholly handed to the channel. All guarded by {@link #sendLock}.
+	 *
+	 * @author Richard A. Mead <BR>
+	 *         Information Montage
+	 */
+    private static final class SendChannel {
+
+	/**
+	 * The generation ID of the channel's bundles, which carries the
+	 * channel number.
+	 */
+	final long genID;
+
+	/**
+	 * Channels of higher priority are served before any of lower.
+	 */
+	int priority = 0;
+
+	/**
+	 * The channel's share, relative to other channels of its priority.
+	 */
+	int weight = 1;
+
+	long nextBndl = 1;
+
+	/**
+	 * The highest bundle ID the other end has cumulatively acknowledged.
+	 */
+	long ackedThrough = 0;
+
+	/**
+	 * Bytes of payload the channel may still send before its turn ends.
+	 */
+	int deficit = 0;
+
+	/**
+	 * Bytes of the channel's sent bundles awaiting acknowledgement.
+	 */
+	int unackedBytes = 0;
+
+	/**
+	 * The {@link BndlQValue}s of bundles waiting to be sent, oldest
+	 * first; the first may have been partly sent.
+	 */
+	final LinkedList pending = new LinkedList();
+
+	SendChannel(long g) {
+	    this.genID = g;
+	}
+    }
+
+    /**
+	 * A file a bundle is being received into, through
+	 * {@link Conduit#receiveTo(int, FileChannel, long)}. The receive side
+	 * only queues the bundle's pieces in {@link #segments}; the
+	 * {@link Thread}waiting in
+	 * {@link Conduit#receiveTo(int, FileChannel, long)} writes them, so
+	 * that a slow file never holds up the reactor. Guarded by
+	 * {@link #recvLock}, but for {@link #segments}and {@link #written}.
+	 *
+	 * @author Richard A. Mead <BR>
+	 *         Information Montage
+	 */
+    private static final class FileSink {
+
+	final FileChannel dst;
+
+	/**
+	 * Where in {@link #dst}the bundle starts.
+	 */
+	final long position;
+
+	/**
+	 * The bundle being received into the file, once one has been chosen.
+	 */
+	InBndlQValue bundle = null;
+
+	/**
+	 * The pieces of the bundle not yet written, offered by the receive
+	 * side and polled by the writing {@link Thread}.
+	 */
+	final SpscQueue segments = new SpscQueue();
+
+	/**
+	 * The length written to the file so far. Only touched by the writing
+	 * {@link Thread}.
+	 */
+	long written = 0;
+
+	/**
+	 * Whether the whole bundle has been queued in {@link #segments}.
+	 */
+	boolean complete = false;
+
+	/**
+	 * Whether the writing {@link Thread}is waiting for more.
+	 */
+	boolean waiting = false;
+
+	/**
+	 * Set once the writing {@link Thread}has given up, after which
+	 * nothing more is queued.
+	 */
+	boolean abandoned = false;
+
+	FileSink(FileChannel f, long p) {
+	    this.dst = f;
+	    this.position = p;
+	}
+
+	/**
+	 * Writes the next piece of the bundle to the file, and lets go of
+	 * it. Only called by the writing {@link Thread}.
+	 *
+	 * @param b
+	 *                The piece.
+	 * @throws IOException
+	 *                 if the file could not be written.
+	 */
+	void write(ByteBuffer b) throws IOException {
+	    try {
+		while (b.hasRemaining()) {
+		    this.written += this.dst.write(b, this.position
+			    + this.written);
+		}
+	    } finally {
+		BufferPool.release(b);
+	    }
+	}
+
+	/**
+	 * Lets go of the pieces left unwritten.
+	 */
+	void discard() {
+	    Object o;
+	    while (null != (o = this.segments.poll())) {
+		BufferPool.release((ByteBuffer) o);
+	    }
+	}
+    }
+
+    public Conduit(SelectableChannel c) throws NullPointerException,
+	    IOException, IllegalStateException, IllegalArgumentException {
+	super(c.provider());
+	this.initConduit(c, Defaults.DEFAULT_CHARSET, null);
+    }
+
+    public Conduit(SelectableChannel c, PacketFactory pf)
+	    throws NullPointerException, IOException, IllegalStateException,
+	    IllegalArgumentException {
+	super(c.provider());
+	this.initConduit(c, Defaults.DEFAULT_CHARSET, pf);
+    }
+
+    public Conduit(SelectableChannel c, Charset cs)
+	    throws NullPointerException, IOException,
+	    UnsupportedCharsetException, IllegalStateException,
+	    IllegalArgumentException {
+	super(c.provider());
+	this.initConduit(c, cs, null);
+    }
+
+    public Conduit(SelectableChannel c, Charset cs, PacketFactory pf)
+	    throws NullPointerException, IOException,
+	    UnsupportedCharsetException, IllegalStateException,
+	    IllegalArgumentException {
+	super(c.provider());
+	this.initConduit(c, cs, pf);
+    }
+
+    private void initConduit(SelectableChannel c, Charset cs, PacketFactory pf)
+	    throws NullPointerException, UnsupportedCharsetException,
+	    IllegalStateException, IllegalArgumentException, IOException {
+	if (c == null) {
+	    throw new NullPointerException("Attempt to create a Conduit using"
+		    + " a null SelectableChannel!");
+	}
+	if (!c.isOpen()) {
+	    throw new IllegalStateException("Attempt to create a Conduit using"
+		    + " an unopened SelectableChannel!");
+	}
+	if (!(c instanceof ByteChannel)) {
+	    throw new IllegalArgumentException(
+		    "Attempt to create a Conduit using"
+			    + " a SelectableChannel that does not implement the ByteChannel interface!");
+	}
+	if (c.isBlocking()) {
+	    throw new IllegalStateException("Attempt to create a Conduit using"
+		    + " a SelectableChannel in blocking mode!");
+	}
+	if ((c instanceof SocketChannel) && !((SocketChannel) c).isConnected()) {
+	    throw new IllegalArgumentException(
+		    "Attempt to create a Conduit using a SelectableChannel that has"
+			    + " not completed it's connection!");
+	}
+	if ((c instanceof DatagramChannel)
+		&& !((DatagramChannel) c).isConnected()) {
+	    throw new IllegalArgumentException(
+		    "Attempt to create a Conduit using a DatagramChannel that is"
+			    + " not connected!");
+	}
+	/*
+	 * try { ((ByteChannel) c).write(ByteBuffer.allocate(0)); } catch
+	 * (NotYetConnectedException e) { throw (IllegalArgumentException) new
+	 * IllegalArgumentException( "Attempt to create a Conduit using a
+	 * ByteChannel that is not yet connected!") .initCause(e); }
+	 */// throw new IllegalArgumentException("Attempt to create a
+		// Conduit
+	// using"
+	// +" a SelectableChannel in blocking mode that has already
+	// registered"
+	// +" with a Selector!");
+	// }
+	// if (c.isBlocking() && c.isRegistered()) {
+	// throw new IllegalArgumentException("Attempt to create a Conduit
+	// using"
+	// +" a SelectableChannel in blocking mode that has already
+	// registered"
+	// +" with a Selector!");
+	// }
+	if (c instanceof SocketChannel) {
+	    // Acks are small writes; don't let Nagle hold them back
+	    ((SocketChannel) c).socket().setTcpNoDelay(true);
+	}
+	this.channel = c;
+	this.byteChannel = (ByteChannel) c;
+	recvBuf = ByteBuffer.allocate(recvBufSize);
+	recvBuf.position(0);
+	recvBuf.limit(0);
+	sendBuf = ByteBuffer.allocate(sendBufSize);
+	sendBuf.position(0);
+	sendBuf.limit(0);
+	recvReadBuf = ByteBuffer.allocate(recvBufSize);
+	recvReadBuf.position(0);
+	recvReadBuf.limit(0);
+	readBufs = new SpscQueue[] { new SpscQueue() };
+	initNonChannel(cs, pf);
+    }
+
+    private void initNonChannel(Charset cs, PacketFactory pf)
+	    throws IOException {
+	if (cs == null) {
+	    throw new NullPointerException("Attempt to create a Conduit using"
+		    + " a null Charset!");
+	}
+	if (!cs.canEncode()) {
+	    throw new UnsupportedCharsetException(
+		    "Attempt to"
+			    + " create a Conduit using a Charset that does not support encoding!");
+	}
+	this.charSet = cs;
+	this.setPacketFactory(pf);
+	addConduit(this);
+    }
+
+    private static void addConduit(Conduit c) throws IOException {
+	c.reactor = ConduitReactor.getReactor();
+	c.reactor.register(c);
+	assert (log.info("Added a Conduit to " + c.reactor.getName() + "."));
+    }
+
+    /**
+	 * @return The {@link SelectableChannel}underlying this Conduit.
+	 */
+    SelectableChannel getChannel() {
+	return this.channel;
+    }
+
+    /**
+	 * @return The {@link ConduitReactor}this Conduit is pinned to.
+	 */
+    ConduitReactor getReactor() {
+	return this.reactor;
+    }
+
+    public PacketFactory getPacketFactory() {
+	return this.packetFactory;
+    }
+
+    public void setPacketFactory(PacketFactory pf) {
+	if (pf == null) {
+	    pf = Defaults.DEFAULT_CONDUIT_COMPACT_HEADERS ? CompactPacketFactory
+		    .getInstance() : PacketFactory.getDefaultPacketFactory();
+	}
+	int max = packetSizeLimit(pf, this.pathMtu);
+	this.sendLock.lock();
+	try {
+	    this.packetFactory = pf;
+	    // tell the other end whether it may send compact headers
+	    this.optionsPending = true;
+	    this.maxPacketSize = (short) max;
+	    this.currPacketSize = pf.getDefaultPayloadSize();
+	    if (this.currPacketSize > this.maxPacketSize) {
+		this.currPacketSize = this.maxPacketSize;
+	    }
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * @return The {@link PacketFactory}to make the {@link Packet}s sent
+	 *         with: the one set, unless its {@link Packet}s have compact
+	 *         headers or CRCs and the other end has not said it reads
+	 *         them.
+	 */
+    private PacketFactory sendPacketFactory() {
+	PacketFactory pf = this.packetFactory;
+	if (!this.peerCompactHeaders) {
+	    pf = pf.fullHeaderFactory();
+	}
+	return this.peerCrc ? pf : pf.uncheckedFactory();
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if this end reads compact {@link Packet}
+	 *         headers, and sends them once the other end does too.
+	 */
+    public boolean isCompactHeaders() {
+	return this.packetFactory.readsCompactHeaders();
+    }
+
+    /**
+	 * Sets whether this end uses compact {@link Packet}headers, which
+	 * take a few bytes where full ones take 26, and so matter most for
+	 * small bundles and Acks. The other end is told along with the next
+	 * bundle written, and compact headers are sent in either direction
+	 * only to an end which uses them too. Like the {@link PacketFactory}
+	 * it selects, this is best set before the Conduit is used, since
+	 * compact headers already on their way when an end stops reading them
+	 * are not understood. {@link Crc32cPacket}s have full headers, so
+	 * compact headers cannot be used while CRCs are checked.
+	 *
+	 * @param on
+	 *                <CODE>true</CODE> to use compact headers.
+	 * @throws IllegalStateException
+	 *                 if <CODE>on</CODE> and this end checks CRCs.
+	 * @see #setCrcChecking(boolean)
+	 */
+    public void setCompactHeaders(boolean on) throws IllegalStateException {
+	if (on == isCompactHeaders()) {
+	    return;
+	}
+	if (on && isCrcChecking()) {
+	    throw new IllegalStateException(
+		    "Compact headers cannot be used while CRCs are checked!");
+	}
+	setPacketFactory(on ? CompactPacketFactory.getInstance()
+		: PacketFactory.getDefaultPacketFactory());
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if this end checks the CRCs of the
+	 *         {@link Packet}s and bundles it receives, and sends them.
+	 */
+    public boolean isCrcChecking() {
+	return this.packetFactory.checksCrcs();
+    }
+
+    /**
+	 * Sets whether this end sends each {@link Packet}with a CRC of its
+	 * payload, and each bundle with a CRC of its content, and checks
+	 * those it receives. A corrupt {@link Packet}is dropped, to be resent
+	 * like a lost one.
+	 * <P>
+	 * The other end is told along with the next bundle written, and
+	 * {@link Packet}s are sent with CRCs only once it has said that it
+	 * checks them too; until then they are sent without. The ends must
+	 * agree: an end which hears that the other has chosen differently
+	 * closes the Conduit, with an {@link IOException}saying so as its
+	 * {@link #getCloseCause() close cause}. The choice is therefore made
+	 * at both ends before the Conduit is used.
+	 *
+	 * @param on
+	 *                <CODE>true</CODE> to check CRCs.
+	 * @throws IllegalStateException
+	 *                 if <CODE>on</CODE> and this end uses compact
+	 *                 headers, which {@link Crc32cPacket}s do not have.
+	 * @see #setCompactHeaders(boolean)
+	 */
+    public void setCrcChecking(boolean on) throws IllegalStateException {
+	if (on == isCrcChecking()) {
+	    return;
+	}
+	if (on && isCompactHeaders()) {
+	    throw new IllegalStateException(
+		    "CRCs cannot be checked while compact headers are used!");
+	}
+	setPacketFactory(on ? Crc32cPacketFactory.getInstance()
+		: PacketFactory.getDefaultPacketFactory());
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if both ends check CRCs, so that the
+	 *         {@link Packet}s now sent carry them.
+	 */
+    public boolean isSendingCrcs() {
+	return this.peerCrc && isCrcChecking();
+    }
+
+    /**
+	 * @return The failure which closed this Conduit, such as the other end
+	 *         not agreeing to check CRCs, or <CODE>null</CODE> if it is
+	 *         open or was closed by a call to {@link #close()}.
+	 */
+    public Exception getCloseCause() {
+	return this.closeCause;
+    }
+
+    /**
+	 * Records the failure this Conduit is about to be closed for.
+	 */
+    void failed(Exception cause) {
+	if (null == this.closeCause) {
+	    this.closeCause = cause;
+	}
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if both ends use compact {@link Packet}
+	 *         headers, so that the {@link Packet}s now sent have them.
+	 */
+    public boolean isCompactingHeaders() {
+	return this.peerCompactHeaders
+		&& this.packetFactory.readsCompactHeaders();
+    }
+
+    /**
+	 * @param pf
+	 *                The {@link PacketFactory}the {@link Packet}s are made
+	 *                by.
+	 * @param mtu
+	 *                The path MTU, which only limits a datagram channel.
+	 * @return The largest {@link Packet}payload which fits the socket
+	 *         buffers and, on a datagram channel, a datagram no larger
+	 *         than <CODE>mtu</CODE>.
+	 */
+    private int packetSizeLimit(PacketFactory pf, int mtu) {
+	int bs = pf.maxMetaDataLength();
+	int max = Short.MAX_VALUE;
+	if (max > (Conduit.sendBufSize - bs)) {
+	    max = Conduit.sendBufSize - bs;
+	}
+	if (max > (Conduit.recvBufSize - bs)) {
+	    max = Conduit.recvBufSize - bs;
+	}
+	if ((this.channel instanceof DatagramChannel)
+		&& max > (mtu - DATAGRAM_HEADER_LENGTH - bs)) {
+	    max = mtu - DATAGRAM_HEADER_LENGTH - bs;
+	}
+	return max;
+    }
+
+    /**
+	 * @return The largest datagram, in bytes including the IP and UDP
+	 *         headers, this Conduit sends over a {@link DatagramChannel}.
+	 */
+    public int getPathMtu() {
+	return this.pathMtu;
+    }
+
+    /**
+	 * Sets the largest datagram, in bytes including the IP and UDP headers,
+	 * this Conduit sends over a {@link DatagramChannel}, and resets the
+	 * maximum {@link Packet}payload to the largest which fits it. The other
+	 * end is told of the new limit along with the next bundle written. Has
+	 * no effect on the payload size of a stream channel.
+	 *
+	 * @param mtu
+	 *                The path MTU.
+	 * @throws IllegalArgumentException
+	 *                 if a datagram of <CODE>mtu</CODE> bytes would have no
+	 *                 room for a payload.
+	 */
+    public void setPathMtu(int mtu) throws IllegalArgumentException {
+	this.sendLock.lock();
+	try {
+	    int max = packetSizeLimit(this.packetFactory, mtu);
+	    if (max < 1) {
+		throw new IllegalArgumentException(
+			"Attempt to set a path MTU of " + mtu + "!");
+	    }
+	    this.pathMtu = mtu;
+	    if (this.channel instanceof DatagramChannel) {
+		this.maxPacketSize = (short) max;
+		if (this.currPacketSize > max) {
+		    this.currPacketSize = (short) max;
+		}
+		this.optionsPending = true;
+	    }
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * @return The payload size of the {@link Packet}s the next bundle
+	 *         written is likely to be broken into.
+	 */
+    public short getCurrentPacketSize() {
+	return this.currPacketSize;
+    }
+
+    /**
+	 * @return The largest {@link Packet}payload this Conduit will send, or
+	 *         ask the other end to send.
+	 */
+    public short getMaxPacketSize() {
+	return this.maxPacketSize;
+    }
+
+    /**
+	 * Limits the size of the {@link Packet}payloads used in both
+	 * directions. The other end is told of the new limit along with the
+	 * next bundle written.
+	 *
+	 * @param max
+	 *                The largest payload size to use.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>max</CODE> is less than one.
+	 */
+    public void setMaxPacketSize(short max) throws IllegalArgumentException {
+	if (max < 1) {
+	    throw new IllegalArgumentException(
+		    "Attempt to set a maximum packet size of " + max + "!");
+	}
+	this.sendLock.lock();
+	try {
+	    this.maxPacketSize = max;
+	    if (this.currPacketSize > max) {
+		this.currPacketSize = max;
+	    }
+	    this.optionsPending = true;
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * Chooses the payload size for a bundle about to be written. The size
+	 * tracks the average bundle length, rounded up to a power of two, so
+	 * that typical bundles go out in a single data {@link Packet}and bulk
+	 * transfers in as few {@link Packet}s as possible. It is capped by both
+	 * ends' limits and by a ceiling which drops while the link is losing
+	 * {@link Packet}s, since each loss then costs less to repair.
+	 *
+	 * @param len
+	 *                The length of the bundle about to be written.
+	 */
+    private void adaptPacketSize(int len) {
+	this.avgBndlLen = (this.avgBndlLen < 0) ? len : this.avgBndlLen
+		+ ((len - this.avgBndlLen) >> 3);
+	if (++this.adaptBndls >= ADAPT_INTERVAL_BUNDLES) {
+	    if ((this.adaptPktsResent << 5) > this.adaptPktsSent) {
+		this.lossPacketSizeCeiling = this.currPacketSize >> 1;
+	    } else if (0 == this.adaptPktsResent
+		    && this.lossPacketSizeCeiling < Short.MAX_VALUE) {
+		this.lossPacketSizeCeiling <<= 1;
+	    }
+	    this.adaptBndls = 0;
+	    this.adaptPktsSent = 0;
+	    this.adaptPktsResent = 0;
+	}
+	int ps = (this.avgBndlLen <= MIN_PACKET_SIZE) ? MIN_PACKET_SIZE
+		: Integer.highestOneBit(this.avgBndlLen - 1) << 1;
+	if (ps > this.lossPacketSizeCeiling) {
+	    ps = this.lossPacketSizeCeiling;
+	}
+	if (ps > this.peerMaxPacketSize) {
+	    ps = this.peerMaxPacketSize;
+	}
+	if (ps > this.maxPacketSize) {
+	    ps = this.maxPacketSize;
+	}
+	if (ps < MIN_PACKET_SIZE && MIN_PACKET_SIZE <= this.maxPacketSize
+		&& MIN_PACKET_SIZE <= this.peerMaxPacketSize) {
+	    ps = MIN_PACKET_SIZE;
+	}
+	// the header Packet's length counts the data Packets; the bundle is
+	// no longer than getMaxBundleLength(), so this stays within both
+	// ends' limits
+	int minPs = (len + Short.MAX_VALUE - 1) / Short.MAX_VALUE;
+	if (ps < minPs) {
+	    ps = minPs;
+	}
+	this.currPacketSize = (short) ps;
+    }
+
+    /**
+	 * @return The largest payload a control {@link Packet}may have, being
+	 *         the smaller of both ends' limits.
+	 */
+    private int controlPayloadLimit() {
+	return (this.peerMaxPacketSize < this.maxPacketSize) ? this.peerMaxPacketSize
+		: this.maxPacketSize;
+    }
+
+    /**
+	 * @return The longest bundle which can currently be written: as many
+	 *         {@link Packet}s as a header {@link Packet}can count, each
+	 *         with the largest payload both ends accept. It falls if
+	 *         either end lowers its maximum {@link Packet}payload.
+	 */
+    public long getMaxBundleLength() {
+	return (long) controlPayloadLimit() * Short.MAX_VALUE;
+    }
+
+    /**
+	 * Handles the other end's options.
+	 *
+	 * @param opt
+	 *                The option {@link Packet}.
+	 * @throws IOException
+	 *                 if the other end does not agree with this one about
+	 *                 checking CRCs.
+	 */
+    private void receiveOptions(Packet opt) throws IOException {
+	boolean crc = false;
+	ByteBuffer ob = opt.payloadView();
+	while (null != ob && ob.remaining() >= 5) {
+	    byte o = ob.get();
+	    int v = ob.getInt();
+	    switch (o) {
+	    case OPT_MAX_PAYLOAD:
+		assert (log.info("Other end accepts payloads of up to " + v
+			+ " bytes."));
+		this.peerMaxPacketSize = (v < 1) ? 1 : v;
+		break;
+	    case OPT_COMPRESSION:
+		assert (log.info("Other end " + ((0 == v) ? "does not want" : "wants")
+			+ " bundles deflated."));
+		this.peerCompression = (0 != v);
+		break;
+	    case OPT_COMPACT_HEADERS:
+		assert (log.info("Other end " + ((0 == v) ? "does not read" : "reads")
+			+ " compact packet headers."));
+		this.peerCompactHeaders = (0 != v);
+		break;
+	    case OPT_CRC:
+		assert (log.info("Other end " + ((0 == v) ? "does not check" : "checks")
+			+ " CRCs."));
+		crc = (0 != v);
+		break;
+	    case OPT_SEND_WINDOW:
+		assert (log.info("Other end sends up to " + v
+			+ " bundles ahead of its Acks."));
+		this.peerSendWindowBundles = (v < 1) ? 1
+			: ((v > MAX_SEND_WINDOW_BUNDLES) ? MAX_SEND_WINDOW_BUNDLES
+				: v);
+		break;
+	    default:
+		assert (log.info("Ignoring unknown option " + o));
+	    }
+	}
+	// an end which says nothing of CRCs does not check them
+	if (crc != isCrcChecking()) {
+	    throw new IOException("This end " + (crc ? "does not check" : "checks")
+		    + " CRCs, but the other end "
+		    + (crc ? "does" : "does not") + "!");
+	}
+	this.peerCrc = crc;
+	this.peerGen = opt.genID & ((1L << CHANNEL_SHIFT) - 1);
+	if (!this.optionsSent) {
+	    // make sure the other end hears about us too
+	    this.optionsPending = true;
+	}
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if {@link #write(ByteBuffer)}does not copy
+	 *         the bundles it sends.
+	 */
+    public boolean isZeroCopyWrites() {
+	return this.zeroCopyWrites;
+    }
+
+    /**
+	 * Sets whether {@link #write(ByteBuffer)}sends bundles without copying
+	 * them. When enabled, the {@link Packet}s a bundle is broken into are
+	 * read-only slices of the buffer passed to {@link #write(ByteBuffer)},
+	 * and they are retained until the bundle has been acknowledged in case
+	 * it must be resent. The caller must therefore not modify the content
+	 * of a written buffer until the bundle has been acknowledged.
+	 *
+	 * @param zc
+	 *                <CODE>true</CODE> to send bundles without copying
+	 *                them.
+	 */
+    public void setZeroCopyWrites(boolean zc) {
+	this.zeroCopyWrites = zc;
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if this end wants bundles deflated.
+	 */
+    public boolean isCompression() {
+	return this.compression;
+    }
+
+    /**
+	 * Sets whether this end wants bundles deflated. The other end is told
+	 * along with the next bundle written, and bundles are only deflated in
+	 * either direction once both ends want them to be.
+	 *
+	 * @param on
+	 *                <CODE>true</CODE> to deflate bundles.
+	 */
+    public void setCompression(boolean on) {
+	this.sendLock.lock();
+	try {
+	    this.compression = on;
+	    this.optionsPending = true;
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if both ends want bundles deflated, so that
+	 *         bundles written which are long enough are deflated.
+	 */
+    public boolean isCompressing() {
+	this.sendLock.lock();
+	try {
+	    return this.compression && this.peerCompression;
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    public int getCompressionThreshold() {
+	return this.compressionThreshold;
+    }
+
+    /**
+	 * Sets the length of the shortest bundle worth deflating; shorter
+	 * bundles are always sent as they are.
+	 *
+	 * @param len
+	 *                The length, in bytes.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>len</CODE> is negative.
+	 */
+    public void setCompressionThreshold(int len)
+	    throws IllegalArgumentException {
+	if (len < 0) {
+	    throw new IllegalArgumentException(
+		    "Attempt to set a negative compression threshold!");
+	}
+	this.compressionThreshold = len;
+    }
+
+    /**
+	 * Deflates a bundle into {@link #deflateOut}, after its length,
+	 * unless that would not save at least an eighth of it. Must be called
+	 * with {@link #sendLock}held.
+	 *
+	 * @param buf
+	 *                The bundle, whose position is left unchanged.
+	 * @param len
+	 *                The length of the bundle.
+	 * @return The deflated length, or -1 if the bundle should be sent as
+	 *         it is.
+	 */
+    private int deflate(ByteBuffer buf, int len) {
+	byte[] in;
+	int off;
+	if (buf.hasArray()) {
+	    in = buf.array();
+	    off = buf.arrayOffset() + buf.position();
+	} else {
+	    if (null == this.deflateIn || this.deflateIn.length < len) {
+		this.deflateIn = new byte[len];
+	    }
+	    buf.duplicate().get(this.deflateIn, 0, len);
+	    in = this.deflateIn;
+	    off = 0;
+	}
+	int max = len - (len >> 3);
+	if (null == this.deflateOut || this.deflateOut.length < max) {
+	    this.deflateOut = new byte[max];
+	}
+	if (null == this.deflater) {
+	    this.deflater = new Deflater(
+		    Defaults.DEFAULT_CONDUIT_COMPRESSION_LEVEL);
+	}
+	this.deflater.setInput(in, off, len);
+	this.deflater.finish();
+	ByteBuffer.wrap(this.deflateOut).putInt(len);
+	int n = 4;
+	while (!this.deflater.finished() && n < max) {
+	    n += this.deflater.deflate(this.deflateOut, n, max - n);
+	}
+	int retVal = this.deflater.finished() ? n : -1;
+	this.deflater.reset();
+	return retVal;
+    }
+
+    /**
+	 * Inflates a reassembled deflated bundle. Must be called with
+	 * {@link #recvLock}held.
+	 *
+	 * The output is never allowed to grow past the length the bundle
+	 * starts with, nor that past the longest bundle any peer may write, so
+	 * a small bundle which would inflate without end fails instead of
+	 * filling the heap.
+	 *
+	 * @param z
+	 *                The deflated bundle, positioned at its end; it is
+	 *                released to the {@link BufferPool}.
+	 * @return The inflated bundle, positioned at its end.
+	 * @throws IOException
+	 *                 if the bundle does not inflate, or does not inflate
+	 *                 to the length it gives.
+	 */
+    private ByteBuffer inflate(ByteBuffer z) throws IOException {
+	int zl = z.position();
+	byte[] in;
+	int off;
+	if (z.hasArray()) {
+	    in = z.array();
+	    off = z.arrayOffset();
+	} else {
+	    if (null == this.inflateIn || this.inflateIn.length < zl) {
+		this.inflateIn = new byte[zl];
+	    }
+	    z.flip();
+	    z.get(this.inflateIn, 0, zl);
+	    in = this.inflateIn;
+	    off = 0;
+	}
+	if (zl < 4) {
+	    throw new IOException("Truncated deflated bundle!");
+	}
+	int len = ByteBuffer.wrap(in, off, 4).getInt();
+	if (len < 1 || len > MAX_INFLATED_LENGTH) {
+	    throw new IOException("Deflated bundle claims an inflated length of "
+		    + len + "!");
+	}
+	if (null == this.inflater) {
+	    this.inflater = new Inflater();
+	}
+	this.inflater.setInput(in, off + 4, zl - 4);
+	// room for one byte more than the bundle should have shows it has
+	// more; the buffer only grows as output is really produced
+	long room = (long) len + 1;
+	ByteBuffer out = BufferPool.acquire((int) Math.min(room,
+		(long) zl << 2));
+	int n = 0;
+	try {
+	    while (!this.inflater.finished()) {
+		if (n == out.capacity()) {
+		    ByteBuffer bigger = BufferPool.acquire((int) Math.min(
+			    room, (long) n << 1));
+		    out.limit(n).position(0);
+		    bigger.put(out);
+		    BufferPool.release(out);
+		    out = bigger;
+		}
+		int k = this.inflater.inflate(out.array(), out.arrayOffset()
+			+ n, (int) Math.min(out.capacity() - n, room - n));
+		if (0 == k
+			&& (this.inflater.needsInput() || this.inflater
+				.needsDictionary())) {
+		    throw new IOException("Truncated deflated bundle!");
+		}
+		n += k;
+		if (n > len) {
+		    throw new IOException(
+			    "Deflated bundle inflates past its length of "
+				    + len + "!");
+		}
+	    }
+	    if (n != len) {
+		throw new IOException("Deflated bundle inflates to " + n
+			+ " bytes, not " + len + "!");
+	    }
+	} catch (DataFormatException e) {
+	    BufferPool.release(out);
+	    throw (IOException) new IOException("Corrupt deflated bundle!")
+		    .initCause(e);
+	} catch (IOException e) {
+	    BufferPool.release(out);
+	    throw e;
+	} finally {
+	    this.inflater.reset();
+	}
+	BufferPool.release(z);
+	out.limit(n).position(n);
+	return out;
+    }
+
+    /**
+	 * @return The maximum number of sent bundles which may be awaiting
+	 *         acknowledgement.
+	 */
+    public int getSendWindowBundles() {
+	return this.sendWindowBundles;
+    }
+
+    /**
+	 * @return The maximum number of bytes of sent bundles which may be
+	 *         awaiting acknowledgement.
+	 */
+    public int getSendWindowBytes() {
+	return this.sendWindowBytes;
+    }
+
+    /**
+	 * Sets the send window: how much may be sent ahead of the
+	 * acknowledgements from the other end. A bundle larger than the byte
+	 * limit may still be sent, but only when nothing else is awaiting
+	 * acknowledgement. The other end is told the bundle limit, and drops
+	 * bundles further ahead of its Acks than that.
+	 *
+	 * @param bundles
+	 *                The maximum number of bundles awaiting
+	 *                acknowledgement.
+	 * @param bytes
+	 *                The maximum number of bytes of bundles awaiting
+	 *                acknowledgement.
+	 * @throws IllegalArgumentException
+	 *                 if either limit is less than one, or the bundle limit
+	 *                 is over {@link #MAX_SEND_WINDOW_BUNDLES}.
+	 */
+    public void setSendWindow(int bundles, int bytes)
+	    throws IllegalArgumentException {
+	if (bundles < 1 || bundles > MAX_SEND_WINDOW_BUNDLES || bytes < 1) {
+	    throw new IllegalArgumentException(
+		    "Attempt to set a Conduit send window of " + bundles
+			    + " bundles and " + bytes + " bytes!");
+	}
+	this.sendLock.lock();
+	try {
+	    this.sendWindowBundles = bundles;
+	    this.sendWindowBytes = bytes;
+	    this.optionsPending = true;
+	    this.sendWindowOpened.signalAll();
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * @return The number of sent bundles awaiting acknowledgement.
+	 */
+    public int getUnackedBundles() {
+	this.sendLock.lock();
+	try {
+	    return this.outBndlQueues.size();
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * @return The number of bytes of sent bundles awaiting
+	 *         acknowledgement.
+	 */
+    public int getUnackedBytes() {
+	this.sendLock.lock();
+	try {
+	    return this.unackedBytes;
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * Sets the outbound queue watermarks. Once more than
+	 * <CODE>high</CODE> bytes are queued waiting for the channel, the
+	 * Conduit is not {@link #isWritable() writable} until no more than
+	 * <CODE>low</CODE> bytes are.
+	 *
+	 * @param low
+	 *                The low watermark, in bytes.
+	 * @param high
+	 *                The high watermark, in bytes.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>low</CODE> is negative or greater than
+	 *                 <CODE>high</CODE>.
+	 */
+    public void setWriteWatermarks(int low, int high)
+	    throws IllegalArgumentException {
+	if (low < 0 || high < low) {
 	    throw new IllegalArgumentException(
-		    "Attempt to create a Conduit using"
-			    + " a SelectableChannel that does not implement the ByteChannel interface!");
+		    "Attempt to set Conduit write watermarks of " + low
+			    + " and " + high + " bytes!");
+	}
+	this.sendLock.lock();
+	try {
+	    this.writeLowWatermark = low;
+	    this.writeHighWatermark = high;
+	    updateWriteBlocked();
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * @return The number of queued bytes above which the Conduit stops
+	 *         being {@link #isWritable() writable}.
+	 */
+    public int getWriteHighWatermark() {
+	return this.writeHighWatermark;
+    }
+
+    /**
+	 * @return The number of queued bytes to which the queue must drain
+	 *         before the Conduit is {@link #isWritable() writable} again.
+	 */
+    public int getWriteLowWatermark() {
+	return this.writeLowWatermark;
+    }
+
+    /**
+	 * @return The number of bytes written but not yet taken by the
+	 *         channel.
+	 */
+    public int getQueuedBytes() {
+	return this.queuedBytes + this.unsentBytes;
+    }
+
+    /**
+	 * Whether the Conduit will take more output without waiting for its
+	 * outbound queue to drain. This is the back-pressure signal: a caller
+	 * which must not block should hold off writing while it is
+	 * <CODE>false</CODE>. A logical channel with nothing waiting to be
+	 * sent may write a bundle regardless, so that one channel's bulk
+	 * traffic cannot hold up another's, nor its priority be lost.
+	 *
+	 * @return <CODE>false</CODE> if the outbound queue has risen above its
+	 *         high watermark and not yet drained to its low watermark.
+	 */
+    public boolean isWritable() {
+	return !this.writeBlocked;
+    }
+
+    /**
+	 * Whether a logical channel may write a bundle now: either the Conduit
+	 * is {@link #isWritable() writable}, or the channel has nothing
+	 * waiting to be sent. Must be called with {@link #sendLock}held.
+	 *
+	 * @param sc
+	 *                The logical channel.
+	 * @return <CODE>true</CODE> if the bundle need not wait.
+	 */
+    private boolean writable(SendChannel sc) {
+	return !this.writeBlocked || sc.pending.isEmpty();
+    }
+
+    /**
+	 * Waits until a logical channel may write a bundle. Must be called
+	 * with {@link #sendLock}held, which is released while waiting so that
+	 * the reactor can drain the outbound queue. The reactor {@link Thread}
+	 * never waits, since it is the one which drains it.
+	 *
+	 * @param sc
+	 *                The logical channel.
+	 * @throws IOException
+	 *                 if the Conduit is closed, or the {@link Thread}is
+	 *                 interrupted, while waiting.
+	 * @see #writable(SendChannel)
+	 */
+    private void awaitWritable(SendChannel sc) throws IOException {
+	if (null != this.reactor && this.reactor.inReactorThread()) {
+	    return;
+	}
+	while (!writable(sc)) {
+	    if (!this.isOpen()) {
+		throw new ClosedChannelException();
+	    }
+	    assert (log.finer("Outbound queue full, waiting for it to drain."));
+	    try {
+		this.outboundDrained.await(retransmitTimeoutMs(),
+			TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw (IOException) new InterruptedIOException(
+			"Interrupted while waiting for the outbound queue to drain!")
+			.initCause(e);
+	    }
+	}
+    }
+
+    /**
+	 * Whether a bundle would fit in the send window now. A logical channel
+	 * with nothing awaiting acknowledgement may always send a bundle, so
+	 * that neither an oversized bundle nor the other channels' traffic can
+	 * hold it up. No channel sends a bundle more than the window past its
+	 * cumulative Ack, since the other end would drop it.
+	 *
+	 * @param sc
+	 *                The logical channel the bundle is for.
+	 * @param len
+	 *                The length of the bundle.
+	 * @return <CODE>true</CODE> if the bundle may be sent.
+	 */
+    private boolean sendWindowOpen(SendChannel sc, int len) {
+	if (sc.nextBndl - sc.ackedThrough > this.sendWindowBundles) {
+	    return false;
+	}
+	return (0 == sc.unackedBytes)
+		|| ((this.outBndlQueues.size() < this.sendWindowBundles) && ((this.unackedBytes + len) <= this.sendWindowBytes));
+    }
+
+    /**
+	 * Waits until a bundle fits in the send window. Must be called with
+	 * {@link #sendLock}held, which is released while waiting so that
+	 * acknowledgements can be handed over. The reactor {@link Thread}never
+	 * waits, since it is the one which would receive the
+	 * acknowledgements; a bundle written from it is sent regardless.
+	 *
+	 * @param sc
+	 *                The logical channel the bundle is for.
+	 * @param len
+	 *                The length of the bundle.
+	 * @throws IOException
+	 *                 if the Conduit is closed, or the {@link Thread}is
+	 *                 interrupted, while waiting.
+	 */
+    private void awaitSendWindow(SendChannel sc, int len) throws IOException {
+	if (null != this.reactor && this.reactor.inReactorThread()) {
+	    return;
+	}
+	while (true) {
+	    // take in any Acks handed over while the lock was held
+	    serviceSendSide();
+	    if (sendWindowOpen(sc, len)) {
+		return;
+	    }
+	    if (!this.isOpen()) {
+		throw new ClosedChannelException();
+	    }
+	    assert (log.finer("Send window full, waiting for Acks."));
+	    try {
+		this.sendWindowOpened.await(retransmitTimeoutMs(),
+			TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw (IOException) new InterruptedIOException(
+			"Interrupted while waiting for the send window to open!")
+			.initCause(e);
+	    }
+	}
+    }
+
+    /**
+	 * Sends a bundle if it fits in the send window and the Conduit is
+	 * {@link #isWritable() writable}, rather than waiting for it to be.
+	 *
+	 * @param buf
+	 *                The bundle.
+	 * @return <CODE>false</CODE> if the send window is full or too much
+	 *         output is queued, and the bundle was not sent.
+	 * @throws IOException
+	 *                 if the bundle could not be sent.
+	 * @see #write(ByteBuffer)
+	 */
+    public boolean tryWrite(ByteBuffer buf) throws IOException,
+	    NullPointerException, IllegalArgumentException {
+	return tryWrite(DEFAULT_CHANNEL, buf);
+    }
+
+    /**
+	 * Sends a bundle on a logical channel if it fits in the send window and
+	 * the Conduit is {@link #isWritable() writable}, rather than waiting
+	 * for it to be.
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @param buf
+	 *                The bundle.
+	 * @return <CODE>false</CODE> if the send window is full or too much
+	 *         output is queued, and the bundle was not sent.
+	 * @throws IOException
+	 *                 if the bundle could not be sent.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel.
+	 * @see #write(int, ByteBuffer)
+	 */
+    public boolean tryWrite(int channel, ByteBuffer buf) throws IOException,
+	    NullPointerException, IllegalArgumentException {
+	checkChannel(channel);
+	boolean retVal;
+	this.sendLock.lock();
+	try {
+	    serviceSendSide();
+	    SendChannel sc = sendChannel(channel);
+	    retVal = writable(sc) && sendWindowOpen(sc, buf.remaining());
+	    if (retVal) {
+		write(channel, buf);
+	    }
+	} finally {
+	    unlockSendSide();
+	}
+	return retVal;
+    }
+
+    /**
+	 * Releases {@link #sendLock}, first doing any work handed to the send
+	 * side. Work handed over by a {@link Thread}which found the lock held is
+	 * done here, so none is left stranded. A failure while doing it closes
+	 * the Conduit, as a failure on the reactor {@link Thread}would.
+	 */
+    private void unlockSendSide() {
+	try {
+	    do {
+		try {
+		    serviceSendSide();
+		} finally {
+		    this.sendLock.unlock();
+		}
+	    } while (!(this.sendInbox.isEmpty() && this.ctlOutbox.isEmpty())
+		    && this.sendLock.tryLock());
+	} catch (IOException e) {
+	    assert (log.throwing(e));
+	    this.reactor.closeConduit(this, e);
+	} catch (RuntimeException e) {
+	    assert (log.throwing(e));
+	    this.reactor.closeConduit(this, e);
+	}
+    }
+
+    /**
+	 * Has the send side do the work just handed to it, unless another
+	 * {@link Thread}holds {@link #sendLock}, in which case that
+	 * {@link Thread}will do it before releasing the lock.
+	 */
+    private void handOff() {
+	if (this.sendLock.tryLock()) {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * Does the work handed to the send side, and sends any control
+	 * {@link Packet}s waiting. Must be called with {@link #sendLock}held.
+	 *
+	 * @throws IOException
+	 *                 if a {@link Packet}could not be sent, or a sent
+	 *                 bundle has missed too many deadlines.
+	 */
+    private void serviceSendSide() throws IOException {
+	Object o;
+	while (null != (o = this.sendInbox.poll())) {
+	    if (o instanceof Packet) {
+		Packet p = (Packet) o;
+		if (Packet.ACK_PACKET_ID == p.pktID) {
+		    receiveAck(p);
+		} else if (Packet.NAK_PACKET_ID == p.pktID) {
+		    resendPackets(p);
+		} else {
+		    receiveOptions(p);
+		}
+	    } else {
+		outBundleTimedOut((BndlQValue) o, System.currentTimeMillis());
+	    }
+	}
+	if (!(this.ctlOutbox.isEmpty() && this.pendingAckOfAcks.isEmpty())) {
+	    // pending options go along too, but otherwise wait for a bundle
+	    flushControlPackets();
+	}
+	if (!this.activeChannels.isEmpty()) {
+	    sendWaitingPackets();
+	}
+    }
+
+    protected void receive() throws IOException {
+	this.recvLock.lock();
+	try {
+	    receiveRaw();
+	    // Acks are coalesced over everything received in this batch
+	    gatherAcks();
+	} finally {
+	    this.recvLock.unlock();
+	}
+	handOff();
+    }
+
+    /**
+	 * Reads what the channel has available and processes the
+	 * {@link Packet}s it completes. Must be called with {@link #recvLock}
+	 * held.
+	 *
+	 * @throws IOException
+	 */
+    private void receiveRaw() throws IOException {
+	int p;
+	int l;
+	if (recvBuf.hasRemaining()) {
+	    p = recvBuf.position();
+	    l = recvBuf.limit();
+	    recvBuf.compact().position(0).limit(l - p);
+	} else {
+	    recvBuf.position(0).limit(0);
+	}
+	p = recvBuf.position();
+	l = recvBuf.limit();
+	recvBuf.limit(recvBuf.capacity()).position(l);
+	int got = this.byteChannel.read(recvBuf);
+	if (got > 0 && (this.channel instanceof DatagramChannel)) {
+	    // each read takes a single datagram - take what has queued up
+	    for (int n = 1; n < DATAGRAM_READ_BATCH
+		    && recvBuf.remaining() >= MAX_DATAGRAM_LENGTH; n++) {
+		int g = this.byteChannel.read(recvBuf);
+		if (g <= 0) {
+		    break;
+		}
+		got += g;
+	    }
+	}
+	if (got < 0) {
+	    // end-of-stream: shutdown Conduit...
+	    if (this.isOpen()) {
+		this.close();
+	    }
+	}
+	assert (log.info("Got " + got + " bytes!"));
+	recvBuf.limit(recvBuf.position()).position(p);
+	if (got > 0 || recvBuf.hasRemaining()) {
+	    if (recvReadBuf.hasRemaining()) {
+		p = recvReadBuf.position();
+		l = recvReadBuf.limit();
+		recvReadBuf.compact().position(0).limit(l - p);
+	    } else {
+		recvReadBuf.position(0).limit(0);
+	    }
+	    if ((this.recvReadBuf.capacity() - this.recvReadBuf.limit()) < recvBuf
+		    .remaining()) {
+		ByteBuffer tbb = BufferPool.acquire(this.recvReadBuf
+			.remaining()
+			+ recvBuf.remaining());
+		tbb.put(this.recvReadBuf);
+		tbb.limit(tbb.position()).position(0);
+		BufferPool.release(this.recvReadBuf);
+		this.recvReadBuf = tbb;
+	    }
+	    p = recvReadBuf.position();
+	    l = recvReadBuf.limit();
+	    recvReadBuf.limit(recvReadBuf.capacity()).position(l);
+	    recvReadBuf.put(recvBuf);
+	    numBytesRcvd.add(recvReadBuf.position() - l);
+	    assert (log.info("Added " + (recvReadBuf.position() - l)
+		    + " bytes to RecvReadBuf!"));
+	    recvReadBuf.limit(recvReadBuf.position()).position(p);
+	    // Check if we have at least one full Packet in the recvReadBuf
+	    internalRead();
+	}
+    }
+
+    /**
+	 * @return The time, in milliseconds, to wait for more of a bundle (or
+	 *         for its acknowledgement) before asking for it again.
+	 */
+    long retransmitTimeoutMs() {
+	return this.rtt.getRtoMs();
+    }
+
+    /**
+	 * @return The time, in milliseconds, this Conduit waits for more of a
+	 *         bundle (or for its acknowledgement) before asking for it
+	 *         again.
+	 */
+    public long getRetransmitTimeoutMs() {
+	return retransmitTimeoutMs();
+    }
+
+    /**
+	 * @return The smoothed round trip time to the other end, in
+	 *         microseconds, or -1 if it has not yet been measured.
+	 */
+    public long getSmoothedRttMicros() {
+	long srtt = this.rtt.getSmoothedRttNanos();
+	return (srtt < 0) ? -1 : srtt / 1000;
+    }
+
+    /**
+	 * @return The smoothed mean deviation of the round trip time to the
+	 *         other end, in microseconds.
+	 */
+    public long getRttVarianceMicros() {
+	return this.rtt.getRttVarianceNanos() / 1000;
+    }
+
+    /**
+	 * Handles the passing of a deadline set for a bundle in flight, on the
+	 * reactor {@link Thread}. A received bundle which has stalled is NAKed
+	 * for its missing {@link Packet}s; a received bundle whose Ack has not
+	 * been acknowledged is Acked again; and a sent bundle which has not
+	 * been acknowledged is probed by resending its header {@link Packet},
+	 * which the other end answers with a NAK or an Ack. A deadline which
+	 * was pushed back since it was scheduled is simply scheduled again.
+	 * <P>
+	 * If a bundle has missed too many deadlines in a row, meaning the
+	 * other end is no longer responding, the Conduit is closed.
+	 *
+	 * @param t
+	 *                The {@link BndlQValue}or {@link AckState}whose
+	 *                deadline has passed.
+	 */
+    void timedOut(TimerWheel.Timer t) {
+	try {
+	    if (!isOpen()) {
+		return;
+	    }
+	    if ((t instanceof BndlQValue) && !(t instanceof InBndlQValue)) {
+		// sent bundles belong to the send side
+		this.sendInbox.offer(t);
+	    } else {
+		long now = System.currentTimeMillis();
+		this.recvLock.lock();
+		try {
+		    boolean expired = (t instanceof InBndlQValue) ? inBundleTimedOut(
+			    (InBndlQValue) t, now)
+			    : ackTimedOut((AckState) t, now);
+		    if (expired) {
+			// Karn: back off until an exchange which was not
+			// repeated yields a fresh sample
+			this.rtt.backoff();
+		    }
+		    gatherAcks();
+		} finally {
+		    this.recvLock.unlock();
+		}
+	    }
+	    handOff();
+	} catch (IOException e) {
+	    assert (log.throwing(e));
+	    this.reactor.closeConduit(this, e);
+	} catch (RuntimeException e) {
+	    assert (log.throwing(e));
+	    this.reactor.closeConduit(this, e);
+	}
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if the bundle's deadline had really
+	 *         passed.
+	 */
+    private boolean inBundleTimedOut(InBndlQValue v, long now)
+	    throws IOException {
+	if (v != this.inBndlQueues.get(v.genID, v.bndlID)) {
+	    return false;
+	}
+	if (now < v.expectedCompletion) {
+	    this.reactor.schedule(v, v.expectedCompletion - now);
+	    return false;
+	}
+	if (++v.retries > MAX_TIMEOUTS_TIL_EXCEPTION) {
+	    throw new IOException("Conduit timed out waiting for bundle "
+		    + v.genID + "/" + v.bndlID + "!");
+	}
+	int[] ids = new int[controlPayloadLimit() / 4];
+	sendNakPacket(v.genID, v.bndlID, ids, v.missing(ids));
+	long rto = retransmitTimeoutMs();
+	v.setDeadline(rto);
+	this.reactor.schedule(v, rto);
+	return true;
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if the bundle's deadline had really
+	 *         passed.
+	 */
+    private boolean outBundleTimedOut(BndlQValue v, long now)
+	    throws IOException {
+	if (v != this.outBndlQueues.get(v.genID, v.bndlID)) {
+	    return false;
+	}
+	if (now < v.expectedCompletion) {
+	    this.reactor.schedule(v, v.expectedCompletion - now);
+	    return false;
+	}
+	if (++v.retries > MAX_TIMEOUTS_TIL_EXCEPTION) {
+	    throw new IOException("Conduit timed out waiting for Ack of bundle "
+		    + v.genID + "/" + v.bndlID + "!");
+	}
+	sendPacket((Packet) v.packets.get(0));
+	numPktsResent.add(1);
+	v.resent = true;
+	this.rtt.backoff();
+	long rto = retransmitTimeoutMs();
+	v.setDeadline(rto);
+	this.reactor.schedule(v, rto);
+	return true;
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if the Ack's deadline had really passed.
+	 */
+    private boolean ackTimedOut(AckState as, long now) {
+	if (as.confirmed || as != this.rcvAckStates.get(as.genID, 0)) {
+	    return false;
+	}
+	if (now < as.deadline) {
+	    this.reactor.schedule(as, as.deadline - now);
+	    return false;
+	}
+	if (++as.retries > MAX_TIMEOUTS_TIL_EXCEPTION) {
+	    // the other end will probe if it still needs an Ack
+	    as.confirmed = true;
+	} else {
+	    // sent, and scheduled again, by gatherAcks()
+	    as.ackPending = true;
+	}
+	return true;
+    }
+
+    /**
+	 * Makes the cumulative Acks due and hands them to the send side. Must
+	 * be called with {@link #recvLock}held.
+	 */
+    private void gatherAcks() {
+	if (this.rcvAckStates.isEmpty()) {
+	    return;
+	}
+	for (int i = this.rcvAckStates.first(); i >= 0; i = this.rcvAckStates
+		.next(i)) {
+	    AckState as = (AckState) this.rcvAckStates.valueAt(i);
+	    if (as.ackPending) {
+		int n = as.sackWords(controlPayloadLimit() / 8);
+		ByteBuffer bits = ByteBuffer.allocate(8 * n);
+		for (int j = 0; j < n; j++) {
+		    bits.putLong(as.sack[j]);
+		}
+		bits.flip();
+		this.ctlOutbox.offer(sendPacketFactory().newPacket(as.genID,
+			as.cumAck, Packet.ACK_PACKET_ID, bits));
+		as.ackPending = false;
+		long rto = retransmitTimeoutMs();
+		as.deadline = System.currentTimeMillis() + rto;
+		as.sentNanos = System.nanoTime();
+		this.reactor.schedule(as, rto);
+	    }
+	}
+    }
+
+    /**
+	 * Gathers the pending options, the control {@link Packet}s handed over
+	 * by the receive side and the Acks of Acks into {@link #ctlPktList}.
+	 * Must be called with {@link #sendLock}held.
+	 *
+	 * @return The number of control {@link Packet}s gathered.
+	 */
+    private int gatherControlPackets() {
+	this.ctlPktList.clear();
+	if (this.optionsPending) {
+	    ByteBuffer ob = ByteBuffer.allocate(25);
+	    ob.put(OPT_MAX_PAYLOAD).putInt(this.maxPacketSize);
+	    ob.put(OPT_COMPRESSION).putInt(this.compression ? 1 : 0);
+	    ob.put(OPT_COMPACT_HEADERS).putInt(
+		    this.packetFactory.readsCompactHeaders() ? 1 : 0);
+	    ob.put(OPT_CRC).putInt(this.packetFactory.checksCrcs() ? 1 : 0);
+	    ob.put(OPT_SEND_WINDOW).putInt(this.sendWindowBundles).flip();
+	    this.ctlPktList.add(sendPacketFactory().newPacket(this.currGen, 0,
+		    Packet.OPTION_PACKET_ID, ob));
+	    this.optionsPending = false;
+	    this.optionsSent = true;
+	}
+	Object p;
+	while (null != (p = this.ctlOutbox.poll())) {
+	    this.ctlPktList.add(p);
+	}
+	if (!this.pendingAckOfAcks.isEmpty()) {
+	    for (int i = this.pendingAckOfAcks.first(); i >= 0; i = this.pendingAckOfAcks
+		    .next(i)) {
+		this.ctlPktList.add(this.pendingAckOfAcks.valueAt(i));
+	    }
+	    this.pendingAckOfAcks.clear();
+	}
+	return this.ctlPktList.size();
+    }
+
+    /**
+	 * Sends any pending options, cumulative Acks, NAKs and Acks of Acks
+	 * together. Must be called with {@link #sendLock}held.
+	 *
+	 * @throws IOException
+	 *                 if they could not be sent.
+	 */
+    private void flushControlPackets() throws IOException {
+	int n = gatherControlPackets();
+	if (n > 0) {
+	    assert (log.info("Sending " + n + " Ack packets"));
+	    Packet[] pa = (Packet[]) this.ctlPktList
+		    .toArray(new Packet[n]);
+	    this.ctlPktList.clear();
+	    sendPackets(pa, n);
+	}
+    }
+
+    /**
+	 * Handles a cumulative Ack of sent bundles, releasing every bundle it
+	 * covers from the output bundle queue and arranging for it to be
+	 * acknowledged.
+	 *
+	 * @param ack
+	 *                The Ack {@link Packet}.
+	 */
+    private void receiveAck(Packet ack) {
+	ByteBuffer bits = ack.payloadView();
+	int nw = (null == bits) ? 0 : bits.remaining() / 8;
+	long[] sack = new long[nw];
+	for (int i = 0; i < nw; i++) {
+	    sack[i] = bits.getLong();
+	}
+	SendChannel sc = this.sendChannels[channelOf(ack.genID)];
+	if (null != sc && sc.genID == ack.genID && sc.ackedThrough < ack.bndlID) {
+	    sc.ackedThrough = ack.bndlID;
+	}
+	int freed = 0;
+	// nanoTime may be any value, negative included, so whether a sample
+	// was found is kept apart from the sample itself
+	boolean sampled = false;
+	long lastSent = 0;
+	for (int j = this.outBndlQueues.first(); j >= 0; j = this.outBndlQueues
+		.next(j)) {
+	    if (this.outBndlQueues.genAt(j) != ack.genID) {
+		continue;
+	    }
+	    long d = this.outBndlQueues.idAt(j) - ack.bndlID - 1;
+	    if (d < 0
+		    || (d < (nw << 6) && 0 != (sack[(int) (d >>> 6)] & (1L << (d & 63))))) {
+		BndlQValue v = (BndlQValue) this.outBndlQueues.valueAt(j);
+		this.unackedBytes -= v.bndlLen;
+		this.sendChannels[channelOf(v.genID)].unackedBytes -= v.bndlLen;
+		if (!v.resent && (!sampled || v.sentNanos - lastSent > 0)) {
+		    lastSent = v.sentNanos;
+		    sampled = true;
+		}
+		this.reactor.cancel(v);
+		this.outBndlQueues.removeAt(j);
+		// re-examine the slot, which may now hold another entry
+		j--;
+		freed++;
+	    }
+	}
+	if (freed > 0) {
+	    this.sendWindowOpened.signalAll();
+	}
+	if (sampled) {
+	    // one sample per Ack, from the latest bundle it freed
+	    this.rtt.sample(System.nanoTime() - lastSent);
+	}
+	assert (log.info("Ack through bundle " + ack.bndlID + " freed "
+		+ freed + " bundles, " + outBndlQueues.size()
+		+ " entries left in sent queue."));
+	Packet aoa = (Packet) this.pendingAckOfAcks.get(ack.genID, 0);
+	if (null == aoa || aoa.bndlID <= ack.bndlID) {
+	    this.pendingAckOfAcks.put(ack.genID, 0, sendPacketFactory().newPacket(
+		    ack.genID, ack.bndlID, Packet.ACK_OF_ACK_PACKET_ID,
+		    (null == bits) ? EMPTY_PAYLOAD : (ByteBuffer) bits.rewind()));
+	}
+    }
+
+    /**
+	 * Handles an Ack of our latest cumulative Ack, which means it need not
+	 * be sent again.
+	 *
+	 * @param aoa
+	 *                The Ack of Ack {@link Packet}.
+	 */
+    private void receiveAckOfAck(Packet aoa) {
+	AckState as = (AckState) this.rcvAckStates.get(aoa.genID, 0);
+	if (null != as && !as.confirmed
+		&& as.coveredBy(aoa.bndlID, aoa.payloadView())) {
+	    if (0 == as.retries) {
+		this.rtt.sample(System.nanoTime() - as.sentNanos);
+	    }
+	    as.confirmed = true;
+	    as.retries = 0;
+	    this.reactor.cancel(as);
+	}
+    }
+
+    /**
+	 * Has the content of bundles received from now on handed to a
+	 * listener as it arrives, rather than queued for reading whole. A
+	 * bundle already partly received when the listener is changed is
+	 * delivered as it would have been.
+	 *
+	 * @param l
+	 *                The listener, or <CODE>null</CODE> to go back to
+	 *                queuing bundles for {@link #read()}.
+	 */
+    public void setSegmentListener(BundleSegmentListener l) {
+	this.segmentListener = l;
+    }
+
+    public BundleSegmentListener getSegmentListener() {
+	return this.segmentListener;
+    }
+
+    /**
+	 * Has the bundles received from now on handed to a listener as each
+	 * arrives whole, rather than queued for reading. Bundles already
+	 * queued stay queued. A {@link BundleSegmentListener} or a
+	 * {@link Thread} in {@link #receiveTo(int, FileChannel, long)} is given
+	 * the bundles it would have been given anyway.
+	 *
+	 * @param l
+	 *                The listener, or <CODE>null</CODE> to go back to
+	 *                queuing bundles for {@link #read()}and
+	 *                {@link #take(long)}.
+	 */
+    public void setBundleListener(BundleListener l) {
+	this.bundleListener = l;
+    }
+
+    public BundleListener getBundleListener() {
+	return this.bundleListener;
+    }
+
+    /**
+	 * Receives a bundle from the {@link #DEFAULT_CHANNEL default}logical
+	 * channel into a file, as {@link #receiveTo(int, FileChannel, long)}
+	 * does.
+	 */
+    public long receiveTo(FileChannel dst, long position) throws IOException {
+	return receiveTo(DEFAULT_CHANNEL, dst, position);
+    }
+
+    /**
+	 * Receives the next bundle from a logical channel into a file, waiting
+	 * for it to arrive. The next bundle is the one waiting to be read, if
+	 * any, or else the lowest numbered one not yet complete. Its content is
+	 * written to the file by the calling {@link Thread}as it arrives,
+	 * rather than being assembled first, unless it had already begun
+	 * arriving (or was deflated).
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @param dst
+	 *                The file.
+	 * @param position
+	 *                Where in the file to write the bundle.
+	 * @return The length of the bundle.
+	 * @throws IOException
+	 *                 if the file could not be written, or the Conduit
+	 *                 closed or the {@link Thread}was interrupted while
+	 *                 waiting.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel.
+	 * @throws IllegalStateException
+	 *                 if another {@link Thread}is already receiving into a
+	 *                 file from the logical channel.
+	 * @see #sendFile(int, FileChannel, long, long)
+	 */
+    public long receiveTo(int channel, FileChannel dst, long position)
+	    throws IOException, IllegalArgumentException,
+	    IllegalStateException {
+	checkChannel(channel);
+	FileSink fs = new FileSink(dst, position);
+	ByteBuffer bb;
+	this.recvLock.lock();
+	try {
+	    if (null != this.fileSinks[channel]) {
+		throw new IllegalStateException(
+			"Attempt to receive two files at once from logical channel "
+				+ channel + "!");
+	    }
+	    bb = read(channel);
+	    if (null == bb) {
+		this.fileSinks[channel] = fs;
+		attachSink(fs, channel);
+	    }
+	} finally {
+	    this.recvLock.unlock();
+	}
+	if (null != bb) {
+	    bb.flip();
+	    fs.write(bb);
+	    return fs.written;
+	}
+	try {
+	    while (true) {
+		Object o;
+		while (null != (o = fs.segments.poll())) {
+		    fs.write((ByteBuffer) o);
+		}
+		this.recvLock.lock();
+		try {
+		    if (fs.segments.isEmpty()) {
+			if (fs.complete) {
+			    return fs.written;
+			}
+			if (!this.isOpen()) {
+			    throw new ClosedChannelException();
+			}
+			fs.waiting = true;
+			try {
+			    this.fileReceived.await(retransmitTimeoutMs(),
+				    TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+			    Thread.currentThread().interrupt();
+			    throw (IOException) new InterruptedIOException(
+				    "Interrupted while receiving a file!")
+				    .initCause(e);
+			} finally {
+			    fs.waiting = false;
+			}
+		    }
+		} finally {
+		    this.recvLock.unlock();
+		}
+	    }
+	} finally {
+	    this.recvLock.lock();
+	    try {
+		// anything more of the bundle is dropped as it arrives
+		fs.abandoned = true;
+		this.fileSinks[channel] = null;
+	    } finally {
+		this.recvLock.unlock();
+	    }
+	    fs.discard();
+	}
+    }
+
+    /**
+	 * Chooses the bundle a file waiting on a logical channel receives: the
+	 * lowest numbered bundle of the channel not yet complete, provided
+	 * every bundle before it has at least begun to arrive and it has not
+	 * begun to be delivered to a {@link BundleSegmentListener}. Called when
+	 * the file starts waiting, and whenever a bundle of the channel begins
+	 * to arrive or is completed until one is chosen. Must be called with
+	 * {@link #recvLock}held.
+	 *
+	 * @param fs
+	 *                The file.
+	 * @param channel
+	 *                Its logical channel.
+	 */
+    private void attachSink(FileSink fs, int channel) {
+	InBndlQValue low = null;
+	for (int i = this.inBndlQueues.first(); i >= 0; i = this.inBndlQueues
+		.next(i)) {
+	    InBndlQValue v = (InBndlQValue) this.inBndlQueues.valueAt(i);
+	    if (channelOf(v.genID) != channel) {
+		continue;
+	    }
+	    if (null == low || v.genID < low.genID
+		    || (v.genID == low.genID && v.bndlID < low.bndlID)) {
+		low = v;
+	    }
+	}
+	if (null == low || low.begun || null != low.sink) {
+	    // the lowest is already going elsewhere, or there is none yet
+	    return;
+	}
+	AckState as = (AckState) this.rcvAckStates.get(low.genID, 0);
+	for (long b = as.cumAck + 1; b < low.bndlID; b++) {
+	    if (!as.isComplete(b)) {
+		// an earlier bundle has yet to arrive
+		return;
+	    }
+	}
+	fs.bundle = low;
+	low.sink = fs;
+    }
+
+    /**
+	 * Queues a piece of a bundle for the {@link Thread}receiving it into
+	 * a file, or drops it if that {@link Thread}has given up. Must be
+	 * called with {@link #recvLock}held.
+	 *
+	 * @param fs
+	 *                The file.
+	 * @param segment
+	 *                The piece, which is released to the
+	 *                {@link BufferPool}once written, if it came from
+	 *                there.
+	 */
+    private void sinkSegment(FileSink fs, ByteBuffer segment) {
+	if (fs.abandoned) {
+	    BufferPool.release(segment);
+	    return;
+	}
+	fs.segments.offer(segment);
+	if (fs.waiting) {
+	    this.fileReceived.signalAll();
+	}
+    }
+
+    /**
+	 * Hands a {@link Packet}'s payload to a bundle's listener, telling it
+	 * first that the bundle has begun if this is its first segment. Must
+	 * be called with {@link #recvLock}held.
+	 *
+	 * @param v
+	 *                The bundle.
+	 * @param p
+	 *                The {@link Packet}.
+	 */
+    void deliverSegment(InBndlQValue v, Packet p) {
+	ByteBuffer pv = p.payloadView();
+	if (null != pv) {
+	    if (null != v.bundleSum) {
+		v.bundleSum.update(pv.duplicate());
+	    }
+	    deliverSegment(v, pv.asReadOnlyBuffer());
+	}
+    }
+
+    private void deliverSegment(InBndlQValue v, ByteBuffer segment) {
+	if (null != v.sink) {
+	    sinkSegment(v.sink, segment);
+	    return;
+	}
+	int ch = channelOf(v.genID);
+	if (!v.begun) {
+	    v.begun = true;
+	    v.listener.bundleBegun(this, ch, v.bndlID);
+	}
+	v.listener.segmentReceived(this, ch, v.bndlID, segment);
+    }
+
+    public boolean hasInput() throws IOException {
+	SpscQueue[] rb = this.readBufs;
+	for (int i = 0; null != rb && i < rb.length; i++) {
+	    if (!rb[i].isEmpty()) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+	 * @param channel
+	 *                The logical channel.
+	 * @return <CODE>true</CODE> if a bundle received on the logical
+	 *         channel is waiting to be read.
+	 */
+    public boolean hasInput(int channel) {
+	SpscQueue[] rb = this.readBufs;
+	return (null != rb && channel >= 0 && channel < rb.length && !rb[channel]
+		.isEmpty());
+    }
+
+    public boolean hasRawInput() throws IOException {
+	this.recvLock.lock();
+	try {
+	    return (null != this.recvReadBuf && this.recvReadBuf.hasRemaining());
+	} finally {
+	    this.recvLock.unlock();
+	}
+    }
+
+    /**
+	 * 'raw' read of characters directly from the (buffering)
+	 * {@link InputStreamReader}
+	 */
+    public int read(char[] cbuf, int off, int len) throws IOException {
+	int retValue;
+	this.recvLock.lock();
+	try {
+	    receiveRaw();
+	    gatherAcks();
+	    CharBuffer cb = recvReadBuf.asCharBuffer();
+	    retValue = cb.remaining();
+	    retValue = (len < retValue) ? len : retValue;
+	    cb.get(cbuf, off, retValue);
+	    this.recvReadBuf.position(recvReadBuf.position() + (2 * retValue));
+	} finally {
+	    this.recvLock.unlock();
+	}
+	handOff();
+	return retValue;
+    }
+
+    /**
+	 * Places the next available bundle contents into the supplied buffer.
+	 *
+	 * @param buf
+	 *                The {@link ByteBuffer}to place the data in.
+	 * @return Number of bytes read into buffer.
+	 */
+    public int read(ByteBuffer buf) {
+	int retValue = 0;
+	ByteBuffer tmpBuf = this.read();
+	if (null != tmpBuf) {
+	    retValue = tmpBuf.flip().remaining();
+	    buf.put(tmpBuf);
+	    BufferPool.release(tmpBuf);
+	}
+	return retValue;
+    }
+
+    /**
+	 * Returns the next available bundle contents buffer, from the lowest
+	 * numbered logical channel with a bundle waiting. The buffer comes
+	 * from the {@link BufferPool}; the caller may hand it back with
+	 * {@link BufferPool#release(ByteBuffer)} once done with it.
+	 *
+	 * @return The buffer with the next available bundle's content, or null
+	 *         if no bundles are available.
+	 */
+    public ByteBuffer read() {
+	return poll(0, MAX_CHANNELS);
+    }
+
+    /**
+	 * Returns the next available bundle contents buffer received on a
+	 * logical channel, as {@link #read()} does.
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @return The buffer with the channel's next available bundle's
+	 *         content, or null if no bundles are available on it.
+	 */
+    public ByteBuffer read(int channel) {
+	return (channel < 0) ? null : poll(channel, channel + 1);
+    }
+
+    /**
+	 * Places the next bundle's contents into the supplied buffer, waiting
+	 * for one to arrive if none is available, as {@link #take(long)} does.
+	 *
+	 * @param buf
+	 *                The {@link ByteBuffer}to place the data in.
+	 * @param timeoutMs
+	 *                The longest time to wait, in milliseconds.
+	 * @return Number of bytes read into buffer; zero if none arrived in
+	 *         time.
+	 * @throws InterruptedException
+	 *                 if the {@link Thread}was interrupted while waiting.
+	 */
+    public int take(ByteBuffer buf, long timeoutMs)
+	    throws InterruptedException {
+	int retValue = 0;
+	ByteBuffer tmpBuf = this.take(timeoutMs);
+	if (null != tmpBuf) {
+	    retValue = tmpBuf.flip().remaining();
+	    buf.put(tmpBuf);
+	    BufferPool.release(tmpBuf);
+	}
+	return retValue;
+    }
+
+    /**
+	 * Returns the next bundle contents buffer, as {@link #read()} does,
+	 * waiting for a bundle to arrive if none is available. The waiting
+	 * {@link Thread} is parked until the receive side queues a bundle, so
+	 * costs nothing while the Conduit is idle.
+	 *
+	 * @param timeoutMs
+	 *                The longest time to wait, in milliseconds.
+	 * @return The buffer with the next bundle's content, or null if none
+	 *         arrived in time or the Conduit closed.
+	 * @throws InterruptedException
+	 *                 if the {@link Thread}was interrupted while waiting.
+	 * @see #setBundleListener(BundleListener)
+	 */
+    public ByteBuffer take(long timeoutMs) throws InterruptedException {
+	return take(0, MAX_CHANNELS, timeoutMs);
+    }
+
+    /**
+	 * Returns the next bundle contents buffer received on a logical
+	 * channel, waiting for one to arrive as {@link #take(long)} does.
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @param timeoutMs
+	 *                The longest time to wait, in milliseconds.
+	 * @return The buffer with the channel's next bundle's content, or null
+	 *         if none arrived in time or the Conduit closed.
+	 * @throws InterruptedException
+	 *                 if the {@link Thread}was interrupted while waiting.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel.
+	 */
+    public ByteBuffer take(int channel, long timeoutMs)
+	    throws InterruptedException, IllegalArgumentException {
+	checkChannel(channel);
+	return take(channel, channel + 1, timeoutMs);
+    }
+
+    private ByteBuffer take(int from, int to, long timeoutMs)
+	    throws InterruptedException {
+	ByteBuffer retValue = poll(from, to);
+	if (null != retValue || timeoutMs <= 0) {
+	    return retValue;
+	}
+	long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+	this.takeLock.lockInterruptibly();
+	try {
+	    // announced before looking again, so that the receive side either
+	    // sees us waiting or has already queued what we find
+	    this.takers++;
+	    try {
+		while (null == (retValue = poll(from, to)) && nanos > 0
+			&& this.isOpen()) {
+		    nanos = this.bundleArrived.awaitNanos(nanos);
+		}
+	    } finally {
+		this.takers--;
+	    }
+	} finally {
+	    this.takeLock.unlock();
+	}
+	return retValue;
+    }
+
+    /**
+	 * @return The next bundle queued on the lowest numbered logical
+	 *         channel from <CODE>from</CODE> up to but not including
+	 *         <CODE>to</CODE> with one waiting, or <CODE>null</CODE>.
+	 */
+    private ByteBuffer poll(int from, int to) {
+	ByteBuffer retValue = null;
+	SpscQueue[] rb = this.readBufs;
+	if (to > rb.length) {
+	    to = rb.length;
+	}
+	for (int i = from; null == retValue && i < to; i++) {
+	    if (!rb[i].isEmpty()) {
+		synchronized (rb[i]) {
+		    retValue = (ByteBuffer) rb[i].poll();
+		}
+	    }
+	}
+	return retValue;
+    }
+
+    /**
+	 * @return The {@link SpscQueue}of bundles received on a logical
+	 *         channel, extending {@link #readBufs}if need be. Only called
+	 *         by the receive side.
+	 */
+    private SpscQueue readBufs(int channel) {
+	SpscQueue[] rb = this.readBufs;
+	if (channel >= rb.length) {
+	    SpscQueue[] nrb = new SpscQueue[channel + 1];
+	    System.arraycopy(rb, 0, nrb, 0, rb.length);
+	    for (int i = rb.length; i < nrb.length; i++) {
+		nrb[i] = new SpscQueue();
+	    }
+	    this.readBufs = nrb;
+	    rb = nrb;
+	}
+	return rb[channel];
+    }
+
+    /**
+	 * Wakes the {@link Thread}s waiting for a bundle, if any are.
+	 */
+    private void wakeTakers() {
+	if (this.takers > 0) {
+	    this.takeLock.lock();
+	    try {
+		this.bundleArrived.signalAll();
+	    } finally {
+		this.takeLock.unlock();
+	    }
+	}
+    }
+
+    /**
+	 * Attempts to parse out {@link Packet}s from the recvReadBuf and place
+	 * them into the input bundle queue. If a bundle is completed, hands it
+	 * to the {@link BundleListener}or queues it in {@link #readBufs}.
+	 *
+	 * @throws IOException
+	 */
+    public void internalRead() throws IOException {
+	this.recvLock.lock();
+	try {
+	    parsePackets();
+	} finally {
+	    this.recvLock.unlock();
+	}
+    }
+
+    /**
+	 * Does the work of {@link #internalRead()}. Must be called with
+	 * {@link #recvLock}held.
+	 *
+	 * @throws IOException
+	 *                 if a completed bundle does not inflate.
+	 */
+    private void parsePackets() throws IOException {
+	boolean gotOne = true;
+	boolean queued = false;
+	while (this.recvReadBuf.hasRemaining() && gotOne) {
+	    gotOne = false;
+	    Packet p = null;
+	    int pos = this.recvReadBuf.position();
+	    try {
+		p = this.receivePacket();
+	    } catch (IllegalArgumentException e) {
+		// bad header!
+		// TBD: handle bad datastream header
+		assert (log.throwing("com.InfoMontage.net.Conduit",
+			"internalRead()", e));
+		if (this.recvReadBuf.position() != pos) {
+		    // a corrupt Packet was skipped - it is NAKed for like a
+		    // lost one, and those after it are still good
+		    numCorruptPktsRcvd.add(1);
+		    gotOne = true;
+		}
+	    } catch (BufferUnderflowException e) {
+		// not enough data yet - the rest of the Packet will follow,
+		// and a bundle which stalls is NAKed when its timer expires
+		assert (log.finer("Partial packet: "
+			+ com.InfoMontage.util.Buffer.toString(recvReadBuf)));
+	    } catch (IOException e) {
+		// TODO Auto-generated catch block
+		assert (log.throwing("com.InfoMontage.net.Conduit",
+			"internalRead()", e));
+	    }
+	    if (null == p) {
+		// If buffer was null or not enough data yet for a Packet
+		// TBD: handle bad datastream
+		/*
+		 * throw new RuntimeException("Connection could not" + " receive
+		 * a valid Packet!\nbuf={len " + recvReadBuf.remaining() + "}" +
+		 * Buffer.toString(recvReadBuf));
+		 */
+	    } else {
+		gotOne = true;
+		assert (log.info("***Received packet: " + p.toString()));
+		// handle control packets
+		if (p.isControl()) {
+		    if (Packet.ACK_OF_ACK_PACKET_ID == p.pktID) {
+			receiveAckOfAck(p);
+		    } else if (Packet.ACK_PACKET_ID == p.pktID
+			    || Packet.NAK_PACKET_ID == p.pktID
+			    || Packet.OPTION_PACKET_ID == p.pktID) {
+			// these concern what we send
+			this.sendInbox.offer(p);
+		    } else {
+			assert (log.info("Ignoring unknown control packet "
+				+ p.toString()));
+		    }
+		} else {
+		    // see if we've completed a bundle yet
+		    ByteBuffer bb = this.queuePacket(p);
+		    if (null != bb) {
+			assert (log.info(" bundleBufLen=" + bb.position()));
+			int ch = channelOf(p.genID);
+			BundleListener bl = this.bundleListener;
+			if (null != bl) {
+			    bb.flip();
+			    bl.bundleReceived(this, ch, bb);
+			} else {
+			    readBufs(ch).offer(bb);
+			    queued = true;
+			}
+		    }
+		}
+	    }
 	}
-	if (c.isBlocking()) {
-	    throw new IllegalStateException("Attempt to create a Conduit using"
-		    + " a SelectableChannel in blocking mode!");
+	if (queued) {
+	    wakeTakers();
 	}
-	if (c.register(c.provider().openSelector(), c.validOps())
-		.isConnectable()) {
-	    throw new IllegalArgumentException(
-		    "Attempt to create a Conduit using a SelectableChannel that has"
-			    + " not completed it's connection!");
+    }
+
+    /**
+	 * Places a received {@link Packet}into its bundle in the input bundle
+	 * queue.
+	 *
+	 * @param pkt
+	 *                The {@link Packet}received.
+	 * @return The completed bundle, positioned at its end, if this
+	 *         {@link Packet}completed it; otherwise <CODE>null</CODE>.
+	 * @throws IOException
+	 *                 if a completed bundle does not inflate.
+	 */
+    private ByteBuffer queuePacket(Packet pkt) throws IOException {
+	ByteBuffer retValue = null;
+	boolean complete = false;
+	AckState as = (AckState) this.rcvAckStates.get(pkt.genID, 0);
+	if (null == as) {
+	    if ((pkt.genID & ((1L << CHANNEL_SHIFT) - 1)) != this.peerGen) {
+		assert (log.info("Dropping packet of unknown generation: " + pkt));
+		return null;
+	    }
+	    as = new AckState(this, pkt.genID);
+	    this.rcvAckStates.put(pkt.genID, 0, as);
 	}
-	/*
-	 * try { ((ByteChannel) c).write(ByteBuffer.allocate(0)); } catch
-	 * (NotYetConnectedException e) { throw (IllegalArgumentException) new
-	 * IllegalArgumentException( "Attempt to create a Conduit using a
-	 * ByteChannel that is not yet connected!") .initCause(e); }
-	 */// throw new IllegalArgumentException("Attempt to create a
-		// Conduit
-	// using"
-	// +" a SelectableChannel in blocking mode that has already
-	// registered"
-	// +" with a Selector!");
+	if (pkt.bndlID - as.cumAck > this.peerSendWindowBundles) {
+	    // beyond anything the other end may send, so forged or stale;
+	    // a genuine bundle is resent once the window reaches it
+	    assert (log.info("Dropping packet beyond the receive window: " + pkt));
+	    return null;
+	}
+	if (as.isComplete(pkt.bndlID)) {
+	    // a late duplicate of part of a completed bundle
+	    numDupPktsRcvd.add(1);
+	    assert (log.finer("Duplicate packet received: " + pkt));
+	    if (0 == pkt.pktID) {
+		// the sender is probing because it missed our Ack
+		as.ackPending = true;
+	    }
+	    return null;
+	}
+	InBndlQValue mqv = (InBndlQValue) this.inBndlQueues.get(pkt.genID,
+		pkt.bndlID);
+	if (null == mqv) {
+	    mqv = new InBndlQValue(this, pkt.genID, pkt.bndlID,
+		    this.segmentListener);
+	    this.inBndlQueues.put(pkt.genID, pkt.bndlID, mqv);
+	    FileSink fs = this.fileSinks[channelOf(pkt.genID)];
+	    if (null != fs && null == fs.bundle) {
+		attachSink(fs, channelOf(pkt.genID));
+		if (mqv.sink == fs) {
+		    mqv.streaming = true;
+		}
+	    }
+	    // the deadline is pushed back as each Packet arrives, and only
+	    // checked when the timer expires
+	    this.reactor.schedule(mqv, retransmitTimeoutMs());
+	}
+	if (!mqv.markReceived(pkt.pktID)) {
+	    // already received this packet ID!
+	    // TBD: verify same packet including data
+	    numDupPktsRcvd.add(1);
+	    assert (log.finer("Duplicate packet received: " + pkt));
+	} else {
+	    try {
+		complete = mqv.place(pkt);
+	    } catch (IllegalArgumentException e) {
+		// drop it, and it will be NAKed for when the bundle stalls
+		assert (log.throwing("com.InfoMontage.net.Conduit",
+			"queuePacket(Packet pkt = " + pkt + ")", e));
+		mqv.unmarkReceived(pkt.pktID);
+	    }
+	    mqv.retries = 0;
+	    mqv.setDeadline(retransmitTimeoutMs());
+	    if (complete) {
+		if (!mqv.streaming) {
+		    retValue = mqv.takeBundle();
+		    checkBundle(mqv, retValue);
+		    if (mqv.deflated) {
+			retValue = inflate(retValue);
+		    }
+		} else {
+		    checkBundle(mqv, null);
+		}
+		FileSink fs = mqv.sink;
+		if (null != fs) {
+		    if (null != retValue) {
+			// begun before the file was waiting for it
+			retValue.flip();
+			sinkSegment(fs, retValue);
+			retValue = null;
+		    }
+		    fs.complete = true;
+		    if (fs.waiting) {
+			this.fileReceived.signalAll();
+		    }
+		} else if (null != mqv.listener) {
+		    if (null != retValue) {
+			// delivered whole
+			retValue.flip();
+			deliverSegment(mqv, retValue);
+			BufferPool.release(retValue);
+			retValue = null;
+		    }
+		    if (!mqv.begun) {
+			mqv.listener.bundleBegun(this, channelOf(mqv.genID),
+				mqv.bndlID);
+		    }
+		    mqv.listener.bundleEnded(this, channelOf(mqv.genID),
+			    mqv.bndlID);
+		}
+		numBundlesRcvd.add(1);
+		// the Ack state now remembers the bundle is complete
+		this.inBndlQueues.remove(pkt.genID, pkt.bndlID);
+		this.reactor.cancel(mqv);
+		as.complete(pkt.bndlID);
+		as.ackPending = true;
+		as.confirmed = false;
+		as.retries = 0;
+		fs = this.fileSinks[channelOf(pkt.genID)];
+		if (null != fs && null == fs.bundle) {
+		    // a bundle passed over may now be the lowest
+		    attachSink(fs, channelOf(pkt.genID));
+		}
+	    }
+	}
+	return retValue;
+    }
+
+    /**
+	 * Checks a completed bundle against the checksum its header
+	 * {@link Packet}carries, if it carries one. Must be called with
+	 * {@link #recvLock}held.
+	 *
+	 * @param v
+	 *                The bundle.
+	 * @param bundle
+	 *                The bundle's content, positioned at its end, or
+	 *                <CODE>null</CODE> if it was streamed, in which case
+	 *                its checksum was computed as it went.
+	 * @throws IOException
+	 *                 if the bundle does not match its checksum; the
+	 *                 content is released to the {@link BufferPool}.
+	 */
+    private void checkBundle(InBndlQValue v, ByteBuffer bundle)
+	    throws IOException {
+	Checksum sum = v.bundleSum;
+	if (null != bundle) {
+	    sum = v.header.newBundleChecksum();
+	    if (null != sum) {
+		ByteBuffer d = bundle.duplicate();
+		d.flip();
+		sum.update(d);
+	    }
+	}
+	if (null != sum && !v.header.bundleChecksumMatches(sum)) {
+	    if (null != bundle) {
+		BufferPool.release(bundle);
+	    }
+	    throw new IOException("Bundle " + v.bndlID
+		    + " does not match its checksum!");
+	}
+    }
+
+    private Packet receivePacket() throws IllegalArgumentException,
+	    BufferUnderflowException, IOException {
+	Packet rp;
+	int numRead = 0;
+	// while (!this.hasInput()) {
+	// try {
+	// // This should not be necessary - should only be called when
+	// // some
+	// // data is available to read...
+	// Thread.sleep(20);
+	// } catch (InterruptedException e) {
+	// // TODO Auto-generated catch block
+	// e.printStackTrace();
 	// }
-	// if (c.isBlocking() && c.isRegistered()) {
-	// throw new IllegalArgumentException("Attempt to create a Conduit
-	// using"
-	// +" a SelectableChannel in blocking mode that has already
-	// registered"
-	// +" with a Selector!");
 	// }
-	this.channel = c;
-	this.byteChannel = (ByteChannel) c;
-	recvBuf = ByteBuffer.allocate(recvBufSize);
-	recvBuf.position(0);
-	recvBuf.limit(0);
-	sendBuf = ByteBuffer.allocate(sendBufSize);
-	sendBuf.position(0);
-	sendBuf.limit(0);
-	recvReadBuf = ByteBuffer.allocate(recvBufSize);
-	recvReadBuf.position(0);
-	recvReadBuf.limit(0);
-	readBufs = new Vector();
-	initNonChannel(cs, pf);
+	// receive();
+	numRead = recvReadBuf.position();
+	rp = packetFactory.valueOf(this.recvReadBuf);
+	numRead = recvReadBuf.position() - numRead;
+	assert (log.info("Extracted " + numRead + " bytes from recvReadBuf!"));
+	if (null != rp) {
+	    numPktsRcvd.add(1);
+	}
+	return rp;
     }
 
-    private void initNonChannel(Charset cs, PacketFactory pf) {
-	if (cs == null) {
-	    throw new NullPointerException("Attempt to create a Conduit using"
-		    + " a null Charset!");
-	}
-	if (!cs.canEncode()) {
-	    throw new UnsupportedCharsetException(
-		    "Attempt to"
-			    + " create a Conduit using a Charset that does not support encoding!");
+    /**
+	 * 'raw' write of characters directly to the {@link ByteChannel}
+	 */
+    public void write(char[] cbuf, int off, int len) throws IOException {
+	this.sendLock.lock();
+	try {
+	    if (this.sendBuf.capacity() < (2 * len)) {
+		this.sendBuf = ByteBuffer.allocate(2 * len);
+	    }
+	    this.sendBuf.clear();
+	    this.sendBuf.limit(this.sendBuf.capacity());
+	    CharBuffer cb = sendBuf.asCharBuffer();
+	    cb.put(cbuf, off, len);
+	    this.sendBuf.limit(2 * len);
+	    if (0 == this.sendVec.length) {
+		this.sendVec = new ByteBuffer[2];
+	    }
+	    this.sendVec[0] = this.sendBuf;
+	    try {
+		writeOrQueue(1, 1);
+	    } finally {
+		this.sendVec[0] = null;
+	    }
+	    this.sendBuf.clear();
+	    this.sendBuf.limit(0);
+	} finally {
+	    unlockSendSide();
 	}
-	this.charSet = cs;
-	this.setPacketFactory(pf);
-	this.lastPacketRecvTimes = new long[NUM_PACKET_RECV_TIMES];
-	for (int i = 0; i < NUM_PACKET_RECV_TIMES; i++) {
-	    this.lastPacketRecvTimes[i] = -1;
+    }
+
+    /**
+	 * Sends any control {@link Packet}s still waiting, and writes as much
+	 * of the outbound queue as the channel will take now. Does not wait
+	 * for the rest, which the reactor writes as the channel becomes
+	 * writable.
+	 *
+	 * @throws IOException
+	 */
+    public void flush() throws IOException {
+	this.sendLock.lock();
+	try {
+	    serviceSendSide();
+	    drainOutbound();
+	} finally {
+	    unlockSendSide();
 	}
-	this.recvTimesSum = NUM_PACKET_RECV_TIMES * expectedPacketLagMs;
-	addConduit(this);
     }
 
-    private static void addConduit(Conduit c) {
-	assert (log.gettingLock(Conduit.conduits));
-	synchronized (Conduit.conduits) {
-	    assert (log.gotLock(Conduit.conduits));
-	    Conduit.conduits.add(c);
-	    assert (log.info("Added a Conduit to list: had "
-		    + (Conduit.conduits.size() - 1)));
+    /**
+	 * Sends a bundle on the {@link #DEFAULT_CHANNEL default}logical
+	 * channel. If too much output is already queued, waits for the queue to
+	 * drain first, and if the send window is full, waits for bundles
+	 * already sent to be acknowledged.
+	 *
+	 * @param buf
+	 *                The bundle; its remaining content is sent.
+	 * @throws IOException
+	 *                 if the bundle could not be sent.
+	 * @see #setSendWindow(int, int)
+	 * @see #setWriteWatermarks(int, int)
+	 * @see #tryWrite(ByteBuffer)
+	 */
+    public void write(ByteBuffer buf) throws IOException,
+	    NullPointerException, IllegalArgumentException {
+	write(DEFAULT_CHANNEL, buf);
+    }
+
+    /**
+	 * Sends a bundle on a logical channel, as {@link #write(ByteBuffer)}
+	 * does. The bundle's {@link Packet}s are sent in turn with those of
+	 * the bundles waiting on other logical channels.
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @param buf
+	 *                The bundle; its remaining content is sent.
+	 * @throws IOException
+	 *                 if the bundle could not be sent.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel, or
+	 *                 the bundle is longer than
+	 *                 {@link #getMaxBundleLength()}.
+	 * @see #setChannelPriority(int, int, int)
+	 */
+    public void write(int channel, ByteBuffer buf) throws IOException,
+	    NullPointerException, IllegalArgumentException {
+	writeBundle(channel, buf, false);
+    }
+
+    /**
+	 * Sends part of a file as a bundle on the {@link #DEFAULT_CHANNEL
+	 * default}logical channel, as
+	 * {@link #sendFile(int, FileChannel, long, long)} does.
+	 */
+    public long sendFile(FileChannel src, long position, long count)
+	    throws IOException, IllegalArgumentException {
+	return sendFile(DEFAULT_CHANNEL, src, position, count);
+    }
+
+    /**
+	 * Sends part of a file as a bundle on a logical channel, without
+	 * copying it. The region is mapped, and the bundle's {@link Packet}
+	 * payloads are slices of the mapping, which the channel takes straight
+	 * from the file system cache; their headers are written around them,
+	 * so the bundle is acknowledged, and lost {@link Packet}s resent, as
+	 * for any other. Neither the bundle is deflated, nor is the region
+	 * copied to the heap. The file must not change until the bundle has
+	 * been acknowledged.
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @param src
+	 *                The file.
+	 * @param position
+	 *                Where in the file the region starts.
+	 * @param count
+	 *                The length of the region, at most
+	 *                {@link #getMaxBundleLength()}; longer files are sent
+	 *                as several bundles.
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 *                 if the file could not be mapped, or the bundle could
+	 *                 not be sent.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel, or
+	 *                 <CODE>count</CODE> is out of range.
+	 * @see #receiveTo(int, FileChannel, long)
+	 */
+    public long sendFile(int channel, FileChannel src, long position,
+	    long count) throws IOException, IllegalArgumentException {
+	if (count < 1 || count > getMaxBundleLength()) {
+	    throw new IllegalArgumentException("Attempt to send " + count
+		    + " bytes of a file as a bundle!");
 	}
-	assert (log.releasedLock(Conduit.conduits));
+	writeBundle(channel, src.map(FileChannel.MapMode.READ_ONLY, position,
+		count), true);
+	return count;
     }
 
-    static void removeConduit(Conduit c) {
-	assert (log.gettingLock(Conduit.conduits));
-	synchronized (Conduit.conduits) {
-	    assert (log.gotLock(Conduit.conduits));
-	    if (!Conduit.conduits.contains(c)) {
-		assert (log
-			.finer("Requesting removal of Conduit from list which is not IN list!"));
-	    } else {
-		assert (log.finest("Removing Conduit from list: had "
-			+ Conduit.conduits.size()));
-		assert (log.gettingLock(Conduit.lockForNextConduitToCheck));
-		synchronized (Conduit.lockForNextConduitToCheck) {
-		    assert (log.gotLock(Conduit.lockForNextConduitToCheck));
-		    if (Conduit.nextConduitToCheck > Conduit.conduits
-			    .indexOf(c)) {
-			Conduit.nextConduitToCheck--;
-		    }
-		    Conduit.conduits.remove(c);
-		    if (Conduit.nextConduitToCheck >= Conduit.conduits.size()) {
-			Conduit.nextConduitToCheck = 0;
-		    }
+    /**
+	 * Does the work of {@link #write(int, ByteBuffer)}and
+	 * {@link #sendFile(int, FileChannel, long, long)}.
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @param buf
+	 *                The bundle.
+	 * @param mapped
+	 *                Whether the bundle is a mapped file region, which is
+	 *                sliced rather than copied and never deflated.
+	 * @throws IOException
+	 *                 if the bundle could not be sent.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel, or
+	 *                 the bundle is longer than
+	 *                 {@link #getMaxBundleLength()}.
+	 */
+    private void writeBundle(int channel, ByteBuffer buf, boolean mapped)
+	    throws IOException, NullPointerException, IllegalArgumentException {
+	checkChannel(channel);
+	int len = buf.remaining();
+	this.sendLock.lock();
+	try {
+	    if (len > getMaxBundleLength()) {
+		throw new IllegalArgumentException("Attempt to write a bundle of "
+			+ len + " bytes, over the limit of "
+			+ getMaxBundleLength() + "!");
+	    }
+	    SendChannel sc = sendChannel(channel);
+	    awaitWritable(sc);
+	    awaitSendWindow(sc, len);
+	    long g = sc.genID;
+	    long b = sc.nextBndl++;
+	    if (this.outBndlQueues.containsKey(g, b)) {
+		throw new IOException("Duplicate bundle key generation error in"
+			+ "Conduit!\ncurrGen=" + g + ", currBndl=" + b);
+	    }
+	    ByteBuffer src = buf;
+	    int wireLen = len;
+	    if (!mapped && this.compression && this.peerCompression
+		    && len >= this.compressionThreshold) {
+		int zl = deflate(buf, len);
+		if (zl > 0) {
+		    src = ByteBuffer.wrap(this.deflateOut, 0, zl);
+		    buf.position(buf.limit());
+		    wireLen = zl;
+		    numBundlesDeflated.add(1);
+		    numBytesSavedByDeflate.add(len - zl);
 		}
-		assert (log.releasedLock(Conduit.lockForNextConduitToCheck));
 	    }
+	    adaptPacketSize(wireLen);
+	    // a deflated bundle is in a reused buffer, so must be copied
+	    Packet[] pa = sendPacketFactory().decompose(src,
+		    this.currPacketSize, g, b,
+		    (this.zeroCopyWrites || mapped) && src == buf);
+	    if (src != buf) {
+		pa[0].markDeflated();
+	    }
+	    BndlQValue mqv = new BndlQValue(this, g, b, new ArrayList(
+		    java.util.Arrays.asList(pa)), wireLen);
+	    outBndlQueues.put(g, b, mqv);
+	    this.unackedBytes += wireLen;
+	    sc.unackedBytes += wireLen;
+	    this.adaptPktsSent += pa.length;
+	    this.unsentBytes += wireLen;
+	    if (sc.pending.isEmpty()) {
+		activate(sc);
+	    }
+	    sc.pending.addLast(mqv);
+	    sendWaitingPackets();
+	} finally {
+	    unlockSendSide();
 	}
-	assert (log.releasedLock(Conduit.conduits));
     }
 
-    public PacketFactory getPacketFactory() {
-	return this.packetFactory;
+    /**
+	 * @return The logical channel a generation ID belongs to.
+	 */
+    private static int channelOf(long g) {
+	return (int) (g >>> CHANNEL_SHIFT);
     }
 
-    public void setPacketFactory(PacketFactory pf) {
-	if (pf == null) {
-	    pf = PacketFactory.getDefaultPacketFactory();
-	}
-	this.packetFactory = pf;
-	this.currPacketSize = new Short(pf.getDefaultPayloadSize());
-	int bs = pf.getHeartbeatPacket().minimumPacketLength();
-	if (this.currPacketSize.shortValue() > (Conduit.sendBufSize + bs)) {
-	    this.currPacketSize = new Short((short) (Conduit.sendBufSize - bs));
+    private static void checkChannel(int channel)
+	    throws IllegalArgumentException {
+	if (channel < 0 || channel >= MAX_CHANNELS) {
+	    throw new IllegalArgumentException("Attempt to use logical channel "
+		    + channel + " of a Conduit!");
 	}
-	if (this.currPacketSize.shortValue() > (Conduit.recvBufSize + bs)) {
-	    this.currPacketSize = new Short((short) (Conduit.recvBufSize - bs));
+    }
+
+    /**
+	 * @return The send side of a logical channel, created if it has not
+	 *         been used. Must be called with {@link #sendLock}held.
+	 */
+    private SendChannel sendChannel(int channel) {
+	SendChannel sc = this.sendChannels[channel];
+	if (null == sc) {
+	    sc = new SendChannel(this.currGen
+		    | ((long) channel << CHANNEL_SHIFT));
+	    this.sendChannels[channel] = sc;
 	}
+	return sc;
     }
 
-    synchronized protected void receive() throws IOException {
-	int p;
-	int l;
-	if (recvBuf.hasRemaining()) {
-	    p = recvBuf.position();
-	    l = recvBuf.limit();
-	    recvBuf.compact().position(0).limit(l - p);
-	} else {
-	    recvBuf.position(0).limit(0);
+    /**
+	 * Sets how a logical channel's bundles are scheduled against those of
+	 * the other logical channels. While bundles of a higher priority are
+	 * waiting to be sent, none of a lower priority are sent; channels of
+	 * equal priority take turns, each sending up to its weight in quanta
+	 * of payload in its turn. Every channel starts with priority zero and
+	 * weight one.
+	 *
+	 * @param channel
+	 *                The logical channel.
+	 * @param priority
+	 *                The channel's priority.
+	 * @param weight
+	 *                The channel's weight.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel, or
+	 *                 <CODE>weight</CODE> is less than one.
+	 */
+    public void setChannelPriority(int channel, int priority, int weight)
+	    throws IllegalArgumentException {
+	checkChannel(channel);
+	if (weight < 1) {
+	    throw new IllegalArgumentException("Attempt to set a weight of "
+		    + weight + " for logical channel " + channel + "!");
 	}
-	p = recvBuf.position();
-	l = recvBuf.limit();
-	recvBuf.limit(recvBuf.capacity()).position(l);
-	int got = this.byteChannel.read(recvBuf);
-	if (got < 0) {
-	    // end-of-stream: shutdown Conduit...
-	    if (this.isOpen()) {
-		this.close();
+	this.sendLock.lock();
+	try {
+	    SendChannel sc = sendChannel(channel);
+	    boolean active = this.activeChannels.remove(sc);
+	    sc.priority = priority;
+	    sc.weight = weight;
+	    if (active) {
+		activate(sc);
 	    }
+	} finally {
+	    unlockSendSide();
 	}
-	assert (log.info("Got " + got + " bytes!"));
-	recvBuf.limit(recvBuf.position()).position(p);
-	if (got > 0 || recvBuf.hasRemaining()) {
-	    if (recvReadBuf.hasRemaining()) {
-		p = recvReadBuf.position();
-		l = recvReadBuf.limit();
-		recvReadBuf.compact().position(0).limit(l - p);
-	    } else {
-		recvReadBuf.position(0).limit(0);
-	    }
-	    if ((this.recvReadBuf.capacity() - this.recvReadBuf.limit()) < recvBuf
-		    .remaining()) {
-		// TBD: add code for buffer pool readBufs
-		ByteBuffer tbb = ByteBuffer.allocate(this.recvReadBuf
-			.remaining()
-			+ recvBuf.remaining());
-		tbb.put(this.recvReadBuf);
-		tbb.limit(tbb.position()).position(0);
-		this.recvReadBuf = tbb;
-	    }
-	    p = recvReadBuf.position();
-	    l = recvReadBuf.limit();
-	    recvReadBuf.limit(recvReadBuf.capacity()).position(l);
-	    recvReadBuf.put(recvBuf);
-	    numBytesRcvd.add(recvReadBuf.position() - l);
-	    assert (log.info("Added " + (recvReadBuf.position() - l)
-		    + " bytes to RecvReadBuf!"));
-	    recvReadBuf.limit(recvReadBuf.position()).position(p);
-	    // Check if we have at least one full Packet in the recvReadBuf
-	    internalRead();
-	} else {
-	    // Nothing in receive buffer, and nothing came in on the wire
-	    // Are we waiting for anything? (Ack or Ack of Ack or rest of
-	    // bundle)
-	    if (!this.outBndlQueues.isEmpty() || !this.inBndlQueues.isEmpty()) {
-		// Have we timed out?
-		long td = (System.currentTimeMillis() - this.lastPacketRecvTimes[NUM_PACKET_RECV_TIMES - 1]);
-		if (this.lastPacketRecvTimes[NUM_PACKET_RECV_TIMES - 1] == -1) {
-		    this.lastPacketRecvTimes[NUM_PACKET_RECV_TIMES - 1] = td;
+    }
+
+    /**
+	 * @param channel
+	 *                The logical channel.
+	 * @return The logical channel's priority.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel.
+	 */
+    public int getChannelPriority(int channel) throws IllegalArgumentException {
+	checkChannel(channel);
+	this.sendLock.lock();
+	try {
+	    return sendChannel(channel).priority;
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * @param channel
+	 *                The logical channel.
+	 * @return The logical channel's weight.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>channel</CODE> is not a logical channel.
+	 */
+    public int getChannelWeight(int channel) throws IllegalArgumentException {
+	checkChannel(channel);
+	this.sendLock.lock();
+	try {
+	    return sendChannel(channel).weight;
+	} finally {
+	    unlockSendSide();
+	}
+    }
+
+    /**
+	 * Adds a logical channel to {@link #activeChannels}, after the
+	 * channels of the same or higher priority.
+	 */
+    private void activate(SendChannel sc) {
+	int i = 0;
+	while (i < this.activeChannels.size()
+		&& ((SendChannel) this.activeChannels.get(i)).priority >= sc.priority) {
+	    i++;
+	}
+	this.activeChannels.add(i, sc);
+    }
+
+    /**
+	 * Hands the {@link Packet}s of the bundles waiting on the logical
+	 * channels to the channel, for as long as it takes them without
+	 * anything being queued. Each pass gives every waiting channel of the
+	 * highest priority waiting a turn, adding its weight in quanta to what
+	 * it may send (deficit round robin). Must be called with
+	 * {@link #sendLock}held.
+	 *
+	 * @throws IOException
+	 *                 if the {@link Packet}s could not be sent.
+	 */
+    private void sendWaitingPackets() throws IOException {
+	while (!this.activeChannels.isEmpty() && this.outQHead == this.outQTail
+		&& this.isOpen()) {
+	    int top = ((SendChannel) this.activeChannels.get(0)).priority;
+	    int n = 1;
+	    while (n < this.activeChannels.size()
+		    && ((SendChannel) this.activeChannels.get(n)).priority == top) {
+		n++;
+	    }
+	    for (int k = n; k > 0 && this.outQHead == this.outQTail; k--) {
+		SendChannel sc = (SendChannel) this.activeChannels.remove(0);
+		sc.deficit += sc.weight * CHANNEL_QUANTUM;
+		takeTurn(sc);
+		if (sc.pending.isEmpty()) {
+		    sc.deficit = 0;
+		    n--;
 		} else {
-		    if (td > (LAG_TIMEOUT_MULTIPLE * expectedPacketLagMs)) {
-			if (++(this.numTimeouts) >= Conduit.MAX_TIMEOUTS_TIL_EXCEPTION) {
-			    if (td > Conduit.MIN_LAG_BEFORE_EXCEPTION) {
-				throw new RuntimeException("Conduit timed out!");
-			    }
-			}
-		    }
+		    // to the back of its priority
+		    this.activeChannels.add(n - 1, sc);
 		}
 	    }
 	}
+	updateWriteBlocked();
     }
 
-    synchronized public boolean hasInput() throws IOException {
-	return (null != this.readBufs && !this.readBufs.isEmpty());
+    /**
+	 * Sends as many of a logical channel's waiting {@link Packet}s as its
+	 * deficit allows, together with any control {@link Packet}s pending.
+	 * A bundle's deadline is set once the last of its {@link Packet}s has
+	 * been handed to the channel (or queued for it), so that the round
+	 * trip is timed from then, and a slow local send is not mistaken for
+	 * network lag. Must be called with {@link #sendLock}held.
+	 *
+	 * @param sc
+	 *                The logical channel.
+	 * @throws IOException
+	 *                 if the {@link Packet}s could not be sent.
+	 */
+    private void takeTurn(SendChannel sc) throws IOException {
+	int n = gatherControlPackets();
+	if (this.turnPkts.length < n) {
+	    this.turnPkts = new Packet[n << 1];
+	}
+	this.ctlPktList.toArray(this.turnPkts);
+	this.ctlPktList.clear();
+	while (!sc.pending.isEmpty()) {
+	    BndlQValue v = (BndlQValue) sc.pending.getFirst();
+	    Packet p = (Packet) v.packets.get(v.nextPkt);
+	    int l = p.payloadLength();
+	    if (l > sc.deficit) {
+		break;
+	    }
+	    sc.deficit -= l;
+	    this.unsentBytes -= l;
+	    if (n == this.turnPkts.length) {
+		Packet[] na = new Packet[n << 1];
+		System.arraycopy(this.turnPkts, 0, na, 0, n);
+		this.turnPkts = na;
+	    }
+	    this.turnPkts[n++] = p;
+	    if (++v.nextPkt == v.packets.size()) {
+		sc.pending.removeFirst();
+		this.turnBndls.add(v);
+	    }
+	}
+	try {
+	    if (n > 0) {
+		sendPackets(this.turnPkts, n);
+	    }
+	} finally {
+	    for (int i = 0; i < n; i++) {
+		this.turnPkts[i] = null;
+	    }
+	}
+	if (!this.turnBndls.isEmpty()) {
+	    long now = System.nanoTime();
+	    long rto = retransmitTimeoutMs();
+	    for (int i = 0; i < this.turnBndls.size(); i++) {
+		BndlQValue v = (BndlQValue) this.turnBndls.get(i);
+		v.sentNanos = now;
+		v.setDeadline(rto);
+		this.reactor.schedule(v, rto);
+	    }
+	    numBundlesSent.add(this.turnBndls.size());
+	    this.turnBndls.clear();
+	}
     }
 
-    synchronized public boolean hasRawInput() throws IOException {
-	return (null != this.recvReadBuf && this.recvReadBuf.hasRemaining());
+    /**
+	 * Asks the other end to resend some of a bundle's {@link Packet}s. The
+	 * NAK is handed to the send side, so this must be followed by
+	 * {@link #handOff()}.
+	 *
+	 * @param g
+	 *                The generation ID of the bundle.
+	 * @param m
+	 *                The bundle ID of the bundle.
+	 * @param ids
+	 *                The IDs of the {@link Packet}s to be resent.
+	 * @param n
+	 *                The number of IDs in <CODE>ids</CODE>.
+	 */
+    void sendNakPacket(long g, long m, int[] ids, int n) {
+	// Send Nak packet
+	ByteBuffer nb = ByteBuffer.allocate(4 * n);
+	for (int i = 0; i < n; i++) {
+	    nb.putInt(ids[i]);
+	}
+	nb.flip();
+	Packet nakPacket = sendPacketFactory().newPacket(g, m,
+		Packet.NAK_PACKET_ID, nb);
+	assert (log.info("Sending Nak packet"));
+	this.ctlOutbox.offer(nakPacket);
     }
 
     /**
-	 * 'raw' read of characters directly from the (buffering)
-	 * {@link InputStreamReader}
+	 * Resends the {@link Packet}s of a sent bundle listed in a NAK.
+	 *
+	 * @param nak
+	 *                The NAK {@link Packet}.
+	 * @throws IOException
+	 *                 if the {@link Packet}s could not be resent.
 	 */
-    synchronized public int read(char[] cbuf, int off, int len)
-	    throws IOException {
-	int retValue;
-	receive();
-	CharBuffer cb = recvReadBuf.asCharBuffer();
-	retValue = cb.remaining();
-	retValue = (len < retValue) ? len : retValue;
-	cb.get(cbuf, off, retValue);
-	this.recvReadBuf.position(recvReadBuf.position() + (2 * retValue));
-	return retValue;
+    private void resendPackets(Packet nak) throws IOException {
+	BndlQValue mqv = (BndlQValue) this.outBndlQueues.get(nak.genID,
+		nak.bndlID);
+	if (null == mqv) {
+	    // crossed with the Ack which finished the bundle
+	    assert (log.info("Ignoring Nak of finished bundle "
+		    + nak.genID + "/" + nak.bndlID));
+	    return;
+	}
+	ByteBuffer ids = nak.payloadView();
+	int n = (null == ids) ? 0 : ids.remaining() / 4;
+	Packet[] pa = new Packet[n];
+	int np = 0;
+	for (int i = 0; i < n; i++) {
+	    int id = ids.getInt();
+	    // those not yet sent in the first place will be in their turn
+	    if (id >= 0 && id < mqv.nextPkt) {
+		pa[np++] = (Packet) mqv.packets.get(id);
+	    }
+	}
+	assert (log.info("Nak of sent bundle " + nak.genID + "/" + nak.bndlID
+		+ ", resending " + np + " packets."));
+	sendPackets(pa, np);
+	numPktsResent.add(np);
+	this.adaptPktsResent += np;
+	mqv.resent = true;
+	mqv.retries = 0;
+	mqv.setDeadline(retransmitTimeoutMs());
     }
 
     /**
-	 * Places the next available bundle contents into the supplied buffer.
+	 * Sends a single {@link Packet}. Must be called with {@link #sendLock}
+	 * held, as must {@link #sendPackets(Packet[], int)}.
 	 *
-	 * @param buf
-	 *                The {@link ByteBuffer}to place the data in.
-	 * @return Number of bytes read into buffer.
+	 * @param p
+	 *                The {@link Packet}.
+	 * @throws IOException
 	 */
-    synchronized public int read(ByteBuffer buf) {
-	int retValue = 0;
-	if (!readBufs.isEmpty()) {
-	    ByteBuffer tmpBuf = this.read();
-	    retValue = tmpBuf.flip().remaining();
-	    buf.put(tmpBuf);
+    void sendPacket(Packet p) throws IOException {
+	assert (log.info("Sending packet: " + p.toString()));
+	this.ctlPkts[0] = p;
+	try {
+	    sendPackets(this.ctlPkts, 1);
+	} finally {
+	    this.ctlPkts[0] = null;
 	}
-	return retValue;
     }
 
     /**
-	 * Returns the next available bundle contents buffer.
+	 * Sends a series of {@link Packet}s with as few system calls as
+	 * possible. Every {@link Packet}'s header is encoded into a reusable
+	 * buffer, and headers and payloads are handed to the channel together
+	 * through a reusable scatter array. For a stream channel the whole
+	 * series goes out in one gathering write (repeated only if the kernel
+	 * accepts part of it); for a datagram channel each {@link Packet}is
+	 * gathered into its own datagram. Whatever the channel does not take
+	 * is queued, so this never blocks.
 	 *
-	 * @return The buffer with the next available bundle's content, or null
-	 *         if no bundles are available.
+	 * @param pa
+	 *                The {@link Packet}s to send.
+	 * @param n
+	 *                The number of {@link Packet}s from the start of
+	 *                <CODE>pa</CODE> to send.
+	 * @throws IOException
 	 */
-    synchronized public ByteBuffer read() {
-	ByteBuffer retValue = null;
-	if (!readBufs.isEmpty()) {
-	    retValue = (ByteBuffer) readBufs.remove(0);
+    void sendPackets(Packet[] pa, int n) throws IOException {
+	int hl = 0;
+	for (int i = 0; i < n; i++) {
+	    hl += pa[i].metaDataLength();
+	}
+	if (null == this.sendHdrBuf || this.sendHdrBuf.capacity() < hl) {
+	    this.sendHdrBuf = ByteBuffer.allocate(hl);
+	    this.sendHdrViews = new ByteBuffer[this.sendHdrViews.length];
+	}
+	if (this.sendHdrViews.length < n) {
+	    ByteBuffer[] nhv = new ByteBuffer[n];
+	    System.arraycopy(this.sendHdrViews, 0, nhv, 0,
+		    this.sendHdrViews.length);
+	    this.sendHdrViews = nhv;
+	    this.sendVec = new ByteBuffer[2 * n];
+	}
+	this.sendHdrBuf.clear();
+	for (int i = 0; i < n; i++) {
+	    int hp = this.sendHdrBuf.position();
+	    pa[i].appendPacketHeader(this.sendHdrBuf);
+	    ByteBuffer hv = this.sendHdrViews[i];
+	    if (null == hv) {
+		hv = this.sendHdrBuf.duplicate();
+		this.sendHdrViews[i] = hv;
+	    }
+	    hv.limit(this.sendHdrBuf.position()).position(hp);
+	    ByteBuffer pb = pa[i].payloadBuffer();
+	    this.sendVec[2 * i] = hv;
+	    this.sendVec[(2 * i) + 1] = (null == pb) ? EMPTY_PAYLOAD : pb;
+	}
+	try {
+	    writeOrQueue(2 * n, 2);
+	} finally {
+	    numPktsSent.add(n);
+	    for (int i = 0; i < 2 * n; i++) {
+		this.sendVec[i] = null;
+	    }
 	}
-	return retValue;
     }
 
     /**
-	 * Attempts to parse out {@link Packet}s from the recvReadBuf and place
-	 * them into the input bundle queue. If a bundle is completed, places it
-	 * into the readBufs array.
+	 * Writes the first entries of {@link #sendVec}to the channel, as far
+	 * as it will take them without blocking, and queues the rest. Nothing
+	 * is written directly while earlier output is still queued. Entries
+	 * are grouped; on a datagram channel each group is one datagram, and
+	 * the first entry of each group is a reused buffer which is copied if
+	 * it must be queued, while the others are left alone until written.
 	 *
+	 * @param len
+	 *                The number of entries to write.
+	 * @param group
+	 *                The number of entries in each group.
 	 * @throws IOException
 	 */
-    synchronized public void internalRead() throws IOException {
-	int bndlLen = 0;
-	int i;
-	long newExpectedPacketLagMs;
-	boolean gotOne = true;
-	while (this.hasRawInput() && gotOne) {
-	    gotOne = false;
-	    Packet p = null;
-	    try {
-		p = this.receivePacket();
-	    } catch (IllegalArgumentException e) {
-		// bad header!
-		// TBD: handle bad datastream header
-		assert (log.throwing("com.InfoMontage.net.Conduit",
-			"internalRead()", e));
-	    } catch (BufferUnderflowException e) {
-		// not enough data! Have we timed out?
-		if ((System.currentTimeMillis() - this.lastPacketRecvTimes[NUM_PACKET_RECV_TIMES - 1]) > (LAG_TIMEOUT_MULTIPLE * expectedPacketLagMs)) {
-		    // until we do resend requests, handle as timeout only
-		    if (++this.numTimeouts >= Conduit.MAX_TIMEOUTS_TIL_EXCEPTION) {
-			throw new RuntimeException("Conduit timed out!");
-		    }
-		    // We might have some metadata that we could use
-		    // to request a resend?
-		    // TBD: request resend if enough metadata present
-		    // not enough metadata, and we've timed out...
-		    // TBD: handle timeout with partial packet
-		    assert (log
-			    .info("Timeout with partial packet!n   Partial data="
-				    + com.InfoMontage.util.Buffer
-					    .toString(recvReadBuf)));
+    private void writeOrQueue(int len, int group) throws IOException {
+	boolean dgram = (this.channel instanceof DatagramChannel);
+	if (this.outQHead != this.outQTail) {
+	    drainOutbound();
+	}
+	int i = 0;
+	if (this.outQHead == this.outQTail) {
+	    if (dgram) {
+		// a datagram is sent whole or not at all
+		while (i < len && writeVec(this.sendVec, i, group) > 0) {
+		    i += group;
 		}
-	    } catch (IOException e) {
-		// TODO Auto-generated catch block
-		assert (log.throwing("com.InfoMontage.net.Conduit",
-			"internalRead()", e));
-	    }
-	    if (null == p) {
-		// If buffer was null or not enough data yet for a Packet
-		// TBD: handle bad datastream
-		/*
-		 * throw new RuntimeException("Connection could not" + " receive
-		 * a valid Packet!\nbuf={len " + recvReadBuf.remaining() + "}" +
-		 * Buffer.toString(recvReadBuf));
-		 */
 	    } else {
-		gotOne = true;
-		assert (log.info("***Received packet: " + p.toString()));
-		this.numTimeouts = 0;
-		// update expected packet lag time
-		this.recvTimesSum = 0;
-		this.recvTimeDivisor = 0;
-		for (i = NUM_PACKET_RECV_TIMES - 2; (i > 0)
-			&& (lastPacketRecvTimes[i] != -1); i--) {
-		    this.recvTimesSum += (lastPacketRecvTimes[i + 1] - lastPacketRecvTimes[i]);
-		    this.recvTimeDivisor++;
-		}
-		for (i = 1; i < NUM_PACKET_RECV_TIMES; i++) {
-		    lastPacketRecvTimes[i - 1] = lastPacketRecvTimes[i];
-		}
-		lastPacketRecvTimes[NUM_PACKET_RECV_TIMES - 1] = System
-			.currentTimeMillis();
-		newExpectedPacketLagMs = (this.recvTimesSum == 0) ? this.expectedPacketLagMs
-			: this.recvTimesSum / this.recvTimeDivisor;
-		expectedPacketLagMsDelta = this.expectedPacketLagMs
-			- newExpectedPacketLagMs;
-		this.expectedPacketLagMs = newExpectedPacketLagMs;
-		// handle Ack and Nak packets
-		if (p.pktID == 0 && p.genID != 0 && p.bndlID != 0
-			&& p.len < (short) 1) {
-		    // handle Ack packets
-		    if (p.len == (short) 0) {
-			// Is it an Ack for something sent, or an Ack of
-			// an
-			// Ack?
-			BndlQKey mqk = new BndlQKey(p.genID, p.bndlID);
-			if (this.outBndlQueues.containsKey(mqk)) {
-			    // Ack the Ack and remove from queue
-			    // TBD: validate removable!
-			    assert (log.info("Packet is Ack of sent bundle "
-				    + mqk.toString() + ", sending Ack of Ack."));
-			    sendAckPacket(p.genID, p.bndlID);
-			    this.outBndlQueues.remove(mqk);
-			    assert (log.info(outBndlQueues.size()
-				    + " entries left in sent queue."));
-			} else if (this.inBndlQueues.containsKey(mqk)) {
-			    // Remove from queue!
-			    // TBD: validate removable!
-			    assert (log
-				    .info("Packet is Ack of Ack of received bundle "
-					    + mqk.toString()));
-			    this.inBndlQueues.remove(mqk);
-			    assert (log.info(inBndlQueues.size()
-				    + " entries left in received queue."));
-			} else {
-			    // TBD: what to do if we got an Ack for
-			    // something
-			    // we
-			    // did't send
-			}
-		    } else { // handle Nak packets
-			// TBD: Nak means...
-		    }
-		} else {
-		    // ByteBuffer tbb = ByteBuffer.allocate(recvReadBuf
-		    // .capacity());
-		    BndlQKey bqk = new BndlQKey(p.genID, p.bndlID);
-		    int bl = 0;
-		    if (inBndlQueues.containsKey(bqk)) {
-			List pa = ((BndlQValue) inBndlQueues.get(bqk)).packets;
-			Packet hp = (Packet) pa.get(0);
-			if (null != hp) {
-			    Packet tp = null;
-			    for (int j = 1; j <= hp.len; j++) {
-				tp = (Packet) pa.get(j);
-				if (null != tp) {
-				    bl += tp.len;
-				} else {
-				    if (j == p.pktID) {
-					bl += p.len;
-				    } else {
-					bl = 0;
-					break;
-				    }
-				}
-			    }
-			}
+		while (i < len) {
+		    long nw = writeVec(this.sendVec, i, len - i);
+		    while (i < len && !this.sendVec[i].hasRemaining()) {
+			i++;
 		    }
-		    ByteBuffer tbb = (bl == 0) ? null : ByteBuffer.allocate(bl);
-		    // see if we've completed a bundle yet
-		    bndlLen = this.queuePacket(p, tbb);
-		    if (bndlLen > 0) {
-			readBufs.add(tbb);
+		    if (0 == nw) {
+			break;
 		    }
-		    assert (log.info(" bundleBufLen=" + bndlLen));
 		}
 	    }
 	}
-    }
-
-    private int queuePacket(Packet pkt, ByteBuffer buf)
-	    throws java.nio.BufferOverflowException {
-	int retValue = 0;
-	boolean foundInQ = false;
-	boolean complete = false;
-	// TBD: validate genID and renegotiate protocols if necessary
-	Conduit.BndlQKey mqk = new Conduit.BndlQKey(pkt.genID, pkt.bndlID);
-	ArrayList pal;
-	BndlQValue mqv;
-	if (this.inBndlQueues.containsKey(mqk)) {
-	    foundInQ = true;
-	    mqv = (BndlQValue) this.inBndlQueues.get(mqk);
-	    pal = mqv.packets;
-	} else {
-	    int cap = (pkt.pktID == 0) ? pkt.len + 1 : ((pkt.pktID < 6) ? 6
-		    : pkt.pktID + 1);
-	    pal = new ArrayList(cap);
-	    for (int i = 0; i < cap; ++i) {
-		pal.add(null);
-	    }
-	    mqv = new BndlQValue(pal);
-	    mqv.setExpectedCompletion(expectedPacketLagMs);
-	}
-	if (pal.size() <= pkt.pktID) {
-	    mqv.packetsLeftToRecv += (pkt.pktID + 1 - pal.size());
-	    mqv.setExpectedCompletion(expectedPacketLagMs);
-	    pal.ensureCapacity(pkt.pktID + 1);
-	    for (int i = pal.size(); i <= pkt.pktID; ++i) {
-		pal.add(null);
-	    }
+	if (i >= len) {
+	    return;
 	}
-	if (pal.get(pkt.pktID) != null) {
-	    // already received this packet ID!
-	    // TBD: verify same packet including data
-	    // TBD: increment duplicate packet count
-	} else {
-	    pal.set(pkt.pktID, pkt);
-	    if (!foundInQ) {
-		this.inBndlQueues.put(mqk, mqv);
-	    }
-	}
-	Packet h = (Packet) pal.get(0);
-	if (h != null) {
-	    if (pal.size() <= h.len) {
-		mqv.packetsLeftToRecv += (h.len + 1 - pal.size());
-		mqv.setExpectedCompletion(expectedPacketLagMs);
-		pal.ensureCapacity(h.len + 1);
-		for (int i = pal.size(); i <= h.len; ++i) {
-		    pal.add(null);
+	boolean wasEmpty = (this.outQHead == this.outQTail);
+	for (; i < len; i++) {
+	    ByteBuffer b = this.sendVec[i];
+	    if (dgram && 0 == (i % group)) {
+		int dl = 0;
+		for (int k = i; k < i + group; k++) {
+		    dl += this.sendVec[k].remaining();
 		}
-	    } else {
-		complete = true;
-		for (int i = 1; i <= h.len && complete; ++i) {
-		    if (pal.get(i) == null) {
-			complete = false;
-		    }
+		ByteBuffer d = BufferPool.acquire(dl);
+		for (int k = i; k < i + group; k++) {
+		    d.put(this.sendVec[k].duplicate());
 		}
-		if (complete) {
-		    mqv.recvComplete = true;
-		    ByteBuffer m = null;
-		    try {
-			Packet[] pa = new Packet[h.len + 1];
-			pal.toArray(pa);
-			m = this.packetFactory.recombine(pa);
-		    } catch (IllegalArgumentException e) {
-			// TBD: handle invalid packet list - request resend
-			// m=null;
-			// inBndlQueues.remove(mqk);
-			// sendNakPacket(h);
-		    } finally {
-			if (m != null) {
-			    try {
-				assert (log
-					.info("Sending Ack of received bundle "
-						+ mqk.toString()));
-				sendAckPacket(h.genID, h.bndlID);
-				mqv.ackSent = true;
-				mqv.setExpectedCompletion(expectedPacketLagMs,
-					1);
-			    } catch (IOException e) {
-				// TODO handle inability to send Ack
-				assert (log.throwing(
-					"com.InfoMontage.net.Conduit",
-					"queuePacket(Packet pkt = " + pkt
-						+ ", ByteBuffer buf = " + buf
-						+ ")", e));
-			    }
-			    retValue = m.remaining();
-			    if (retValue > buf.remaining()) {
-				throw new BufferOverflowException();
-			    } else {
-				numBundlesRcvd.add(1);
-				buf.put(m);
-			    }
-			    // will remove from queue when receive Ack of
-			    // Ack
-			    // or timeout while waiting for Ack of Ack
-			    // this.inBndlQueues.remove(mqk);
-			}
-		    }
+		d.flip();
+		enqueue(d, true);
+		i += group - 1;
+	    } else if (b.hasRemaining()) {
+		if (0 == (i % group)) {
+		    ByteBuffer c = BufferPool.acquire(b.remaining());
+		    c.put(b.duplicate());
+		    c.flip();
+		    enqueue(c, true);
+		} else {
+		    enqueue(b.duplicate(), false);
 		}
 	    }
 	}
-	// Check for bundle receive timeout
-	if (!complete && foundInQ) {
-	    if (System.currentTimeMillis() > (mqv.expectedCompletion + (Conduit.LAG_TIMEOUT_MULTIPLE
-		    * Conduit.MAX_TIMEOUTS_TIL_EXCEPTION * this.expectedPacketLagMs))) {
-		// TBD: request resend
-		throw new RuntimeException("Conduit timed out!");
-	    }
+	assert (log.finer("Channel full, " + this.queuedBytes
+		+ " bytes queued."));
+	updateWriteBlocked();
+	if (wasEmpty) {
+	    this.reactor.requestWrite(this);
 	}
-	return retValue;
     }
 
-    private Packet receivePacket() throws IllegalArgumentException,
-	    BufferUnderflowException, IOException {
-	Packet rp;
-	int numRead = 0;
-	// while (!this.hasInput()) {
-	// try {
-	// // This should not be necessary - should only be called when
-	// // some
-	// // data is available to read...
-	// Thread.sleep(20);
-	// } catch (InterruptedException e) {
-	// // TODO Auto-generated catch block
-	// e.printStackTrace();
-	// }
-	// }
-	// receive();
-	numRead = recvReadBuf.position();
-	rp = packetFactory.valueOf(this.recvReadBuf);
-	numRead = recvReadBuf.position() - numRead;
-	assert (log.info("Extracted " + numRead + " bytes from recvReadBuf!"));
-	if (null != rp) {
-	    numPktsRcvd.add(1);
+    /**
+	 * Makes one write of a range of buffers to the channel.
+	 *
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 */
+    private long writeVec(ByteBuffer[] v, int off, int len)
+	    throws IOException {
+	long nw;
+	if (this.byteChannel instanceof GatheringByteChannel) {
+	    nw = ((GatheringByteChannel) this.byteChannel).write(v, off, len);
+	} else {
+	    nw = this.byteChannel.write(v[off]);
 	}
-	return rp;
+	numBytesSent.add(nw);
+	assert (log.finest("Sent " + nw + " bytes."));
+	return nw;
     }
 
     /**
-	 * 'raw' write of characters directly to the {@link ByteChannel}
+	 * Adds a buffer to the end of {@link #outQ}.
+	 *
+	 * @param b
+	 *                The buffer.
+	 * @param pooled
+	 *                Whether the buffer came from the {@link BufferPool}.
 	 */
-    synchronized public void write(char[] cbuf, int off, int len)
-	    throws IOException {
-	if (this.sendBuf.capacity() < (2 * len)) {
-	    this.sendBuf = ByteBuffer.allocate(2 * len);
+    private void enqueue(ByteBuffer b, boolean pooled) {
+	if (this.outQTail == this.outQ.length) {
+	    int n = this.outQTail - this.outQHead;
+	    ByteBuffer[] nq = this.outQ;
+	    boolean[] np = this.outQPooled;
+	    if (n > (this.outQ.length >> 1)) {
+		nq = new ByteBuffer[this.outQ.length << 1];
+		np = new boolean[nq.length];
+	    }
+	    System.arraycopy(this.outQ, this.outQHead, nq, 0, n);
+	    System.arraycopy(this.outQPooled, this.outQHead, np, 0, n);
+	    if (nq == this.outQ) {
+		java.util.Arrays.fill(nq, n, this.outQTail, null);
+	    }
+	    this.outQ = nq;
+	    this.outQPooled = np;
+	    this.outQHead = 0;
+	    this.outQTail = n;
 	}
-	this.sendBuf.clear();
-	this.sendBuf.limit(this.sendBuf.capacity());
-	CharBuffer cb = sendBuf.asCharBuffer();
-	cb.put(cbuf, off, len);
-	this.sendBuf.limit(2 * len);
-	do {
-	    numBytesSent.add(this.byteChannel.write(this.sendBuf));
-	} while (this.sendBuf.hasRemaining());
-	this.sendBuf.clear();
-	this.sendBuf.limit(0);
+	this.outQ[this.outQTail] = b;
+	this.outQPooled[this.outQTail] = pooled;
+	this.outQTail++;
+	this.queuedBytes += b.remaining();
     }
 
     /**
-	 * Flushes the output buffered with the
-	 * {@link Conduit#write(char[],int,int)}method. This method does
-	 * nothing (other than synchronize), as the output will always have been
-	 * flushed as part of the call to {@link Conduit#write(char[],int,int)}.
-	 *
-	 * TBD: implement flush when Conduit buffers writes
+	 * Writes as much of {@link #outQ}as the channel will take without
+	 * blocking. Must be called with {@link #sendLock}held.
 	 *
 	 * @throws IOException
 	 */
-    synchronized public void flush() throws IOException {/* nothin' to do */
-    }
-
-    synchronized public void write(ByteBuffer buf) throws IOException,
-	    NullPointerException, IllegalArgumentException {
-	// TBD: add code for buffer pool writeBufs and writer monitor thread
-	Conduit.BndlQKey mqk;
-	Packet[] pa;
-	assert (log.gettingLock(this.currGen));
-	synchronized (this.currGen) {
-	    assert (log.gotLock(this.currGen));
-	    assert (log.gettingLock(this.currBndl));
-	    synchronized (this.currBndl) {
-		assert (log.gotLock(this.currBndl));
-		mqk = new Conduit.BndlQKey(this.currGen.intValue(),
-			this.currBndl.intValue());
-		this.currBndl = new Long(this.currBndl.longValue() + 1);
-		if (this.outBndlQueues.containsKey(mqk)) {
-		    throw new IOException(
-			    "Duplicate bundle key generation error in"
-				    + "Conduit!\ncurrGen=" + this.currGen
-				    + ", currBndl="
-				    + (this.currBndl.longValue() - 1));
+    private void drainOutbound() throws IOException {
+	boolean dgram = (this.channel instanceof DatagramChannel);
+	int h = this.outQHead;
+	int t = this.outQTail;
+	long sent = 0;
+	while (h < t) {
+	    long nw = writeVec(this.outQ, h, dgram ? 1 : t - h);
+	    sent += nw;
+	    while (h < t && !this.outQ[h].hasRemaining()) {
+		if (this.outQPooled[h]) {
+		    BufferPool.release(this.outQ[h]);
 		}
+		this.outQ[h++] = null;
 	    }
-	    assert (log.releasedLock(this.currBndl));
-	}
-	assert (log.releasedLock(this.currGen));
-	assert (log.gettingLock(this.currPacketSize));
-	synchronized (this.currPacketSize) {
-	    assert (log.gotLock(this.currPacketSize));
-	    pa = this.packetFactory.decompose(buf, this.currPacketSize
-		    .shortValue(), mqk.GENERATION_ID, mqk.BNDL_ID);
-	    outBndlQueues.put(mqk, new BndlQValue(new ArrayList(
-		    java.util.Arrays.asList(pa))));
-	    ByteBuffer bb = null;
-	    for (int i = 0; i < pa.length; ++i) {
-		assert (log.finest("Sending packet:" + pa[i].toString()));
-		sendPacket(pa[i]);
-		assert (log.finest("Sent " + pa[i].byteLength() + " bytes."));
+	    if (0 == nw) {
+		break;
 	    }
-	    numBundlesSent.add(1);
 	}
-	assert (log.releasedLock(this.currPacketSize));
+	if (h == t) {
+	    h = 0;
+	    t = 0;
+	}
+	this.outQHead = h;
+	this.outQTail = t;
+	this.queuedBytes -= (int) sent;
+	updateWriteBlocked();
     }
 
-    void sendAckPacket(long g, long m) throws IOException {
-	// Send Ack packet
-	Packet ackPacket = this.packetFactory.newPacket(g, m, 0, (short) 0,
-		null);
-	assert (log.info("Sending Ack packet"));
-	try {
-	    sendPacket(ackPacket);
-	} catch (IOException e) {
-	    // TBD: handle inability to send Ack packet
-	    throw e;
-	} finally {
-	    assert (log.info("Sent Ack packet"));
+    /**
+	 * Updates {@link #writeBlocked}from the amount queued, waking writers
+	 * waiting for the queue to drain. Must be called with
+	 * {@link #sendLock}held.
+	 */
+    private void updateWriteBlocked() {
+	int q = this.queuedBytes + this.unsentBytes;
+	if (q > this.writeHighWatermark) {
+	    this.writeBlocked = true;
+	} else if (this.writeBlocked && q <= this.writeLowWatermark) {
+	    this.writeBlocked = false;
+	    this.outboundDrained.signalAll();
 	}
     }
 
-    void sendNakPacket(long g, long m) throws IOException {
-	// Send Nak packet
-	Packet nakPacket = this.packetFactory.newPacket(g, m, 0, (short) -1,
-		null);
-	assert (log.info("Sending Nak packet"));
+    /**
+	 * Called by the reactor when the channel has become writable, to write
+	 * out what has been queued for it.
+	 *
+	 * @return <CODE>true</CODE> if output is still queued, so the reactor
+	 *         should go on watching for the channel to be writable.
+	 * @throws IOException
+	 *                 if the channel could not be written.
+	 */
+    boolean writeReady() throws IOException {
+	this.sendLock.lock();
 	try {
-	    sendPacket(nakPacket);
-	} catch (IOException e) {
-	    // TBD: handle inability to send Nak packet
-	    throw e;
+	    drainOutbound();
 	} finally {
-	    assert (log.info("Sent Nak packet"));
+	    unlockSendSide();
 	}
+	return hasQueuedOutput();
     }
 
-    void sendPacket(Packet p) throws IOException {
-	assert (log.info("Sending packet: " + p.toString()));
-	int nw = 0;
-	try {
-	    nw = this.byteChannel.write(p.toByteBuffer());
-	} catch (IOException e) {
-	    // TBD: handle inability to send packet
-	    throw e;
-	} finally {
-	    numBytesSent.add(nw);
-	    assert (log.info("Sent " + nw + " bytes."));
-	    // TBD: update statistics
-	    numPktsSent.add(1);
-	}
+    /**
+	 * @return <CODE>true</CODE> if output is queued waiting for the
+	 *         channel.
+	 */
+    boolean hasQueuedOutput() {
+	return (this.queuedBytes > 0);
     }
 
     public int validOps() {
@@ -1340,43 +4632,218 @@ public final class Conduit extends AbstractSelectableChannel {
     }
 
     protected void implCloseSelectableChannel() throws IOException {
+	// Closing the channel also cancels its key with the reactor.
 	channel.close();
-	removeConduit(this);
+	// nothing more will arrive for those waiting
+	this.takeLock.lock();
+	try {
+	    this.bundleArrived.signalAll();
+	} finally {
+	    this.takeLock.unlock();
+	}
+	if (null != this.reactor) {
+	    ConduitReactor.release(this.reactor);
+	}
+	// Forget the deadlines of the bundles in flight. A side busy on
+	// another Thread is left alone: its deadlines are ignored once they
+	// pass, since the Conduit is closed.
+	if (this.recvLock.tryLock()) {
+	    try {
+		for (int i = this.inBndlQueues.first(); i >= 0; i = this.inBndlQueues
+			.next(i)) {
+		    this.reactor.cancel((TimerWheel.Timer) this.inBndlQueues
+			    .valueAt(i));
+		}
+		for (int i = this.rcvAckStates.first(); i >= 0; i = this.rcvAckStates
+			.next(i)) {
+		    this.reactor.cancel((TimerWheel.Timer) this.rcvAckStates
+			    .valueAt(i));
+		}
+		if (null != this.inflater) {
+		    this.inflater.end();
+		    this.inflater = null;
+		}
+	    } finally {
+		this.recvLock.unlock();
+	    }
+	}
+	if (this.sendLock.tryLock()) {
+	    try {
+		for (int i = this.outBndlQueues.first(); i >= 0; i = this.outBndlQueues
+			.next(i)) {
+		    this.reactor.cancel((TimerWheel.Timer) this.outBndlQueues
+			    .valueAt(i));
+		}
+		// drop the output the channel never took
+		for (int i = this.outQHead; i < this.outQTail; i++) {
+		    if (this.outQPooled[i]) {
+			BufferPool.release(this.outQ[i]);
+		    }
+		    this.outQ[i] = null;
+		}
+		this.outQHead = 0;
+		this.outQTail = 0;
+		this.queuedBytes = 0;
+		this.writeBlocked = false;
+		if (null != this.deflater) {
+		    this.deflater.end();
+		    this.deflater = null;
+		}
+		// wake any writers waiting on the send window or the queue
+		this.sendWindowOpened.signalAll();
+		this.outboundDrained.signalAll();
+	    } finally {
+		this.sendLock.unlock();
+	    }
+	}
     }
 
     protected void implConfigureBlocking(boolean block) throws IOException {
 	throw new UnsupportedOperationException();
     }
 
-    synchronized public BigInteger getBytesRcvd() {
+    public BigInteger getBytesRcvd() {
 	return numBytesRcvd.get();
     }
 
-    synchronized public BigInteger getBytesSent() {
+    /**
+	 * @return The number of bytes received, read without allocating; exact
+	 *         while it fits in a <CODE>long</CODE>.
+	 */
+    public long getBytesRcvdLong() {
+	return numBytesRcvd.longValue();
+    }
+
+    public BigInteger getBytesSent() {
 	return numBytesSent.get();
     }
 
-    synchronized public BigInteger getPktsRcvd() {
+    /**
+	 * @return The number of bytes sent, read without allocating; exact
+	 *         while it fits in a <CODE>long</CODE>.
+	 */
+    public long getBytesSentLong() {
+	return numBytesSent.longValue();
+    }
+
+    public BigInteger getPktsRcvd() {
 	return numPktsRcvd.get();
     }
 
-    synchronized public BigInteger getPktsSent() {
+    /**
+	 * @return The number of Packets received, read without allocating;
+	 *         exact while it fits in a <CODE>long</CODE>.
+	 */
+    public long getPktsRcvdLong() {
+	return numPktsRcvd.longValue();
+    }
+
+    public BigInteger getPktsSent() {
 	return numPktsSent.get();
     }
 
-    synchronized public BigInteger getBundlesRcvd() {
+    /**
+	 * @return The number of Packets sent, read without allocating; exact
+	 *         while it fits in a <CODE>long</CODE>.
+	 */
+    public long getPktsSentLong() {
+	return numPktsSent.longValue();
+    }
+
+    public BigInteger getBundlesRcvd() {
 	return numBundlesRcvd.get();
     }
 
-    synchronized public BigInteger getBundlesSent() {
+    /**
+	 * @return The number of bundles received, read without allocating;
+	 *         exact while it fits in a <CODE>long</CODE>.
+	 */
+    public long getBundlesRcvdLong() {
+	return numBundlesRcvd.longValue();
+    }
+
+    public BigInteger getBundlesSent() {
 	return numBundlesSent.get();
     }
 
-    synchronized public void clearStatistics() {
+    /**
+	 * @return The number of bundles sent, read without allocating; exact
+	 *         while it fits in a <CODE>long</CODE>.
+	 */
+    public long getBundlesSentLong() {
+	return numBundlesSent.longValue();
+    }
+
+    public BigInteger getDuplicatePktsRcvd() {
+	return numDupPktsRcvd.get();
+    }
+
+    /**
+	 * @return The number of duplicate Packets received, read without
+	 *         allocating; exact while it fits in a <CODE>long</CODE>.
+	 */
+    public long getDuplicatePktsRcvdLong() {
+	return numDupPktsRcvd.longValue();
+    }
+
+    public BigInteger getCorruptPktsRcvd() {
+	return numCorruptPktsRcvd.get();
+    }
+
+    /**
+	 * @return The number of corrupt Packets received, read without
+	 *         allocating; exact while it fits in a <CODE>long</CODE>.
+	 */
+    public long getCorruptPktsRcvdLong() {
+	return numCorruptPktsRcvd.longValue();
+    }
+
+    public BigInteger getPktsResent() {
+	return numPktsResent.get();
+    }
+
+    /**
+	 * @return The number of Packets resent, read without allocating; exact
+	 *         while it fits in a <CODE>long</CODE>.
+	 */
+    public long getPktsResentLong() {
+	return numPktsResent.longValue();
+    }
+
+    public BigInteger getBundlesDeflated() {
+	return numBundlesDeflated.get();
+    }
+
+    /**
+	 * @return The number of bundles deflated, read without allocating;
+	 *         exact while it fits in a <CODE>long</CODE>.
+	 */
+    public long getBundlesDeflatedLong() {
+	return numBundlesDeflated.longValue();
+    }
+
+    public BigInteger getBytesSavedByDeflate() {
+	return numBytesSavedByDeflate.get();
+    }
+
+    /**
+	 * @return The number of bytes saved by deflating, read without
+	 *         allocating; exact while it fits in a <CODE>long</CODE>.
+	 */
+    public long getBytesSavedByDeflateLong() {
+	return numBytesSavedByDeflate.longValue();
+    }
+
+    public void clearStatistics() {
 	numBytesSent.clear();
 	numBytesRcvd.clear();
 	numBundlesSent.clear();
 	numBundlesRcvd.clear();
+	numDupPktsRcvd.clear();
+	numCorruptPktsRcvd.clear();
+	numBundlesDeflated.clear();
+	numBytesSavedByDeflate.clear();
+	numPktsResent.clear();
     }
 
 }
\ No newline at end of file
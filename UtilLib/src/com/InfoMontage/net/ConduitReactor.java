@@ -0,0 +1,544 @@
+/*
+ * ConduitReactor.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.InfoMontage.common.Defaults;
+import com.InfoMontage.task.TimerWheel;
+import com.InfoMontage.util.AssertableLogger;
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * A {@link Selector} based event loop which watches the
+ * {@link SelectableChannel}s of a shard of the instantiated {@link Conduit}s
+ * for available data. There is a fixed pool of reactors, by default one per
+ * available processor, and each {@link Conduit} is pinned to one of them for
+ * its lifetime: all of a {@link Conduit}'s receive processing happens on its
+ * reactor's {@link Thread}, so its receive state never migrates between
+ * cores.
+ * <P>
+ * Registration requests made from other {@link Thread}s are queued and
+ * applied by the reactor {@link Thread} itself, since a {@link Selector}
+ * blocks registration while it is selecting. So are requests to watch a
+ * channel for writability: a {@link Conduit} whose channel will not take
+ * all its output queues the rest, and its reactor writes it out as the
+ * channel becomes writable, watching for that only while output is queued.
+ * <P>
+ * Each reactor also drives a {@link TimerWheel} holding the deadlines of
+ * its {@link Conduit}s' bundles in flight, so that a lost bundle or Ack is
+ * noticed even on a {@link Conduit} which is otherwise idle. A reactor with
+ * no deadlines pending sleeps until its {@link Selector} is woken.
+ * <P>
+ * {@link Conduit}s over a {@link SharedMemoryChannel} have nothing for the
+ * {@link Selector} to wait on, and are polled instead: each time round its
+ * loop, a reactor reads any data which has arrived on them and writes out
+ * their queued output. A reactor with such {@link Conduit}s selects without
+ * waiting while it keeps finding work, so neither end of a shared memory
+ * channel ever has to make a system call to wake the other. Once it finds
+ * none, it waits {@link #SHARED_MEMORY_POLL_MS} and then twice as long
+ * each time round, up to {@link #TIMER_TICK_MS} while deadlines are
+ * pending and {@link #SHARED_MEMORY_IDLE_POLL_MS} otherwise, so that idle
+ * shared memory channels cost next to nothing.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+final class ConduitReactor extends Thread {
+
+    /**
+	 * Code version for the ConduitReactor class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * {@link Logger}for this class.
+	 */
+    private static final AssertableLogger log = new AssertableLogger(
+	    ConduitReactor.class.getName());
+
+    /**
+	 * The resolution, in milliseconds, of the reactors' timers, and the
+	 * longest a reactor with deadlines pending waits in a select.
+	 */
+    static final long TIMER_TICK_MS = 10;
+
+    /**
+	 * The longest, in milliseconds, a reactor with polled
+	 * {@link Conduit}s waits in a select when the last poll found nothing
+	 * to do, after one which did.
+	 */
+    static final long SHARED_MEMORY_POLL_MS = 1;
+
+    /**
+	 * The longest, in milliseconds, a reactor with polled
+	 * {@link Conduit}s and no deadlines pending waits in a select once its
+	 * polls have found nothing to do for a while.
+	 */
+    static final long SHARED_MEMORY_IDLE_POLL_MS = 64;
+
+    /**
+	 * Name of the system property which overrides the number of reactors.
+	 */
+    static final String REACTOR_COUNT_PROPERTY = "com.InfoMontage.net.ConduitReactor.threads";
+
+    /**
+	 * The requested number of reactors; zero means one per available
+	 * processor.
+	 */
+    private static int reactorCount = Integer.getInteger(
+	    REACTOR_COUNT_PROPERTY, Defaults.DEFAULT_CONDUIT_REACTOR_THREADS)
+	    .intValue();
+
+    /**
+	 * The pool of reactors, created on first use.
+	 */
+    private static ConduitReactor[] reactors = null;
+
+    /**
+	 * The {@link Selector} this reactor's {@link Conduit} channels are
+	 * registered with.
+	 */
+    private final Selector selector;
+
+    /**
+	 * {@link Conduit}s waiting to be registered with the {@link Selector}.
+	 */
+    private final List pendingRegistrations = new ArrayList();
+
+    /**
+	 * {@link Conduit}s which have queued output, waiting to be watched for
+	 * writability.
+	 */
+    private final List pendingWrites = new ArrayList();
+
+    /**
+	 * {@link Conduit}s over {@link SharedMemoryChannel}s, which are polled
+	 * rather than selected. Only touched by the reactor {@link Thread}.
+	 */
+    private final List polled = new ArrayList();
+
+    /**
+	 * How long the next select waits if the polled channels have nothing
+	 * to do, doubled each time they have nothing and reset when they do.
+	 * Only touched by the reactor {@link Thread}.
+	 */
+    private long pollWaitMs = SHARED_MEMORY_POLL_MS;
+
+    /**
+	 * Number of {@link Conduit}s pinned to this reactor, used to balance
+	 * new {@link Conduit}s across the pool.
+	 */
+    private volatile int numConduits = 0;
+
+    /**
+	 * The deadlines of the bundles in flight over this reactor's
+	 * {@link Conduit}s.
+	 */
+    private final TimerWheel timers = new TimerWheel(TIMER_TICK_MS);
+
+    /**
+	 * The constructor names the thread and opens the {@link Selector}.
+	 *
+	 * @param id
+	 *                The index of this reactor in the pool.
+	 * @throws IOException
+	 *                 if the {@link Selector} cannot be opened.
+	 */
+    private ConduitReactor(int id) throws IOException {
+	super("Conduit reactor #" + id);
+	this.setDaemon(true);
+	this.selector = Selector.open();
+    }
+
+    /**
+	 * Sets the number of reactors in the pool. Only effective before the
+	 * pool has been created.
+	 *
+	 * @param n
+	 *                The number of reactors, or zero for one per available
+	 *                processor.
+	 * @return <CODE>true</CODE> if the setting took effect.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>n</CODE> is negative.
+	 */
+    static synchronized boolean setReactorCount(int n)
+	    throws IllegalArgumentException {
+	if (n < 0) {
+	    throw new IllegalArgumentException(
+		    "Attempt to set a negative number of Conduit reactors!");
+	}
+	boolean retVal = (null == reactors);
+	if (retVal) {
+	    reactorCount = n;
+	}
+	return retVal;
+    }
+
+    /**
+	 * Returns the least loaded reactor, creating and starting the pool on
+	 * first use. The caller is expected to {@link #register(Conduit)} a
+	 * {@link Conduit} with the returned reactor.
+	 *
+	 * @return The reactor a new {@link Conduit} should be pinned to.
+	 * @throws IOException
+	 *                 if a reactor's {@link Selector} cannot be opened.
+	 */
+    static synchronized ConduitReactor getReactor() throws IOException {
+	if (null == reactors) {
+	    int n = (reactorCount > 0) ? reactorCount : Runtime.getRuntime()
+		    .availableProcessors();
+	    ConduitReactor[] ra = new ConduitReactor[n];
+	    for (int i = 0; i < n; i++) {
+		ra[i] = new ConduitReactor(i);
+	    }
+	    for (int i = 0; i < n; i++) {
+		ra[i].start();
+	    }
+	    reactors = ra;
+	    assert (log.info("Started " + n + " Conduit reactors."));
+	}
+	ConduitReactor retVal = reactors[0];
+	for (int i = 1; i < reactors.length; i++) {
+	    if (reactors[i].numConduits < retVal.numConduits) {
+		retVal = reactors[i];
+	    }
+	}
+	retVal.numConduits++;
+	return retVal;
+    }
+
+    /**
+	 * Unpins a closed {@link Conduit} from its reactor. Closing the
+	 * {@link Conduit}'s channel has already cancelled its key.
+	 *
+	 * @param r
+	 *                The reactor the {@link Conduit} was pinned to.
+	 */
+    static synchronized void release(ConduitReactor r) {
+	r.numConduits--;
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if the calling {@link Thread} is this
+	 *         reactor's.
+	 */
+    boolean inReactorThread() {
+	return (Thread.currentThread() == this);
+    }
+
+    /**
+	 * Queues a {@link Conduit} for registration with this reactor.
+	 *
+	 * @param c
+	 *                The {@link Conduit} to watch for available data.
+	 */
+    void register(Conduit c) {
+	assert (log.gettingLock(this.pendingRegistrations));
+	synchronized (this.pendingRegistrations) {
+	    assert (log.gotLock(this.pendingRegistrations));
+	    this.pendingRegistrations.add(c);
+	}
+	assert (log.releasedLock(this.pendingRegistrations));
+	this.selector.wakeup();
+    }
+
+    /**
+	 * Has this reactor watch a {@link Conduit}'s channel for writability,
+	 * so that its queued output is written out.
+	 *
+	 * @param c
+	 *                The {@link Conduit} with queued output.
+	 */
+    void requestWrite(Conduit c) {
+	if (c.getChannel() instanceof SharedMemoryChannel) {
+	    // polled anyway, but the reactor may be backing off
+	    if (!inReactorThread()) {
+		this.selector.wakeup();
+	    }
+	    return;
+	}
+	if (inReactorThread()) {
+	    watchWritable(c);
+	    return;
+	}
+	assert (log.gettingLock(this.pendingRegistrations));
+	synchronized (this.pendingRegistrations) {
+	    assert (log.gotLock(this.pendingRegistrations));
+	    this.pendingWrites.add(c);
+	}
+	assert (log.releasedLock(this.pendingRegistrations));
+	this.selector.wakeup();
+    }
+
+    /**
+	 * Schedules a deadline for one of this reactor's {@link Conduit}s,
+	 * waking the reactor if it was sleeping with no deadlines pending.
+	 *
+	 * @param t
+	 *                The timer.
+	 * @param delayMs
+	 *                The delay, in milliseconds.
+	 */
+    void schedule(TimerWheel.Timer t, long delayMs) {
+	if (this.timers.schedule(t, delayMs) && !inReactorThread()) {
+	    this.selector.wakeup();
+	}
+    }
+
+    /**
+	 * Cancels a deadline for one of this reactor's {@link Conduit}s.
+	 *
+	 * @param t
+	 *                The timer.
+	 */
+    void cancel(TimerWheel.Timer t) {
+	this.timers.cancel(t);
+    }
+
+    /**
+	 * Event loop: apply queued registrations, poll the polled channels,
+	 * select, receive on every readable channel, write queued output to
+	 * every writable one, and expire the deadlines which have passed.
+	 *
+	 * @see java.lang.Thread#run()
+	 */
+    public void run() {
+	assert (log.info(getName() + " starting."));
+	while (true) {
+	    applyPendingRegistrations();
+	    boolean busy = pollChannels();
+	    int n = 0;
+	    try {
+		if (busy) {
+		    this.pollWaitMs = SHARED_MEMORY_POLL_MS;
+		    n = this.selector.selectNow();
+		} else if (!this.polled.isEmpty()) {
+		    n = this.selector.select(this.pollWaitMs);
+		    long max = this.timers.isEmpty() ? SHARED_MEMORY_IDLE_POLL_MS
+			    : TIMER_TICK_MS;
+		    this.pollWaitMs = (this.pollWaitMs << 1 < max) ? this.pollWaitMs << 1
+			    : max;
+		} else {
+		    n = this.selector.select(this.timers.isEmpty() ? 0
+			    : TIMER_TICK_MS);
+		}
+	    } catch (IOException e) {
+		// TBD: Handle failure of the selector cleanly.
+		assert (log.throwing(e));
+	    }
+	    if (n > 0) {
+		Iterator i = this.selector.selectedKeys().iterator();
+		while (i.hasNext()) {
+		    SelectionKey k = (SelectionKey) i.next();
+		    i.remove();
+		    try {
+			if (k.isReadable()) {
+			    receive((Conduit) k.attachment());
+			}
+			if (k.isValid() && k.isWritable()) {
+			    write(k, (Conduit) k.attachment());
+			}
+		    } catch (CancelledKeyException e) {
+			// Conduit was closed under us - nothing to do.
+		    }
+		}
+	    }
+	    this.timers.advance();
+	}
+    }
+
+    /**
+	 * Registers any newly added {@link Conduit}s, and watches those which
+	 * have queued output for writability.
+	 */
+    private void applyPendingRegistrations() {
+	Object[] ca;
+	Object[] wa;
+	assert (log.gettingLock(this.pendingRegistrations));
+	synchronized (this.pendingRegistrations) {
+	    assert (log.gotLock(this.pendingRegistrations));
+	    ca = this.pendingRegistrations.toArray();
+	    this.pendingRegistrations.clear();
+	    wa = this.pendingWrites.toArray();
+	    this.pendingWrites.clear();
+	}
+	assert (log.releasedLock(this.pendingRegistrations));
+	for (int i = 0; i < ca.length; i++) {
+	    Conduit c = (Conduit) ca[i];
+	    if (c.getChannel() instanceof SharedMemoryChannel) {
+		this.polled.add(c);
+		assert (log.info("Polling a Conduit from " + getName() + "."));
+		continue;
+	    }
+	    try {
+		c.getChannel().register(this.selector, SelectionKey.OP_READ, c);
+		assert (log.info("Registered a Conduit with " + getName() + "."));
+		// output may have been queued before there was a key to watch
+		watchWritable(c);
+	    } catch (ClosedChannelException e) {
+		assert (log.finer("Conduit closed before it could be registered."));
+	    }
+	}
+	for (int i = 0; i < wa.length; i++) {
+	    watchWritable((Conduit) wa[i]);
+	}
+    }
+
+    /**
+	 * Receives what has arrived for, and writes out what is queued by,
+	 * each polled {@link Conduit}, dropping those which have closed.
+	 *
+	 * @return <CODE>true</CODE> if any {@link Conduit} had data to receive
+	 *         or output to write.
+	 */
+    private boolean pollChannels() {
+	boolean retVal = false;
+	for (int i = this.polled.size() - 1; i >= 0; i--) {
+	    Conduit c = (Conduit) this.polled.get(i);
+	    SharedMemoryChannel ch = (SharedMemoryChannel) c.getChannel();
+	    if (!ch.isOpen()) {
+		this.polled.remove(i);
+		continue;
+	    }
+	    if (ch.available() > 0 || ch.isPeerClosed()) {
+		retVal = true;
+		receive(c);
+	    }
+	    if (c.hasQueuedOutput() && ch.isOpen()) {
+		retVal = true;
+		try {
+		    c.writeReady();
+		} catch (IOException e) {
+		    assert (log.throwing(e));
+		    closeConduit(c, e);
+		}
+	    }
+	}
+	return retVal;
+    }
+
+    /**
+	 * Adds writability to the events watched for on a {@link Conduit}'s
+	 * key, if it has output queued. A {@link Conduit} not yet registered
+	 * is watched once it is.
+	 *
+	 * @param c
+	 *                The {@link Conduit}.
+	 */
+    private void watchWritable(Conduit c) {
+	SelectionKey k = c.getChannel().keyFor(this.selector);
+	if (null != k && k.isValid() && c.hasQueuedOutput()) {
+	    k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+    }
+
+    /**
+	 * Writes queued output for a {@link Conduit} whose channel has become
+	 * writable, and stops watching for writability once none is left. A
+	 * failure closes the {@link Conduit}, as in
+	 * {@link #receive(Conduit)}.
+	 *
+	 * @param k
+	 *                The {@link Conduit}'s key.
+	 * @param c
+	 *                The {@link Conduit}.
+	 */
+    private void write(SelectionKey k, Conduit c) {
+	try {
+	    if (!c.writeReady()) {
+		// output queued from now on is watched for again through
+		// requestWrite()
+		k.interestOps(SelectionKey.OP_READ);
+	    }
+	} catch (IOException e) {
+	    assert (log.throwing(e));
+	    closeConduit(c, e);
+	} catch (RuntimeException e) {
+	    assert (log.throwing(e));
+	    closeConduit(c, e);
+	}
+    }
+
+    /**
+	 * Receives available data for a {@link Conduit} on this reactor's
+	 * {@link Thread}. A failure closes the {@link Conduit} rather than
+	 * stopping the reactor, since the reactor is shared by many
+	 * {@link Conduit}s.
+	 *
+	 * @param c
+	 *                The {@link Conduit} with data to receive.
+	 */
+    private void receive(Conduit c) {
+	assert (log.finest("Attempting receive."));
+	try {
+	    c.receive();
+	} catch (IOException e) {
+	    assert (log.throwing(e));
+	    closeConduit(c, e);
+	} catch (RuntimeException e) {
+	    assert (log.throwing(e));
+	    closeConduit(c, e);
+	}
+    }
+
+    /**
+	 * Closes a {@link Conduit} which failed while receiving, or whose peer
+	 * has stopped responding.
+	 *
+	 * @param c
+	 *                The failed {@link Conduit}.
+	 * @param cause
+	 *                The failure, kept as the {@link Conduit}'s
+	 *                {@link Conduit#getCloseCause() close cause}.
+	 */
+    void closeConduit(Conduit c, Exception cause) {
+	try {
+	    if (c.isOpen()) {
+		c.failed(cause);
+		c.close();
+	    }
+	} catch (IOException e) {
+	    // TBD: Possibly attempt to re-establish?
+	    assert (log.throwing(e));
+	}
+    }
+}
@@ -35,6 +35,8 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
@@ -852,4 +854,1176 @@ public class Conduit_JUnitTest extends TestCase {
 	tChecksumPacketizedMultiWriteMultiRead(cinU, coutU, true);
     }
 
+    /**
+	 * Test of the take methods, of class com.InfoMontage.net.Conduit.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tTake(Conduit cin, Conduit cout, boolean useUDP)
+	    throws IOException, InterruptedException {
+	System.out.println("testTake" + (useUDP ? "UDP" : "TCP") + ": ");
+
+	long start = System.currentTimeMillis();
+	assertNull("take returned a bundle none was written for", cin
+		.take(300));
+	assertTrue("take did not wait out its timeout", System
+		.currentTimeMillis()
+		- start >= 250);
+	assertNull(cin.take(0));
+	cout.write(ByteBuffer.wrap("take".getBytes()));
+	ByteBuffer bb = cin.take(10000);
+	assertNotNull("Written bundle not taken!", bb);
+	bb.flip();
+	assertEquals(ByteBuffer.wrap("take".getBytes()), bb);
+	cout.write(ByteBuffer.wrap("into".getBytes()));
+	ByteBuffer icbuf = ByteBuffer.allocate(16);
+	assertEquals(4, cin.take(icbuf, 10000));
+	icbuf.flip();
+	assertEquals(ByteBuffer.wrap("into".getBytes()), icbuf);
+	assertEquals(0, cin.take(icbuf, 0));
+    }
+
+    /**
+	 * Test of the take method for a logical channel, of class
+	 * com.InfoMontage.net.Conduit.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tTakeChannel(Conduit cin, Conduit cout, boolean useUDP)
+	    throws IOException, InterruptedException {
+	System.out.println("testTakeChannel" + (useUDP ? "UDP" : "TCP")
+		+ ": ");
+
+	cout.write(3, ByteBuffer.wrap("three".getBytes()));
+	assertNull("take on channel 2 got channel 3's bundle", cin.take(2,
+		500));
+	ByteBuffer bb = cin.take(3, 10000);
+	assertNotNull("Bundle written on channel 3 not taken!", bb);
+	bb.flip();
+	assertEquals(ByteBuffer.wrap("three".getBytes()), bb);
+	try {
+	    cin.take(Conduit.MAX_CHANNELS, 0);
+	    fail("take on channel " + Conduit.MAX_CHANNELS);
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+	try {
+	    cin.take(-1, 0);
+	    fail("take on channel -1");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    /**
+	 * Test that closing a Conduit, or interrupting the {@link Thread}, ends
+	 * a take that is waiting.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+    public void tTakeWoken(final Conduit cin, Conduit cout, boolean useUDP)
+	    throws InterruptedException, IOException {
+	System.out.println("testTakeWoken" + (useUDP ? "UDP" : "TCP") + ": ");
+
+	final Object[] result = new Object[1];
+	Thread taker = new Thread("Taker") {
+	    public void run() {
+		try {
+		    result[0] = cin.take(60000);
+		} catch (InterruptedException e) {
+		    result[0] = e;
+		}
+	    }
+	};
+	taker.start();
+	Thread.sleep(200);
+	taker.interrupt();
+	taker.join(10000);
+	assertFalse("Interrupted take still waiting!", taker.isAlive());
+	assertTrue("Interrupted take returned " + result[0],
+		result[0] instanceof InterruptedException);
+
+	result[0] = "unset";
+	taker = new Thread("Taker") {
+	    public void run() {
+		try {
+		    result[0] = cin.take(60000);
+		} catch (InterruptedException e) {
+		    result[0] = e;
+		}
+	    }
+	};
+	taker.start();
+	Thread.sleep(200);
+	long start = System.currentTimeMillis();
+	cin.close();
+	taker.join(10000);
+	assertFalse("take still waiting after close!", taker.isAlive());
+	assertTrue("close took " + (System.currentTimeMillis() - start)
+		+ "ms to wake take", System.currentTimeMillis() - start < 5000);
+	assertNull(result[0]);
+	// once closed, take does not wait at all
+	start = System.currentTimeMillis();
+	assertNull(cin.take(10000));
+	assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    /**
+	 * Bounces a bundle back and forth between two Conduits, each side
+	 * waiting in take for the other's. Every bundle arrives as, or just
+	 * after, its taker has announced itself and looked for one, so the
+	 * handshake between take and the receive side is raced on every
+	 * round: a lost wake-up leaves a take waiting out its whole timeout.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tTakeHandshake(final Conduit cin, final Conduit cout,
+	    boolean useUDP) throws IOException, InterruptedException {
+	System.out.println("testTakeHandshake" + (useUDP ? "UDP" : "TCP")
+		+ ": ");
+
+	final int rounds = useUDP ? 300 : 2000;
+	final long timeoutMs = 20000;
+	final String[] failure = new String[1];
+	Thread echo = new Thread("Echo") {
+	    public void run() {
+		try {
+		    for (int i = 0; i < rounds; i++) {
+			ByteBuffer bb = cout.take(timeoutMs);
+			if (null == bb) {
+			    failure[0] = "echo side lost round " + i;
+			    return;
+			}
+			bb.flip();
+			cout.write(bb);
+		    }
+		} catch (Exception e) {
+		    failure[0] = e.toString();
+		}
+	    }
+	};
+	echo.start();
+	long slowest = 0;
+	ByteBuffer obuf = ByteBuffer.allocate(4);
+	for (int i = 0; i < rounds && null == failure[0]; i++) {
+	    obuf.clear();
+	    obuf.putInt(i).flip();
+	    long start = System.currentTimeMillis();
+	    cin.write(obuf);
+	    // half the time go straight to take, half the time spin first,
+	    // so take meets the bundle at every stage of its arrival
+	    if (0 != (i & 1)) {
+		for (int s = (i * 7919) & 0x3FFF; s > 0; s--) {
+		    Thread.yield();
+		}
+	    }
+	    ByteBuffer bb = cin.take(timeoutMs);
+	    long took = System.currentTimeMillis() - start;
+	    assertNotNull("round " + i + " lost", bb);
+	    bb.flip();
+	    assertEquals(i, bb.getInt());
+	    if (took > slowest) {
+		slowest = took;
+	    }
+	}
+	echo.join(timeoutMs);
+	assertNull(failure[0], failure[0]);
+	System.out.println("slowest round " + slowest + "ms");
+	assertTrue("a round took " + slowest + "ms", slowest < timeoutMs / 2);
+    }
+
+    /**
+	 * Test that CRCs are sent once both ends have said they check them.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tCrcAgreed(Conduit cin, Conduit cout, boolean useUDP)
+	    throws IOException, InterruptedException {
+	System.out.println("testCrcAgreed" + (useUDP ? "UDP" : "TCP") + ": ");
+
+	cin.setCrcChecking(true);
+	cout.setCrcChecking(true);
+	assertTrue(cout.isCrcChecking());
+	assertFalse("CRCs sent before the other end agreed", cout
+		.isSendingCrcs());
+	for (int i = 0; i < 3; i++) {
+	    cout.write(ByteBuffer.wrap(("crc " + i).getBytes()));
+	    ByteBuffer bb = cin.take(10000);
+	    assertNotNull("Bundle " + i + " not taken!", bb);
+	    bb.flip();
+	    assertEquals(ByteBuffer.wrap(("crc " + i).getBytes()), bb);
+	    cin.write(ByteBuffer.wrap(("back " + i).getBytes()));
+	    bb = cout.take(10000);
+	    assertNotNull("Bundle " + i + " not taken back!", bb);
+	}
+	assertTrue(cin.isSendingCrcs());
+	assertTrue(cout.isSendingCrcs());
+	assertTrue(cin.isOpen() && cout.isOpen());
+	assertNull(cin.getCloseCause());
+    }
+
+    /**
+	 * Test that a Conduit closes if only one end checks CRCs.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tCrcDisagreed(Conduit cin, Conduit cout, boolean useUDP)
+	    throws IOException, InterruptedException {
+	System.out.println("testCrcDisagreed" + (useUDP ? "UDP" : "TCP")
+		+ ": ");
+
+	cin.setCrcChecking(true);
+	cout.write(ByteBuffer.wrap("unchecked".getBytes()));
+	long start = System.currentTimeMillis();
+	while (cin.isOpen() && System.currentTimeMillis() - start < 10000) {
+	    Thread.sleep(10);
+	}
+	assertFalse("Conduit left open though the ends disagree", cin
+		.isOpen());
+	assertTrue(cin.getCloseCause() instanceof IOException);
+	assertTrue(cin.getCloseCause().getMessage().indexOf("CRC") >= 0);
+    }
+
+    /**
+	 * Test that compact headers and CRCs are not used together.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 */
+    public void tCrcNotCompact(Conduit cin, Conduit cout, boolean useUDP) {
+	System.out.println("testCrcNotCompact" + (useUDP ? "UDP" : "TCP")
+		+ ": ");
+
+	cin.setCompactHeaders(true);
+	try {
+	    cin.setCrcChecking(true);
+	    fail("CRCs checked with compact headers");
+	} catch (IllegalStateException e) {
+	    // expected
+	}
+	assertTrue(cin.isCompactHeaders());
+	cout.setCrcChecking(true);
+	try {
+	    cout.setCompactHeaders(true);
+	    fail("Compact headers used with CRCs checked");
+	} catch (IllegalStateException e) {
+	    // expected
+	}
+	cout.setCompactHeaders(false);
+	assertTrue("CRC checking turned off", cout.isCrcChecking());
+    }
+
+    public void testCrcAgreedTCP() throws IOException, InterruptedException {
+	tCrcAgreed(cinT, coutT, false);
+    }
+
+    public void testCrcDisagreedTCP() throws IOException,
+	    InterruptedException {
+	tCrcDisagreed(cinT, coutT, false);
+    }
+
+    public void testCrcNotCompactTCP() {
+	tCrcNotCompact(cinT, coutT, false);
+    }
+
+    public void testCrcAgreedUDP() throws IOException, InterruptedException {
+	tCrcAgreed(cinU, coutU, true);
+    }
+
+    public void testCrcDisagreedUDP() throws IOException,
+	    InterruptedException {
+	tCrcDisagreed(cinU, coutU, true);
+    }
+
+    /**
+	 * Test of receiveTo method, of class com.InfoMontage.net.Conduit. Two
+	 * bundles are written on a logical channel: the file gets the first,
+	 * whether or not it has begun to arrive, and the second is left to
+	 * take.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tReceiveTo(Conduit cin, Conduit cout, boolean useUDP)
+	    throws IOException, InterruptedException {
+	System.out.println("testReceiveTo" + (useUDP ? "UDP" : "TCP") + ": ");
+
+	byte[] first = new byte[300000];
+	byte[] second = new byte[3000];
+	for (int i = 0; i < first.length; i++) {
+	    first[i] = (byte) i;
+	}
+	java.util.Arrays.fill(second, (byte) 7);
+	java.io.File f = java.io.File.createTempFile("Conduit_JUnitTest", null);
+	f.deleteOnExit();
+	java.nio.channels.FileChannel fc = new java.io.RandomAccessFile(f, "rw")
+		.getChannel();
+	try {
+	    for (int round = 0; round < 2; round++) {
+		cout.write(5, ByteBuffer.wrap(first));
+		cout.write(5, ByteBuffer.wrap(second));
+		if (0 != round) {
+		    // let the first bundle begin to arrive
+		    Thread.sleep(20);
+		}
+		long n = cin.receiveTo(5, fc, 10);
+		assertEquals("round " + round, first.length, n);
+		ByteBuffer got = ByteBuffer.allocate(first.length);
+		fc.read(got, 10);
+		got.flip();
+		assertEquals("round " + round, ByteBuffer.wrap(first), got);
+		ByteBuffer bb = cin.take(5, 10000);
+		assertNotNull("Second bundle not taken in round " + round, bb);
+		bb.flip();
+		assertEquals(ByteBuffer.wrap(second), bb);
+	    }
+	} finally {
+	    fc.close();
+	}
+    }
+
+    public void testReceiveToTCP() throws IOException, InterruptedException {
+	tReceiveTo(cinT, coutT, false);
+    }
+
+    public void testReceiveToUDP() throws IOException, InterruptedException {
+	tReceiveTo(cinU, coutU, true);
+    }
+
+    public void testTakeTCP() throws IOException, InterruptedException {
+	tTake(cinT, coutT, false);
+    }
+
+    public void testTakeChannelTCP() throws IOException, InterruptedException {
+	tTakeChannel(cinT, coutT, false);
+    }
+
+    public void testTakeWokenTCP() throws IOException, InterruptedException {
+	tTakeWoken(cinT, coutT, false);
+    }
+
+    public void testTakeHandshakeTCP() throws IOException,
+	    InterruptedException {
+	tTakeHandshake(cinT, coutT, false);
+    }
+
+    public void testTakeUDP() throws IOException, InterruptedException {
+	tTake(cinU, coutU, true);
+    }
+
+    public void testTakeChannelUDP() throws IOException, InterruptedException {
+	tTakeChannel(cinU, coutU, true);
+    }
+
+    public void testTakeWokenUDP() throws IOException, InterruptedException {
+	tTakeWoken(cinU, coutU, true);
+    }
+
+    public void testTakeHandshakeUDP() throws IOException,
+	    InterruptedException {
+	tTakeHandshake(cinU, coutU, true);
+    }
+
+    /**
+	 * Passes datagrams between a pair of UDP Conduits of its own, so that
+	 * a test can drop or hold back any of them, or slip in datagrams of
+	 * its own.
+	 *
+	 * @author Richard A. Mead <BR>
+	 *         Information Montage
+	 */
+    static class Relay extends Thread {
+
+	/**
+	 * The relay's ends, facing {@link #cout}and {@link #cin}.
+	 */
+	final DatagramChannel outSide;
+
+	final DatagramChannel inSide;
+
+	final SocketAddress outSA;
+
+	final SocketAddress inSA;
+
+	final Conduit cout;
+
+	final Conduit cin;
+
+	private final Selector sel;
+
+	private volatile boolean done = false;
+
+	Relay() throws IOException {
+	    super("Relay");
+	    InetAddress lhIA = InetAddress.getLocalHost();
+	    this.outSide = DatagramChannel.open();
+	    this.outSide.socket().bind(new InetSocketAddress(lhIA, 0));
+	    this.inSide = DatagramChannel.open();
+	    this.inSide.socket().bind(new InetSocketAddress(lhIA, 0));
+	    DatagramChannel out = DatagramChannel.open();
+	    out.socket().bind(new InetSocketAddress(lhIA, 0));
+	    out.connect(this.outSide.socket().getLocalSocketAddress());
+	    out.configureBlocking(false);
+	    DatagramChannel in = DatagramChannel.open();
+	    in.socket().bind(new InetSocketAddress(lhIA, 0));
+	    in.connect(this.inSide.socket().getLocalSocketAddress());
+	    in.configureBlocking(false);
+	    this.outSA = out.socket().getLocalSocketAddress();
+	    this.inSA = in.socket().getLocalSocketAddress();
+	    this.sel = Selector.open();
+	    this.outSide.configureBlocking(false);
+	    this.inSide.configureBlocking(false);
+	    this.outSide.register(this.sel, SelectionKey.OP_READ);
+	    this.inSide.register(this.sel, SelectionKey.OP_READ);
+	    setDaemon(true);
+	    start();
+	    this.cout = new Conduit(out);
+	    this.cin = new Conduit(in);
+	}
+
+	/**
+	 * Decides whether a datagram is passed on; one which is not may be
+	 * kept and {@link #send(ByteBuffer, boolean) sent}later. Called only
+	 * from the relay {@link Thread}.
+	 *
+	 * @param d
+	 *                The datagram, which is reused once this returns.
+	 * @param fromOut
+	 *                <CODE>true</CODE> if it came from {@link #cout}.
+	 * @return <CODE>true</CODE> to pass it on.
+	 */
+	boolean forward(ByteBuffer d, boolean fromOut) throws IOException {
+	    return true;
+	}
+
+	/**
+	 * Sends a datagram on as the relay would.
+	 *
+	 * @param d
+	 *                The datagram.
+	 * @param toIn
+	 *                <CODE>true</CODE> to send it to {@link #cin}.
+	 */
+	void send(ByteBuffer d, boolean toIn) throws IOException {
+	    if (toIn) {
+		this.inSide.send(d, this.inSA);
+	    } else {
+		this.outSide.send(d, this.outSA);
+	    }
+	}
+
+	public void run() {
+	    ByteBuffer b = ByteBuffer.allocate(70000);
+	    try {
+		while (!this.done) {
+		    this.sel.select();
+		    this.sel.selectedKeys().clear();
+		    for (int k = 0; k < 2; k++) {
+			boolean fromOut = (0 == k);
+			DatagramChannel c = fromOut ? this.outSide : this.inSide;
+			b.clear();
+			while (null != c.receive(b)) {
+			    b.flip();
+			    if (forward(b, fromOut)) {
+				send(b, fromOut);
+			    }
+			    b.clear();
+			}
+		    }
+		}
+	    } catch (IOException e) {
+		if (!this.done) {
+		    e.printStackTrace();
+		}
+	    }
+	}
+
+	void shutdown() throws IOException, InterruptedException {
+	    this.cout.close();
+	    this.cin.close();
+	    this.done = true;
+	    this.sel.wakeup();
+	    join(5000);
+	    this.sel.close();
+	    this.outSide.close();
+	    this.inSide.close();
+	}
+    }
+
+    /**
+	 * @return The encoding of a header {@link Packet}for a bundle of no
+	 *         {@link Packet}s, which completes as soon as it arrives.
+	 */
+    static ByteBuffer emptyBundle(long genID, long bndlID) {
+	return PacketFactory.getInstance().newPacket(genID, bndlID, 0,
+		(short) 0, null).toByteBuffer();
+    }
+
+    /**
+	 * Test that forged bundles outside the other end's send window, or of
+	 * another generation, are dropped without disturbing the real ones.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void testForgedBundlesUDP() throws IOException,
+	    InterruptedException {
+	System.out.println("testForgedBundlesUDP: ");
+
+	Relay r = new Relay();
+	try {
+	    r.cout.write(ByteBuffer.wrap("first".getBytes()));
+	    ByteBuffer bb = r.cin.take(10000);
+	    assertNotNull("First bundle not taken!", bb);
+	    // bit 0 of the Ack bitmap, were the offset cut to an int
+	    r.send(emptyBundle(1, 2 + (1L << 38)), true);
+	    r.send(emptyBundle(1, Long.MAX_VALUE), true);
+	    r.send(emptyBundle(1, 1L << 32), true);
+	    // channels 0 and 1, but generations the other end never used
+	    r.send(emptyBundle(2, 1), true);
+	    r.send(emptyBundle(1L << 56 | 7, 1), true);
+	    Thread.sleep(200);
+	    r.cout.write(ByteBuffer.wrap("second".getBytes()));
+	    bb = r.cin.take(10000);
+	    assertNotNull("Bundle after the forgeries not taken!", bb);
+	    bb.flip();
+	    assertEquals(ByteBuffer.wrap("second".getBytes()), bb);
+	    assertNull("A forged bundle was delivered", r.cin.take(300));
+	    assertNull("A forged bundle was delivered", r.cin.take(1, 0));
+	    assertTrue(r.cin.isOpen());
+	    assertNull(r.cin.getCloseCause());
+	} finally {
+	    r.shutdown();
+	}
+    }
+
+    /**
+	 * Test that a lost data {@link Packet}is resent, rather than the
+	 * bundle being lost or the Conduit closed.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void testLostPacketResentUDP() throws IOException,
+	    InterruptedException {
+	System.out.println("testLostPacketResentUDP: ");
+
+	final int[] dropped = new int[] { 0 };
+	Relay r = new Relay() {
+	    int bigOnes = 0;
+
+	    boolean forward(ByteBuffer d, boolean fromOut) {
+		// the second datagram carrying data
+		if (fromOut && d.remaining() > 200 && 2 == ++this.bigOnes) {
+		    dropped[0]++;
+		    return false;
+		}
+		return true;
+	    }
+	};
+	try {
+	    byte[] data = new byte[20000];
+	    for (int i = 0; i < data.length; i++) {
+		data[i] = (byte) (i * 7);
+	    }
+	    long resent = r.cout.getPktsResentLong();
+	    r.cout.write(ByteBuffer.wrap(data));
+	    ByteBuffer bb = r.cin.take(20000);
+	    assertNotNull("Bundle with a lost packet not taken!", bb);
+	    bb.flip();
+	    assertEquals(ByteBuffer.wrap(data), bb);
+	    assertEquals(1, dropped[0]);
+	    assertTrue("Lost packet not resent", r.cout.getPktsResentLong() > resent);
+	    assertTrue(r.cout.isOpen() && r.cin.isOpen());
+	    r.cout.write(ByteBuffer.wrap("after".getBytes()));
+	    bb = r.cin.take(10000);
+	    assertNotNull("Bundle after the lost packet not taken!", bb);
+	    bb.flip();
+	    assertEquals(ByteBuffer.wrap("after".getBytes()), bb);
+	} finally {
+	    r.shutdown();
+	}
+    }
+
+    /**
+	 * Writes a bundle and checks it arrives as written.
+	 */
+    static void roundTrip(Conduit cin, Conduit cout, byte[] data)
+	    throws IOException, InterruptedException {
+	cout.write(ByteBuffer.wrap(data));
+	ByteBuffer bb = cin.take(10000);
+	assertNotNull("Bundle of " + data.length + " bytes not taken!", bb);
+	bb.flip();
+	assertEquals(ByteBuffer.wrap(data), bb);
+    }
+
+    /**
+	 * Exchanges a bundle each way, so that each end has heard the other's
+	 * latest options.
+	 */
+    static void exchangeOptions(Conduit cin, Conduit cout) throws IOException,
+	    InterruptedException {
+	roundTrip(cin, cout, "ping".getBytes());
+	roundTrip(cout, cin, "pong".getBytes());
+    }
+
+    /**
+	 * Test of bundle compression, of class com.InfoMontage.net.Conduit:
+	 * long compressible bundles are deflated once both ends want them to
+	 * be, and no others are.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tCompression(Conduit cin, Conduit cout, boolean useUDP)
+	    throws IOException, InterruptedException {
+	System.out.println("testCompression" + (useUDP ? "UDP" : "TCP") + ": ");
+
+	int len = 8 * cout.getCompressionThreshold();
+	byte[] plain = new byte[len];
+	for (int i = 0; i < len; i++) {
+	    plain[i] = (byte) ('a' + (i % 13));
+	}
+	byte[] noise = new byte[len];
+	new java.util.Random(20261018L).nextBytes(noise);
+
+	// only this end opted in
+	cout.setCompression(true);
+	exchangeOptions(cin, cout);
+	assertFalse(cout.isCompressing());
+	roundTrip(cin, cout, plain);
+	assertEquals(0, cout.getBundlesDeflatedLong());
+
+	// both ends opted in
+	cin.setCompression(true);
+	exchangeOptions(cin, cout);
+	assertTrue(cout.isCompressing());
+	assertTrue(cin.isCompressing());
+	roundTrip(cin, cout, plain);
+	assertEquals(1, cout.getBundlesDeflatedLong());
+	long saved = cout.getBytesSavedByDeflateLong();
+	assertTrue("Only " + saved + " of " + len + " bytes saved",
+		saved > len / 2);
+	// sent raw: too short, or not worth deflating
+	roundTrip(cin, cout, "short but aaaaaaaaaaaaaaaaaaaaaaaaa".getBytes());
+	roundTrip(cin, cout, noise);
+	assertEquals(1, cout.getBundlesDeflatedLong());
+	assertEquals(saved, cout.getBytesSavedByDeflateLong());
+	// and the other way
+	roundTrip(cout, cin, plain);
+	assertEquals(1, cin.getBundlesDeflatedLong());
+
+	// the other end opted out again
+	cin.setCompression(false);
+	exchangeOptions(cin, cout);
+	assertFalse(cout.isCompressing());
+	roundTrip(cin, cout, plain);
+	assertEquals(1, cout.getBundlesDeflatedLong());
+    }
+
+    public void testCompressionTCP() throws IOException, InterruptedException {
+	tCompression(cinT, coutT, false);
+    }
+
+    public void testCompressionUDP() throws IOException, InterruptedException {
+	tCompression(cinU, coutU, true);
+    }
+
+    /**
+	 * Records what a {@link BundleSegmentListener}is told, failing at once
+	 * on a call out of turn.
+	 */
+    static class SegmentRecorder implements BundleSegmentListener {
+
+	/**
+	 * The content so far of each bundle begun but not ended, by
+	 * <CODE>channel/bndlID</CODE>.
+	 */
+	final java.util.Map open = new java.util.HashMap();
+
+	/**
+	 * The content of each bundle ended, in the order they ended.
+	 */
+	final java.util.List ended = new java.util.ArrayList();
+
+	int segments = 0;
+
+	String failure = null;
+
+	public synchronized void bundleBegun(Conduit c, int channel, long bndlID) {
+	    String k = channel + "/" + bndlID;
+	    if (null != this.open.put(k, new java.io.ByteArrayOutputStream())) {
+		fail("Bundle " + k + " begun twice");
+	    }
+	}
+
+	public synchronized void segmentReceived(Conduit c, int channel,
+		long bndlID, ByteBuffer segment) {
+	    java.io.ByteArrayOutputStream os = (java.io.ByteArrayOutputStream) this.open
+		    .get(channel + "/" + bndlID);
+	    if (null == os) {
+		fail("Segment of bundle " + channel + "/" + bndlID
+			+ " outside bundleBegun and bundleEnded");
+		return;
+	    }
+	    byte[] b = new byte[segment.remaining()];
+	    segment.get(b);
+	    os.write(b, 0, b.length);
+	    this.segments++;
+	}
+
+	public synchronized void bundleEnded(Conduit c, int channel, long bndlID) {
+	    java.io.ByteArrayOutputStream os = (java.io.ByteArrayOutputStream) this.open
+		    .remove(channel + "/" + bndlID);
+	    if (null == os) {
+		fail("Bundle " + channel + "/" + bndlID
+			+ " ended without being begun");
+		return;
+	    }
+	    this.ended.add(os.toByteArray());
+	    notifyAll();
+	}
+
+	private void fail(String why) {
+	    if (null == this.failure) {
+		this.failure = why;
+	    }
+	}
+
+	synchronized void awaitEnded(int n, long timeoutMs)
+		throws InterruptedException {
+	    long end = System.currentTimeMillis() + timeoutMs;
+	    long left;
+	    while (this.ended.size() < n
+		    && (left = end - System.currentTimeMillis()) > 0) {
+		wait(left);
+	    }
+	}
+    }
+
+    /**
+	 * Test of setSegmentListener method, of class
+	 * com.InfoMontage.net.Conduit: each bundle is begun, delivered in
+	 * order a segment at a time, and ended, and its segments join up to
+	 * the bundle written.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tSegmentListener(Conduit cin, Conduit cout, boolean useUDP)
+	    throws IOException, InterruptedException {
+	System.out.println("testSegmentListener" + (useUDP ? "UDP" : "TCP")
+		+ ": ");
+
+	SegmentRecorder sr = new SegmentRecorder();
+	cin.setSegmentListener(sr);
+	assertSame(sr, cin.getSegmentListener());
+	java.util.Random rnd = new java.util.Random(20261018L);
+	byte[][] sent = new byte[8][];
+	for (int i = 0; i < sent.length; i++) {
+	    sent[i] = new byte[1 + rnd.nextInt((0 == i % 3) ? 200000 : 20000)];
+	    rnd.nextBytes(sent[i]);
+	    cout.write(ByteBuffer.wrap(sent[i]));
+	}
+	sr.awaitEnded(sent.length, 30000);
+	synchronized (sr) {
+	    assertNull(sr.failure, sr.failure);
+	    assertEquals(sent.length, sr.ended.size());
+	    assertTrue(sr.open.isEmpty());
+	    assertTrue("Bundles delivered whole", sr.segments > sent.length);
+	    // bundles may end out of order after a loss, but each is whole
+	    java.util.List got = new java.util.ArrayList(sr.ended);
+	    for (int i = 0; i < sent.length; i++) {
+		boolean found = false;
+		for (int j = 0; j < got.size() && !found; j++) {
+		    if (java.util.Arrays.equals(sent[i], (byte[]) got.get(j))) {
+			got.remove(j);
+			found = true;
+		    }
+		}
+		assertTrue("Bundle " + i + " not delivered intact", found);
+	    }
+	}
+	assertNull("Bundle queued for read as well", cin.read());
+    }
+
+    public void testSegmentListenerTCP() throws IOException,
+	    InterruptedException {
+	tSegmentListener(cinT, coutT, false);
+    }
+
+    public void testSegmentListenerUDP() throws IOException,
+	    InterruptedException {
+	tSegmentListener(cinU, coutU, true);
+    }
+
+    /**
+	 * Test that segments are delivered in order when their
+	 * {@link Packet}s are not: the relay holds back every third datagram
+	 * of data until the next has passed it.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void testSegmentListenerReorderedUDP() throws IOException,
+	    InterruptedException {
+	final int[] reordered = new int[] { 0 };
+	Relay r = new Relay() {
+	    ByteBuffer held = null;
+
+	    int n = 0;
+
+	    boolean forward(ByteBuffer d, boolean fromOut) throws IOException {
+		if (fromOut && null == this.held && d.remaining() > 200
+			&& 0 == ++this.n % 3) {
+		    this.held = ByteBuffer.allocate(d.remaining());
+		    this.held.put(d).flip();
+		    return false;
+		}
+		if (null != this.held) {
+		    // overtaken by this one
+		    send(d, fromOut);
+		    send(this.held, true);
+		    this.held = null;
+		    reordered[0]++;
+		    return false;
+		}
+		return true;
+	    }
+	};
+	try {
+	    tSegmentListener(r.cin, r.cout, true);
+	    assertTrue("Nothing was reordered", reordered[0] > 0);
+	} finally {
+	    r.shutdown();
+	}
+    }
+
+    /**
+	 * Records the logical channel of each bundle in the order they arrive,
+	 * and how many bytes had been received when each did.
+	 */
+    static class ArrivalRecorder implements BundleListener {
+
+	final java.util.List channels = new java.util.ArrayList();
+
+	final java.util.List bytesRcvd = new java.util.ArrayList();
+
+	public synchronized void bundleReceived(Conduit c, int channel,
+		ByteBuffer bundle) {
+	    this.channels.add(Integer.valueOf(channel));
+	    this.bytesRcvd.add(Long.valueOf(c.getBytesRcvdLong()));
+	    com.InfoMontage.util.BufferPool.release(bundle);
+	    notifyAll();
+	}
+
+	synchronized void awaitArrivals(int n, long timeoutMs)
+		throws InterruptedException {
+	    long end = System.currentTimeMillis() + timeoutMs;
+	    long left;
+	    while (this.channels.size() < n
+		    && (left = end - System.currentTimeMillis()) > 0) {
+		wait(left);
+	    }
+	}
+    }
+
+    /**
+	 * Test of setChannelPriority method, of class
+	 * com.InfoMontage.net.Conduit: a small bundle on a channel of higher
+	 * priority overtakes a large one already queued on a channel of lower
+	 * priority, and one on a channel of lower priority waits for it. The
+	 * small one must not wait for the large one to drain below the write
+	 * watermark first. The sockets' buffers are kept small, so that most
+	 * of the large bundle is still queued in the Conduit when the small
+	 * ones are written. Over UDP
+	 * the order bundles arrive in also depends on which are lost, so only
+	 * TCP is tested.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void testChannelPriorityTCP() throws IOException,
+	    InterruptedException {
+	System.out.println("testChannelPriorityTCP: ");
+
+	ServerSocketChannel ssc = ServerSocketChannel.open();
+	ssc.socket().setReceiveBufferSize(32 * 1024);
+	ssc.socket().bind(new InetSocketAddress("localhost", 0));
+	SocketChannel outSC = SocketChannel.open();
+	outSC.socket().setSendBufferSize(32 * 1024);
+	outSC.connect(ssc.socket().getLocalSocketAddress());
+	SocketChannel inSC = ssc.accept();
+	ssc.close();
+	outSC.configureBlocking(false);
+	inSC.configureBlocking(false);
+	Conduit cout = new Conduit(outSC);
+	Conduit cin = new Conduit(inSC);
+	try {
+	    cout.setChannelPriority(1, 10, 1);
+	    cout.setChannelPriority(2, -10, 1);
+	    assertEquals(10, cout.getChannelPriority(1));
+	    assertEquals(0, cout.getChannelPriority(0));
+	    ArrivalRecorder ar = new ArrivalRecorder();
+	    cin.setBundleListener(ar);
+	    ByteBuffer big = ByteBuffer.allocate((int) Math.min(
+		    4 * 1024 * 1024, cout.getMaxBundleLength()));
+	    int len = big.capacity();
+	    assertTrue(len > 2 * cout.getWriteHighWatermark());
+	    for (int round = 0; round < 2; round++) {
+		long before = cin.getBytesRcvdLong();
+		big.clear();
+		cout.write(0, big);
+		cout.write(1, ByteBuffer.wrap("urgent".getBytes()));
+		cout.write(2, ByteBuffer.wrap("whenever".getBytes()));
+		ar.awaitArrivals(3 * (round + 1), 60000);
+		synchronized (ar) {
+		    assertEquals(java.util.Arrays.asList(new Integer[] {
+			    Integer.valueOf(1), Integer.valueOf(0),
+			    Integer.valueOf(2) }), ar.channels.subList(
+			    3 * round, 3 * (round + 1)));
+		    long at = ((Long) ar.bytesRcvd.get(3 * round)).longValue()
+			    - before;
+		    assertTrue("Urgent bundle waited for " + at + " of " + len
+			    + " bytes", at < len / 2);
+		}
+	    }
+	} finally {
+	    cout.close();
+	    cin.close();
+	}
+    }
+    /**
+	 * Writes bundles of a given length from a {@link Thread}of its own,
+	 * counting those written, so that a test can see it held back.
+	 */
+    static class Writer extends Thread {
+
+	final Conduit c;
+
+	final byte[] data;
+
+	final int count;
+
+	volatile int written = 0;
+
+	volatile IOException failure = null;
+
+	Writer(Conduit c, int len, int count) {
+	    super("Writer");
+	    this.c = c;
+	    this.data = new byte[len];
+	    this.count = count;
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    try {
+		for (int i = 0; i < this.count; i++) {
+		    java.util.Arrays.fill(this.data, (byte) i);
+		    this.c.write(ByteBuffer.wrap(this.data));
+		    this.written++;
+		}
+	    } catch (IOException e) {
+		this.failure = e;
+	    }
+	}
+    }
+
+    /**
+	 * Checks, for a while, that a {@link Writer}stays held back with
+	 * <CODE>expected</CODE> bundles written, and that its Conduit keeps
+	 * within its send window meanwhile.
+	 */
+    static void assertHeldBack(Writer w, int expected) throws InterruptedException {
+	for (int i = 0; i < 10; i++) {
+	    Thread.sleep(50);
+	    assertTrue("Writer finished with no Acks", w.isAlive());
+	    assertEquals(expected, w.written);
+	    assertTrue(w.c.getUnackedBundles() <= w.c.getSendWindowBundles());
+	    assertTrue(w.c.getUnackedBytes() <= w.c.getSendWindowBytes());
+	}
+    }
+
+    /**
+	 * Takes a {@link Writer}'s bundles once it is no longer held back.
+	 */
+    static void assertAllTaken(Conduit cin, Writer w) throws IOException,
+	    InterruptedException {
+	for (int i = 0; i < w.count; i++) {
+	    ByteBuffer bb = cin.take(20000);
+	    assertNotNull("Bundle " + i + " not taken!", bb);
+	    bb.flip();
+	    assertEquals(w.data.length, bb.remaining());
+	    while (bb.hasRemaining()) {
+		assertEquals((byte) i, bb.get());
+	    }
+	}
+	w.join(20000);
+	assertFalse("Writer still held back", w.isAlive());
+	assertNull(w.failure);
+	assertEquals(w.count, w.written);
+    }
+
+    /**
+	 * Waits for every bundle sent to be acknowledged.
+	 */
+    static void assertAllAcked(Conduit c) throws InterruptedException {
+	long start = System.currentTimeMillis();
+	while (0 < c.getUnackedBundles()
+		&& System.currentTimeMillis() - start < 10000) {
+	    Thread.sleep(20);
+	}
+	assertEquals(0, c.getUnackedBundles());
+	assertEquals(0, c.getUnackedBytes());
+    }
+
+    /**
+	 * Test that a writer is held back once the send window is full, by
+	 * count and then by bytes, while the other end's Acks are lost, and
+	 * carries on once they get through.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void testSendWindowUDP() throws IOException, InterruptedException {
+	System.out.println("testSendWindowUDP: ");
+
+	final boolean[] holdAcks = new boolean[] { false };
+	Relay r = new Relay() {
+	    boolean forward(ByteBuffer d, boolean fromOut) {
+		return fromOut || !holdAcks[0];
+	    }
+	};
+	try {
+	    r.cout.setSendWindow(4, 1024 * 1024);
+	    exchangeOptions(r.cin, r.cout);
+	    assertAllAcked(r.cout);
+
+	    holdAcks[0] = true;
+	    Writer w = new Writer(r.cout, 1000, 10);
+	    w.start();
+	    assertHeldBack(w, 4);
+	    assertEquals(4, r.cout.getUnackedBundles());
+	    holdAcks[0] = false;
+	    assertAllTaken(r.cin, w);
+	    assertAllAcked(r.cout);
+
+	    r.cout.setSendWindow(64, 8000);
+	    holdAcks[0] = true;
+	    w = new Writer(r.cout, 3000, 6);
+	    w.start();
+	    assertHeldBack(w, 2);
+	    assertEquals(6000, r.cout.getUnackedBytes());
+	    holdAcks[0] = false;
+	    assertAllTaken(r.cin, w);
+	    assertAllAcked(r.cout);
+	    assertTrue(r.cout.isOpen() && r.cin.isOpen());
+	} finally {
+	    r.shutdown();
+	}
+    }
+    /**
+	 * Test of payload size adaptation, of class com.InfoMontage.net.Conduit:
+	 * the payload size shrinks for small bundles and grows for bulk
+	 * traffic, within both ends' limits, and follows a lowered limit at
+	 * the other end.
+	 *
+	 * @param cin
+	 * @param cout
+	 * @param useUDP
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+    public void tPacketSizeAdaptation(Conduit cin, Conduit cout,
+	    boolean useUDP) throws IOException, InterruptedException {
+	System.out.println("testPacketSizeAdaptation" + (useUDP ? "UDP" : "TCP")
+		+ ": ");
+
+	exchangeOptions(cin, cout);
+	for (int i = 0; i < 40; i++) {
+	    roundTrip(cin, cout, new byte[100]);
+	}
+	short small = cout.getCurrentPacketSize();
+	assertTrue("Payload size " + small + " for small bundles",
+		small <= 256);
+
+	byte[] bulk = new byte[60000];
+	for (int i = 0; i < bulk.length; i++) {
+	    bulk[i] = (byte) (i ^ (i >>> 8));
+	}
+	for (int i = 0; i < 40; i++) {
+	    roundTrip(cin, cout, bulk);
+	    roundTrip(cout, cin, bulk);
+	}
+	short out = cout.getCurrentPacketSize();
+	short in = cin.getCurrentPacketSize();
+	assertTrue("Payload size " + out + " not grown from " + small,
+		out > small);
+	assertTrue(out <= cout.getMaxPacketSize());
+	assertTrue(out <= cin.getMaxPacketSize());
+	assertTrue(in <= cin.getMaxPacketSize());
+	assertTrue(in <= cout.getMaxPacketSize());
+	if (!useUDP) {
+	    // without loss, the same traffic each way settles on the same
+	    // size
+	    assertEquals(out, in);
+	}
+
+	short limit = (short) (small * 2);
+	cin.setMaxPacketSize(limit);
+	exchangeOptions(cin, cout);
+	for (int i = 0; i < 4; i++) {
+	    roundTrip(cin, cout, bulk);
+	    assertTrue("Payload size " + cout.getCurrentPacketSize()
+		    + " over the other end's limit of " + limit, cout
+		    .getCurrentPacketSize() <= limit);
+	}
+	assertTrue(cin.isOpen() && cout.isOpen());
+    }
+
+    public void testPacketSizeAdaptationTCP() throws IOException,
+	    InterruptedException {
+	tPacketSizeAdaptation(cinT, coutT, false);
+    }
+
+    public void testPacketSizeAdaptationUDP() throws IOException,
+	    InterruptedException {
+	tPacketSizeAdaptation(cinU, coutU, true);
+    }
+
 }
\ No newline at end of file
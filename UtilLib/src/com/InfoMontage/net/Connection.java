@@ -88,6 +88,8 @@ public interface Connection {
 
     Failure getSendFailureReason();
 
+    boolean isWritable();
+
     boolean setMessageProcessor(MessageProcessor mp)
         throws IllegalArgumentException;
 
@@ -48,6 +48,9 @@ public class ConnectionSendFailure extends AbstractFailure {
     public static final ConnectionSendFailure SEND_FAIL_REASON_CANNOT_WRITE
     = new ConnectionSendFailure("Conduit failed to write");
 
+    public static final ConnectionSendFailure SEND_FAIL_REASON_WOULD_BLOCK
+    = new ConnectionSendFailure("Conduit output queue is full");
+
     public static final ConnectionSendFailure SEND_FAIL_REASON_UNKNOWN
     = new ConnectionSendFailure("Send failed for unknown reason");
 
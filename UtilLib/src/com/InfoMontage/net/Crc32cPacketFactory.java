@@ -0,0 +1,110 @@
+/*
+ * Crc32cPacketFactory.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+
+package com.InfoMontage.net;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.zip.CRC32C;
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * Makes {@link Crc32cPacket}s, whose integrity is checked {@link Packet} by
+ * {@link Packet} and bundle by bundle, and reads {@link Packet}s with or
+ * without CRCs. A {@link Conduit} given this factory makes {@link Packet}s
+ * without CRCs until the other end says it checks them too. Its
+ * {@link Packet}s have full headers only.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ * @see Conduit#setCrcChecking(boolean)
+ */
+class Crc32cPacketFactory extends PacketFactory {
+
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /** The singleton instance of this class.
+     */
+    static private final Crc32cPacketFactory singleton=new Crc32cPacketFactory();
+
+    static PacketFactory getInstance() { return singleton; }
+
+    /** PacketFactories are singletons.
+     */
+    private Crc32cPacketFactory() {}
+
+    Packet getHeartbeatPacket() {
+	return Crc32cPacket.getHeartbeatPacket();
+    }
+
+    /** Decomposes a bundle as {@link PacketFactory} does, placing the CRC
+     * of the whole bundle in its header {@link Packet}.
+     */
+    Packet[] decompose(ByteBuffer ibb,short psz,long gen, long bndl,
+	boolean slice) throws IllegalArgumentException {
+	CRC32C c=new CRC32C();
+	if (ibb!=null) {
+	    c.update(ibb.duplicate());
+	}
+	Packet[] pa=Packet.decompose(this, ibb, psz, gen, bndl, slice);
+	((Crc32cPacket)pa[0]).setBundleCrc((int)c.getValue());
+	return pa;
+    }
+
+    Packet newPacket(long gid, long mid, int pid, short l, byte[] p) {
+	return Crc32cPacket.newPacket(gid,mid,pid,l,p);
+    }
+
+    Packet newPacket(long gid, long mid, int pid, ByteBuffer p) {
+	return Crc32cPacket.newPacket(gid,mid,pid,p);
+    }
+
+    ByteBuffer recombine(Packet[] pkts)
+    throws IllegalArgumentException, NullPointerException {
+	return Crc32cPacket.recombine(pkts);
+    }
+
+    /** Reads a {@link Packet} whose header says whether it has a CRC.
+     */
+    Packet valueOf(ByteBuffer buf)
+    throws IllegalArgumentException, BufferUnderflowException {
+	return Packet.valueOf(buf);
+    }
+
+    boolean checksCrcs() {
+	return true;
+    }
+
+    PacketFactory uncheckedFactory() {
+	return PacketFactory.getInstance();
+    }
+
+}
@@ -30,6 +30,9 @@ package com.InfoMontage.net;
 import java.nio.ByteBuffer;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.util.zip.Checksum;
+import com.InfoMontage.common.Defaults;
+import com.InfoMontage.util.BufferPool;
 import com.InfoMontage.version.CodeVersion;
 import com.InfoMontage.version.GenericCodeVersion;
 
@@ -54,6 +57,42 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 
     public static final short DEFAULT_PACKET_PAYLOAD_LENGTH = 4096;
 
+    /**
+     * The <CODE>pktID</CODE> of a NAK control {@link Packet}. Control
+     * {@link Packet}s have negative <CODE>pktID</CODE>s and are not part of
+     * any bundle's data; their <CODE>genID</CODE> and <CODE>bndlID</CODE>
+     * identify the bundle they refer to. A NAK's payload is the list of the
+     * <CODE>int</CODE> <CODE>pktID</CODE>s of that bundle which have not
+     * been received.
+     */
+    static final int NAK_PACKET_ID = -1;
+
+    /**
+     * The <CODE>pktID</CODE> of a cumulative Ack control {@link Packet}. Its
+     * <CODE>bndlID</CODE> is the highest bundle ID of its
+     * <CODE>genID</CODE> up to which every bundle has been received, and its
+     * payload is a bitmap, as big-endian <CODE>long</CODE>s, of the bundles
+     * after that which have also been received: bit <CODE>i</CODE> (the
+     * least significant bit of the first <CODE>long</CODE> being bit 0)
+     * stands for bundle <CODE>bndlID + 1 + i</CODE>.
+     */
+    static final int ACK_PACKET_ID = -2;
+
+    /**
+     * The <CODE>pktID</CODE> of a cumulative Ack of Ack control
+     * {@link Packet}, which echoes the <CODE>genID</CODE>,
+     * <CODE>bndlID</CODE> and payload of the latest Ack received.
+     */
+    static final int ACK_OF_ACK_PACKET_ID = -3;
+
+    /**
+     * The <CODE>pktID</CODE> of an option control {@link Packet}, with
+     * which a Conduit tells the other end about itself. Its payload is a
+     * series of options, each a <CODE>byte</CODE> option number followed by
+     * an <CODE>int</CODE> value; options not understood are ignored.
+     */
+    static final int OPTION_PACKET_ID = -4;
+
     volatile long genID = 0; // determined at connection protocol negotiation
     volatile long bndlID = 0;
     volatile int pktID = 0;
@@ -61,6 +100,14 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
     // from a heartbeat
     volatile byte[] payload = null;
 
+    /**
+     * Cached {@link ByteBuffer} view of the payload, used when sending. For
+     * a {@link Packet} created by a slicing {@link #decompose} this is a
+     * read-only slice of the caller's bundle and is the only copy of the
+     * payload, <CODE>payload</CODE> being <CODE>null</CODE>.
+     */
+    private transient ByteBuffer payloadBuf = null;
+
     /**
      * Creates a new instance of Packet with default values for all fields.
      * You must override this in subclasses if you wish the heartbeat packet
@@ -94,6 +141,28 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 		    + " invalid or inconsistent parameters!");
     }
 
+    /**
+     * Creates a new instance of Packet whose payload is the remaining content
+     * of the provided {@link ByteBuffer}, without copying it. The buffer is
+     * retained as the payload; it should be a read-only slice, and its
+     * content must not change for as long as the Packet may be sent.
+     * <P>
+     * The provided data will be validated.
+     */
+    Packet(long gid, long mid, int pid, ByteBuffer p)
+	throws IllegalArgumentException
+    {
+	genID = gid;
+	bndlID = mid;
+	pktID = pid;
+	len = (short) p.remaining();
+	payloadBuf = p.slice();
+	if (!Packet.isValid(this))
+	    throw new IllegalArgumentException(
+		"Attempt to create a Packet with"
+		    + " invalid or inconsistent parameters!");
+    }
+
     /*
      * This method is provided to allow subclasses to easily generate their
      * own toString() values in the same format without having to duplicate
@@ -111,18 +180,21 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 	s.append(pktID);
 	if (pktID == 0)
 	    s.append("{header}");
+	else if (pktID < 0)
+	    s.append("{control}");
 	s.append(",len=").append(len);
 	if (xtra != null)
 	    s.append(",").append(xtra);
 	s.append(",payload=");
-	if (payload == null)
+	ByteBuffer pv = payloadView();
+	if (pv == null)
 	    s.append("null");
-	else if (payload.length == 0)
+	else if (!pv.hasRemaining())
 	    s.append("empty");
 	else {
-	    s.append("{").append(payload[0]);
-	    for (int i = 1; i < payload.length; i++ )
-		s.append(",").append(payload[i]);
+	    s.append("{").append(pv.get(0));
+	    for (int i = 1; i < pv.limit(); i++ )
+		s.append(",").append(pv.get(i));
 	    s.append("}");
 	}
 	s.append("]");
@@ -151,13 +223,18 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
     public boolean equals(Packet p) throws IllegalStateException {
 	boolean isEqual = ( (p.bndlID == this.bndlID) && (p.pktID == this.pktID));
 	if (isEqual
-	    && ( (p.len != this.len) || !java.util.Arrays.equals(p.payload,
-		this.payload)))
+	    && ( (p.len != this.len) || !payloadEquals(p)))
 	    throw new IllegalStateException("Packets with equal bndlID and"
 		+ " pktID found with differing content!");
 	return isEqual;
     }
 
+    private boolean payloadEquals(Packet p) {
+	ByteBuffer a = this.payloadView();
+	ByteBuffer b = p.payloadView();
+	return (a == null) ? (b == null) : a.equals(b);
+    }
+
     public boolean equals(Object obj) throws IllegalStateException {
 	return ( (obj == this) || ( (obj instanceof Packet) && equals((Packet) obj)));
     }
@@ -192,12 +269,15 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 	boolean valid = false;
 	if (p != null)
 	    if (p.pktID == 0) { // header packet
-		if (p.payload == null)
+		if (!p.hasPayload())
+		    valid = true;
+	    } else if (p.pktID < 0) { // control packet
+		if (p.len == p.payloadLength())
 		    valid = true;
-	    } else if ( (p.payload != null) // null only valid for header
+	    } else if ( (p.hasPayload()) // null only valid for header
 		// packets
 		&& (p.pktID > 0) // must be sequential to header packet
-		&& (p.len == p.payload.length))
+		&& (p.len == p.payloadLength()))
 		valid = true;
 	return valid;
     }
@@ -206,6 +286,63 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 	return Packet.isValid(this);
     }
 
+    /**
+     * @return <CODE>true</CODE> if this is a control {@link Packet} rather
+     *         than part of a bundle.
+     * @see #NAK_PACKET_ID
+     */
+    final boolean isControl() {
+	return (pktID < 0);
+    }
+
+    /**
+     * Flag set in the <CODE>len</CODE> field of a bundle's header
+     * {@link Packet}, above the count of data {@link Packet}s, when the
+     * bundle was deflated before it was decomposed. It is only sent to a
+     * peer which has said it can inflate bundles.
+     */
+    static final short HEADER_DEFLATED = Short.MIN_VALUE;
+
+    /**
+     * @return The number of data {@link Packet}s in the bundle headed by
+     *         this header {@link Packet}.
+     */
+    final int bundlePacketCount() {
+	return (len & ~HEADER_DEFLATED);
+    }
+
+    /**
+     * @return <CODE>true</CODE> if this is the header {@link Packet} of a
+     *         deflated bundle.
+     */
+    final boolean isDeflated() {
+	return (pktID == 0) && (0 != (len & HEADER_DEFLATED));
+    }
+
+    /**
+     * Marks this header {@link Packet} as heading a deflated bundle.
+     */
+    final void markDeflated() {
+	len |= HEADER_DEFLATED;
+    }
+
+    /**
+     * @return <CODE>true</CODE> if this {@link Packet} carries a payload,
+     *         whether copied or sliced.
+     */
+    final boolean hasPayload() {
+	return (payload != null) || (payloadBuf != null);
+    }
+
+    /**
+     * @return The length of this {@link Packet}'s payload, or zero if it
+     *         has none.
+     */
+    final int payloadLength() {
+	return (payload != null) ? payload.length
+	    : (payloadBuf != null) ? payloadBuf.capacity() : 0;
+    }
+
     /**
      * Converts a {@link ByteBuffer}into a series of {@link Packet}s. Each
      * packet will have the given genID, bndlID, and a unique, sequential
@@ -236,6 +373,54 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
      */
     static Packet[] decompose(ByteBuffer ibb, short psz, long gen, long bndl)
 	throws IllegalArgumentException
+    {
+	return decompose(ibb, psz, gen, bndl, false);
+    }
+
+    /**
+     * Converts a {@link ByteBuffer}into a series of {@link Packet}s, as
+     * {@link #decompose(ByteBuffer, short, long, long)} does, optionally
+     * without copying the bundle.
+     * <P>
+     * When <CODE>slice</CODE> is <CODE>true</CODE> each {@link Packet}'s
+     * payload is a read-only slice of <CODE>ibb</CODE> rather than a copy of
+     * it, so decomposing (and later sending) a bundle of any size copies no
+     * data. The {@link Packet}s then share <CODE>ibb</CODE>'s backing
+     * memory, so its content must not be changed for as long as the
+     * {@link Packet}s may be sent or resent.
+     * 
+     * @param ibb The {@link ByteBuffer}containing the bundle to be
+     *            decomposed into {@link Packet}s.
+     * @param psz The size of the payload for each {@link Packet}.
+     * @param gen The generation ID to use for the generated {@link Packet}
+     *            series.
+     * @param bndl The bundle ID to use for the generated {@link Packet}
+     *            series.
+     * @param slice Whether payloads should be slices of <CODE>ibb</CODE>
+     *            instead of copies.
+     * @return An array of {@link Packet}s containing the bundle and starting
+     *         with a header {@link Packet}.
+     * @throws NullPointerException if <CODE>ibb</CODE> is <CODE>null
+     *             </CODE>.
+     * @throws IllegalArgumentException if <CODE>ibb</CODE> is of zero
+     *             length, or if <CODE>psz</CODE> is negative or zero.
+     */
+    static Packet[] decompose(ByteBuffer ibb, short psz, long gen, long bndl,
+	boolean slice) throws IllegalArgumentException
+    {
+	return decompose(PacketFactory.getInstance(), ibb, psz, gen, bndl,
+	    slice);
+    }
+
+    /**
+     * Converts a {@link ByteBuffer}into a series of {@link Packet}s, as
+     * {@link #decompose(ByteBuffer, short, long, long, boolean)} does, each
+     * {@link Packet} being made by the given {@link PacketFactory}.
+     * 
+     * @param pf The {@link PacketFactory} to make the {@link Packet}s with.
+     */
+    static Packet[] decompose(PacketFactory pf, ByteBuffer ibb, short psz,
+	long gen, long bndl, boolean slice) throws IllegalArgumentException
     {
 	if (ibb == null)
 	    throw new NullPointerException(
@@ -250,18 +435,31 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 	int nfp = ibb.remaining() / psz;
 	int rb = ibb.remaining() - (nfp * psz);
 	int np = nfp + ((rb > 0) ? 1 : 0);
-	System.err.println("---Creating "+np+" packets ("+nfp+" @ "+psz+" + "+((rb>0)?1:0)+" @ "+rb+")");
+	assert (Defaults.dbg().finest("Creating " + np + " packets (" + nfp
+	    + " @ " + psz + " + " + ( (rb > 0) ? 1 : 0) + " @ " + rb + ")"));
 	Packet[] rpa = new Packet[np + 1];
-	rpa[0] = newPacket(gen, bndl, 0, (short) (np), null);
-	for (int i = 1; i <= nfp; i++ ) {
-	    byte[] p = new byte[psz];
-	    ibb.get(p);
-	    rpa[i] = newPacket(gen, bndl, i, psz, p);
-	}
-	if (rb > 0) {
-	    byte[] p = new byte[rb];
-	    ibb.get(p);
-	    rpa[np] = newPacket(gen, bndl, np, (short) rb, p);
+	rpa[0] = pf.newPacket(gen, bndl, 0, (short) (np), null);
+	if (slice) {
+	    ByteBuffer src = ibb.asReadOnlyBuffer();
+	    int p = src.position();
+	    for (int i = 1; i <= np; i++ ) {
+		int l = (i <= nfp) ? psz : rb;
+		src.limit(p + l).position(p);
+		rpa[i] = pf.newPacket(gen, bndl, i, src);
+		p += l;
+	    }
+	    ibb.position(p);
+	} else {
+	    for (int i = 1; i <= nfp; i++ ) {
+		byte[] p = new byte[psz];
+		ibb.get(p);
+		rpa[i] = pf.newPacket(gen, bndl, i, psz, p);
+	    }
+	    if (rb > 0) {
+		byte[] p = new byte[rb];
+		ibb.get(p);
+		rpa[np] = pf.newPacket(gen, bndl, np, (short) rb, p);
+	    }
 	}
 	return rpa;
     }
@@ -269,7 +467,17 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
     static Packet newPacket(long gid, long mid, int pid, short l, byte[] p)
     {
 	Packet npkt = new Packet(gid, mid, pid, l, p);
-	System.err.println("Created Packet: " + npkt);
+	assert (Defaults.dbg().finest("Created Packet: " + npkt));
+	return npkt;
+    }
+
+    /**
+     * Creates a {@link Packet} whose payload is the remaining content of
+     * <CODE>p</CODE>, shared rather than copied.
+     */
+    static Packet newPacket(long gid, long mid, int pid, ByteBuffer p) {
+	Packet npkt = new Packet(gid, mid, pid, p);
+	assert (Defaults.dbg().finest("Created Packet: " + npkt));
 	return npkt;
     }
 
@@ -338,11 +546,11 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 	if (pkts[0].pktID != 0)
 	    throw new IllegalArgumentException(
 		"Attempt to combine Packets with" + " no header packet!");
-	if (pkts[0].payload != null)
+	if (pkts[0].hasPayload())
 	    throw new IllegalArgumentException(
 		"Attempt to combine Packets with"
 		    + " a header packet containing a non-null payload!");
-	if (pkts[0].len != al - 1)
+	if (pkts[0].bundlePacketCount() != al - 1)
 	    throw new IllegalArgumentException(
 		"Attempt to combine Packets with"
 		    + " a header packet specifying a different number of packets than"
@@ -360,26 +568,64 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 			    + " nonsequential packet IDs!");
 		l += pkts[i].len;
 	    }
-	    rb = ByteBuffer.allocate(l);
+	    rb = BufferPool.acquire(l);
 	    for (int i = 1; i < al; i++ ) {
-		rb.put(pkts[i].payload);
+		rb.put(pkts[i].payloadView());
 	    }
 	    rb.rewind();
 	} else {
-	    rb = ByteBuffer.allocate(0);
+	    rb = BufferPool.acquire(0);
 	}
 	return rb;
     }
 
     public int byteLength() {
-	return ( (payload == null) ? 0 : payload.length) + metaDataLength();
+	return payloadLength() + metaDataLength();
+    }
+
+    /**
+     * Returns this {@link Packet}'s payload as a {@link ByteBuffer}
+     * positioned at the start of the payload, for use in a gathering write
+     * alongside the encoded header. The view is cached, so sending the same
+     * {@link Packet} again (e.g. on retransmission) does not allocate. Only
+     * one sender may use the returned view at a time.
+     * 
+     * @return A view of the payload, or <CODE>null</CODE> if this
+     *         {@link Packet} has no payload.
+     */
+    ByteBuffer payloadBuffer() {
+	if (payloadBuf == null) {
+	    if (payload == null)
+		return null;
+	    payloadBuf = ByteBuffer.wrap(payload);
+	}
+	payloadBuf.clear();
+	return payloadBuf;
+    }
+
+    /**
+     * Returns a new view of this {@link Packet}'s payload, independent of
+     * the cached view used for sending.
+     * 
+     * @return A view of the payload, or <CODE>null</CODE> if this
+     *         {@link Packet} has no payload.
+     */
+    ByteBuffer payloadView() {
+	if (payload != null)
+	    return ByteBuffer.wrap(payload);
+	if (payloadBuf != null) {
+	    ByteBuffer pv = payloadBuf.duplicate();
+	    pv.clear();
+	    return pv;
+	}
+	return null;
     }
 
     ByteBuffer toByteBuffer() {
-	ByteBuffer rb = ByteBuffer.allocate(this.byteLength());
+	ByteBuffer rb = BufferPool.acquire(this.byteLength());
 	appendPacketHeader(rb);
-	if (payload != null) {
-	    rb.put(payload);
+	if (hasPayload()) {
+	    rb.put(payloadView());
 	}
 	rb.rewind();
 	return rb;
@@ -403,15 +649,15 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
     ByteBuffer appendToByteBuffer(ByteBuffer bb)
 	throws NullPointerException
     {
-	int need = ( ( (payload == null) ? 0 : payload.length) + metaDataLength())
-	    - bb.remaining();
+	int need = byteLength() - bb.remaining();
 	ByteBuffer rb = null;
 	if (need > 0)
-	    rb = ByteBuffer.allocate(need + bb.capacity()).put(bb);
+	    rb = BufferPool.acquire(need + bb.capacity()).put(bb);
 	else
 	    rb = bb;
 	appendPacketHeader(rb);
-	rb.put(payload);
+	if (hasPayload())
+	    rb.put(payloadView());
 	return rb;
     }
 
@@ -454,12 +700,43 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
     protected void appendPacketHeader(final ByteBuffer bb)
 	throws NullPointerException, BufferOverflowException
     {
-	bb.putInt(PACKET_MAGIC_ID).putLong(genID).putLong(bndlID).putInt(
+	bb.putInt(magicID()).putLong(genID).putLong(bndlID).putInt(
 	    pktID).putShort(len);
     }
 
+    /**
+     * @return The magic number this {@link Packet}'s header starts with.
+     *         Subclasses whose metadata a plain {@link Packet} could not
+     *         read override it, so that their {@link Packet}s are told apart
+     *         as they are read.
+     */
+    protected int magicID() {
+	return PACKET_MAGIC_ID;
+    }
+
     static Packet valueOf(ByteBuffer buf)
 	throws IllegalArgumentException, BufferUnderflowException
+    {
+	return valueOf(PacketFactory.getInstance(), buf);
+    }
+
+    /**
+     * Reads a {@link Packet} from the start of a buffer, as
+     * {@link #valueOf(ByteBuffer)} does, the {@link Packet} being made by
+     * the given {@link PacketFactory} and so reading that factory's
+     * metadata. A {@link Crc32cPacket}, which has its own magic number, is
+     * read whatever the factory. A {@link Packet} which then fails
+     * {@link #isValid()} (its checksum, say, not matching its payload) is
+     * skipped, the buffer being advanced past it.
+     * 
+     * @param pf The {@link PacketFactory} to make the {@link Packet} with.
+     * @param buf The buffer.
+     * @return The {@link Packet}, or <CODE>null</CODE> if the buffer does
+     *         not yet hold all of it.
+     * @throws IllegalArgumentException if the {@link Packet} is invalid.
+     */
+    static Packet valueOf(PacketFactory pf, ByteBuffer buf)
+	throws IllegalArgumentException, BufferUnderflowException
     {
 	long g, m;
 	int p;
@@ -476,29 +753,63 @@ public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeV
 	    ByteBuffer bb = buf.asReadOnlyBuffer();
 	    // parse it
 	    try {
-		if (bb.getInt() == PACKET_MAGIC_ID) {
+		int magic = bb.getInt();
+		if (magic == Crc32cPacket.PACKET_MAGIC_ID) {
+		    pf = Crc32cPacketFactory.getInstance();
+		}
+		if (magic == PACKET_MAGIC_ID
+		    || magic == Crc32cPacket.PACKET_MAGIC_ID)
+		{
 		    g = bb.getLong();
 		    m = bb.getLong();
 		    p = bb.getInt();
 		    l = bb.getShort();
 		    b = ( (l < 1) || (p == 0)) ? null : new byte[l];
-		    rp = newPacket(g, m, p, l, b);
+		    rp = pf.newPacket(g, m, p, l, b);
 		    rp.readMetaData(bb);
 		    if ( (rp.payload != null) && (rp.payload.length > 0)) {
 			bb.get(rp.payload);
 		    }
-		    System.err.println("Got buffer valueOf "+rp);
+		    assert (Defaults.dbg().finest("Got buffer valueOf " + rp));
 		}
 	    } catch (BufferUnderflowException e) {
 		rp = null;
 	    }
 	    if (rp != null) {
 		buf.position(bb.position());
+		if (!rp.isValid())
+		    throw new IllegalArgumentException("Received a corrupt "
+			+ rp);
 	    }
 	}
 	return rp;
     }
 
+    /**
+     * Starts the check of a bundle's content against this, its header
+     * {@link Packet}. The content is fed to the returned {@link Checksum}
+     * in order, and then checked with
+     * {@link #bundleChecksumMatches(Checksum)}. Subclasses which carry a
+     * checksum of the whole bundle in the header {@link Packet} override
+     * both.
+     * 
+     * @return The {@link Checksum} to compute, or <CODE>null</CODE> if this
+     *         kind of {@link Packet} carries no bundle checksum.
+     */
+    Checksum newBundleChecksum() {
+	return null;
+    }
+
+    /**
+     * @param sum A {@link Checksum} from {@link #newBundleChecksum()},
+     *            which has been fed the whole of the bundle.
+     * @return <CODE>true</CODE> if the bundle's content matches the
+     *         checksum carried by this header {@link Packet}.
+     */
+    boolean bundleChecksumMatches(Checksum sum) {
+	return true;
+    }
+
     /**
      * Override this in subclasses to read metadata from the input ByteBuffer.
      * This method is called immediately after having read the base Packet
@@ -67,31 +67,79 @@ class PacketFactory {
 	}
     }
 
-    static short getDefaultPayloadSize() {
+    short getDefaultPayloadSize() {
 	return Packet.DEFAULT_PACKET_PAYLOAD_LENGTH;
     }
 
-    static Packet getHeartbeatPacket() {
+    Packet getHeartbeatPacket() {
 	return Packet.getHeartbeatPacket();
     }
 
-    static Packet[] decompose(ByteBuffer ibb,short psz,long gen, long bndl)
+    Packet[] decompose(ByteBuffer ibb,short psz,long gen, long bndl)
     throws IllegalArgumentException {
-	return Packet.decompose(ibb, psz, gen, bndl);
+	return decompose(ibb, psz, gen, bndl, false);
     }
 
-    static Packet newPacket(long gid, long mid, int pid, short l, byte[] p) {
+    Packet[] decompose(ByteBuffer ibb,short psz,long gen, long bndl,
+	boolean slice) throws IllegalArgumentException {
+	return Packet.decompose(this, ibb, psz, gen, bndl, slice);
+    }
+
+    Packet newPacket(long gid, long mid, int pid, short l, byte[] p) {
 	return Packet.newPacket(gid,mid,pid,l,p);
     }
 
-    static ByteBuffer recombine(Packet[] pkts)
+    Packet newPacket(long gid, long mid, int pid, ByteBuffer p) {
+	return Packet.newPacket(gid,mid,pid,p);
+    }
+
+    ByteBuffer recombine(Packet[] pkts)
     throws IllegalArgumentException, NullPointerException {
 	return Packet.recombine(pkts);
     }
 
-    static Packet valueOf(ByteBuffer buf)
+    Packet valueOf(ByteBuffer buf)
     throws IllegalArgumentException, BufferUnderflowException {
 	return Packet.valueOf(buf);
     }
 
+    /** @return The length of the longest metadata a {@link Packet} made by
+     * this factory can have, for sizing payloads to fit a buffer or a
+     * datagram.
+     */
+    int maxMetaDataLength() {
+	return getHeartbeatPacket().metaDataLength();
+    }
+
+    /** @return <CODE>true</CODE> if {@link #valueOf(ByteBuffer)} can read
+     * {@link CompactPacket}s, so that the other end of a {@link Conduit}
+     * may be told to send them.
+     */
+    boolean readsCompactHeaders() {
+	return false;
+    }
+
+    /** @return The factory to make {@link Packet}s with until the other end
+     * of a {@link Conduit} has said it reads compact headers: this factory
+     * itself, unless its {@link Packet}s have them.
+     */
+    PacketFactory fullHeaderFactory() {
+	return this;
+    }
+
+    /** @return <CODE>true</CODE> if this factory's {@link Packet}s carry
+     * CRCs, which the other end of a {@link Conduit} must check too.
+     */
+    boolean checksCrcs() {
+	return false;
+    }
+
+    /** @return The factory to make {@link Packet}s with until the other end
+     * of a {@link Conduit} has said it checks CRCs: this factory itself,
+     * unless its {@link Packet}s carry them.
+     */
+    PacketFactory uncheckedFactory() {
+	return this;
+    }
+
 }
@@ -0,0 +1,166 @@
+/*
+ * RttEstimator.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * Estimates the round trip time to the other end of a {@link Conduit}, and
+ * from it the retransmission timeout, after Jacobson and Karels: a smoothed
+ * round trip time (SRTT) and its mean deviation (RTTVAR) are updated from
+ * each sample with gains of 1/8 and 1/4, and the timeout is
+ * <CODE>SRTT + 4 * RTTVAR</CODE>, kept between
+ * {@link #MIN_RTO_MS} and {@link #MAX_RTO_MS}.
+ * <P>
+ * Samples must only be taken from exchanges which were not retransmitted,
+ * since an answer to a retransmission cannot be matched to the transmission
+ * it answers (Karn's rule). Instead, a timeout which forces a
+ * retransmission doubles the timeout until a fresh sample is taken.
+ * <P>
+ * An RttEstimator is synchronized, since the send and receive sides of a
+ * {@link Conduit} both take samples.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+final class RttEstimator {
+
+    /**
+	 * Code version for the RttEstimator class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * The timeout, in milliseconds, used until the first sample is taken.
+	 */
+    static final long INITIAL_RTO_MS = 1000;
+
+    /**
+	 * Floor on the timeout, in milliseconds, which keeps delayed answers
+	 * from being mistaken for lost ones on fast links.
+	 */
+    static final long MIN_RTO_MS = 200;
+
+    /**
+	 * Ceiling on the timeout, in milliseconds, however far it is backed
+	 * off.
+	 */
+    static final long MAX_RTO_MS = 10000;
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    /**
+	 * The smoothed round trip time, in nanoseconds, or -1 before the first
+	 * sample.
+	 */
+    private long srttNanos = -1;
+
+    /**
+	 * The smoothed mean deviation of the round trip time, in nanoseconds.
+	 */
+    private long rttVarNanos = 0;
+
+    private volatile long rtoNanos = INITIAL_RTO_MS * NANOS_PER_MS;
+
+    /**
+	 * When the timeout may next be backed off, by {@link System#nanoTime()}.
+	 */
+    private long nextBackoffNanos = System.nanoTime();
+
+    /**
+	 * Adds a round trip time sample.
+	 *
+	 * @param rttNanos
+	 *                The time, in nanoseconds, from a transmission to its
+	 *                answer. Negative samples are ignored.
+	 */
+    synchronized void sample(long rttNanos) {
+	if (rttNanos < 0) {
+	    return;
+	}
+	if (this.srttNanos < 0) {
+	    this.srttNanos = rttNanos;
+	    this.rttVarNanos = rttNanos >> 1;
+	} else {
+	    long err = rttNanos - this.srttNanos;
+	    this.srttNanos += err >> 3;
+	    this.rttVarNanos += (Math.abs(err) - this.rttVarNanos) >> 2;
+	}
+	setRto(this.srttNanos + (this.rttVarNanos << 2));
+    }
+
+    /**
+	 * Doubles the timeout, after it has expired and forced a
+	 * retransmission. Many deadlines passing together back the timeout off
+	 * only once; it is not backed off again until the backed off timeout
+	 * has passed.
+	 */
+    synchronized void backoff() {
+	long now = System.nanoTime();
+	if (now - this.nextBackoffNanos >= 0) {
+	    setRto(this.rtoNanos << 1);
+	    this.nextBackoffNanos = now + this.rtoNanos;
+	}
+    }
+
+    private void setRto(long nanos) {
+	if (nanos < MIN_RTO_MS * NANOS_PER_MS) {
+	    nanos = MIN_RTO_MS * NANOS_PER_MS;
+	} else if (nanos > MAX_RTO_MS * NANOS_PER_MS) {
+	    nanos = MAX_RTO_MS * NANOS_PER_MS;
+	}
+	this.rtoNanos = nanos;
+    }
+
+    /**
+	 * @return The retransmission timeout, in milliseconds.
+	 */
+    long getRtoMs() {
+	return this.rtoNanos / NANOS_PER_MS;
+    }
+
+    /**
+	 * @return The smoothed round trip time, in nanoseconds, or -1 if no
+	 *         sample has been taken.
+	 */
+    synchronized long getSmoothedRttNanos() {
+	return this.srttNanos;
+    }
+
+    /**
+	 * @return The smoothed mean deviation of the round trip time, in
+	 *         nanoseconds.
+	 */
+    synchronized long getRttVarianceNanos() {
+	return this.rttVarNanos;
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * SharedMemoryChannel.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.SelectorProvider;
+
+import com.InfoMontage.common.Defaults;
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * A byte stream between two processes on the same host, through a pair of
+ * ring buffers in a memory-mapped file. One process {@link #create(File)}s
+ * the file and the other {@link #attach(File)}es to it; each then writes
+ * into one ring and reads from the other, so moving data costs a copy into
+ * and out of shared memory and no system calls.
+ * <P>
+ * Each ring has a single producer and a single consumer. The producer
+ * copies data in past the ring's head and then advances the head; the
+ * consumer copies data out from the ring's tail up to the head and then
+ * advances the tail. Head and tail are free-running byte counts, each
+ * written only by its own side, so neither side ever waits for the other's
+ * lock. Each index, and each side's closed flag, is a long in the file
+ * written with release and read with acquire semantics through a
+ * {@link VarHandle} on the mapped buffer, so that the copies made before
+ * the other process moved an index are seen by the one which reads it. A
+ * Java volatile field would order only this process's own accesses.
+ * <P>
+ * A SharedMemoryChannel can be handed to a {@link Conduit}like any other
+ * {@link java.nio.channels.SelectableChannel}, and carries the same
+ * {@link Packet}s, bundles and Acks. There is nothing for a
+ * {@link java.nio.channels.Selector}to wait on, so the {@link Conduit}'s
+ * reactor polls it instead. It is always in non-blocking mode: a read
+ * with nothing to read, or a write with the ring full, returns zero.
+ * Closing either end is seen by the other as end-of-stream, once it has
+ * read what was written before the close.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public final class SharedMemoryChannel extends AbstractSelectableChannel
+	implements ByteChannel, GatheringByteChannel {
+
+    /**
+	 * Code version for the SharedMemoryChannel class. Determined from CVS
+	 * file revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * Marks a file laid out as a pair of rings; written last by
+	 * {@link #create(File, int)}, so an attacher never sees a half-made
+	 * file as ready.
+	 */
+    private static final int MAGIC = ByteBuffer.wrap("SmCh".getBytes())
+	    .getInt();
+
+    /**
+	 * Ordered access to the longs and ints of the mapped file, whose
+	 * offsets are all aligned to their size.
+	 */
+    private static final VarHandle LONGS = MethodHandles
+	    .byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final VarHandle INTS = MethodHandles
+	    .byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    /*
+	 * File layout. Each index and flag written by a different side sits
+	 * on its own cache line.
+	 */
+    private static final int MAGIC_OFF = 0;
+
+    private static final int CAPACITY_OFF = 4;
+
+    private static final int LINE = 64;
+
+    /**
+	 * Offsets of the head and tail of ring <CODE>r</CODE> are
+	 * <CODE>HEAD_OFF + r * 2 * LINE</CODE> and one line further.
+	 */
+    private static final int HEAD_OFF = LINE;
+
+    /**
+	 * Offset of side <CODE>s</CODE>'s closed flag is
+	 * <CODE>CLOSED_OFF + s * LINE</CODE>.
+	 */
+    private static final int CLOSED_OFF = 5 * LINE;
+
+    private static final int DATA_OFF = 8 * LINE;
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer map;
+
+    /**
+	 * Views of the ring written by this side and the ring read by it.
+	 */
+    private final ByteBuffer outRing;
+
+    private final ByteBuffer inRing;
+
+    private final int capacity;
+
+    private final int mask;
+
+    /**
+	 * Which side this is: 0 for the creator, 1 for the attacher.
+	 */
+    private final int side;
+
+    private final int outHeadOff;
+
+    private final int outTailOff;
+
+    private final int inHeadOff;
+
+    private final int inTailOff;
+
+    /**
+	 * This side's own indices, which only it writes, cached so they need
+	 * not be read back from the file.
+	 */
+    private long outHead;
+
+    private long inTail;
+
+    private SharedMemoryChannel(RandomAccessFile f, MappedByteBuffer m,
+	    int cap, int s) throws IOException {
+	super(SelectorProvider.provider());
+	this.file = f;
+	this.map = m;
+	this.capacity = cap;
+	this.mask = cap - 1;
+	this.side = s;
+	this.outHeadOff = HEAD_OFF + (s * 2 * LINE);
+	this.outTailOff = this.outHeadOff + LINE;
+	this.inHeadOff = HEAD_OFF + ((1 - s) * 2 * LINE);
+	this.inTailOff = this.inHeadOff + LINE;
+	this.outRing = ring(m, s, cap);
+	this.inRing = ring(m, 1 - s, cap);
+	this.outHead = (long) LONGS.getAcquire(m, this.outHeadOff);
+	this.inTail = (long) LONGS.getAcquire(m, this.inTailOff);
+	configureBlocking(false);
+    }
+
+    private static ByteBuffer ring(MappedByteBuffer m, int r, int cap) {
+	ByteBuffer b = m.duplicate();
+	b.limit(DATA_OFF + ((r + 1) * cap)).position(DATA_OFF + (r * cap));
+	return b.slice();
+    }
+
+    /**
+	 * Creates (or re-creates) a file with rings of the default size, and
+	 * opens the creating end of a channel through it.
+	 *
+	 * @param f
+	 *                The file, which should be on a memory-backed file
+	 *                system such as <CODE>/dev/shm</CODE>.
+	 * @return The channel.
+	 * @throws IOException
+	 *                 if the file cannot be created or mapped.
+	 */
+    public static SharedMemoryChannel create(File f) throws IOException {
+	return create(f, Defaults.DEFAULT_SHARED_MEMORY_RING_BYTES);
+    }
+
+    /**
+	 * Creates (or re-creates) a file, and opens the creating end of a
+	 * channel through it.
+	 *
+	 * @param f
+	 *                The file, which should be on a memory-backed file
+	 *                system such as <CODE>/dev/shm</CODE>.
+	 * @param capacity
+	 *                The size of each ring, in bytes; a power of two.
+	 * @return The channel.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>capacity</CODE> is not a positive power of
+	 *                 two.
+	 * @throws IOException
+	 *                 if the file cannot be created or mapped.
+	 */
+    public static SharedMemoryChannel create(File f, int capacity)
+	    throws IllegalArgumentException, IOException {
+	if (capacity <= 0 || 0 != (capacity & (capacity - 1))) {
+	    throw new IllegalArgumentException(
+		    "Attempt to create a SharedMemoryChannel with a ring of "
+			    + capacity + " bytes!");
+	}
+	RandomAccessFile raf = new RandomAccessFile(f, "rw");
+	try {
+	    raf.setLength(0);
+	    raf.setLength(DATA_OFF + (2L * capacity));
+	    MappedByteBuffer m = raf.getChannel().map(
+		    FileChannel.MapMode.READ_WRITE, 0, raf.length());
+	    m.order(ByteOrder.nativeOrder());
+	    m.putInt(CAPACITY_OFF, capacity);
+	    SharedMemoryChannel retVal = new SharedMemoryChannel(raf, m,
+		    capacity, 0);
+	    INTS.setRelease(m, MAGIC_OFF, MAGIC);
+	    return retVal;
+	} catch (IOException e) {
+	    raf.close();
+	    throw e;
+	}
+    }
+
+    /**
+	 * Opens the attaching end of a channel through a file made by
+	 * {@link #create(File, int)}.
+	 *
+	 * @param f
+	 *                The file.
+	 * @return The channel.
+	 * @throws IOException
+	 *                 if the file cannot be mapped, or has not (yet) been
+	 *                 set up by its creator.
+	 */
+    public static SharedMemoryChannel attach(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "rw");
+	try {
+	    if (raf.length() < DATA_OFF) {
+		throw new IOException("Attempt to attach to " + f
+			+ ", which is not a SharedMemoryChannel file!");
+	    }
+	    MappedByteBuffer m = raf.getChannel().map(
+		    FileChannel.MapMode.READ_WRITE, 0, raf.length());
+	    m.order(ByteOrder.nativeOrder());
+	    if (MAGIC != (int) INTS.getAcquire(m, MAGIC_OFF)) {
+		throw new IOException("Attempt to attach to " + f
+			+ ", which is not a ready SharedMemoryChannel file!");
+	    }
+	    int cap = m.getInt(CAPACITY_OFF);
+	    if (cap <= 0 || 0 != (cap & (cap - 1))
+		    || raf.length() < DATA_OFF + (2L * cap)) {
+		throw new IOException("Attempt to attach to " + f
+			+ ", whose rings are inconsistent!");
+	    }
+	    return new SharedMemoryChannel(raf, m, cap, 1);
+	} catch (IOException e) {
+	    raf.close();
+	    throw e;
+	}
+    }
+
+    /**
+	 * @return The size of each ring, in bytes.
+	 */
+    public int getCapacity() {
+	return this.capacity;
+    }
+
+    /**
+	 * @return The number of bytes waiting to be read.
+	 */
+    public int available() {
+	long head = (long) LONGS.getAcquire(this.map, this.inHeadOff);
+	return (int) (head - this.inTail);
+    }
+
+    /**
+	 * @return The number of bytes which may be written without the ring
+	 *         filling.
+	 */
+    public int writable() {
+	long tail = (long) LONGS.getAcquire(this.map, this.outTailOff);
+	return this.capacity - (int) (this.outHead - tail);
+    }
+
+    /**
+	 * @return <CODE>true</CODE> if the other end has closed.
+	 */
+    public boolean isPeerClosed() {
+	return (0 != (long) LONGS.getAcquire(this.map, CLOSED_OFF
+		+ ((1 - this.side) * LINE)));
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+	if (!isOpen()) {
+	    throw new ClosedChannelException();
+	}
+	long head = (long) LONGS.getAcquire(this.map, this.inHeadOff);
+	int avail = (int) (head - this.inTail);
+	if (0 == avail) {
+	    // the close flag is set after the last index update, so nothing
+	    // written before the close can still be on its way
+	    return (isPeerClosed() && head == (long) LONGS.getAcquire(
+		    this.map, this.inHeadOff)) ? -1 : 0;
+	}
+	int n = (avail < dst.remaining()) ? avail : dst.remaining();
+	int i = (int) this.inTail & this.mask;
+	int first = (n < (this.capacity - i)) ? n : (this.capacity - i);
+	this.inRing.limit(i + first).position(i);
+	dst.put(this.inRing);
+	if (first < n) {
+	    this.inRing.limit(n - first).position(0);
+	    dst.put(this.inRing);
+	}
+	this.inTail += n;
+	// the copy out is done before the writer may reuse the space
+	LONGS.setRelease(this.map, this.inTailOff, this.inTail);
+	return n;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+	if (!isOpen()) {
+	    throw new ClosedChannelException();
+	}
+	int n = put(src, writable());
+	if (n > 0) {
+	    publish();
+	}
+	return n;
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length)
+	    throws IOException {
+	if (!isOpen()) {
+	    throw new ClosedChannelException();
+	}
+	int free = writable();
+	long retVal = 0;
+	for (int i = offset; i < offset + length && free > 0; i++) {
+	    int n = put(srcs[i], free);
+	    free -= n;
+	    retVal += n;
+	}
+	if (retVal > 0) {
+	    // one index update for the lot
+	    publish();
+	}
+	return retVal;
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+	return write(srcs, 0, srcs.length);
+    }
+
+    /**
+	 * Copies as much of a buffer into the outbound ring as fits, without
+	 * publishing it.
+	 *
+	 * @param src
+	 *                The buffer.
+	 * @param free
+	 *                The free space in the ring.
+	 * @return The number of bytes copied.
+	 */
+    private int put(ByteBuffer src, int free) {
+	int n = (free < src.remaining()) ? free : src.remaining();
+	if (n <= 0) {
+	    return 0;
+	}
+	int i = (int) this.outHead & this.mask;
+	int first = (n < (this.capacity - i)) ? n : (this.capacity - i);
+	int lim = src.limit();
+	this.outRing.limit(i + first).position(i);
+	src.limit(src.position() + first);
+	this.outRing.put(src);
+	if (first < n) {
+	    this.outRing.limit(n - first).position(0);
+	    src.limit(src.position() + (n - first));
+	    this.outRing.put(src);
+	}
+	src.limit(lim);
+	this.outHead += n;
+	return n;
+    }
+
+    /**
+	 * Makes the data copied into the outbound ring visible to the reader.
+	 */
+    private void publish() {
+	LONGS.setRelease(this.map, this.outHeadOff, this.outHead);
+    }
+
+    public int validOps() {
+	return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    }
+
+    protected void implCloseSelectableChannel() throws IOException {
+	LONGS.setRelease(this.map, CLOSED_OFF + (this.side * LINE), 1L);
+	this.map.force();
+	this.file.close();
+    }
+
+    /**
+	 * A SharedMemoryChannel never blocks.
+	 *
+	 * @throws IllegalBlockingModeException
+	 *                 if asked to block.
+	 */
+    protected void implConfigureBlocking(boolean block)
+	    throws IllegalBlockingModeException {
+	if (block) {
+	    throw new IllegalBlockingModeException();
+	}
+    }
+}
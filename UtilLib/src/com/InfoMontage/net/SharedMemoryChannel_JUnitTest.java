@@ -0,0 +1,270 @@
+/*
+ * SharedMemoryChannel_JUnitTest.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the other end of each {@link SharedMemoryChannel} in a second JVM,
+ * so that the ordering of the rings' indices is tested between processes
+ * and not just between {@link Thread}s.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public class SharedMemoryChannel_JUnitTest extends TestCase {
+
+    /**
+	 * Small enough that the streams wrap around the rings many times.
+	 */
+    static final int RING_BYTES = 4096;
+
+    static final int STREAM_BYTES = 8 * 1024 * 1024;
+
+    static final long TIMEOUT_MS = 60000;
+
+    File file;
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(SharedMemoryChannel_JUnitTest.class);
+    }
+
+    /**
+         * Constructor for SharedMemoryChannel_JUnitTest.
+         *
+         * @param arg0
+         */
+    public SharedMemoryChannel_JUnitTest(String arg0) {
+	super(arg0);
+    }
+
+    protected void setUp() throws Exception {
+	super.setUp();
+	File shm = new File("/dev/shm");
+	this.file = File.createTempFile("smch", ".ring", shm.isDirectory()
+		&& shm.canWrite() ? shm : null);
+    }
+
+    protected void tearDown() throws Exception {
+	this.file.delete();
+	this.file = null;
+	super.tearDown();
+    }
+
+    /**
+	 * The byte at position <CODE>p</CODE> of the stream sent by side
+	 * <CODE>s</CODE>.
+	 */
+    static byte streamByte(int s, long p) {
+	return (byte) ((p * 31) ^ (p >>> 11) ^ (s * 0x5A));
+    }
+
+    /**
+	 * Writes side <CODE>s</CODE>'s stream of <CODE>count</CODE> bytes
+	 * while reading the other side's, each in chunks of varying size, until
+	 * both are done or the time runs out.
+	 *
+	 * @return <CODE>null</CODE>, or what went wrong.
+	 */
+    static String exchange(SharedMemoryChannel ch, int s, long count)
+	    throws IOException {
+	ByteBuffer out = ByteBuffer.allocate(3 * RING_BYTES);
+	ByteBuffer in = ByteBuffer.allocate(3 * RING_BYTES);
+	long filled = 0;
+	long got = 0;
+	int chunk = 1;
+	long start = System.currentTimeMillis();
+	out.flip();
+	while (out.hasRemaining() || filled < count || got < count) {
+	    if (System.currentTimeMillis() - start > TIMEOUT_MS) {
+		return "side " + s + " timed out having sent "
+			+ (filled - out.remaining()) + " and received " + got;
+	    }
+	    if (!out.hasRemaining() && filled < count) {
+		out.clear();
+		chunk = (chunk * 7 + 13) % out.capacity() + 1;
+		long n = Math.min(chunk, count - filled);
+		for (int i = 0; i < n; i++) {
+		    out.put(streamByte(s, filled + i));
+		}
+		out.flip();
+		filled += n;
+	    }
+	    // never wait for the ring to drain, as the other side may be
+	    // waiting likewise
+	    boolean moved = (0 < ch.write(out));
+	    in.clear();
+	    int n = ch.read(in);
+	    if (n < 0) {
+		return "side " + s + " saw the stream end after " + got;
+	    }
+	    for (int i = 0; i < n; i++) {
+		if (in.get(i) != streamByte(1 - s, got + i)) {
+		    return "side " + s + " received a wrong byte at "
+			    + (got + i);
+		}
+	    }
+	    got += n;
+	    if (!moved && 0 == n) {
+		Thread.yield();
+	    }
+	}
+	return null;
+    }
+
+    /**
+	 * Reads until the end of the stream.
+	 *
+	 * @return <CODE>null</CODE>, or what went wrong.
+	 */
+    static String awaitClose(SharedMemoryChannel ch, int s)
+	    throws IOException {
+	ByteBuffer in = ByteBuffer.allocate(16);
+	long start = System.currentTimeMillis();
+	int n;
+	while (0 <= (n = ch.read(in))) {
+	    if (n > 0) {
+		return "side " + s + " received " + n
+			+ " bytes past the stream";
+	    }
+	    if (System.currentTimeMillis() - start > TIMEOUT_MS) {
+		return "side " + s + " never saw the stream end";
+	    }
+	    Thread.yield();
+	}
+	return (ch.isPeerClosed() ? null : "side " + s
+		+ " saw the stream end before the other side closed");
+    }
+
+    /**
+	 * The attaching side, run in the second JVM by
+	 * {@link SharedMemoryChannel_JUnitTest#testTwoProcesses()}. Exits with
+	 * zero if all went well.
+	 */
+    public static class Peer {
+
+	public static void main(String[] args) throws IOException {
+	    SharedMemoryChannel ch = SharedMemoryChannel.attach(new File(
+		    args[0]));
+	    long count = Long.parseLong(args[1]);
+	    String failure = exchange(ch, 1, count);
+	    if (null == failure) {
+		// the creator closes first
+		failure = awaitClose(ch, 1);
+	    }
+	    ch.close();
+	    if (null != failure) {
+		System.out.println(failure);
+		System.exit(1);
+	    }
+	    System.exit(0);
+	}
+    }
+
+    private Process startPeer(long count) throws IOException {
+	String java = System.getProperty("java.home") + File.separator + "bin"
+		+ File.separator + "java";
+	ProcessBuilder pb = new ProcessBuilder(new String[] { java, "-cp",
+		System.getProperty("java.class.path"), Peer.class.getName(),
+		this.file.getPath(), Long.toString(count) });
+	pb.redirectErrorStream(true);
+	return pb.start();
+    }
+
+    private static String output(Process p) throws IOException {
+	InputStream is = p.getInputStream();
+	ByteArrayOutputStream os = new ByteArrayOutputStream();
+	byte[] b = new byte[1024];
+	int n;
+	while (0 < (n = is.read(b))) {
+	    os.write(b, 0, n);
+	}
+	return os.toString().trim();
+    }
+
+    public void testTwoProcesses() throws Exception {
+	SharedMemoryChannel ch = SharedMemoryChannel.create(this.file,
+		RING_BYTES);
+	Process p = startPeer(STREAM_BYTES);
+	try {
+	    String failure = exchange(ch, 0, STREAM_BYTES);
+	    assertNull(failure, failure);
+	    assertFalse(ch.isPeerClosed());
+	    ch.close();
+	    assertTrue("peer did not finish", p.waitFor(TIMEOUT_MS,
+		    TimeUnit.MILLISECONDS));
+	    assertEquals(output(p), 0, p.exitValue());
+	} finally {
+	    p.destroy();
+	    ch.close();
+	}
+    }
+
+    public void testSingleProcess() throws IOException {
+	SharedMemoryChannel a = SharedMemoryChannel.create(this.file,
+		RING_BYTES);
+	SharedMemoryChannel b = SharedMemoryChannel.attach(this.file);
+	assertEquals(RING_BYTES, b.getCapacity());
+	assertEquals(RING_BYTES, a.writable());
+	ByteBuffer buf = ByteBuffer.allocate(RING_BYTES + 10);
+	assertEquals(RING_BYTES, a.write(buf));
+	assertEquals(0, a.writable());
+	assertEquals(RING_BYTES, b.available());
+	buf.clear();
+	assertEquals(RING_BYTES, b.read(buf));
+	assertEquals(0, b.read(buf));
+	a.close();
+	assertTrue(b.isPeerClosed());
+	assertEquals(-1, b.read(buf));
+	b.close();
+    }
+
+    public void testBadFiles() throws IOException {
+	try {
+	    SharedMemoryChannel.create(this.file, 1000);
+	    fail("ring of 1000 bytes created");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+	try {
+	    SharedMemoryChannel.attach(this.file);
+	    fail("attached to an empty file");
+	} catch (IOException e) {
+	    // expected
+	}
+    }
+}
@@ -34,6 +34,7 @@ import com.InfoMontage.stream.MessageTemplate;
 import com.InfoMontage.task.Task;
 
 import java.nio.ByteBuffer;
+import com.InfoMontage.util.BufferPool;
 
 /**
  * 
@@ -126,6 +127,7 @@ public abstract class AbstractMessageProcessor implements MessageProcessor,
     }
 
     synchronized public void clearParameters() {
+	BufferPool.release(msgBufToProcess);
 	msgBufToProcess = null;
 	msgTypeToProcess = null;
     }
@@ -146,7 +148,8 @@ public abstract class AbstractMessageProcessor implements MessageProcessor,
 	synchronized (msgBuf) {
 	    if ((null == msgBufToProcess)
 		    || (msgBufToProcess.capacity() < msgBuf.remaining())) {
-		msgBufToProcess = java.nio.ByteBuffer.allocate((msgBuf
+		BufferPool.release(msgBufToProcess);
+		msgBufToProcess = BufferPool.acquire((msgBuf
 			.remaining() > minMsgBufferSize) ? msgBuf.remaining()
 			: minMsgBufferSize);
 	    }
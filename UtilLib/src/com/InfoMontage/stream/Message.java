@@ -34,6 +34,7 @@ import java.util.ListIterator;
 import com.InfoMontage.version.CodeVersion;
 import com.InfoMontage.version.GenericCodeVersion;
 import java.nio.ByteBuffer;
+import com.InfoMontage.util.BufferPool;
 
 /**
  * A Message is a sequence of MessageElements corresponding to the format of a
@@ -210,7 +211,12 @@ public class Message extends java.util.LinkedList implements Comparable {
 
     public synchronized int compareTo(Message m) {
 	// TBD implement compareTo MessageTemplate
-	return this.get().compareTo(m.get());
+	ByteBuffer b = this.get();
+	ByteBuffer mb = m.get();
+	int retVal = b.compareTo(mb);
+	BufferPool.release(b);
+	BufferPool.release(mb);
+	return retVal;
     }
 
     public synchronized int compareTo(Object o) {
@@ -359,7 +365,7 @@ public class Message extends java.util.LinkedList implements Comparable {
     }
 
     public synchronized ByteBuffer get() {
-	ByteBuffer b = ByteBuffer.allocate(byteLength());
+	ByteBuffer b = BufferPool.acquire(byteLength());
 	Iterator i = super.iterator();
 	while (i.hasNext())
 	    ((MessageElement) i.next()).append(b);
@@ -0,0 +1,362 @@
+/*
+ * TimerWheel.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.task;
+
+import java.util.ArrayList;
+
+import com.InfoMontage.util.AssertableLogger;
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * A hierarchical timer wheel, which keeps any number of pending
+ * {@link Timer}s with constant time scheduling and cancellation.
+ * <P>
+ * Time is divided into ticks of a fixed length. The wheel has
+ * {@link #LEVELS} levels of {@link #SLOTS} slots each: a slot of the lowest
+ * level holds the {@link Timer}s due in one tick, and a slot of each higher
+ * level those due in a span as long as the whole of the level below it. As
+ * time reaches a higher level slot its {@link Timer}s are redistributed
+ * among the lower levels, so each {@link Timer} is moved at most
+ * {@link #LEVELS} times, however long its delay. {@link Timer}s due further
+ * out than the wheel spans are parked in its highest level until they come
+ * within range.
+ * <P>
+ * {@link Timer}s are linked into their slots directly, so scheduling and
+ * cancelling allocate nothing. A {@link Timer} is scheduled at most once at
+ * a time; scheduling it again moves it.
+ * <P>
+ * A TimerWheel is driven by one {@link Thread} calling {@link #advance()},
+ * which calls {@link Timer#expire()} for every {@link Timer} which has come
+ * due, without holding the wheel's lock. Any {@link Thread} may schedule and
+ * cancel {@link Timer}s. A {@link Timer} cancelled by another {@link Thread}
+ * while it is being expired may still have {@link Timer#expire()} called, so
+ * expiry actions should check that they are still wanted.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public final class TimerWheel {
+
+    /**
+	 * Code version for the TimerWheel class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * {@link java.util.logging.Logger}for this class.
+	 */
+    private static final AssertableLogger log = new AssertableLogger(
+	    TimerWheel.class.getName());
+
+    /**
+	 * Log base 2 of the number of slots per level.
+	 */
+    private static final int SLOT_BITS = 6;
+
+    /**
+	 * Number of slots per level.
+	 */
+    public static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /**
+	 * Number of levels.
+	 */
+    public static final int LEVELS = 4;
+
+    /**
+	 * The number of ticks the wheel spans.
+	 */
+    private static final long SPAN_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    /**
+	 * An action to be taken once a delay has passed. Subclasses supply the
+	 * action; the wheel keeps its scheduling state in the Timer itself.
+	 *
+	 * @author Richard A. Mead <BR>
+	 *         Information Montage
+	 */
+    public abstract static class Timer {
+
+	/**
+	 * The tick on which the Timer is due.
+	 */
+	long dueTick;
+
+	/**
+	 * The level holding the Timer, or -1 if it is not scheduled.
+	 */
+	int level = -1;
+
+	int slot;
+
+	Timer prev;
+
+	Timer next;
+
+	/**
+	 * @return <CODE>true</CODE> if the Timer is waiting to expire.
+	 */
+	public final boolean isScheduled() {
+	    return (this.level >= 0);
+	}
+
+	/**
+	 * Takes the Timer's action. Called by the {@link Thread} advancing
+	 * the wheel, without the wheel's lock held; the Timer may be
+	 * scheduled again from here.
+	 */
+	protected abstract void expire();
+    }
+
+    /**
+	 * The length of a tick, in nanoseconds.
+	 */
+    private final long tickNanos;
+
+    /**
+	 * When tick zero began, by {@link System#nanoTime()}.
+	 */
+    private final long startNanos;
+
+    /**
+	 * The heads of the lists of {@link Timer}s in each slot.
+	 */
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+
+    /**
+	 * The last tick whose {@link Timer}s have been expired.
+	 */
+    private long currTick = 0;
+
+    private int size = 0;
+
+    /**
+	 * {@link Timer}s found due by {@link #advance()}, waiting to be
+	 * expired.
+	 */
+    private final ArrayList due = new ArrayList();
+
+    /**
+	 * Creates an empty wheel.
+	 *
+	 * @param tickMs
+	 *                The length of a tick, in milliseconds, which is the
+	 *                resolution of the wheel.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>tickMs</CODE> is not positive.
+	 */
+    public TimerWheel(long tickMs) throws IllegalArgumentException {
+	if (tickMs <= 0) {
+	    throw new IllegalArgumentException(
+		    "Attempt to create a TimerWheel with a tick of " + tickMs
+			    + "ms!");
+	}
+	this.tickNanos = tickMs * 1000000L;
+	this.startNanos = System.nanoTime();
+    }
+
+    /**
+	 * @return The length of a tick, in milliseconds.
+	 */
+    public long getTickMs() {
+	return this.tickNanos / 1000000L;
+    }
+
+    /**
+	 * @return The number of {@link Timer}s scheduled.
+	 */
+    public synchronized int size() {
+	return this.size;
+    }
+
+    public synchronized boolean isEmpty() {
+	return (0 == this.size);
+    }
+
+    /**
+	 * Schedules a {@link Timer} to expire after a delay, first cancelling
+	 * it if it is already scheduled. The delay is rounded up to a whole
+	 * number of ticks, of at least one.
+	 *
+	 * @param t
+	 *                The {@link Timer}.
+	 * @param delayMs
+	 *                The delay, in milliseconds.
+	 * @return <CODE>true</CODE> if the wheel was empty, so that a driver
+	 *         which stops advancing an empty wheel knows to start again.
+	 */
+    public synchronized boolean schedule(Timer t, long delayMs) {
+	boolean retVal = (0 == this.size);
+	if (t.isScheduled()) {
+	    unlink(t);
+	} else {
+	    this.size++;
+	}
+	long now = (System.nanoTime() - this.startNanos + this.tickNanos - 1)
+		/ this.tickNanos;
+	long ticks = (delayMs * 1000000L + this.tickNanos - 1) / this.tickNanos;
+	t.dueTick = ((now > this.currTick) ? now : this.currTick)
+		+ ((ticks > 0) ? ticks : 1);
+	link(t, this.currTick + 1);
+	return retVal;
+    }
+
+    /**
+	 * Cancels a {@link Timer}.
+	 *
+	 * @param t
+	 *                The {@link Timer}.
+	 * @return <CODE>true</CODE> if the {@link Timer} was scheduled.
+	 */
+    public synchronized boolean cancel(Timer t) {
+	boolean retVal = t.isScheduled();
+	if (retVal) {
+	    unlink(t);
+	    this.size--;
+	}
+	return retVal;
+    }
+
+    /**
+	 * Expires every {@link Timer} which has come due. Must not be called
+	 * by more than one {@link Thread} at a time.
+	 *
+	 * @return The number of {@link Timer}s expired.
+	 */
+    public int advance() {
+	return advanceTo((System.nanoTime() - this.startNanos) / this.tickNanos);
+    }
+
+    /**
+	 * Expires every {@link Timer} due by a given tick, as
+	 * {@link #advance()} does for the current one, so that the wheel can be
+	 * driven without waiting for time to pass.
+	 *
+	 * @param now
+	 *                The tick to advance to.
+	 * @return The number of {@link Timer}s expired.
+	 */
+    int advanceTo(long now) {
+	synchronized (this) {
+	    while (this.currTick < now) {
+		long tick = ++this.currTick;
+		// redistribute the higher level slots which tick has reached
+		for (int l = 1; l < LEVELS
+			&& 0 == (tick & ((1L << (SLOT_BITS * l)) - 1)); l++) {
+		    int s = (int) (tick >>> (SLOT_BITS * l)) & SLOT_MASK;
+		    Timer t = this.slots[l][s];
+		    this.slots[l][s] = null;
+		    while (null != t) {
+			Timer n = t.next;
+			link(t, tick);
+			t = n;
+		    }
+		}
+		int s = (int) tick & SLOT_MASK;
+		Timer t = this.slots[0][s];
+		this.slots[0][s] = null;
+		while (null != t) {
+		    Timer n = t.next;
+		    t.next = null;
+		    t.level = -1;
+		    this.due.add(t);
+		    this.size--;
+		    t = n;
+		}
+	    }
+	}
+	int retVal = this.due.size();
+	for (int i = 0; i < retVal; i++) {
+	    Timer t = (Timer) this.due.get(i);
+	    try {
+		t.expire();
+	    } catch (RuntimeException e) {
+		// one failed action must not stop the others
+		assert (log.throwing(e));
+	    }
+	}
+	this.due.clear();
+	return retVal;
+    }
+
+    /**
+	 * Links a {@link Timer} into the slot for its due tick.
+	 *
+	 * @param t
+	 *                The {@link Timer}.
+	 * @param base
+	 *                The next tick to be expired, from which the level is
+	 *                chosen.
+	 */
+    private void link(Timer t, long base) {
+	long due = t.dueTick;
+	long d = due - base;
+	if (d < 0) {
+	    // overdue - expire with the next slot
+	    due = base;
+	    d = 0;
+	} else if (d >= SPAN_TICKS) {
+	    // park it in the furthest slot until it comes within range
+	    due = base + SPAN_TICKS - 1;
+	    d = SPAN_TICKS - 1;
+	}
+	int l = 0;
+	while (d >= (1L << (SLOT_BITS * (l + 1)))) {
+	    l++;
+	}
+	int s = (int) (due >>> (SLOT_BITS * l)) & SLOT_MASK;
+	t.level = l;
+	t.slot = s;
+	t.prev = null;
+	t.next = this.slots[l][s];
+	if (null != t.next) {
+	    t.next.prev = t;
+	}
+	this.slots[l][s] = t;
+    }
+
+    private void unlink(Timer t) {
+	if (null == t.prev) {
+	    this.slots[t.level][t.slot] = t.next;
+	} else {
+	    t.prev.next = t.next;
+	}
+	if (null != t.next) {
+	    t.next.prev = t.prev;
+	}
+	t.prev = null;
+	t.next = null;
+	t.level = -1;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * TimerWheel_JUnitTest.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.task;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives a {@link TimerWheel} of one second ticks through
+ * {@link TimerWheel#advanceTo(long)}, starting well ahead of the real time,
+ * so that every {@link TimerWheel.Timer} is due on an exact tick however
+ * long the test takes.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public class TimerWheel_JUnitTest extends TestCase {
+
+    static final long TICK_MS = 1000;
+
+    static final long BASE = 1000;
+
+    volatile TimerWheel w;
+
+    /**
+         * The tick being advanced to.
+         */
+    volatile long tick;
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(TimerWheel_JUnitTest.class);
+    }
+
+    /**
+         * Constructor for TimerWheel_JUnitTest.
+         *
+         * @param arg0
+         */
+    public TimerWheel_JUnitTest(String arg0) {
+	super(arg0);
+    }
+
+    protected void setUp() throws Exception {
+	super.setUp();
+	this.w = new TimerWheel(TICK_MS);
+	advanceTo(BASE);
+    }
+
+    protected void tearDown() throws Exception {
+	this.w = null;
+	super.tearDown();
+    }
+
+    class TestTimer extends TimerWheel.Timer {
+
+	volatile long expiredAt = -1;
+
+	volatile int expiries = 0;
+
+	protected void expire() {
+	    this.expiredAt = TimerWheel_JUnitTest.this.tick;
+	    this.expiries++;
+	    action();
+	}
+
+	void action() {
+	}
+    }
+
+    int advanceTo(long t) {
+	this.tick = t;
+	return this.w.advanceTo(t);
+    }
+
+    /**
+         * Steps one tick at a time up to and including <CODE>to</CODE>.
+         */
+    int stepTo(long to) {
+	int n = 0;
+	while (this.tick < to) {
+	    n += advanceTo(this.tick + 1);
+	}
+	return n;
+    }
+
+    public void testExpiresOnDueTick() {
+	TestTimer t = new TestTimer();
+	assertTrue(this.w.schedule(t, 1));
+	assertTrue(t.isScheduled());
+	assertEquals(1, this.w.size());
+	assertEquals(1, stepTo(BASE + 1));
+	assertEquals(BASE + 1, t.expiredAt);
+	assertFalse(t.isScheduled());
+	assertTrue(this.w.isEmpty());
+	// a delay rounds up to whole ticks
+	this.w.schedule(t, 2 * TICK_MS + 1);
+	assertEquals(0, stepTo(BASE + 3));
+	assertEquals(1, stepTo(BASE + 4));
+	assertEquals(BASE + 4, t.expiredAt);
+    }
+
+    public void testCascading() {
+	long[] delays = { 1, 2, 63, 64, 65, 127, 128, 4095, 4096, 4097,
+		4160, 8191, 262143, 262144, 262145, 300001 };
+	TestTimer[] ts = new TestTimer[delays.length];
+	for (int i = 0; i < delays.length; i++) {
+	    ts[i] = new TestTimer();
+	    assertEquals(0 == i, this.w.schedule(ts[i], delays[i] * TICK_MS));
+	}
+	assertEquals(delays.length, this.w.size());
+	assertEquals(delays.length, stepTo(BASE
+		+ delays[delays.length - 1]));
+	for (int i = 0; i < delays.length; i++) {
+	    assertEquals("timer due in " + delays[i], BASE + delays[i],
+		    ts[i].expiredAt);
+	    assertEquals(1, ts[i].expiries);
+	}
+	assertTrue(this.w.isEmpty());
+    }
+
+    public void testCascadingFromOddBase() {
+	// start part way through every level's slots
+	advanceTo(BASE + 64 * 64 * 63 + 64 * 37 + 11);
+	long b = this.tick;
+	long[] delays = { 1, 52, 53, 54, 100, 2000, 5000, 70000 };
+	TestTimer[] ts = new TestTimer[delays.length];
+	for (int i = 0; i < delays.length; i++) {
+	    ts[i] = new TestTimer();
+	    this.w.schedule(ts[i], delays[i] * TICK_MS);
+	}
+	stepTo(b + delays[delays.length - 1]);
+	for (int i = 0; i < delays.length; i++) {
+	    assertEquals("timer due in " + delays[i], b + delays[i],
+		    ts[i].expiredAt);
+	}
+    }
+
+    public void testParkedBeyondSpan() {
+	long span = 1;
+	for (int l = 0; l < TimerWheel.LEVELS; l++) {
+	    span *= TimerWheel.SLOTS;
+	}
+	TestTimer far = new TestTimer();
+	TestTimer farther = new TestTimer();
+	this.w.schedule(far, (span + 1000) * TICK_MS);
+	this.w.schedule(farther, (3 * span + 5) * TICK_MS);
+	assertEquals(0, advanceTo(BASE + span + 1000 - 70));
+	assertTrue(far.isScheduled());
+	assertEquals(1, stepTo(BASE + span + 1000));
+	assertEquals(BASE + span + 1000, far.expiredAt);
+	assertEquals(0, advanceTo(BASE + 3 * span + 5 - 3));
+	assertEquals(1, stepTo(BASE + 3 * span + 5));
+	assertEquals(BASE + 3 * span + 5, farther.expiredAt);
+	assertTrue(this.w.isEmpty());
+    }
+
+    public void testRescheduleMoves() {
+	TestTimer t = new TestTimer();
+	this.w.schedule(t, 100 * TICK_MS);
+	assertFalse(this.w.schedule(t, 10 * TICK_MS));
+	assertEquals(1, this.w.size());
+	stepTo(BASE + 200);
+	assertEquals(BASE + 10, t.expiredAt);
+	assertEquals(1, t.expiries);
+    }
+
+    public void testCancel() {
+	TestTimer t = new TestTimer();
+	TestTimer u = new TestTimer();
+	this.w.schedule(t, 5000 * TICK_MS);
+	this.w.schedule(u, 5000 * TICK_MS);
+	assertTrue(this.w.cancel(t));
+	assertFalse(this.w.cancel(t));
+	assertFalse(t.isScheduled());
+	assertEquals(1, this.w.size());
+	assertEquals(1, stepTo(BASE + 5000));
+	assertEquals(-1, t.expiredAt);
+	assertEquals(BASE + 5000, u.expiredAt);
+    }
+
+    public void testCancelWhileExpiring() {
+	final TestTimer sameTick = new TestTimer();
+	final TestTimer later = new TestTimer();
+	final TestTimer again = new TestTimer() {
+	    void action() {
+		if (1 == this.expiries) {
+		    // scheduling itself again from its own expiry
+		    TimerWheel_JUnitTest.this.w.schedule(this, 3 * TICK_MS);
+		}
+	    }
+	};
+	TestTimer canceller = new TestTimer() {
+	    void action() {
+		// already taken from the wheel to be expired: too late
+		assertFalse(TimerWheel_JUnitTest.this.w.cancel(sameTick));
+		assertTrue(TimerWheel_JUnitTest.this.w.cancel(later));
+	    }
+	};
+	this.w.schedule(canceller, 7 * TICK_MS);
+	this.w.schedule(sameTick, 7 * TICK_MS);
+	this.w.schedule(again, 7 * TICK_MS);
+	this.w.schedule(later, 8 * TICK_MS);
+	assertEquals(4, this.w.size());
+	assertEquals(3, stepTo(BASE + 7));
+	assertEquals(BASE + 7, sameTick.expiredAt);
+	assertTrue(again.isScheduled());
+	assertEquals(1, this.w.size());
+	assertEquals(1, stepTo(BASE + 20));
+	assertEquals(-1, later.expiredAt);
+	assertEquals(BASE + 10, again.expiredAt);
+	assertEquals(2, again.expiries);
+	assertTrue(this.w.isEmpty());
+    }
+
+    public void testFailingTimerDoesNotStopOthers() {
+	TestTimer bad = new TestTimer() {
+	    void action() {
+		throw new IllegalStateException("expected by the test");
+	    }
+	};
+	TestTimer good = new TestTimer();
+	this.w.schedule(bad, TICK_MS);
+	this.w.schedule(good, TICK_MS);
+	assertEquals(2, stepTo(BASE + 1));
+	assertEquals(BASE + 1, good.expiredAt);
+    }
+
+    public void testBadTick() {
+	try {
+	    new TimerWheel(0);
+	    fail("TimerWheel created with a zero tick");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+}
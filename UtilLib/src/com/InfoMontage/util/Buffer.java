@@ -66,8 +66,34 @@ public final class Buffer {
 	return ByteBuffer.allocate(e.length());
     }
 
+    /**
+     * Returns a buffer of length <CODE>l</CODE> from the {@link BufferPool}.
+     * The buffer's capacity may exceed <CODE>l</CODE>; pass it to
+     * {@link #release(ByteBuffer)} once it is no longer needed.
+     */
     public static final ByteBuffer create(int l) {
-	return ByteBuffer.allocate(l);
+	return BufferPool.acquire(l);
+    }
+
+    /**
+     * @see BufferPool#acquire(int)
+     */
+    public static final ByteBuffer acquire(int l) {
+	return BufferPool.acquire(l);
+    }
+
+    /**
+     * @see BufferPool#acquireDirect(int)
+     */
+    public static final ByteBuffer acquireDirect(int l) {
+	return BufferPool.acquireDirect(l);
+    }
+
+    /**
+     * @see BufferPool#release(ByteBuffer)
+     */
+    public static final void release(ByteBuffer b) {
+	BufferPool.release(b);
     }
 
     public static final String toString(final ByteBuffer b) {
@@ -0,0 +1,337 @@
+/*
+ * BufferPool.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.util;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * A pool of heap and direct {@link ByteBuffer}s, used to keep buffer
+ * allocation off the hot paths of the library.
+ * <P>
+ * Buffers are pooled in power-of-two size classes from
+ * {@link #MIN_POOLED_SIZE} to {@link #MAX_POOLED_SIZE} bytes. A request is
+ * served from the smallest class that fits it, so an acquired buffer's
+ * capacity may exceed the size asked for; its limit is set to the size asked
+ * for, as if it had just been allocated. Requests larger than the largest
+ * class are simply allocated, and not pooled when released.
+ * <P>
+ * Each {@link Thread} keeps a small cache of released buffers per size class
+ * which it can use without synchronization; only when that cache is empty
+ * (or full, on release) is the shared pool for the size class consulted.
+ * <P>
+ * A buffer must be released at most once, and must not be used after it has
+ * been released. Only the pool's own buffers are taken back: a heap buffer
+ * must span the whole of its backing array, and a direct buffer must be one
+ * the pool allocated, so wrapped arrays, slices and duplicates are ignored.
+ * Buffers that are never released are simply collected as usual.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public final class BufferPool {
+
+    /**
+	 * Code version for the BufferPool class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    /**
+	 * Log base 2 of the smallest pooled buffer size.
+	 */
+    private static final int MIN_SHIFT = 6;
+
+    /**
+	 * Log base 2 of the largest pooled buffer size.
+	 */
+    private static final int MAX_SHIFT = 20;
+
+    /**
+	 * The smallest pooled buffer size, in bytes.
+	 */
+    public static final int MIN_POOLED_SIZE = 1 << MIN_SHIFT;
+
+    /**
+	 * The largest pooled buffer size, in bytes.
+	 */
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+    /**
+	 * Number of size classes.
+	 */
+    private static final int NUM_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /**
+	 * The number of bytes of each size class a {@link Thread} may cache.
+	 * At least one buffer of every class may be cached.
+	 */
+    private static final int THREAD_CACHE_BYTES_PER_CLASS = 256 * 1024;
+
+    /**
+	 * The number of bytes of each size class the shared pool may hold. At
+	 * least a few buffers of every class may be held.
+	 */
+    private static final int SHARED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    /**
+	 * The shared pools of heap buffers, one per size class.
+	 */
+    private static final Stack[] sharedHeap = newStacks(SHARED_BYTES_PER_CLASS,
+	    4);
+
+    /**
+	 * The shared pools of direct buffers, one per size class.
+	 */
+    private static final Stack[] sharedDirect = newStacks(
+	    SHARED_BYTES_PER_CLASS, 4);
+
+    /**
+	 * The direct buffers the pool has allocated, since a direct buffer's
+	 * duplicates and slices cannot otherwise be told from it.
+	 */
+    private static final Owned ownedDirect = new Owned();
+
+    /**
+	 * The per-{@link Thread} caches.
+	 */
+    private static final ThreadLocal threadCache = new ThreadLocal() {
+	protected Object initialValue() {
+	    return new Stack[][] {
+		    newStacks(THREAD_CACHE_BYTES_PER_CLASS, 1),
+		    newStacks(THREAD_CACHE_BYTES_PER_CLASS, 1) };
+	}
+    };
+
+    /**
+	 * A bounded stack of released buffers of a single size class. Not
+	 * synchronized itself; the shared stacks are locked by their users.
+	 */
+    private static final class Stack {
+
+	final ByteBuffer[] bufs;
+
+	int size = 0;
+
+	Stack(int max) {
+	    this.bufs = new ByteBuffer[max];
+	}
+
+	ByteBuffer pop() {
+	    ByteBuffer retVal = null;
+	    if (this.size > 0) {
+		retVal = this.bufs[--this.size];
+		this.bufs[this.size] = null;
+	    }
+	    return retVal;
+	}
+
+	boolean push(ByteBuffer b) {
+	    boolean retVal = (this.size < this.bufs.length);
+	    if (retVal) {
+		this.bufs[this.size++] = b;
+	    }
+	    return retVal;
+	}
+    }
+
+    /**
+	 * A set of buffers compared by identity, holding them weakly so that a
+	 * buffer which is never released is still collected. Only direct
+	 * buffers, which are few and long lived, are kept in one, so a linear
+	 * search is cheap enough.
+	 */
+    private static final class Owned {
+
+	private WeakReference[] refs = new WeakReference[16];
+
+	private int size = 0;
+
+	synchronized void add(ByteBuffer b) {
+	    if (this.size == this.refs.length) {
+		// forget the buffers which have been collected, and grow
+		// only if that frees too little
+		int n = 0;
+		for (int i = 0; i < this.size; i++) {
+		    if (null != this.refs[i].get()) {
+			this.refs[n++] = this.refs[i];
+		    }
+		}
+		java.util.Arrays.fill(this.refs, n, this.size, null);
+		this.size = n;
+		if (n > (this.refs.length >> 1)) {
+		    WeakReference[] nr = new WeakReference[this.refs.length << 1];
+		    System.arraycopy(this.refs, 0, nr, 0, n);
+		    this.refs = nr;
+		}
+	    }
+	    this.refs[this.size++] = new WeakReference(b);
+	}
+
+	synchronized boolean contains(ByteBuffer b) {
+	    for (int i = 0; i < this.size; i++) {
+		if (b == this.refs[i].get()) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+    }
+
+    /** Cannot create an instance of BufferPool - static methods only */
+    private BufferPool() {
+    }
+
+    private static Stack[] newStacks(int bytesPerClass, int minPerClass) {
+	Stack[] sa = new Stack[NUM_CLASSES];
+	for (int i = 0; i < NUM_CLASSES; i++) {
+	    int n = bytesPerClass >>> (MIN_SHIFT + i);
+	    sa[i] = new Stack((n < minPerClass) ? minPerClass : n);
+	}
+	return sa;
+    }
+
+    /**
+	 * Returns the size class index for a requested buffer size.
+	 *
+	 * @param size
+	 *                The requested size, which must be no greater than
+	 *                {@link #MAX_POOLED_SIZE}.
+	 * @return The index of the smallest size class which can hold
+	 *         <CODE>size</CODE> bytes.
+	 */
+    private static int sizeClass(int size) {
+	if (size <= MIN_POOLED_SIZE) {
+	    return 0;
+	}
+	return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+	 * Returns a heap {@link ByteBuffer} with room for at least
+	 * <CODE>size</CODE> bytes, positioned at zero with its limit at
+	 * <CODE>size</CODE>.
+	 *
+	 * @param size
+	 *                The number of bytes needed.
+	 * @return The buffer.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>size</CODE> is negative.
+	 */
+    public static ByteBuffer acquire(int size) throws IllegalArgumentException {
+	return acquire(size, false);
+    }
+
+    /**
+	 * Returns a direct {@link ByteBuffer} with room for at least
+	 * <CODE>size</CODE> bytes, positioned at zero with its limit at
+	 * <CODE>size</CODE>.
+	 *
+	 * @param size
+	 *                The number of bytes needed.
+	 * @return The buffer.
+	 * @throws IllegalArgumentException
+	 *                 if <CODE>size</CODE> is negative.
+	 */
+    public static ByteBuffer acquireDirect(int size)
+	    throws IllegalArgumentException {
+	return acquire(size, true);
+    }
+
+    private static ByteBuffer acquire(int size, boolean direct)
+	    throws IllegalArgumentException {
+	if (size < 0) {
+	    throw new IllegalArgumentException(
+		    "Attempt to acquire a buffer of negative size!");
+	}
+	if (size > MAX_POOLED_SIZE) {
+	    return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+		    .allocate(size);
+	}
+	int c = sizeClass(size);
+	Stack[][] tc = (Stack[][]) threadCache.get();
+	ByteBuffer retVal = tc[direct ? 1 : 0][c].pop();
+	if (null == retVal) {
+	    Stack s = (direct ? sharedDirect : sharedHeap)[c];
+	    synchronized (s) {
+		retVal = s.pop();
+	    }
+	    if (null == retVal) {
+		int cap = 1 << (MIN_SHIFT + c);
+		if (direct) {
+		    retVal = ByteBuffer.allocateDirect(cap);
+		    ownedDirect.add(retVal);
+		} else {
+		    retVal = ByteBuffer.allocate(cap);
+		}
+	    }
+	}
+	retVal.limit(size);
+	return retVal;
+    }
+
+    /**
+	 * Returns a buffer to the pool. Buffers which did not come from the
+	 * pool are ignored, as are <CODE>null</CODE>s: read-only buffers,
+	 * buffers whose capacity is not one of the pool's size classes, heap
+	 * buffers which do not span the whole of their backing array, and
+	 * direct buffers the pool did not allocate.
+	 *
+	 * @param b
+	 *                The buffer, which the caller must not use again.
+	 */
+    public static void release(ByteBuffer b) {
+	if (null == b || b.isReadOnly()) {
+	    return;
+	}
+	int cap = b.capacity();
+	if (cap < MIN_POOLED_SIZE || cap > MAX_POOLED_SIZE
+		|| 0 != (cap & (cap - 1))) {
+	    return;
+	}
+	boolean direct = b.isDirect();
+	if (direct ? !ownedDirect.contains(b) : (!b.hasArray()
+		|| 0 != b.arrayOffset() || b.array().length != cap)) {
+	    return;
+	}
+	int c = sizeClass(cap);
+	b.clear();
+	Stack[][] tc = (Stack[][]) threadCache.get();
+	if (!tc[direct ? 1 : 0][c].push(b)) {
+	    Stack s = (direct ? sharedDirect : sharedHeap)[c];
+	    synchronized (s) {
+		s.push(b);
+	    }
+	}
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * BufferPool_JUnitTest.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public class BufferPool_JUnitTest extends TestCase {
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(BufferPool_JUnitTest.class);
+    }
+
+    /**
+         * Constructor for BufferPool_JUnitTest.
+         *
+         * @param arg0
+         */
+    public BufferPool_JUnitTest(String arg0) {
+	super(arg0);
+    }
+
+    public void testAcquireSizes() {
+	int[] sizes = { 0, 1, 63, 64, 65, 1000, 4096, 4097,
+		BufferPool.MAX_POOLED_SIZE };
+	for (int i = 0; i < sizes.length; i++) {
+	    ByteBuffer b = BufferPool.acquire(sizes[i]);
+	    assertEquals(0, b.position());
+	    assertEquals(sizes[i], b.limit());
+	    int cap = b.capacity();
+	    assertTrue(cap >= sizes[i] && cap >= BufferPool.MIN_POOLED_SIZE);
+	    assertEquals("capacity is a size class", 0, cap & (cap - 1));
+	    assertTrue(cap < 2 * sizes[i] || cap == BufferPool.MIN_POOLED_SIZE);
+	    BufferPool.release(b);
+	}
+	ByteBuffer big = BufferPool.acquire(BufferPool.MAX_POOLED_SIZE + 1);
+	assertEquals(BufferPool.MAX_POOLED_SIZE + 1, big.capacity());
+	BufferPool.release(big);
+    }
+
+    public void testNegativeSize() {
+	try {
+	    BufferPool.acquire(-1);
+	    fail("Negative size acquired");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    public void testReleasedBufferIsReused() {
+	ByteBuffer b = BufferPool.acquire(1000);
+	b.position(10);
+	BufferPool.release(b);
+	ByteBuffer c = BufferPool.acquire(900);
+	assertSame(b, c);
+	assertEquals(0, c.position());
+	assertEquals(900, c.limit());
+	BufferPool.release(c);
+	ByteBuffer d = BufferPool.acquireDirect(1000);
+	assertTrue(d.isDirect());
+	BufferPool.release(d);
+	assertSame(d, BufferPool.acquireDirect(1000));
+	BufferPool.release(d);
+    }
+
+    public void testForeignHeapBuffersIgnored() {
+	ByteBuffer own = BufferPool.acquire(2048);
+	byte[] a = new byte[4096];
+	ByteBuffer[] foreign = { ByteBuffer.wrap(a, 0, 1024).slice(),
+		ByteBuffer.wrap(a, 1024, 2048).slice(), own.asReadOnlyBuffer(),
+		ByteBuffer.wrap(new byte[1000]) };
+	for (int i = 0; i < foreign.length; i++) {
+	    BufferPool.release(foreign[i]);
+	    ByteBuffer b = BufferPool.acquire(foreign[i].capacity());
+	    assertNotSame("foreign buffer " + i + " was pooled", foreign[i], b);
+	    BufferPool.release(b);
+	}
+	BufferPool.release(null);
+	BufferPool.release(own);
+    }
+
+    public void testForeignDirectBuffersIgnored() {
+	ByteBuffer own = BufferPool.acquireDirect(2048);
+	ByteBuffer[] foreign = { ByteBuffer.allocateDirect(2048),
+		own.duplicate(), own.slice() };
+	for (int i = 0; i < foreign.length; i++) {
+	    BufferPool.release(foreign[i]);
+	    ByteBuffer b = BufferPool.acquireDirect(2048);
+	    assertNotSame("foreign buffer " + i + " was pooled", foreign[i], b);
+	    assertNotSame("buffer in use was handed out again", own, b);
+	}
+	BufferPool.release(own);
+	assertSame(own, BufferPool.acquireDirect(2048));
+    }
+
+    public void testManyDirectBuffers() {
+	// the pool keeps track of every direct buffer it allocates
+	ByteBuffer[] bufs = new ByteBuffer[200];
+	for (int i = 0; i < bufs.length; i++) {
+	    bufs[i] = BufferPool.acquireDirect(BufferPool.MIN_POOLED_SIZE);
+	}
+	for (int i = 0; i < bufs.length; i++) {
+	    BufferPool.release(bufs[i]);
+	}
+	ByteBuffer b = BufferPool.acquireDirect(BufferPool.MIN_POOLED_SIZE);
+	boolean found = false;
+	for (int i = 0; i < bufs.length; i++) {
+	    found |= (b == bufs[i]);
+	}
+	assertTrue(found);
+    }
+
+    public void testReleaseFromAnotherThread() throws InterruptedException {
+	final ByteBuffer b = BufferPool.acquire(3000);
+	Thread t = new Thread() {
+	    public void run() {
+		BufferPool.release(b);
+	    }
+	};
+	t.start();
+	t.join();
+	// the other Thread's cache keeps it, and is not shared
+	ByteBuffer c = BufferPool.acquire(3000);
+	assertNotSame(b, c);
+	BufferPool.release(c);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * SpscQueue.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.util;
+
+import com.InfoMontage.version.CodeVersion;
+
+/**
+ * An unbounded first-in first-out queue for handing objects from one
+ * {@link Thread} to another without a lock. The queue is a linked list
+ * with a dummy head: {@link #offer(Object)} only ever touches the tail and
+ * {@link #poll()} only ever touches the head, and the two meet only at the
+ * volatile link between the last two nodes, so neither waits for the
+ * other and neither shifts what is already queued.
+ * <P>
+ * At most one {@link Thread} at a time may offer, and at most one at a
+ * time may poll; callers with more than one of either must serialize them
+ * themselves. {@link #isEmpty()} and {@link #size()} may be called from
+ * any {@link Thread}, and reflect some moment during the call.
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public final class SpscQueue {
+
+    /**
+	 * Code version for the SpscQueue class. Determined from CVS file
+	 * revision.
+	 */
+    public static CodeVersion implCodeVersion = com.InfoMontage.version.GenericCodeVersion
+	    .codeVersionFromCVSRevisionString("$Revision$");
+
+    private static final class Node {
+
+	Object value;
+
+	volatile Node next = null;
+
+	Node(Object value) {
+	    this.value = value;
+	}
+    }
+
+    /**
+	 * The node before the first one queued. Only touched by the consumer.
+	 */
+    private Node head;
+
+    /**
+	 * The last node queued. Only touched by the producer.
+	 */
+    private Node tail;
+
+    /**
+	 * Counts of the objects ever offered and polled, each written only by
+	 * its own side.
+	 */
+    private volatile long offered = 0;
+
+    private volatile long polled = 0;
+
+    /** Creates a new, empty instance of SpscQueue */
+    public SpscQueue() {
+	this.head = this.tail = new Node(null);
+    }
+
+    /**
+	 * Adds an object to the tail of the queue. Only called by the
+	 * producer.
+	 *
+	 * @param o
+	 *                The object, which may not be <CODE>null</CODE>.
+	 * @throws NullPointerException
+	 *                 if <CODE>o</CODE> is <CODE>null</CODE>.
+	 */
+    public void offer(Object o) throws NullPointerException {
+	if (null == o) {
+	    throw new NullPointerException(
+		    "Attempt to queue null in a SpscQueue!");
+	}
+	Node n = new Node(o);
+	// the volatile write publishes the node's value with it
+	this.tail.next = n;
+	this.tail = n;
+	this.offered = this.offered + 1;
+    }
+
+    /**
+	 * Removes the object at the head of the queue. Only called by the
+	 * consumer.
+	 *
+	 * @return The object, or <CODE>null</CODE> if the queue is empty.
+	 */
+    public Object poll() {
+	Node n = this.head.next;
+	if (null == n) {
+	    return null;
+	}
+	Object o = n.value;
+	// n becomes the dummy head, and lets go of what it held
+	n.value = null;
+	this.head = n;
+	this.polled = this.polled + 1;
+	return o;
+    }
+
+    /**
+	 * @return The object at the head of the queue, without removing it, or
+	 *         <CODE>null</CODE> if the queue is empty. Only called by the
+	 *         consumer.
+	 */
+    public Object peek() {
+	Node n = this.head.next;
+	return (null == n) ? null : n.value;
+    }
+
+    public boolean isEmpty() {
+	return (this.polled == this.offered);
+    }
+
+    public int size() {
+	long p = this.polled;
+	return (int) (this.offered - p);
+    }
+}
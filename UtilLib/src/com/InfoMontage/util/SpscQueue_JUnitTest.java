@@ -0,0 +1,148 @@
+/*
+ * SpscQueue_JUnitTest.java
+ *
+ * Created on Oct 18, 2026
+ *
+ * $Revision$
+ */
+
+/*
+ *
+ * Part of the "Information Montage Utility Library," a project from
+ * Information Montage. Copyright (C) 2004 Richard A. Mead
+ *
+ * This library is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or (at
+ * your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ */
+
+package com.InfoMontage.util;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Richard A. Mead <BR>
+ *         Information Montage
+ */
+public class SpscQueue_JUnitTest extends TestCase {
+
+    public static void main(String[] args) {
+	junit.textui.TestRunner.run(SpscQueue_JUnitTest.class);
+    }
+
+    /**
+         * Constructor for SpscQueue_JUnitTest.
+         *
+         * @param arg0
+         */
+    public SpscQueue_JUnitTest(String arg0) {
+	super(arg0);
+    }
+
+    public void testEmpty() {
+	SpscQueue q = new SpscQueue();
+	assertTrue(q.isEmpty());
+	assertEquals(0, q.size());
+	assertNull(q.poll());
+	assertNull(q.peek());
+    }
+
+    public void testFifo() {
+	SpscQueue q = new SpscQueue();
+	for (int i = 0; i < 100; i++) {
+	    q.offer(Integer.valueOf(i));
+	    assertEquals(i + 1, q.size());
+	}
+	assertFalse(q.isEmpty());
+	for (int i = 0; i < 100; i++) {
+	    assertEquals(Integer.valueOf(i), q.peek());
+	    assertEquals(Integer.valueOf(i), q.poll());
+	    assertEquals(99 - i, q.size());
+	}
+	assertTrue(q.isEmpty());
+	assertNull(q.poll());
+	// and again once drained, from the node left as the head
+	q.offer("a");
+	q.offer("b");
+	assertEquals("a", q.poll());
+	q.offer("c");
+	assertEquals("b", q.poll());
+	assertEquals("c", q.poll());
+	assertTrue(q.isEmpty());
+    }
+
+    public void testNullRejected() {
+	SpscQueue q = new SpscQueue();
+	try {
+	    q.offer(null);
+	    fail("null was queued");
+	} catch (NullPointerException e) {
+	    // expected
+	}
+	assertTrue(q.isEmpty());
+	assertNull(q.poll());
+    }
+
+    /**
+         * One {@link Thread} offers while another polls: everything offered
+         * must come out once, in order, and the sizes seen from a third
+         * must stay within what has been offered.
+         */
+    public void testConcurrentHandOff() throws InterruptedException {
+	final SpscQueue q = new SpscQueue();
+	final int count = 500000;
+	final int[] got = new int[] { 0 };
+	final String[] failure = new String[1];
+	Thread producer = new Thread("SpscQueue producer") {
+	    public void run() {
+		for (int i = 0; i < count; i++) {
+		    q.offer(Integer.valueOf(i));
+		    if (0 == (i & 1023)) {
+			Thread.yield();
+		    }
+		}
+	    }
+	};
+	Thread consumer = new Thread("SpscQueue consumer") {
+	    public void run() {
+		int next = 0;
+		while (next < count) {
+		    Object o = q.poll();
+		    if (null == o) {
+			Thread.yield();
+		    } else if (((Integer) o).intValue() != next) {
+			failure[0] = "expected " + next + " but polled " + o;
+			break;
+		    } else {
+			next++;
+		    }
+		}
+		got[0] = next;
+	    }
+	};
+	consumer.start();
+	producer.start();
+	while (consumer.isAlive()) {
+	    int s = q.size();
+	    assertTrue("size " + s, s >= 0 && s <= count);
+	}
+	producer.join();
+	consumer.join();
+	assertNull(failure[0], failure[0]);
+	assertEquals(count, got[0]);
+	assertTrue(q.isEmpty());
+	assertNull(q.poll());
+    }
+}